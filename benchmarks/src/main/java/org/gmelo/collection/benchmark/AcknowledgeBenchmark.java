@@ -0,0 +1,79 @@
+package org.gmelo.collection.benchmark;
+
+import org.gmelo.collection.BlockingQueueWithAck;
+import org.gmelo.collection.Delivery;
+import org.gmelo.collection.impl.LinkedBlockingQueueWithAck;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of acknowledgements alone. Every invocation acknowledges a batch of deliveries that
+ * the thread took during the (unmeasured) setup, run it with a growing thread count to see how acks scale, e.g.
+ * <pre>
+ * java -jar target/benchmarks.jar AcknowledgeBenchmark -t 1
+ * java -jar target/benchmarks.jar AcknowledgeBenchmark -t 16
+ * java -jar target/benchmarks.jar AcknowledgeBenchmark -t 64
+ * </pre>
+ *
+ * User: GMelo
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AcknowledgeBenchmark {
+
+    private static final int BATCH = 1000;
+
+    private BlockingQueueWithAck<Long> queue;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        queue = new LinkedBlockingQueueWithAck<Long>(TimeUnit.MINUTES.toMillis(10));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        queue.close();
+    }
+
+    /**
+     * Deliveries taken by one benchmark thread, waiting to be acknowledged.
+     */
+    @State(Scope.Thread)
+    public static class Deliveries {
+
+        private final long[] tags = new long[BATCH];
+        private final Long[] elements = new Long[BATCH];
+        private long next;
+
+        @Setup(Level.Invocation)
+        public void take(AcknowledgeBenchmark benchmark) throws InterruptedException {
+            for (int i = 0; i < BATCH; i++) {
+                benchmark.queue.put(next++);
+                Delivery<Long> delivery = benchmark.queue.takeDelivery();
+                tags[i] = delivery.getTag();
+                elements[i] = delivery.getElement();
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void acknowledgeByTag(Deliveries deliveries) {
+        for (int i = 0; i < BATCH; i++) {
+            queue.acknowledge(deliveries.tags[i], BlockingQueueWithAck.Acknowledgement.ACK);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void acknowledgeByElement(Deliveries deliveries) {
+        for (int i = 0; i < BATCH; i++) {
+            queue.acknowledge(deliveries.elements[i], BlockingQueueWithAck.Acknowledgement.ACK);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package org.gmelo.collection.benchmark;
+
+import org.gmelo.collection.Codec;
+import org.gmelo.collection.impl.codec.SerializableCodec;
+import org.gmelo.collection.impl.codec.StringCodec;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a round trip of a String element through a codec and a reused direct buffer, the way the journal
+ * and the off-heap storage use codecs. Run it with -prof gc to see the allocations per element, e.g.
+ * <pre>
+ * java -jar target/benchmarks.jar CodecBenchmark -prof gc
+ * </pre>
+ *
+ * User: GMelo
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    @Param({"serializable", "string"})
+    public String codecType;
+
+    @Param({"16", "1024"})
+    public int length;
+
+    private Codec<String> codec;
+    private ByteBuffer buffer;
+    private String element;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        codec = "string".equals(codecType) ? new StringCodec() : new SerializableCodec<String>();
+        buffer = ByteBuffer.allocateDirect(64 * 1024);
+        StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            builder.append((char) ('a' + i % 26));
+        }
+        element = builder.toString();
+    }
+
+    @Benchmark
+    public int encode() {
+        buffer.clear();
+        codec.encode(element, buffer);
+        return buffer.position();
+    }
+
+    @Benchmark
+    public String encodeDecode() {
+        buffer.clear();
+        codec.encode(element, buffer);
+        buffer.flip();
+        return codec.decode(buffer);
+    }
+}
@@ -0,0 +1,59 @@
+package org.gmelo.collection.benchmark;
+
+import org.gmelo.collection.BlockingQueueWithAck;
+import org.gmelo.collection.Delivery;
+import org.gmelo.collection.impl.LinkedBlockingQueueWithAck;
+import org.gmelo.collection.impl.storage.MpmcArrayBlockingQueue;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures take, acknowledgement and offer cycles run by many threads on the same queue, over the array backed
+ * storage so that the storage does not serialize the threads. Every take, acknowledgement and offer goes through
+ * the operation counters a shutdown waits on, a counter shared by the threads shows up here first. Compare the
+ * thread counts with the number of cores, e.g.
+ * <pre>
+ * java -jar target/benchmarks.jar ContendedCycleBenchmark -t 1
+ * java -jar target/benchmarks.jar ContendedCycleBenchmark -t 8
+ * </pre>
+ *
+ * User: GMelo
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(8)
+@Fork(1)
+public class ContendedCycleBenchmark {
+
+    private static final int ELEMENTS = 4096;
+
+    private LinkedBlockingQueueWithAck<Long> queue;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        queue = new LinkedBlockingQueueWithAck.Builder<Long>(TimeUnit.MINUTES.toMillis(10))
+                .storage(MpmcArrayBlockingQueue.<Long>factory(ELEMENTS))
+                .build();
+        for (long i = 0; i < ELEMENTS / 2; i++) {
+            queue.add(i);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        queue.close();
+    }
+
+    @Benchmark
+    public Long takeAcknowledgeAndOffer() throws InterruptedException {
+        Delivery<Long> delivery = queue.takeDelivery();
+        Long element = delivery.getElement();
+        queue.acknowledge(delivery.getTag(), BlockingQueueWithAck.Acknowledgement.ACK);
+        queue.offer(element);
+        return element;
+    }
+}
@@ -0,0 +1,97 @@
+package org.gmelo.collection.benchmark;
+
+import org.gmelo.collection.BlockingQueueWithAck;
+import org.gmelo.collection.Delivery;
+import org.gmelo.collection.impl.LinkedBlockingQueueWithAck;
+import org.gmelo.collection.impl.journal.SegmentedJournal;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the throughput of the queue in memory and durable. Durable producers wait for an fsync, which the
+ * journal shares between the producers waiting at the same time, run it with a growing thread count to see
+ * the group commit at work, e.g.
+ * <pre>
+ * java -jar target/benchmarks.jar JournalBenchmark -t 1
+ * java -jar target/benchmarks.jar JournalBenchmark -t 16
+ * </pre>
+ * The journal is written to java.io.tmpdir, set it to the disk to measure.
+ *
+ * User: GMelo
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JournalBenchmark {
+
+    private static final int BATCH = 100;
+
+    @Param({"memory", "journal"})
+    public String durability;
+
+    private BlockingQueueWithAck<Integer> queue;
+    private File directory;
+    private Integer[] batch;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        LinkedBlockingQueueWithAck.Builder<Integer> builder =
+                new LinkedBlockingQueueWithAck.Builder<Integer>(TimeUnit.MINUTES.toMillis(10));
+        if ("journal".equals(durability)) {
+            directory = File.createTempFile("journal-benchmark", "");
+            if (!directory.delete() || !directory.mkdir()) {
+                throw new IOException("Cannot create " + directory);
+            }
+            builder.journal(new SegmentedJournal(directory));
+        }
+        queue = builder.build();
+        batch = new Integer[BATCH];
+        Arrays.fill(batch, 42);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        queue.close();
+        if (directory != null) {
+            File[] segments = directory.listFiles();
+            if (segments != null) {
+                for (File segment : segments) {
+                    segment.delete();
+                }
+            }
+            directory.delete();
+        }
+    }
+
+    @Benchmark
+    public Integer putTakeAck() throws InterruptedException {
+        queue.put(42);
+        Delivery<Integer> delivery = queue.takeDelivery();
+        Integer element = delivery.getElement();
+        queue.acknowledge(delivery.getTag(), BlockingQueueWithAck.Acknowledgement.ACK);
+        return element;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int offerAllTakeBatchAck() throws InterruptedException {
+        queue.offerAll(Arrays.asList(batch), true);
+        int taken = 0;
+        List<Delivery<Integer>> deliveries;
+        do {
+            //other threads may have taken part of the batch, give up once the queue stays empty
+            deliveries = queue.takeBatch(BATCH - taken, 10, TimeUnit.MILLISECONDS);
+            queue.acknowledgeBatch(deliveries, BlockingQueueWithAck.Acknowledgement.ACK);
+            taken += deliveries.size();
+        } while (taken < BATCH && !deliveries.isEmpty());
+        return taken;
+    }
+}
@@ -0,0 +1,186 @@
+package org.gmelo.collection.benchmark;
+
+import org.gmelo.collection.BlockingQueueWithAck;
+import org.gmelo.collection.Delivery;
+import org.gmelo.collection.Prioritizer;
+import org.gmelo.collection.StorageFactory;
+import org.gmelo.collection.impl.LinkedBlockingQueueWithAck;
+import org.gmelo.collection.impl.expiry.DelayQueueExpiryEngine;
+import org.gmelo.collection.impl.expiry.ExpiryEngine;
+import org.gmelo.collection.impl.expiry.HashedWheelExpiryEngine;
+import org.gmelo.collection.impl.storage.MpmcArrayBlockingQueue;
+import org.gmelo.collection.util.Consumer;
+import org.gmelo.collection.util.Consumers;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Comparator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Benchmarks of the main operations of the queue, for every combination of expiry engine and storage.
+ * <p/>
+ * The producerConsumer group runs one producer and one consumer by default, other ratios are set with -tg, e.g.
+ * <pre>
+ * java -jar target/benchmarks.jar QueueBenchmark.producerConsumer -tg 1,4
+ * java -jar target/benchmarks.jar QueueBenchmark.producerConsumer -tg 4,1
+ * </pre>
+ * and the other benchmarks are run with a growing number of threads with -t.
+ * <p/>
+ * The priority storage spreads the elements over four levels, priority-heap is the same ordering on a
+ * PriorityBlockingQueue for comparison.
+ *
+ * User: GMelo
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueueBenchmark {
+
+    private static final long LONG_TIMEOUT = TimeUnit.MINUTES.toMillis(10);
+    private static final int CAPACITY = 1 << 16;
+    private static final int PREFILL = 1024;
+    private static final int PRIORITY_LEVELS = 4;
+    private static final Prioritizer<Integer> PRIORITIZER = new Prioritizer<Integer>() {
+        @Override
+        public int priorityOf(Integer element) {
+            return element & (PRIORITY_LEVELS - 1);
+        }
+    };
+
+    @Param({"wheel", "delay-queue"})
+    public String engine;
+
+    @Param({"linked", "mpmc-array", "priority", "priority-heap"})
+    public String storage;
+
+    private BlockingQueueWithAck<Integer> queue;
+    //elements come back after one millisecond without being acknowledged
+    private BlockingQueueWithAck<Integer> redeliveringQueue;
+    private Consumers<Integer> consumers;
+
+    @Setup(Level.Trial)
+    public void setUp() throws InterruptedException {
+        LinkedBlockingQueueWithAck<Integer> linkedQueue = newQueue(LONG_TIMEOUT);
+        queue = linkedQueue;
+        consumers = new Consumers<Integer>(linkedQueue);
+        redeliveringQueue = newQueue(1);
+        for (int i = 0; i < PREFILL; i++) {
+            queue.put(i);
+            redeliveringQueue.put(i);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        queue.close();
+        redeliveringQueue.close();
+    }
+
+    private LinkedBlockingQueueWithAck<Integer> newQueue(long timeout) {
+        ExpiryEngine expiryEngine = "wheel".equals(engine)
+                ? new HashedWheelExpiryEngine(Math.max(1, timeout / 64)) : new DelayQueueExpiryEngine();
+        LinkedBlockingQueueWithAck.Builder<Integer> builder = new LinkedBlockingQueueWithAck.Builder<Integer>(timeout)
+                .capacity(CAPACITY)
+                .expiryEngine(expiryEngine);
+        if ("mpmc-array".equals(storage)) {
+            builder.storage(MpmcArrayBlockingQueue.<Integer>factory(CAPACITY));
+        } else if ("priority".equals(storage)) {
+            builder.priorities(PRIORITY_LEVELS, PRIORITIZER);
+        } else if ("priority-heap".equals(storage)) {
+            builder.storage(new StorageFactory<Integer>() {
+                @Override
+                public <E> BlockingQueue<E> newStorage(final Function<? super E, ? extends Integer> elementOf) {
+                    return new PriorityBlockingQueue<E>(CAPACITY, new Comparator<E>() {
+                        @Override
+                        public int compare(E a, E b) {
+                            return PRIORITIZER.priorityOf(elementOf.apply(a))
+                                    - PRIORITIZER.priorityOf(elementOf.apply(b));
+                        }
+                    });
+                }
+            });
+        }
+        return builder.build();
+    }
+
+    /**
+     * A consumer of the test utilities, acknowledging by element.
+     */
+    @State(Scope.Thread)
+    public static class ThreadConsumer {
+
+        private Consumer<Integer> consumer;
+
+        @Setup(Level.Trial)
+        public void setUp(QueueBenchmark benchmark) {
+            consumer = benchmark.consumers.newConsumerWithAck();
+        }
+    }
+
+    @Benchmark
+    public Integer putTake() throws InterruptedException {
+        queue.put(1);
+        Delivery<Integer> delivery = queue.takeDelivery();
+        Integer element = delivery.getElement();
+        queue.acknowledge(delivery.getTag(), BlockingQueueWithAck.Acknowledgement.ACK);
+        return element;
+    }
+
+    @Benchmark
+    public Integer takeAck() throws InterruptedException {
+        Delivery<Integer> delivery = queue.takeDelivery();
+        Integer element = delivery.getElement();
+        queue.acknowledge(delivery.getTag(), BlockingQueueWithAck.Acknowledgement.ACK);
+        queue.put(element);
+        return element;
+    }
+
+    @Benchmark
+    public Integer takeAckByElement(ThreadConsumer consumer) throws InterruptedException {
+        Integer element = consumer.consumer.consume();
+        queue.put(element);
+        return element;
+    }
+
+    @Benchmark
+    public Integer takeNack() throws InterruptedException {
+        Delivery<Integer> delivery = queue.takeDelivery();
+        Integer element = delivery.getElement();
+        queue.acknowledge(delivery.getTag(), BlockingQueueWithAck.Acknowledgement.NACK);
+        return element;
+    }
+
+    /**
+     * Elements are never acknowledged, the throughput is bound by the rate the expiry engine re-queues them.
+     */
+    @Benchmark
+    public Integer timeoutRedelivery() throws InterruptedException {
+        return redeliveringQueue.take();
+    }
+
+    @Benchmark
+    @Group("producerConsumer")
+    @GroupThreads(1)
+    public void producer() throws InterruptedException {
+        queue.put(1);
+    }
+
+    @Benchmark
+    @Group("producerConsumer")
+    @GroupThreads(1)
+    public Integer consumer() throws InterruptedException {
+        Delivery<Integer> delivery = queue.pollDelivery(10, TimeUnit.MILLISECONDS);
+        if (delivery == null) {
+            return null;
+        }
+        Integer element = delivery.getElement();
+        queue.acknowledge(delivery.getTag(), BlockingQueueWithAck.Acknowledgement.ACK);
+        return element;
+    }
+}
@@ -0,0 +1,81 @@
+package org.gmelo.collection.benchmark;
+
+import org.gmelo.collection.BlockingQueueWithAck;
+import org.gmelo.collection.Delivery;
+import org.gmelo.collection.impl.LinkedBlockingQueueWithAck;
+import org.gmelo.collection.impl.ShardedBlockingQueueWithAck;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares a single queue with sharded queues as the thread count grows, shards=1 being the single
+ * LinkedBlockingQueueWithAck, e.g.
+ * <pre>
+ * java -jar target/benchmarks.jar ShardedQueueBenchmark -t 8
+ * java -jar target/benchmarks.jar ShardedQueueBenchmark -t 48
+ * java -jar target/benchmarks.jar ShardedQueueBenchmark.producerConsumer -tg 24,24
+ * </pre>
+ *
+ * User: GMelo
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ShardedQueueBenchmark {
+
+    private static final long LONG_TIMEOUT = TimeUnit.MINUTES.toMillis(10);
+    private static final int CAPACITY = 1 << 16;
+
+    @Param({"1", "4", "16"})
+    public int shards;
+
+    private BlockingQueueWithAck<Integer> queue;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        if (shards == 1) {
+            queue = new LinkedBlockingQueueWithAck.Builder<Integer>(LONG_TIMEOUT).capacity(CAPACITY).build();
+        } else {
+            queue = new ShardedBlockingQueueWithAck.Builder<Integer>(LONG_TIMEOUT)
+                    .shards(shards).capacity(CAPACITY / shards).build();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        queue.close();
+    }
+
+    @Benchmark
+    public Integer putTakeAck() throws InterruptedException {
+        queue.put(1);
+        Delivery<Integer> delivery = queue.takeDelivery();
+        Integer element = delivery.getElement();
+        queue.acknowledge(delivery.getTag(), BlockingQueueWithAck.Acknowledgement.ACK);
+        return element;
+    }
+
+    @Benchmark
+    @Group("producerConsumer")
+    @GroupThreads(1)
+    public void producer() throws InterruptedException {
+        queue.put(1);
+    }
+
+    @Benchmark
+    @Group("producerConsumer")
+    @GroupThreads(1)
+    public Integer consumer() throws InterruptedException {
+        Delivery<Integer> delivery = queue.pollDelivery(10, TimeUnit.MILLISECONDS);
+        if (delivery == null) {
+            return null;
+        }
+        Integer element = delivery.getElement();
+        queue.acknowledge(delivery.getTag(), BlockingQueueWithAck.Acknowledgement.ACK);
+        return element;
+    }
+}
@@ -0,0 +1,75 @@
+package org.gmelo.collection.benchmark;
+
+import org.gmelo.collection.impl.storage.LinkedBlockingBulkQueue;
+import org.gmelo.collection.impl.storage.MpmcArrayBlockingQueue;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the storages the queue can use, with a producer and a consumer thread per group. Run it with the gc
+ * profiler to compare the allocation rate per operation, the array backed storages should not allocate at all:
+ * <pre>
+ * java -jar target/benchmarks.jar StorageBenchmark -prof gc
+ * </pre>
+ *
+ * User: GMelo
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StorageBenchmark {
+
+    private static final Integer ELEMENT = 42;
+
+    @Param({"linked-bulk", "mpmc-array", "jdk-linked", "jdk-array"})
+    public String storage;
+
+    @Param({"1024"})
+    public int capacity;
+
+    private BlockingQueue<Integer> queue;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        if ("linked-bulk".equals(storage)) {
+            queue = new LinkedBlockingBulkQueue<Integer>(capacity);
+        } else if ("mpmc-array".equals(storage)) {
+            queue = new MpmcArrayBlockingQueue<Integer>(capacity);
+        } else if ("jdk-linked".equals(storage)) {
+            queue = new LinkedBlockingQueue<Integer>(capacity);
+        } else {
+            queue = new ArrayBlockingQueue<Integer>(capacity);
+        }
+    }
+
+    @Benchmark
+    @Group("putTake")
+    public void put() throws InterruptedException {
+        queue.put(ELEMENT);
+    }
+
+    @Benchmark
+    @Group("putTake")
+    public Integer take() throws InterruptedException {
+        return queue.take();
+    }
+
+    @Benchmark
+    @Group("offerPoll")
+    public boolean offer() {
+        return queue.offer(ELEMENT);
+    }
+
+    @Benchmark
+    @Group("offerPoll")
+    public Integer poll() {
+        return queue.poll();
+    }
+}
@@ -1,7 +1,14 @@
 package org.gmelo.collection;
 
+import java.io.Closeable;
+import java.util.Collection;
+import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
 
 /**
  * The head of the queue is that element that has been on the queue the longest time.
@@ -22,18 +29,197 @@ import java.util.concurrent.BlockingQueue;
  *
  * User: GMelo
  */
-public interface BlockingQueueWithAck<T> extends BlockingQueue<T> {
+public interface BlockingQueueWithAck<T> extends BlockingQueue<T>, Closeable {
 
     public enum Acknowledgement {ACK, NACK}
 
     /**
      * Acknowledges the reception of a message, either positively or negatively.
+     * <p/>
+     * Equal elements are distinct deliveries, each with its own timeout and re-queue count. When several equal
+     * elements are waiting for acknowledgement any one of them is acknowledged, acknowledge by delivery tag to
+     * settle a given one.
      *
      * @param element         the element you are acknowledging
      * @param acknowledgement either ACK or NACK to indicate the status.
      */
     public void acknowledge(T element, Acknowledgement acknowledgement);
 
+    /**
+     * Acknowledges a delivery by its tag, either positively or negatively.
+     * <p/>
+     * Unlike {@link #acknowledge(Object, Acknowledgement)} this does not need to search the unacknowledged
+     * elements, so its cost does not depend on the number of elements waiting for acknowledgement.
+     *
+     * @param deliveryTag     the tag of the delivery you are acknowledging
+     * @param acknowledgement either ACK or NACK to indicate the status.
+     */
+    public void acknowledge(long deliveryTag, Acknowledgement acknowledgement);
+
+    /**
+     * Negatively acknowledges an element by the tag of its delivery, the element is delivered again once the
+     * delay elapsed, whatever the redelivery policy of the queue says. A delay of 0 puts it back right away.
+     *
+     * @param deliveryTag     the tag of the delivery, as returned by {@link Delivery#getTag()}
+     * @param redeliveryDelay the time to wait before the element is delivered again
+     * @param unit            a TimeUnit determining how to interpret the redeliveryDelay parameter
+     */
+    public void negativelyAcknowledge(long deliveryTag, long redeliveryDelay, TimeUnit unit);
+
+    /**
+     * Negatively acknowledges an element by the tag of its delivery, recording why the delivery failed. The
+     * reason of the last failure is kept with the element if it is poisoned, see {@link DeadLetter#getLastFailure()}.
+     *
+     * @param deliveryTag the tag of the delivery, as returned by {@link Delivery#getTag()}
+     * @param reason      why the delivery failed, e.g. the message of the exception raised by the consumer
+     */
+    public void negativelyAcknowledge(long deliveryTag, String reason);
+
+    /**
+     * Retrieves and removes the head of this queue, waiting if necessary until an element becomes available,
+     * and returns it together with the tag of this delivery.
+     *
+     * @return the delivery of the head of this queue
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Delivery<T> takeDelivery() throws InterruptedException;
+
+    /**
+     * Retrieves and removes the head of this queue like {@link #takeDelivery()}, the delivery must be
+     * acknowledged within the given lease instead of the timeout of the queue, e.g. for a job known to be slow.
+     *
+     * @param lease the time the consumer has to acknowledge the delivery
+     * @param unit  a TimeUnit determining how to interpret the lease parameter
+     * @return the delivery of the head of this queue
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Delivery<T> takeDeliveryWithLease(long lease, TimeUnit unit) throws InterruptedException;
+
+    /**
+     * Extends the time the consumer has to acknowledge a delivery, so that a slow but healthy consumer is not
+     * taken over by another one. The delivery must then be acknowledged within duration from now, a lease is
+     * never shortened. The deliveries of a batch share a single lease, extending one extends the whole batch.
+     *
+     * @param deliveryTag the tag of the delivery, as returned by {@link Delivery#getTag()}
+     * @param duration    the time the consumer has from now to acknowledge the delivery
+     * @param unit        a TimeUnit determining how to interpret the duration parameter
+     * @return true if the lease was extended, false if the delivery is no longer waiting for acknowledgement
+     */
+    public boolean extendLease(long deliveryTag, long duration, TimeUnit unit);
+
+    /**
+     * Extends the lease of a delivery of the element, see {@link #extendLease(long, long, TimeUnit)}.
+     *
+     * @param element  the element delivered
+     * @param duration the time the consumer has from now to acknowledge the delivery
+     * @param unit     a TimeUnit determining how to interpret the duration parameter
+     * @return true if the lease was extended, false if no delivery of the element is waiting for acknowledgement
+     */
+    public boolean extendLease(T element, long duration, TimeUnit unit);
+
+    /**
+     * Retrieves and removes the head of this queue, waiting up to the specified wait time if necessary for an
+     * element to become available, and returns it together with the tag of this delivery.
+     *
+     * @param timeout how long to wait before giving up, in units of unit
+     * @param unit    a TimeUnit determining how to interpret the timeout parameter
+     * @return the delivery of the head of this queue, or null if the specified waiting time elapses
+     * before an element is available
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Delivery<T> pollDelivery(long timeout, TimeUnit unit) throws InterruptedException;
+
+    /**
+     * Retrieves and removes the head of this queue without blocking a thread, the future completes once an
+     * element is available. The element must be acknowledged like one returned by {@link #take()}.
+     * <p/>
+     * The future may be completed by the thread inserting the element, dependent stages that take time should
+     * run on an executor. Cancelling the future gives up the take, the future is cancelled when the queue is
+     * closed.
+     *
+     * @return a future completed with the head of this queue
+     */
+    public CompletableFuture<T> takeAsync();
+
+    /**
+     * Retrieves and removes the head of this queue without blocking a thread, see {@link #takeAsync()}.
+     *
+     * @return a future completed with the delivery of the head of this queue
+     */
+    public CompletableFuture<Delivery<T>> takeDeliveryAsync();
+
+    /**
+     * Pushes the elements of this queue to a handler on the common fork join pool, see
+     * {@link #subscribe(DeliveryHandler, int, Executor)}.
+     *
+     * @param handler     the handler of the elements
+     * @param concurrency the maximum number of elements handled at once
+     * @return the subscription of the handler
+     */
+    public Subscription subscribe(DeliveryHandler<T> handler, int concurrency);
+
+    /**
+     * Pushes the elements of this queue to a handler, without a thread waiting for elements. Up to concurrency
+     * elements are handled at once on the executor, e.g. one running a virtual thread per task. A delivery is
+     * acknowledged once the handler returns, and negatively acknowledged if it throws.
+     *
+     * @param handler     the handler of the elements
+     * @param concurrency the maximum number of elements handled at once
+     * @param executor    the executor running the handler
+     * @return the subscription of the handler
+     */
+    public Subscription subscribe(DeliveryHandler<T> handler, int concurrency, Executor executor);
+
+    /**
+     * Inserts the elements at the tail of this queue, in iteration order, if it is possible to do so immediately
+     * without exceeding the capacity of the queue.
+     *
+     * @param elements     the elements to insert
+     * @param allOrNothing if true nothing is inserted unless every element fits, otherwise as many elements as fit
+     *                     are inserted
+     * @return the number of elements inserted
+     * @throws NullPointerException if any of the elements is null
+     */
+    public int offerAll(Collection<? extends T> elements, boolean allOrNothing);
+
+    /**
+     * Inserts the element once the delay elapsed, e.g. to schedule a retry from the producer side. Until then
+     * the element is not in the queue: it is not counted by size() and takes no capacity. If the queue is full
+     * when the element is due it is inserted as soon as there is room.
+     *
+     * @param element the element to add
+     * @param delay   the time to wait before the element is inserted
+     * @param unit    a TimeUnit determining how to interpret the delay parameter
+     * @return true if the element was scheduled, false if the queue no longer accepts delayed elements
+     */
+    public boolean offerDelayed(T element, long delay, TimeUnit unit);
+
+    /**
+     * Retrieves and removes up to maxElements elements from the head of this queue, waiting up to the specified wait
+     * time if necessary for the first element to become available. The elements that are already available after
+     * the first one are taken without waiting.
+     * <p/>
+     * The elements are waiting for acknowledgement as a single unit with one deadline, but each has its own
+     * delivery and can be acknowledged on its own or with {@link #acknowledgeBatch(Collection, Acknowledgement)}.
+     *
+     * @param maxElements the maximum number of elements to take
+     * @param timeout     how long to wait for the first element before giving up, in units of unit
+     * @param unit        a TimeUnit determining how to interpret the timeout parameter
+     * @return the deliveries of the elements taken, empty if the specified waiting time elapses
+     * before an element is available
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public List<Delivery<T>> takeBatch(int maxElements, long timeout, TimeUnit unit) throws InterruptedException;
+
+    /**
+     * Acknowledges a number of deliveries in one call, either positively or negatively. Any subset of the
+     * deliveries of a batch can be acknowledged.
+     *
+     * @param deliveries      the deliveries you are acknowledging
+     * @param acknowledgement either ACK or NACK to indicate the status.
+     */
+    public void acknowledgeBatch(Collection<? extends Delivery<T>> deliveries, Acknowledgement acknowledgement);
+
     /**
      * Returns the number of unacknowledged elements waiting
      * in the queue.
@@ -51,5 +237,52 @@ public interface BlockingQueueWithAck<T> extends BlockingQueue<T> {
      */
     public Queue<T> poisonedElements();
 
+    /**
+     * Returns the poisoned elements with the history of their failures, oldest first.
+     *
+     * @return a snapshot of the dead letters
+     * @throws UnsupportedOperationException if the queue does not keep the history of the poisoned elements
+     */
+    public List<DeadLetter<T>> deadLetters();
+
+    /**
+     * Puts the poisoned elements matching the filter back in the queue, in a single batch, e.g. once the outage
+     * that poisoned them is over. The elements are delivered again with a fresh count of retries, those that
+     * do not fit in the queue stay poisoned.
+     *
+     * @param filter selects the dead letters to replay
+     * @return the number of elements put back in the queue
+     * @throws UnsupportedOperationException if the queue does not keep the history of the poisoned elements
+     */
+    public int replayPoisoned(Predicate<? super DeadLetter<T>> filter);
+
+    /**
+     * Returns the counters and latency histograms of this queue, e.g. to size the acknowledgement timeout from the
+     * delivery to acknowledgement latencies observed.
+     *
+     * @return the metrics of the queue, updated live
+     */
+    public QueueMetrics metrics();
+
+    /**
+     * Releases the resources used to track the acknowledgement timeouts, elements are no longer re-queued
+     * when their timeout elapses.
+     */
+    @Override
+    public void close();
 
+    /**
+     * Stops the queue gracefully and hands its elements over, e.g. to the instance replacing this one in a
+     * rolling deploy.
+     * <p/>
+     * The queue stops accepting elements right away, and the elements waiting in it are no longer delivered.
+     * Deliveries waiting for acknowledgement can still be acknowledged until the timeout elapses, those
+     * negatively acknowledged or timing out meanwhile are not delivered again. The queue is then closed.
+     *
+     * @param timeout how long to wait for the deliveries waiting for acknowledgement
+     * @param unit    a TimeUnit determining how to interpret the timeout parameter
+     * @return the elements that were not acknowledged: waiting in the queue, waiting for acknowledgement when
+     * the timeout elapsed, re-queued or delayed
+     */
+    public List<T> shutdown(long timeout, TimeUnit unit);
 }
@@ -0,0 +1,39 @@
+package org.gmelo.collection;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Turns the elements of a {@link BlockingQueueWithAck} into bytes and back, for the storages and journals that
+ * keep the elements outside of the heap.
+ * <p/>
+ * Buffers are owned by the caller and reused from one element to the next: the codec writes the element
+ * straight into the buffer it is given, without an intermediate array, and must not keep a reference to the
+ * buffer once a call returns. Codecs are shared between threads and must be thread-safe.
+ *
+ * @param <T> The type of element encoded
+ *
+ * User: GMelo
+ */
+public interface Codec<T> {
+
+    /**
+     * Writes the element at the position of the buffer, leaving the position after the last byte written.
+     * <p/>
+     * When the remaining bytes of the buffer are not enough the codec throws BufferOverflowException, it may have
+     * written part of the element. The caller then resets the position and retries with a larger buffer.
+     *
+     * @param element the element to encode, not null
+     * @param buffer  the buffer to write to
+     * @throws java.nio.BufferOverflowException if the element does not fit in the remaining bytes of the buffer
+     */
+    public void encode(T element, ByteBuffer buffer);
+
+    /**
+     * Reads an element from the bytes between the position and the limit of the buffer. The buffer is reused
+     * once the call returns, the element must not share its content.
+     *
+     * @param buffer the buffer to read from, holding exactly one element
+     * @return the element
+     */
+    public T decode(ByteBuffer buffer);
+}
@@ -0,0 +1,60 @@
+package org.gmelo.collection;
+
+/**
+ * An element that was poisoned by a {@link BlockingQueueWithAck}, with the history of its failures, so that it
+ * can be told apart from other poisoned elements and replayed with
+ * {@link BlockingQueueWithAck#replayPoisoned(java.util.function.Predicate)} once what made it fail is fixed.
+ *
+ * @param <T> The type of element stored in the queue
+ *
+ * User: GMelo
+ */
+public interface DeadLetter<T> {
+
+    /**
+     * Returns the poisoned element.
+     *
+     * @return the element
+     */
+    public T getElement();
+
+    /**
+     * Returns the number of deliveries of the element that failed, by a negative acknowledgement or a timeout.
+     *
+     * @return the number of failed attempts, 0 if the element was added to the dead letters directly
+     */
+    public int getAttempts();
+
+    /**
+     * Returns why the last delivery of the element failed: the reason given to
+     * {@link BlockingQueueWithAck#negativelyAcknowledge(long, String)}, {@link #NEGATIVELY_ACKNOWLEDGED} if it was
+     * negatively acknowledged without a reason, {@link #TIMED_OUT} if the acknowledgement timed out.
+     *
+     * @return the reason of the last failure, null if the element was added to the dead letters directly
+     */
+    public String getLastFailure();
+
+    /**
+     * Returns the System.currentTimeMillis() of the moment the element was first inserted in the queue.
+     *
+     * @return the first seen time in milliseconds
+     */
+    public long getFirstSeenTime();
+
+    /**
+     * Returns the System.currentTimeMillis() of the moment the element was poisoned.
+     *
+     * @return the dead letter time in milliseconds
+     */
+    public long getDeadLetterTime();
+
+    /**
+     * Reason of the failures of deliveries negatively acknowledged without a reason.
+     */
+    public static final String NEGATIVELY_ACKNOWLEDGED = "negatively acknowledged";
+
+    /**
+     * Reason of the failures of deliveries whose acknowledgement timed out.
+     */
+    public static final String TIMED_OUT = "acknowledgement timed out";
+}
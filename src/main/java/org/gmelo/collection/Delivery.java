@@ -0,0 +1,34 @@
+package org.gmelo.collection;
+
+/**
+ * A single delivery of an element taken from a {@link BlockingQueueWithAck}.
+ * <p/>
+ * Every time an element is handed to a consumer it is given a new delivery tag, the tags are unique for the
+ * lifetime of the queue. The tag identifies this particular delivery and can be used to acknowledge it with
+ * {@link BlockingQueueWithAck#acknowledge(long, BlockingQueueWithAck.Acknowledgement)} without having to look the
+ * element up. Whether the tags follow the order of the deliveries is up to the implementation. Acknowledging a
+ * tag that is not waiting for acknowledgement, including one the queue never handed out, has no effect.
+ * <p/>
+ * A delivery is only valid until it is settled, the queue may reuse the object for a later delivery afterwards.
+ * Keep the tag or the element to use them once the delivery is acknowledged.
+ *
+ * @param <T> The type of element stored in the queue
+ *
+ * User: GMelo
+ */
+public interface Delivery<T> {
+
+    /**
+     * Returns the tag that identifies this delivery.
+     *
+     * @return the delivery tag
+     */
+    public long getTag();
+
+    /**
+     * Returns the delivered element.
+     *
+     * @return the element
+     */
+    public T getElement();
+}
@@ -0,0 +1,23 @@
+package org.gmelo.collection;
+
+/**
+ * Processes the elements pushed to a subscriber of a {@link BlockingQueueWithAck}, see
+ * {@link BlockingQueueWithAck#subscribe(DeliveryHandler, int)}.
+ * <p/>
+ * The delivery is acknowledged once the handler returns, and negatively acknowledged if it throws. The handler
+ * must not acknowledge the delivery itself, it may extend its lease.
+ *
+ * @param <T> The type of element handled
+ *
+ * User: GMelo
+ */
+public interface DeliveryHandler<T> {
+
+    /**
+     * Processes a delivery.
+     *
+     * @param delivery the delivery of an element
+     * @throws Exception to have the element delivered again
+     */
+    public void handle(Delivery<T> delivery) throws Exception;
+}
@@ -0,0 +1,23 @@
+package org.gmelo.collection;
+
+/**
+ * Gives the key of the elements of a queue, elements with equal keys belong together, e.g. the events of the same
+ * account.
+ * <p/>
+ * The key of an element must not change while it is in the queue. Key extractors are called without any lock
+ * of the queue held, from any thread, and must be thread-safe.
+ *
+ * @param <T> The type of element
+ *
+ * User: GMelo
+ */
+public interface KeyExtractor<T> {
+
+    /**
+     * Returns the key of the element, compared with equals and hashCode.
+     *
+     * @param element the element, not null
+     * @return the key, not null
+     */
+    public Object keyOf(T element);
+}
@@ -0,0 +1,47 @@
+package org.gmelo.collection;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Distribution of latencies recorded by a {@link BlockingQueueWithAck}, see {@link QueueMetrics}.
+ * <p/>
+ * Latencies are kept in buckets rather than one by one, percentiles are accurate to within 25% of the value.
+ *
+ * User: GMelo
+ */
+public interface LatencyHistogram {
+
+    /**
+     * Returns the number of latencies recorded.
+     *
+     * @return the number of values
+     */
+    public long getCount();
+
+    /**
+     * Returns the mean of the latencies recorded, 0 if nothing was recorded.
+     *
+     * @param unit the unit of the returned value
+     * @return the mean latency
+     */
+    public double getMean(TimeUnit unit);
+
+    /**
+     * Returns the highest latency recorded, 0 if nothing was recorded.
+     *
+     * @param unit the unit of the returned value
+     * @return the maximum latency
+     */
+    public long getMax(TimeUnit unit);
+
+    /**
+     * Returns a latency that is higher than or equal to the given percentage of the latencies recorded,
+     * 0 if nothing was recorded.
+     *
+     * @param percentile the percentage of latencies, between 0 and 100, e.g. 99.9
+     * @param unit       the unit of the returned value
+     * @return the latency at the percentile
+     * @throws IllegalArgumentException if the percentile is not between 0 and 100
+     */
+    public long getPercentile(double percentile, TimeUnit unit);
+}
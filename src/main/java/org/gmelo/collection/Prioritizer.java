@@ -0,0 +1,24 @@
+package org.gmelo.collection;
+
+/**
+ * Gives the priority of the elements of a priority queue, from 0, the most urgent, up to the number of priority
+ * levels of the queue minus one.
+ * <p/>
+ * The priority of an element must not change while it is in the queue: a re-queued element is given the
+ * priority of its first insertion by asking again. Prioritizers are called without any lock of the queue
+ * held, from any thread, and must be thread-safe.
+ *
+ * @param <T> The type of element prioritized
+ *
+ * User: GMelo
+ */
+public interface Prioritizer<T> {
+
+    /**
+     * Returns the priority level of the element.
+     *
+     * @param element the element, not null
+     * @return the priority, 0 being the most urgent
+     */
+    public int priorityOf(T element);
+}
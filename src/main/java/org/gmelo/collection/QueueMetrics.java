@@ -0,0 +1,71 @@
+package org.gmelo.collection;
+
+/**
+ * Counters and latency histograms of a {@link BlockingQueueWithAck}, updated live by the queue.
+ * <p/>
+ * The values are read without stopping the queue, so two values read one after the other may not describe the
+ * same instant. Counters only grow for the lifetime of the queue, rates are obtained by sampling them.
+ *
+ * User: GMelo
+ */
+public interface QueueMetrics {
+
+    /**
+     * Returns the number of elements inserted by producers, re-queued elements are not counted again.
+     *
+     * @return the number of elements enqueued
+     */
+    public long getEnqueued();
+
+    /**
+     * Returns the number of deliveries to consumers, including the redeliveries of re-queued elements.
+     *
+     * @return the number of deliveries
+     */
+    public long getDelivered();
+
+    /**
+     * Returns the number of deliveries that were positively acknowledged.
+     *
+     * @return the number of ACKs
+     */
+    public long getAcknowledged();
+
+    /**
+     * Returns the number of deliveries that were negatively acknowledged.
+     *
+     * @return the number of NACKs
+     */
+    public long getNegativelyAcknowledged();
+
+    /**
+     * Returns the number of deliveries that were not acknowledged before their timeout, whether the element was
+     * re-queued or sent to the dead letter queue.
+     *
+     * @return the number of timed out deliveries
+     */
+    public long getTimedOut();
+
+    /**
+     * Returns the number of elements sent to the dead letter queue.
+     *
+     * @return the number of poisoned elements
+     */
+    public long getDeadLettered();
+
+    /**
+     * Returns the time elements waited in the queue before being delivered, measured from the moment they were
+     * inserted or, for redeliveries, re-queued.
+     *
+     * @return the time in queue histogram
+     */
+    public LatencyHistogram getTimeInQueue();
+
+    /**
+     * Returns the time between a delivery and its acknowledgement, positive or negative. Deliveries that timed out
+     * are not recorded, they are counted by {@link #getTimedOut()}.
+     *
+     * @return the delivery to acknowledgement histogram
+     */
+    public LatencyHistogram getAckLatency();
+}
@@ -0,0 +1,21 @@
+package org.gmelo.collection;
+
+/**
+ * Decides how long an element that was negatively acknowledged, or whose acknowledgement timed out, waits
+ * before it is delivered again, so that an element failing because of an outage downstream does not come
+ * straight back to the consumers.
+ * <p/>
+ * Policies are called from the consumer threads and the expiry thread at once, and must be thread-safe.
+ *
+ * User: GMelo
+ */
+public interface RedeliveryPolicy {
+
+    /**
+     * Returns the time to wait before the element is delivered again.
+     *
+     * @param requeues the number of times the element was re-queued, this time included, so 1 the first time
+     * @return the delay in milliseconds, 0 or less to put the element back in the queue right away
+     */
+    public long redeliveryDelay(int requeues);
+}
@@ -0,0 +1,27 @@
+package org.gmelo.collection;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Function;
+
+/**
+ * Creates the storage a {@link BlockingQueueWithAck} keeps its elements in while they wait to be taken.
+ * <p/>
+ * The queue does not store the elements themselves but holders carrying what it needs to know about them, so
+ * the storage is created for the type of holder the queue picks. A storage only has to hand the holders back in
+ * the order it chooses, FIFO unless it orders them by element through elementOf.
+ *
+ * @param <T> The type of element stored in the queue
+ *
+ * User: GMelo
+ */
+public interface StorageFactory<T> {
+
+    /**
+     * Creates an empty storage, used by nothing else than the queue.
+     *
+     * @param elementOf reads the element out of a holder, thread-safe
+     * @param <E>       The type of holder stored
+     * @return the storage, its capacity is the capacity of the queue
+     */
+    public <E> BlockingQueue<E> newStorage(Function<? super E, ? extends T> elementOf);
+}
@@ -0,0 +1,23 @@
+package org.gmelo.collection;
+
+/**
+ * A handler subscribed to a {@link BlockingQueueWithAck}, see
+ * {@link BlockingQueueWithAck#subscribe(DeliveryHandler, int)}.
+ *
+ * User: GMelo
+ */
+public interface Subscription {
+
+    /**
+     * Stops pushing elements to the handler. Elements the handler is processing are still acknowledged once it
+     * returns.
+     */
+    public void cancel();
+
+    /**
+     * Returns true once the subscription was cancelled, or the queue was closed.
+     *
+     * @return true if no more elements are pushed to the handler
+     */
+    public boolean isCancelled();
+}
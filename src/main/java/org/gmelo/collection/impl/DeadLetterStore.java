@@ -0,0 +1,310 @@
+package org.gmelo.collection.impl;
+
+import org.gmelo.collection.DeadLetter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * Keeps the elements poisoned by a {@link LinkedBlockingQueueWithAck}, oldest first, with the history of their
+ * failures. As a Queue it holds the poisoned elements, {@link #deadLetters()} returns them with their history.
+ * <p/>
+ * The store is bounded, once it is full a new dead letter either evicts the oldest one or is dropped according
+ * to the {@link OverflowPolicy}. Storing a dead letter never fails, so an element poisoned on the expiry thread
+ * never stops the expiry of the other elements. Dropped dead letters are logged and counted by
+ * {@link #getDropped()}.
+ * <p/>
+ * The store can be shared by several queues. Iterators work on a snapshot of the store taken when they are
+ * created and do not support removal.
+ *
+ * @param <T> The type of element poisoned
+ *
+ * User: GMelo
+ */
+public class DeadLetterStore<T> extends AbstractQueue<T> {
+
+    /**
+     * What happens to a dead letter that does not fit in the store.
+     */
+    public enum OverflowPolicy {
+        /**
+         * The oldest dead letter is dropped to make room for the new one.
+         */
+        DROP_OLDEST,
+        /**
+         * The new dead letter is dropped.
+         */
+        DROP_NEWEST
+    }
+
+    private final Logger logger = LoggerFactory.getLogger(DeadLetterStore.class);
+
+    private final int capacity;
+    private final OverflowPolicy overflowPolicy;
+    private final ArrayDeque<DeadLetter<T>> letters = new ArrayDeque<DeadLetter<T>>();
+    private final ReentrantLock lock = new ReentrantLock();
+    //number of dead letters that did not fit
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Creates a store with a capacity of Integer.MAX_VALUE
+     */
+    public DeadLetterStore() {
+        this(Integer.MAX_VALUE, OverflowPolicy.DROP_OLDEST);
+    }
+
+    /**
+     * @param capacity       the maximum number of dead letters kept
+     * @param overflowPolicy what happens to a dead letter that does not fit
+     */
+    public DeadLetterStore(int capacity, OverflowPolicy overflowPolicy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        if (overflowPolicy == null) {
+            throw new NullPointerException();
+        }
+        this.capacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Stores an element that was poisoned, with the history carried by its envelope.
+     */
+    void store(Envelope<T> envelope) {
+        store(new Letter<T>(envelope.getElement(), envelope.getRequeueCount(), envelope.getLastFailure(),
+                envelope.getFirstSeenTime(), System.currentTimeMillis()));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The element is stored without any history.
+     *
+     * @return false if the element was dropped because the store is full
+     */
+    @Override
+    public boolean offer(T element) {
+        if (element == null) {
+            throw new NullPointerException();
+        }
+        long now = System.currentTimeMillis();
+        return store(new Letter<T>(element, 0, null, now, now));
+    }
+
+    private boolean store(DeadLetter<T> letter) {
+        DeadLetter<T> evicted = null;
+        lock.lock();
+        try {
+            if (letters.size() < capacity) {
+                letters.addLast(letter);
+                return true;
+            }
+            if (overflowPolicy == OverflowPolicy.DROP_OLDEST) {
+                evicted = letters.pollFirst();
+                letters.addLast(letter);
+            } else {
+                evicted = letter;
+            }
+        } finally {
+            lock.unlock();
+        }
+        dropped.incrementAndGet();
+        logger.warn("Dead letter store full, dropping poisoned element {}", evicted.getElement());
+        return evicted != letter;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public T poll() {
+        DeadLetter<T> letter = pollDeadLetter();
+        return letter == null ? null : letter.getElement();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public T peek() {
+        lock.lock();
+        try {
+            DeadLetter<T> letter = letters.peekFirst();
+            return letter == null ? null : letter.getElement();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Retrieves and removes the oldest dead letter.
+     *
+     * @return the oldest dead letter, null if the store is empty
+     */
+    public DeadLetter<T> pollDeadLetter() {
+        lock.lock();
+        try {
+            return letters.pollFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the dead letters in the store, oldest first.
+     *
+     * @return a snapshot of the dead letters
+     */
+    public List<DeadLetter<T>> deadLetters() {
+        lock.lock();
+        try {
+            return new ArrayList<DeadLetter<T>>(letters);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the dead letters matching the filter, in a single pass over the store.
+     *
+     * @return the dead letters removed, oldest first
+     */
+    List<DeadLetter<T>> removeMatching(Predicate<? super DeadLetter<T>> filter) {
+        List<DeadLetter<T>> removed = new ArrayList<DeadLetter<T>>();
+        lock.lock();
+        try {
+            Iterator<DeadLetter<T>> iterator = letters.iterator();
+            while (iterator.hasNext()) {
+                DeadLetter<T> letter = iterator.next();
+                if (filter.test(letter)) {
+                    iterator.remove();
+                    removed.add(letter);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return removed;
+    }
+
+    /**
+     * Puts back dead letters that were removed, ahead of the others. Dead letters stored in the meantime have
+     * priority if they do not all fit.
+     */
+    void restore(List<DeadLetter<T>> restored) {
+        int fitting;
+        lock.lock();
+        try {
+            fitting = Math.max(0, Math.min(restored.size(), capacity - letters.size()));
+            for (int i = fitting - 1; i >= 0; i--) {
+                letters.addFirst(restored.get(i));
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (DeadLetter<T> letter : restored.subList(fitting, restored.size())) {
+            dropped.incrementAndGet();
+            logger.warn("Dead letter store full, dropping poisoned element {}", letter.getElement());
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return letters.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Iterator<T> iterator() {
+        List<T> elements = new ArrayList<T>();
+        for (DeadLetter<T> letter : deadLetters()) {
+            elements.add(letter.getElement());
+        }
+        return Collections.unmodifiableList(elements).iterator();
+    }
+
+    /**
+     * @return the maximum number of dead letters kept
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of dead letters dropped because the store was full
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    private static class Letter<T> implements DeadLetter<T> {
+
+        private final T element;
+        private final int attempts;
+        private final String lastFailure;
+        private final long firstSeenTime;
+        private final long deadLetterTime;
+
+        Letter(T element, int attempts, String lastFailure, long firstSeenTime, long deadLetterTime) {
+            this.element = element;
+            this.attempts = attempts;
+            this.lastFailure = lastFailure;
+            this.firstSeenTime = firstSeenTime;
+            this.deadLetterTime = deadLetterTime;
+        }
+
+        @Override
+        public T getElement() {
+            return element;
+        }
+
+        @Override
+        public int getAttempts() {
+            return attempts;
+        }
+
+        @Override
+        public String getLastFailure() {
+            return lastFailure;
+        }
+
+        @Override
+        public long getFirstSeenTime() {
+            return firstSeenTime;
+        }
+
+        @Override
+        public long getDeadLetterTime() {
+            return deadLetterTime;
+        }
+
+        @Override
+        public String toString() {
+            return "DeadLetter{" +
+                    "element=" + element +
+                    ", attempts=" + attempts +
+                    ", lastFailure='" + lastFailure + '\'' +
+                    '}';
+        }
+    }
+}
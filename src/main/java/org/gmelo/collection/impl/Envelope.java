@@ -0,0 +1,215 @@
+package org.gmelo.collection.impl;
+
+/**
+ * Holder of an element while it is stored in a {@link LinkedBlockingQueueWithAck}, it carries what the queue
+ * needs to know about the element besides the element itself.
+ * <p/>
+ * An envelope is only used by one thread at a time, it is handed over between threads through the storage of
+ * the queue and the index of elements waiting for acknowledgement. A storage may copy the element and the
+ * envelope, as long as it keeps every property of the envelope.
+ * <p/>
+ * Once its element is acknowledged the queue recycles the envelope, see {@link #obtain(Object, long)}: each thread
+ * keeps a few envelopes it recycled and its next insertions reuse them, so a thread that acknowledges elements and
+ * inserts others does not allocate envelopes.
+ *
+ * @param <T> The type of element stored in the queue
+ *
+ * User: GMelo
+ */
+public final class Envelope<T> {
+
+    //envelopes a thread keeps once it recycled them
+    private static final int RECYCLED_PER_THREAD = 64;
+    private static final ThreadLocal<Recycled> RECYCLED = new ThreadLocal<Recycled>() {
+        @Override
+        protected Recycled initialValue() {
+            return new Recycled();
+        }
+    };
+
+    private T element;
+    //System.nanoTime() of the last time the element was made available to consumers
+    private long enqueueTime;
+    //number of times the element was re-queued
+    private int requeueCount;
+    //id of the element in the journal of a durable queue
+    private long journalId;
+    //System.currentTimeMillis() of the first insertion of the element
+    private long firstSeenTime;
+    //why the last delivery of the element failed, null if it never failed
+    private String lastFailure;
+
+    /**
+     * @param element     the element, not null
+     * @param enqueueTime System.nanoTime() of the moment the element was made available to consumers
+     */
+    public Envelope(T element, long enqueueTime) {
+        this(element, enqueueTime, 0, 0, System.currentTimeMillis(), null);
+    }
+
+    /**
+     * Recreates an envelope without a history of failures, e.g. when the element is recovered from a journal.
+     *
+     * @param element      the element, not null
+     * @param enqueueTime  System.nanoTime() of the moment the element was made available to consumers
+     * @param requeueCount the number of times the element was re-queued
+     * @param journalId    the id of the element in the journal, see {@link #getJournalId()}
+     */
+    public Envelope(T element, long enqueueTime, int requeueCount, long journalId) {
+        this(element, enqueueTime, requeueCount, journalId, System.currentTimeMillis(), null);
+    }
+
+    /**
+     * Recreates an envelope, e.g. when the element is read back from a storage that does not keep envelopes.
+     *
+     * @param element       the element, not null
+     * @param enqueueTime   System.nanoTime() of the moment the element was made available to consumers
+     * @param requeueCount  the number of times the element was re-queued
+     * @param journalId     the id of the element in the journal, see {@link #getJournalId()}
+     * @param firstSeenTime System.currentTimeMillis() of the first insertion of the element
+     * @param lastFailure   why the last delivery of the element failed, null if it never failed
+     */
+    public Envelope(T element, long enqueueTime, int requeueCount, long journalId, long firstSeenTime,
+                    String lastFailure) {
+        if (element == null) {
+            throw new NullPointerException();
+        }
+        this.element = element;
+        this.enqueueTime = enqueueTime;
+        this.requeueCount = requeueCount;
+        this.journalId = journalId;
+        this.firstSeenTime = firstSeenTime;
+        this.lastFailure = lastFailure;
+    }
+
+    /**
+     * Returns an envelope for a newly inserted element, one recycled by the current thread if it has any.
+     *
+     * @param element     the element, not null
+     * @param enqueueTime System.nanoTime() of the moment the element was made available to consumers
+     * @return an envelope without history
+     */
+    @SuppressWarnings("unchecked")
+    static <T> Envelope<T> obtain(T element, long enqueueTime) {
+        if (element == null) {
+            throw new NullPointerException();
+        }
+        Recycled recycled = RECYCLED.get();
+        if (recycled.size == 0) {
+            return new Envelope<T>(element, enqueueTime);
+        }
+        Envelope<T> envelope = (Envelope<T>) recycled.envelopes[--recycled.size];
+        recycled.envelopes[recycled.size] = null;
+        envelope.element = element;
+        envelope.enqueueTime = enqueueTime;
+        envelope.firstSeenTime = System.currentTimeMillis();
+        return envelope;
+    }
+
+    /**
+     * Hands the envelope back once its element was acknowledged, nothing may use it afterwards. The envelope is
+     * kept by the current thread for its next insertion, unless it keeps enough of them already.
+     */
+    void recycle() {
+        element = null;
+        enqueueTime = 0;
+        requeueCount = 0;
+        journalId = 0;
+        lastFailure = null;
+        Recycled recycled = RECYCLED.get();
+        if (recycled.size < RECYCLED_PER_THREAD) {
+            recycled.envelopes[recycled.size++] = this;
+        }
+    }
+
+    /**
+     * Returns the wrapped element.
+     *
+     * @return the element
+     */
+    public T getElement() {
+        return element;
+    }
+
+    /**
+     * Returns the System.nanoTime() of the moment the element was inserted, or re-queued.
+     *
+     * @return the enqueue time in nanoseconds
+     */
+    public long getEnqueueTime() {
+        return enqueueTime;
+    }
+
+    void setEnqueueTime(long enqueueTime) {
+        this.enqueueTime = enqueueTime;
+    }
+
+    /**
+     * Returns the number of times the element was re-queued, after a timeout or a negative acknowledgement.
+     *
+     * @return the requeue count
+     */
+    public int getRequeueCount() {
+        return requeueCount;
+    }
+
+    /**
+     * Counts one more re-queue of the element.
+     *
+     * @return the requeue count before this one
+     */
+    int incrementRequeueCount() {
+        return requeueCount++;
+    }
+
+    /**
+     * Returns the id of the element in the journal of a durable queue, meaningless otherwise.
+     *
+     * @return the journal id
+     */
+    public long getJournalId() {
+        return journalId;
+    }
+
+    void setJournalId(long journalId) {
+        this.journalId = journalId;
+    }
+
+    /**
+     * Returns the System.currentTimeMillis() of the moment the element was first inserted, before any re-queue.
+     *
+     * @return the first seen time in milliseconds
+     */
+    public long getFirstSeenTime() {
+        return firstSeenTime;
+    }
+
+    /**
+     * Returns why the last delivery of the element failed, see {@link org.gmelo.collection.DeadLetter#getLastFailure()}.
+     *
+     * @return the reason of the last failure, null if the element never failed
+     */
+    public String getLastFailure() {
+        return lastFailure;
+    }
+
+    void setLastFailure(String lastFailure) {
+        this.lastFailure = lastFailure;
+    }
+
+    @Override
+    public String toString() {
+        return "Envelope{" +
+                "element=" + element +
+                '}';
+    }
+
+    /**
+     * Envelopes recycled by a thread.
+     */
+    private static final class Recycled {
+
+        private final Envelope<?>[] envelopes = new Envelope<?>[RECYCLED_PER_THREAD];
+        private int size;
+    }
+}
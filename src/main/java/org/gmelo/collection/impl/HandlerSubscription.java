@@ -0,0 +1,139 @@
+package org.gmelo.collection.impl;
+
+import org.gmelo.collection.BlockingQueueWithAck;
+import org.gmelo.collection.Delivery;
+import org.gmelo.collection.DeliveryHandler;
+import org.gmelo.collection.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiConsumer;
+
+/**
+ * Pushes the elements of a queue to a handler by keeping concurrency asynchronous takes outstanding, each
+ * delivery is handed to the executor and the next take is requested once it is acknowledged. No thread waits for
+ * elements.
+ * <p/>
+ * The executor must run the handler on another thread, running it on the calling thread would handle the whole
+ * backlog of the queue in a single, ever deeper, call stack.
+ *
+ * @param <T> The type of element handled
+ *
+ * User: GMelo
+ */
+class HandlerSubscription<T> implements Subscription {
+
+    private final Logger logger = LoggerFactory.getLogger(HandlerSubscription.class);
+
+    private final BlockingQueueWithAck<T> queue;
+    private final DeliveryHandler<T> handler;
+    private final Executor executor;
+    //takes waiting for an element
+    private final Set<CompletableFuture<Delivery<T>>> takes =
+            Collections.newSetFromMap(new ConcurrentHashMap<CompletableFuture<Delivery<T>>, Boolean>());
+    private volatile boolean cancelled;
+
+    HandlerSubscription(BlockingQueueWithAck<T> queue, DeliveryHandler<T> handler, Executor executor) {
+        if (handler == null || executor == null) {
+            throw new NullPointerException();
+        }
+        this.queue = queue;
+        this.handler = handler;
+        this.executor = executor;
+    }
+
+    /**
+     * Requests the first elements.
+     *
+     * @param concurrency the maximum number of elements handled at once
+     * @return this subscription
+     */
+    HandlerSubscription<T> start(int concurrency) {
+        if (concurrency <= 0) {
+            throw new IllegalArgumentException("concurrency must be positive: " + concurrency);
+        }
+        for (int i = 0; i < concurrency; i++) {
+            request();
+        }
+        return this;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void cancel() {
+        cancelled = true;
+        for (CompletableFuture<Delivery<T>> take : takes) {
+            take.cancel(false);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    private void request() {
+        if (cancelled) {
+            return;
+        }
+        final CompletableFuture<Delivery<T>> take = queue.takeDeliveryAsync();
+        takes.add(take);
+        take.whenComplete(new BiConsumer<Delivery<T>, Throwable>() {
+            @Override
+            public void accept(Delivery<T> delivery, Throwable failure) {
+                takes.remove(take);
+                if (delivery == null) {
+                    //cancelled by the subscription, or the queue was closed
+                    cancelled = true;
+                    return;
+                }
+                dispatch(delivery);
+            }
+        });
+        if (cancelled) {
+            //cancelled while the take was being registered
+            take.cancel(false);
+        }
+    }
+
+    private void dispatch(final Delivery<T> delivery) {
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    handle(delivery);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            logger.error("Executor rejected element " + delivery.getElement() + ", cancelling the subscription", e);
+            cancel();
+            queue.acknowledge(delivery.getTag(), BlockingQueueWithAck.Acknowledgement.NACK);
+        }
+    }
+
+    private void handle(Delivery<T> delivery) {
+        try {
+            try {
+                handler.handle(delivery);
+            } catch (Exception e) {
+                logger.warn("Handler failed on element " + delivery.getElement() + ", it will be delivered again", e);
+                queue.negativelyAcknowledge(delivery.getTag(), e.toString());
+                return;
+            }
+            queue.acknowledge(delivery.getTag(), BlockingQueueWithAck.Acknowledgement.ACK);
+        } finally {
+            request();
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package org.gmelo.collection.impl;
+
+import org.gmelo.collection.Delivery;
+
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Index of the deliveries waiting for acknowledgement by delivery tag.
+ * <p/>
+ * Tags are handed out in sequence, so a delivery almost always finds its slot free in a preallocated ring indexed
+ * by the low bits of its tag: indexing, looking up and removing a delivery is then a CAS on the slot, without
+ * boxing the tag or allocating a node. A delivery whose slot is still held by one a lap of the ring older, one
+ * that was not acknowledged while as many deliveries were made, goes to an overflow map instead.
+ * <p/>
+ * Nothing takes a lock. values() is a snapshot, and size() is exact once the threads modifying the index are
+ * done. find() looks a delivery up by element in place, walking the ring back from the newest tag and stopping
+ * once it went past as many deliveries as are indexed, so it only reads the slots of the deliveries in flight
+ * when they were made close together.
+ * <p/>
+ * Deliveries are records that stand for a new delivery, under a new tag, once the previous one was settled. A
+ * delivery is removed by claiming its tag first, so a stale tag never removes the delivery a record stands for
+ * now. Settled records are kept in a few spare slots, indexed by the low bits of their last tag, until a delivery
+ * whose tag falls in the same slot reuses them.
+ *
+ * @param <D> The type of delivery indexed
+ *
+ * User: GMelo
+ */
+final class InFlightIndex<D extends InFlightIndex.Record<?>> {
+
+    //tag of a record that does not stand for any delivery, tags handed out are positive
+    static final long NO_TAG = 0;
+    //slots of the ring for each spare slot
+    private static final int SLOTS_PER_SPARE = 16;
+
+    private final AtomicReferenceArray<D> ring;
+    private final int mask;
+    //deliveries whose slot of the ring was taken
+    private final ConcurrentMap<Long, D> overflow = new ConcurrentHashMap<Long, D>();
+    private final LongAdder size = new LongAdder();
+    //records settled by their consumer, ready to stand for another delivery
+    private final AtomicReferenceArray<D> spares;
+    private final int spareMask;
+
+    /**
+     * A delivery that is reused for another delivery once settled, it takes a new tag each time.
+     *
+     * @param <T> The type of element delivered
+     */
+    interface Record<T> extends Delivery<T> {
+
+        /**
+         * Takes the delivery of the tag out of circulation, the tag of the record is {@link #NO_TAG} afterwards.
+         *
+         * @return false if the record does not stand for the delivery of the tag, or if it was claimed already
+         */
+        boolean claim(long tag);
+    }
+
+    /**
+     * @param slots the number of slots of the ring, rounded up to a power of two
+     */
+    InFlightIndex(int slots) {
+        if (slots <= 0 || slots > 1 << 30) {
+            throw new IllegalArgumentException("slots out of range: " + slots);
+        }
+        int size = Integer.highestOneBit(slots);
+        if (size < slots) {
+            size <<= 1;
+        }
+        this.ring = new AtomicReferenceArray<D>(size);
+        this.mask = size - 1;
+        int spares = Math.max(1, size / SLOTS_PER_SPARE);
+        this.spares = new AtomicReferenceArray<D>(spares);
+        this.spareMask = spares - 1;
+    }
+
+    /**
+     * Indexes a delivery under its tag, which must not be indexed already.
+     */
+    void put(D delivery) {
+        size.increment();
+        if (!ring.compareAndSet(slot(delivery.getTag()), null, delivery)) {
+            overflow.put(delivery.getTag(), delivery);
+        }
+    }
+
+    /**
+     * Looks the delivery of a tag up, the record returned may stand for another delivery by the time it is used.
+     *
+     * @return the delivery of the tag, null if it is not indexed
+     */
+    D get(long tag) {
+        if (tag == NO_TAG) {
+            return null;
+        }
+        D delivery = ring.get(slot(tag));
+        if (delivery != null && delivery.getTag() == tag) {
+            return delivery;
+        }
+        return overflow.isEmpty() ? null : overflow.get(tag);
+    }
+
+    /**
+     * Claims the delivery of the tag and removes it.
+     *
+     * @return the delivery removed, null if it is not indexed or another thread claimed it first
+     */
+    D remove(long tag) {
+        int slot = slot(tag);
+        D delivery = ring.get(slot);
+        if (delivery == null || !delivery.claim(tag)) {
+            if (overflow.isEmpty() || (delivery = overflow.get(tag)) == null || !delivery.claim(tag)) {
+                return null;
+            }
+        }
+        //only the thread that claimed the delivery removes it, from wherever it was indexed
+        if (!ring.compareAndSet(slot, delivery, null)) {
+            overflow.remove(tag, delivery);
+        }
+        size.decrement();
+        return delivery;
+    }
+
+    /**
+     * Keeps a record its consumer settled so that a later delivery reuses it, unless the spare slot of the tag is
+     * taken.
+     *
+     * @param tag the tag the record stood for
+     */
+    void recycle(D record, long tag) {
+        spares.compareAndSet(spareSlot(tag), null, record);
+    }
+
+    /**
+     * Takes a spare record for the delivery of a new tag.
+     *
+     * @return a record that was settled by its consumer, null if there is none in the spare slot of the tag
+     */
+    D reuse(long tag) {
+        int slot = spareSlot(tag);
+        D record = spares.get(slot);
+        return record != null && spares.compareAndSet(slot, record, null) ? record : null;
+    }
+
+    /**
+     * @return the number of deliveries indexed
+     */
+    int size() {
+        return size.intValue();
+    }
+
+    /**
+     * Finds a delivery of the element, the newest first. A delivery indexed while the search runs may be missed.
+     *
+     * @param newestTag the largest tag handed out so far
+     * @return the tag of a delivery of the element, {@link #NO_TAG} if none is indexed
+     */
+    long find(Object element, long newestTag) {
+        int remaining = size.intValue();
+        for (int i = 0; i < ring.length() && remaining > 0; i++) {
+            D delivery = ring.get(slot(newestTag - i));
+            if (delivery != null) {
+                long tag = delivery.getTag();
+                if (holds(delivery, tag, element)) {
+                    return tag;
+                }
+                remaining--;
+            }
+        }
+        if (!overflow.isEmpty()) {
+            for (D delivery : overflow.values()) {
+                long tag = delivery.getTag();
+                if (holds(delivery, tag, element)) {
+                    return tag;
+                }
+            }
+        }
+        return NO_TAG;
+    }
+
+    /**
+     * @return a snapshot of the deliveries indexed
+     */
+    List<D> values() {
+        List<D> values = new ArrayList<D>();
+        for (int i = 0; i < ring.length(); i++) {
+            D delivery = ring.get(i);
+            if (delivery != null) {
+                values.add(delivery);
+            }
+        }
+        values.addAll(overflow.values());
+        return values;
+    }
+
+    private int slot(long tag) {
+        return (int) tag & mask;
+    }
+
+    private int spareSlot(long tag) {
+        return (int) tag & spareMask;
+    }
+
+    /**
+     * Tells whether the record stands for a delivery of the element under the tag read before the element, the
+     * element only belongs to the tag if the record was not reused meanwhile.
+     */
+    private static boolean holds(Record<?> record, long tag, Object element) {
+        if (tag == NO_TAG || !element.equals(record.getElement())) {
+            return false;
+        }
+        VarHandle.acquireFence();
+        return record.getTag() == tag;
+    }
+}
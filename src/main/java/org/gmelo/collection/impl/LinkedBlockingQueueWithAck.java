@@ -2,11 +2,51 @@ package org.gmelo.collection.impl;
 
 
 import org.gmelo.collection.BlockingQueueWithAck;
+import org.gmelo.collection.Codec;
+import org.gmelo.collection.DeadLetter;
+import org.gmelo.collection.Delivery;
+import org.gmelo.collection.DeliveryHandler;
+import org.gmelo.collection.KeyExtractor;
+import org.gmelo.collection.Prioritizer;
+import org.gmelo.collection.QueueMetrics;
+import org.gmelo.collection.RedeliveryPolicy;
+import org.gmelo.collection.StorageFactory;
+import org.gmelo.collection.Subscription;
+import org.gmelo.collection.impl.codec.SerializableCodec;
+import org.gmelo.collection.impl.expiry.ExpiryClock;
+import org.gmelo.collection.impl.expiry.ExpiryEngine;
+import org.gmelo.collection.impl.expiry.ExpiryScheduler;
+import org.gmelo.collection.impl.expiry.ExpiryTask;
+import org.gmelo.collection.impl.expiry.HashedWheelExpiryEngine;
+import org.gmelo.collection.impl.journal.SegmentedJournal;
+import org.gmelo.collection.impl.metrics.StripedQueueMetrics;
+import org.gmelo.collection.impl.redelivery.FixedRedeliveryPolicy;
+import org.gmelo.collection.impl.storage.BulkBlockingQueue;
+import org.gmelo.collection.impl.storage.KeyOrderedBlockingQueue;
+import org.gmelo.collection.impl.storage.LinkedBlockingBulkQueue;
+import org.gmelo.collection.impl.storage.MappedFileBlockingQueue;
+import org.gmelo.collection.impl.storage.MpmcArrayBlockingQueue;
+import org.gmelo.collection.impl.storage.PriorityBucketBlockingQueue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.lang.reflect.Array;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Predicate;
 
 /**
  * An optionally-bounded thread-safe queue based on linked nodes. This queue orders elements FIFO (first-in-first-out).
@@ -23,9 +63,44 @@ import java.util.concurrent.*;
  * The capacity, if unspecified, is equal to Integer.MAX_VALUE. Linked nodes are dynamically created upon
  * each insertion unless this would bring the queue above capacity.
  * <p/>
- * This Queue is Backed by an link#http://docs.oracle.com/javase/7/docs/api/java/util/concurrent/LinkedBlockingQueue.html
+ * This Queue is Backed by a {@link LinkedBlockingBulkQueue}, which has the same two lock design as
+ * link#http://docs.oracle.com/javase/7/docs/api/java/util/concurrent/LinkedBlockingQueue.html and can insert
+ * batches of elements under a single lock acquisition. Another storage can be given to the {@link Builder}.
+ * <p/>
+ * Given a {@link Prioritizer} the queue is backed by a {@link PriorityBucketBlockingQueue} instead: urgent
+ * elements are taken before the backlog of less urgent ones, and re-queued elements go back to their own
+ * priority level.
+ * <p/>
+ * Given a {@link KeyExtractor} the queue is backed by a {@link KeyOrderedBlockingQueue}: at most one element of
+ * each key is waiting for acknowledgement, the next element of the key is delivered once it is acknowledged or
+ * poisoned, and re-queued elements are delivered again ahead of the later elements of their key.
  * <p/>
  * Thread-Safety is enforced by only implementing the safe methods of blocking queues. see http://docs.oracle.com/javase/7/docs/api/java/util/concurrent/BlockingQueue.html
+ * Elements waiting for acknowledgement are kept in concurrent structures, acknowledgements do not take any lock.
+ * Delivery tags increase monotonically for the lifetime of the queue.
+ * <p/>
+ * A {@link Delivery} is only valid until it is settled: once its consumer acknowledges it the queue reuses the
+ * object for a later delivery, under a new tag, and the envelope of an acknowledged element for a later
+ * insertion. Keep the tag or the element to use them after the acknowledgement. A stale tag never settles the
+ * later delivery, and a delivery that timed out is not reused.
+ * <p/>
+ * Elements that are negatively acknowledged or time out are put back in the queue right away, unless a
+ * {@link RedeliveryPolicy} given to the {@link Builder} delays them. Delayed elements, and the elements inserted
+ * with {@link #offerDelayed(Object, long, TimeUnit)}, wait in the expiry scheduler and not in the queue: they
+ * are not counted by size() and are inserted once due.
+ * <p/>
+ * Elements re-queued more than the maximum number of retries are poisoned, they go to a bounded
+ * {@link DeadLetterStore} with the history of their failures, or to the dead letter queue given to the
+ * {@link Builder}, and can be put back in the queue with {@link #replayPoisoned(Predicate)}.
+ * <p/>
+ * Counters and latency histograms of the queue are exposed by {@link #metrics()}.
+ * <p/>
+ * {@link #shutdown(long, TimeUnit)} stops the queue once the deliveries in progress are acknowledged, and
+ * returns the elements left so that they can be handed over to another instance.
+ * <p/>
+ * Given a {@link SegmentedJournal} the queue is durable: inserted elements are on disk before the insertion
+ * returns, and the elements that were not acknowledged are back in the queue after a restart. Elements are
+ * written to the journal by the {@link Codec} given to the {@link Builder}, with Java serialization by default.
  *
  * @param <T> The type of element to be stored in the queue
  *            <p/>
@@ -37,19 +112,70 @@ public class LinkedBlockingQueueWithAck<T> implements BlockingQueueWithAck<T> {
     private final Logger logger = LoggerFactory.getLogger(LinkedBlockingQueueWithAck.class);
 
     //Storage of elements is deferred to this queue
-    private final BlockingQueue<T> internalQueue;
-    //Stores elements waiting for acknowledgement
-    private final DelayQueue<ExpiryWrapper<T>> waitingForAck = new DelayQueue<ExpiryWrapper<T>>();
+    private final BlockingQueue<Envelope<T>> internalQueue;
+    //the internal queue if it orders the elements by key, null otherwise
+    private final KeyOrderedBlockingQueue<T> keyOrderedQueue;
+    //Number of ticks of the default expiry engine in one timeout
+    private static final int TICKS_PER_TIMEOUT = 64;
+    //Time before a delayed element that found the queue full is offered again
+    private static final long FULL_QUEUE_RETRY_MILLIS = 10;
+    //Slots of the ring indexing the elements waiting for acknowledgement
+    private static final int IN_FLIGHT_SLOTS = 4096;
+    //Interrupts a consumer waiting for an element and forgets it, so the consumer can tell it was interrupted
+    private static final BiFunction<Thread, Boolean, Boolean> INTERRUPT = new BiFunction<Thread, Boolean, Boolean>() {
+        @Override
+        public Boolean apply(Thread consumer, Boolean waiting) {
+            consumer.interrupt();
+            return null;
+        }
+    };
+
+    //Tracks the expiry of elements waiting for acknowledgement, possibly shared with other queues
+    private final ExpiryScheduler expiryScheduler;
+    //true if the expiry scheduler was created by, and is only used by, this queue
+    private final boolean ownsExpiryScheduler;
+    //the clock the deadlines of the expiry scheduler are read on
+    private final ExpiryClock clock;
+    //true once the queue was closed
+    private volatile boolean closed;
+    //true once a shutdown started, the queue no longer accepts elements
+    private volatile boolean shuttingDown;
+    //elements handed over by a shutdown, re-queued and delayed elements go there instead of the storage
+    private final Queue<Envelope<T>> handover = new ConcurrentLinkedQueue<Envelope<T>>();
+    //operations moving an element in or out of the storage or the in flight index, a shutdown waits for them.
+    //Started and ended operations are counted apart on striped counters, only a shutdown sums them
+    private final LongAdder startedOperations = new LongAdder();
+    private final LongAdder endedOperations = new LongAdder();
+    //signalled whenever an operation ends once a shutdown started
+    private final ReentrantLock shutdownLock = new ReentrantLock();
+    private final Condition operationEnded = shutdownLock.newCondition();
+    //consumers blocked on the storage, a shutdown interrupts them
+    private final ConcurrentHashMap<Thread, Boolean> waitingConsumers = new ConcurrentHashMap<Thread, Boolean>();
+    //elements waiting in the expiry scheduler for their delay to elapse
+    private final Set<DelayedElement<T>> delayedElements =
+            Collections.newSetFromMap(new ConcurrentHashMap<DelayedElement<T>, Boolean>());
+    //Elements waiting for acknowledgement indexed by their delivery tag
+    private final InFlightIndex<ExpiryWrapper<T>> inFlight = new InFlightIndex<ExpiryWrapper<T>>(IN_FLIGHT_SLOTS);
+    //Source of the delivery tags
+    private final AtomicLong deliveryTags = new AtomicLong();
     // Timeout before re-queueing objects
     private final long timeout;
-    //ExecutorService that re-queues expired elements
-    private final ExecutorService executorService;
-    //Map storing the number of times a object was re-queued
-    private final Map<T, Integer> countOfElements = new HashMap<T, Integer>();
     //queue that stores objects that were re-queued more than the limit
     private final Queue<T> deadLetterQueue;
+    //the dead letter queue if it keeps the history of the poisoned elements, null otherwise
+    private final DeadLetterStore<T> deadLetterStore;
     //the maximum number of times a element can be re-queued
     private final int requeueLimit;
+    //how long re-queued elements wait before they are delivered again
+    private final RedeliveryPolicy redeliveryPolicy;
+    //counters and latencies of the queue
+    private final StripedQueueMetrics metrics;
+    //log of the elements of a durable queue, null if the queue is only in memory
+    private final SegmentedJournal journal;
+    //turns the elements into the bytes written to the journal
+    private final Codec<T> codec;
+    //asynchronous takes waiting for an element, oldest first
+    private final Deque<AsyncTake<T>> asyncTakes = new ConcurrentLinkedDeque<AsyncTake<T>>();
 
     /**
      * Creates a new LinkedBlockingQueueWithAck with a timeout before unacknowledged objects
@@ -61,25 +187,100 @@ public class LinkedBlockingQueueWithAck<T> implements BlockingQueueWithAck<T> {
      * @param deadLetterQueue queue to push the poisoned elements to
      */
     public LinkedBlockingQueueWithAck(long timeout, int queueSize, int maximumRetries, Queue<T> deadLetterQueue) {
-        this.timeout = timeout;
-        internalQueue = new LinkedBlockingQueue<T>(queueSize);
-        requeueLimit = maximumRetries;
-        if (deadLetterQueue != null) {
-            this.deadLetterQueue = deadLetterQueue;
+        this(timeout, queueSize, maximumRetries, deadLetterQueue, null);
+    }
+
+    /**
+     * Creates a new LinkedBlockingQueueWithAck with a timeout before unacknowledged objects
+     * of timeout and a capacity of queueSize, tracking the timeouts with the given expiry engine
+     *
+     * @param timeout         the timeout before elements are re-queued in milliseconds
+     * @param queueSize       the maximum capacity of the queue
+     * @param maximumRetries  the maximum number of times a element can be requeued before giving up
+     * @param deadLetterQueue queue to push the poisoned elements to
+     * @param expiryEngine    the engine tracking the elements waiting for acknowledgement, a hashed wheel if null
+     */
+    public LinkedBlockingQueueWithAck(long timeout, int queueSize, int maximumRetries, Queue<T> deadLetterQueue,
+                                      ExpiryEngine expiryEngine) {
+        this(new Builder<T>(timeout).capacity(queueSize).maximumRetries(maximumRetries)
+                .deadLetterQueue(deadLetterQueue).expiryEngine(expiryEngine));
+    }
+
+    @SuppressWarnings("unchecked")
+    private LinkedBlockingQueueWithAck(Builder<T> builder) {
+        this.timeout = builder.timeout;
+        if (builder.expiryScheduler != null) {
+            this.expiryScheduler = builder.expiryScheduler;
+            this.ownsExpiryScheduler = false;
+        } else {
+            ExpiryEngine expiryEngine = builder.expiryEngine != null ? builder.expiryEngine
+                    : new HashedWheelExpiryEngine(Math.max(1, timeout / TICKS_PER_TIMEOUT), builder.expiryClock);
+            this.expiryScheduler = builder.expiryThreadFactory != null
+                    ? new ExpiryScheduler(expiryEngine, builder.expiryThreadFactory)
+                    : new ExpiryScheduler(expiryEngine, "LinkedBlockingQueue timeout-listener");
+            this.ownsExpiryScheduler = true;
+        }
+        clock = expiryScheduler.getClock();
+        if (builder.storageFactory != null) {
+            internalQueue = builder.storageFactory.newStorage(new Function<Envelope<T>, T>() {
+                @Override
+                public T apply(Envelope<T> envelope) {
+                    return envelope.getElement();
+                }
+            });
+        } else if (builder.offHeapDirectory != null) {
+            internalQueue = new MappedFileBlockingQueue<T>(builder.offHeapDirectory, builder.offHeapCodec,
+                    MappedFileBlockingQueue.DEFAULT_SEGMENT_SIZE, builder.capacity);
+        } else if (builder.keyExtractor != null) {
+            internalQueue = new KeyOrderedBlockingQueue<T>(builder.capacity, builder.keyExtractor);
+        } else if (builder.prioritizer != null) {
+            internalQueue = new PriorityBucketBlockingQueue<T>(builder.priorityLevels, builder.capacity,
+                    builder.prioritizer);
+        } else {
+            internalQueue = new LinkedBlockingBulkQueue<Envelope<T>>(builder.capacity);
+        }
+        keyOrderedQueue = internalQueue instanceof KeyOrderedBlockingQueue
+                ? (KeyOrderedBlockingQueue<T>) internalQueue : null;
+        requeueLimit = builder.maximumRetries;
+        redeliveryPolicy = builder.redeliveryPolicy;
+        metrics = builder.metrics != null ? builder.metrics : new StripedQueueMetrics();
+        if (builder.deadLetterQueue != null) {
+            this.deadLetterQueue = builder.deadLetterQueue;
 
         } else {
             logger.warn("Poison element queue should not be null");
-            this.deadLetterQueue = new LinkedBlockingQueue<T>();
+            this.deadLetterQueue = new DeadLetterStore<T>();
         }
+        deadLetterStore = deadLetterQueue instanceof DeadLetterStore
+                ? (DeadLetterStore<T>) deadLetterQueue : null;
+        journal = builder.journal;
+        codec = builder.codec;
+        if (journal != null) {
+            recover();
+        }
+    }
 
-        executorService = Executors.newSingleThreadExecutor(new ThreadFactory() {
-            @Override
-            public Thread newThread(Runnable runnable) {
-                return new Thread(runnable, "LinkedBlockingQueue timeout-listener");
+    /**
+     * Puts the elements that were not acknowledged when the journal was last closed back in the queue. Elements
+     * that were delivered are re-queued as if they timed out, so an element that crashes its consumer is
+     * eventually poisoned.
+     */
+    private void recover() {
+        long now = System.nanoTime();
+        for (SegmentedJournal.Entry entry : journal.recover()) {
+            T element = codec.decode(ByteBuffer.wrap(entry.getPayload()));
+            Envelope<T> envelope = new Envelope<T>(element, now, entry.getRequeues(), entry.getId());
+            if (!entry.isDelivered()) {
+                internalQueue.add(envelope);
+                continue;
             }
-        });
-        startExpiryListener();
-
+            envelope.setLastFailure(DeadLetter.TIMED_OUT);
+            if (checkForValidElement(envelope)) {
+                requeue(envelope, 0);
+            } else {
+                addElementToDeadLetterQueue(envelope);
+            }
+        }
     }
 
     /**
@@ -89,7 +290,7 @@ public class LinkedBlockingQueueWithAck<T> implements BlockingQueueWithAck<T> {
      * @param timeout the timeout before elements are re-queued in milliseconds
      */
     public LinkedBlockingQueueWithAck(long timeout) {
-        this(timeout, Integer.MAX_VALUE, Integer.MAX_VALUE, new LinkedBlockingQueue<T>());
+        this(timeout, Integer.MAX_VALUE, Integer.MAX_VALUE, new DeadLetterStore<T>());
     }
 
     /**
@@ -99,7 +300,7 @@ public class LinkedBlockingQueueWithAck<T> implements BlockingQueueWithAck<T> {
      * @param timeout the timeout before elements are re-queued in milliseconds
      */
     public LinkedBlockingQueueWithAck(long timeout, int maximumRequeue) {
-        this(timeout, Integer.MAX_VALUE, maximumRequeue, new LinkedBlockingQueue<T>());
+        this(timeout, Integer.MAX_VALUE, maximumRequeue, new DeadLetterStore<T>());
     }
 
     /**
@@ -113,433 +314,1947 @@ public class LinkedBlockingQueueWithAck<T> implements BlockingQueueWithAck<T> {
     }
 
     /**
-     * Starts to listen for expired elements on a new thread and re-queues them.
+     * Adds element to dead letter queue. A dead letter queue that is full or fails does not stop the queue, the
+     * element is dropped.
      */
-    private void startExpiryListener() {
-        executorService.execute(new ExpiryListenerRunner());
+    private void addElementToDeadLetterQueue(Envelope<T> envelope) {
+        T element = envelope.getElement();
+        logger.debug("adding element {} to dead letter queue", element);
+        if (deadLetterStore != null) {
+            deadLetterStore.store(envelope);
+        } else {
+            try {
+                if (!deadLetterQueue.offer(element)) {
+                    logger.error("Dead letter queue full, dropping poisoned element {}", element);
+                }
+            } catch (RuntimeException e) {
+                logger.error("Dead letter queue failed, dropping poisoned element " + element, e);
+            }
+        }
+        metrics.deadLettered();
+        if (journal != null) {
+            journal.acknowledged(envelope.getJournalId());
+        }
+        if (keyOrderedQueue != null) {
+            keyOrderedQueue.release(envelope);
+            elementsAvailable();
+        }
     }
 
     /**
-     * Adds element to dead letter queue and cleans up the countOfElements map.
+     * {@inheritDoc}
+     * <p/>
+     * Acknowledgements do not take any lock, two consumers acknowledging different elements never block each other.
+     * The element is searched among the elements waiting for acknowledgement, prefer
+     * {@link #acknowledge(long, Acknowledgement)} when the delivery tag is available.
      */
-    private void addElementToDeadLetterQueue(T element) {
-        logger.debug("adding element {} to dead letter queue", element);
-        deadLetterQueue.add(element);
-        countOfElements.remove(element);
+    @Override
+    public void acknowledge(T element, Acknowledgement acknowledgement) {
+        if (!acknowledgeIfWaiting(element, acknowledgement)) {
+            logger.warn("Attempting to acknowledge element {} that was already re-queued, timeout should be increased. ", element);
+        }
+    }
+
+    /**
+     * Acknowledges a delivery of the element if one is waiting for acknowledgement.
+     *
+     * @return false if no delivery of the element is waiting for acknowledgement
+     */
+    boolean acknowledgeIfWaiting(T element, Acknowledgement acknowledgement) {
+        enter();
+        try {
+            while (true) {
+                long deliveryTag = inFlight.find(element, deliveryTags.get());
+                if (deliveryTag == InFlightIndex.NO_TAG) {
+                    return false;
+                }
+                //a delivery acknowledged meanwhile is not found again
+                ExpiryWrapper<T> wrapper = inFlight.remove(deliveryTag);
+                if (wrapper != null) {
+                    settle(wrapper, deliveryTag, acknowledgement, -1, DeadLetter.NEGATIVELY_ACKNOWLEDGED);
+                    return true;
+                }
+            }
+        } finally {
+            exit();
+        }
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public synchronized void acknowledge(T element, Acknowledgement acknowledgement) {
+    public void acknowledge(long deliveryTag, Acknowledgement acknowledgement) {
+        settle(deliveryTag, acknowledgement, -1, DeadLetter.NEGATIVELY_ACKNOWLEDGED);
+    }
 
-        if (!waitingForAck.remove(new ExpiryWrapper<T>(element, timeout))) {
-            logger.warn("Attempting to acknowledge element {} that was already re-queued, timeout should be increased. ", element);
-            return;
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void negativelyAcknowledge(long deliveryTag, long redeliveryDelay, TimeUnit unit) {
+        settle(deliveryTag, Acknowledgement.NACK, Math.max(0, unit.toMillis(redeliveryDelay)),
+                DeadLetter.NEGATIVELY_ACKNOWLEDGED);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void negativelyAcknowledge(long deliveryTag, String reason) {
+        settle(deliveryTag, Acknowledgement.NACK, -1, reason != null ? reason : DeadLetter.NEGATIVELY_ACKNOWLEDGED);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void acknowledgeBatch(Collection<? extends Delivery<T>> deliveries, Acknowledgement acknowledgement) {
+        for (Delivery<T> delivery : deliveries) {
+            acknowledge(delivery.getTag(), acknowledgement);
         }
+    }
 
-        if (acknowledgement == Acknowledgement.NACK) {
+    /**
+     * Removes a delivery from the in flight index and settles it, unless it was already settled.
+     */
+    private void settle(long deliveryTag, Acknowledgement acknowledgement, long redeliveryDelay, String reason) {
+        enter();
+        try {
+            ExpiryWrapper<T> wrapper = inFlight.remove(deliveryTag);
+            if (wrapper == null) {
+                logger.warn("Attempting to acknowledge delivery {} that was already re-queued, timeout should be increased. ", deliveryTag);
+                return;
+            }
+            settle(wrapper, deliveryTag, acknowledgement, redeliveryDelay, reason);
+        } finally {
+            exit();
+        }
+    }
 
-            if (checkForValidElement(element)) {
+    /**
+     * Re-queues or discards an element that was removed from the in flight index according to the acknowledgement.
+     * The wrapper is recycled for a later delivery, and the envelope of an acknowledged element for a later
+     * insertion.
+     *
+     * @param deliveryTag     the tag the wrapper was claimed with
+     * @param redeliveryDelay the delay before a negatively acknowledged element is delivered again in
+     *                        milliseconds, or -1 to ask the redelivery policy
+     * @param reason          why a negatively acknowledged delivery failed
+     */
+    private void settle(ExpiryWrapper<T> wrapper, long deliveryTag, Acknowledgement acknowledgement,
+                        long redeliveryDelay, String reason) {
+        boolean reusable = wrapper.settled();
+        long ackLatency = System.nanoTime() - wrapper.getDeliveryTime();
+        Envelope<T> envelope = wrapper.getEnvelope();
+        T element = envelope.getElement();
+        if (acknowledgement == Acknowledgement.NACK) {
+            metrics.negativelyAcknowledged(ackLatency);
+            envelope.setLastFailure(reason);
+            if (checkForValidElement(envelope)) {
                 logger.debug("Re-queuing element {} due to negative acknowledgement", element);
-                internalQueue.add(element);
+                requeue(envelope, redeliveryDelay >= 0 ? redeliveryDelay
+                        : redeliveryPolicy.redeliveryDelay(envelope.getRequeueCount()));
             } else {
-                addElementToDeadLetterQueue(element);
+                addElementToDeadLetterQueue(envelope);
             }
         } else {
+            metrics.acknowledged(ackLatency);
             logger.debug("Successfully acknowledged element {}", element);
+            if (journal != null) {
+                journal.acknowledged(envelope.getJournalId());
+            }
+            if (keyOrderedQueue != null) {
+                keyOrderedQueue.release(envelope);
+                elementsAvailable();
+            }
+            envelope.recycle();
+        }
+        if (reusable) {
+            wrapper.clear();
+            inFlight.recycle(wrapper, deliveryTag);
         }
     }
 
     /**
-     * Exposes a queue with the poisoned elements
+     * Puts an element that was waiting for acknowledgement back in the queue, right away or once the delay
+     * elapsed. The element is put back right away if the expiry scheduler is shut down.
      *
-     * @return Queue with the elements that were re-queued over the
+     * @param delayMillis the delay before the element is put back in milliseconds
      */
-    public Queue<T> poisonedElements() {
-        return deadLetterQueue;
+    private void requeue(Envelope<T> envelope, long delayMillis) {
+        if (journal != null) {
+            envelope.setJournalId(journal.requeued(envelope.getJournalId(), envelope.getRequeueCount(),
+                    envelope.getElement(), codec));
+        }
+        if (delayMillis > 0 && !closed && !shuttingDown
+                && scheduleDelayed(new DelayedElement<T>(this, envelope, clock.millis() + delayMillis, false))) {
+            return;
+        }
+        reinsert(envelope);
     }
 
     /**
-     * {@inheritDoc}
+     * Schedules an element to be inserted once its delay elapsed.
+     *
+     * @return false if the expiry scheduler is shut down
      */
-    @Override
-    public int numberOfElementsWaitingForAck() {
-        return waitingForAck.size();
+    private boolean scheduleDelayed(DelayedElement<T> delayed) {
+        delayedElements.add(delayed);
+        if (expiryScheduler.schedule(delayed)) {
+            return true;
+        }
+        delayedElements.remove(delayed);
+        return false;
     }
 
     /**
-     * {@inheritDoc}
+     * Puts a re-queued element back in the storage, ahead of the later elements of its key if the queue orders
+     * the elements by key.
      */
-    @Override
-    public boolean add(T t) {
-        return internalQueue.add(t);
+    private void reinsert(Envelope<T> envelope) {
+        if (shuttingDown) {
+            handOver(envelope, true);
+            return;
+        }
+        envelope.setEnqueueTime(System.nanoTime());
+        if (keyOrderedQueue != null) {
+            keyOrderedQueue.requeue(envelope);
+        } else {
+            internalQueue.add(envelope);
+        }
+        elementsAvailable();
     }
 
     /**
      * {@inheritDoc}
+     * <p/>
+     * Cancels the timeouts of the elements waiting for acknowledgement, and stops the expiry thread unless the
+     * scheduler was given to the {@link Builder}. Elements taken after the queue is closed are never re-queued on
+     * timeout, and delayed elements that are not due yet are dropped once their delay elapses.
+     * <p/>
+     * Cancelling a timeout is lazy, the engine only discards the task when it comes across it. A scheduler shared
+     * with other queues therefore keeps referencing the elements of a closed queue until their deadline passes,
+     * up to the timeout of the queue or the lease of the delivery, and its delayed elements until they are due.
+     * <p/>
+     * The journal of a durable queue is closed, elements that are not acknowledged yet are recovered when the
+     * journal is opened again. A storage that is Closeable is closed as well. The futures of the asynchronous
+     * takes still waiting for an element are cancelled.
      */
     @Override
-    public boolean offer(T t) {
-        return internalQueue.offer(t);
+    public void close() {
+        closed = true;
+        cancelAsyncTakes();
+        for (ExpiryWrapper<T> wrapper : inFlight.values()) {
+            wrapper.settled();
+        }
+        if (ownsExpiryScheduler) {
+            expiryScheduler.shutdown();
+        }
+        if (journal != null) {
+            journal.close();
+        }
+        if (internalQueue instanceof Closeable) {
+            try {
+                ((Closeable) internalQueue).close();
+            } catch (IOException e) {
+                logger.warn("Failed to close the storage of the queue", e);
+            }
+        }
     }
 
     /**
      * {@inheritDoc}
-     *
-     * @throws UnsupportedOperationException
+     * <p/>
+     * The elements are returned in the order they left the queue, the elements of a key stay in order when the
+     * queue orders the elements by key, including the elements that become available while waiting, e.g. the
+     * next element of a key that was acknowledged. The expiry thread is stopped unless the scheduler was given to
+     * the {@link Builder}.
+     * <p/>
+     * Producers still inserting when the shutdown starts are waited for, their elements are handed over as well.
+     * Consumers waiting for an element are woken up: a take that waits fails with an IllegalStateException once
+     * the shutdown started, a take that does not wait finds no element.
+     * <p/>
+     * The elements of a durable queue stay in its journal until they are acknowledged, they are recovered as well
+     * if the journal is opened again.
      */
     @Override
-    public T remove() {
-        throw new UnsupportedOperationException("Remove operation is not Supported");
+    public List<T> shutdown(long timeout, TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        beginShutdown();
+        boolean interrupted = !awaitAcknowledgements(deadline);
+        List<T> remaining = completeShutdown();
+        if (ownsExpiryScheduler && !interrupted) {
+            try {
+                expiryScheduler.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return remaining;
     }
 
     /**
-     * {@inheritDoc}
+     * Stops accepting elements and takes the elements waiting in the storage out of reach of the consumers. The
+     * consumers waiting for an element are woken up, the queue will not get any.
      */
-    @Override
-    public T poll() {
-        T element = internalQueue.poll();
-        if (element != null) {
-            return waitForAck(element);
+    void beginShutdown() {
+        shuttingDown = true;
+        for (Thread consumer : waitingConsumers.keySet()) {
+            waitingConsumers.computeIfPresent(consumer, INTERRUPT);
         }
-        return element;
+        cancelAsyncTakes();
+        drainStorage();
     }
 
     /**
-     * {@inheritDoc}
+     * Waits for the deliveries waiting for acknowledgement to be acknowledged, negatively acknowledged or to time
+     * out, until the deadline.
+     *
+     * @param deadline the System.nanoTime() to stop waiting at
+     * @return false if interrupted while waiting
      */
-    @Override
-    public T element() {
-        return internalQueue.element();
+    boolean awaitAcknowledgements(long deadline) {
+        shutdownLock.lock();
+        try {
+            while (inFlight.size() > 0) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return true;
+                }
+                operationEnded.awaitNanos(remaining);
+            }
+            return true;
+        } catch (InterruptedException e) {
+            return false;
+        } finally {
+            shutdownLock.unlock();
+        }
     }
 
     /**
-     * {@inheritDoc}
+     * Collects the elements left after waiting for the acknowledgements and closes the queue.
+     *
+     * @return the elements handed over
      */
-    @Override
-    public T peek() {
-        return internalQueue.peek();
+    List<T> completeShutdown() {
+        //producers and consumers that were admitted before the shutdown started
+        awaitOperations();
+        for (ExpiryWrapper<T> wrapper : inFlight.values()) {
+            ExpiryWrapper<T> removed = inFlight.remove(wrapper.getTag());
+            if (removed != null) {
+                removed.settled();
+                handOver(removed.getEnvelope(), true);
+            }
+        }
+        //deliveries settled by their consumers meanwhile, and the elements of a key behind those handed over
+        awaitOperations();
+        close();
+        List<T> elements = new ArrayList<T>(handover.size());
+        Envelope<T> envelope;
+        while ((envelope = handover.poll()) != null) {
+            elements.add(envelope.getElement());
+        }
+        return elements;
     }
 
     /**
-     * {@inheritDoc}
+     * Waits for the operations in progress to end, handing the delayed elements and the storage over until they
+     * did. The storage is drained every time an operation ends, so that a producer blocked on a full storage can
+     * finish.
      */
-    @Override
-    public void put(T t) throws InterruptedException {
-        internalQueue.put(t);
+    private void awaitOperations() {
+        shutdownLock.lock();
+        try {
+            while (true) {
+                for (DelayedElement<T> delayed : delayedElements) {
+                    if (delayed.cancel()) {
+                        delayedElements.remove(delayed);
+                        handOver(delayed.envelope, !delayed.fromProducer);
+                    }
+                }
+                //those left are being released, the operation releasing one forgets it before it ends
+                boolean ended = delayedElements.isEmpty() && noOperationInProgress();
+                //what an operation that ended did to the storage is drained
+                drainStorage();
+                if (ended) {
+                    return;
+                }
+                operationEnded.awaitUninterruptibly();
+            }
+        } finally {
+            shutdownLock.unlock();
+        }
+    }
+
+    private void drainStorage() {
+        List<Envelope<T>> drained = new ArrayList<Envelope<T>>();
+        while (internalQueue.drainTo(drained) > 0) {
+            for (Envelope<T> envelope : drained) {
+                handOver(envelope, true);
+            }
+            drained.clear();
+        }
     }
 
     /**
-     * {@inheritDoc}
+     * Keeps an element for the shutdown to hand over. The key of an element taken from a key ordered storage is
+     * released, so that the next element of the key can be handed over after it.
+     *
+     * @param taken true if the element holds its key
      */
-    @Override
-    public boolean offer(T t, long l, TimeUnit timeUnit) throws InterruptedException {
-        return internalQueue.offer(t, l, timeUnit);
+    private void handOver(Envelope<T> envelope, boolean taken) {
+        handover.add(envelope);
+        if (taken && keyOrderedQueue != null) {
+            keyOrderedQueue.release(envelope);
+        }
     }
 
     /**
-     * {@inheritDoc}
+     * Starts an operation on the queue, a shutdown waits for it to end. Every call must be paired with a call to
+     * {@link #exit()}.
      */
-    @Override
-    public T take() throws InterruptedException {
-        T element = internalQueue.take();
-        return waitForAck(element);
+    private void enter() {
+        startedOperations.increment();
     }
 
     /**
-     * {@inheritDoc}
+     * Ends an operation on the queue.
      */
-    @Override
-    public T poll(long l, TimeUnit timeUnit) throws InterruptedException {
-        T entity = internalQueue.poll(l, timeUnit);
-        if (entity != null) {
-            return waitForAck(entity);
+    private void exit() {
+        endedOperations.increment();
+        if (shuttingDown) {
+            shutdownLock.lock();
+            try {
+                operationEnded.signalAll();
+            } finally {
+                shutdownLock.unlock();
+            }
         }
+    }
 
-        return null;
+    /**
+     * Tells whether no operation was in progress at some point during the call. Both counters only grow and the
+     * ended operations are summed first, so the sums can only be equal if as many operations had started as had
+     * ended by the time the ended ones were summed.
+     */
+    private boolean noOperationInProgress() {
+        long ended = endedOperations.sum();
+        return ended == startedOperations.sum();
     }
 
     /**
-     * {@inheritDoc}
+     * Starts the operation of a producer, unless the queue is shutting down.
+     *
+     * @return false if the queue no longer accepts elements, the operation was not started
      */
-    @Override
-    public int remainingCapacity() {
-        return internalQueue.remainingCapacity();
+    private boolean admit() {
+        enter();
+        if (shuttingDown) {
+            exit();
+            return false;
+        }
+        return true;
     }
 
     /**
-     * {@inheritDoc}
+     * Starts the operation of a producer.
      *
-     * @throws UnsupportedOperationException
+     * @throws IllegalStateException if the queue no longer accepts elements
      */
-    @Override
-    public boolean remove(Object o) {
-        throw new UnsupportedOperationException("Remove Operation is not allowed");
+    private void admitOrFail() {
+        if (!admit()) {
+            throw new IllegalStateException("Queue is shut down");
+        }
     }
 
     /**
-     * {@inheritDoc}
+     * Exposes a queue with the poisoned elements
      *
-     * @throws UnsupportedOperationException
+     * @return Queue with the elements that were re-queued over the
      */
-    @Override
-    public boolean containsAll(Collection<?> objects) {
-        throw new UnsupportedOperationException("Bulk operations are not allowed");
+    public Queue<T> poisonedElements() {
+        return deadLetterQueue;
     }
 
     /**
      * {@inheritDoc}
      *
-     * @throws UnsupportedOperationException
+     * @throws UnsupportedOperationException if the dead letter queue is not a {@link DeadLetterStore}
      */
-
     @Override
-    public boolean addAll(Collection<? extends T> ts) {
-        throw new UnsupportedOperationException("Add All Operation is not allowed");
-
+    public List<DeadLetter<T>> deadLetters() {
+        return deadLetterStore().deadLetters();
     }
 
     /**
      * {@inheritDoc}
+     * <p/>
+     * The elements are inserted with a single insertion in the storage.
      *
-     * @throws UnsupportedOperationException
+     * @throws UnsupportedOperationException if the dead letter queue is not a {@link DeadLetterStore}
      */
     @Override
-    public boolean removeAll(Collection<?> objects) {
-        throw new UnsupportedOperationException("Remove All Operation is not allowed");
+    public int replayPoisoned(Predicate<? super DeadLetter<T>> filter) {
+        DeadLetterStore<T> store = deadLetterStore();
+        List<DeadLetter<T>> letters = store.removeMatching(filter);
+        if (letters.isEmpty()) {
+            return 0;
+        }
+        int replayed = replay(letters);
+        if (replayed < letters.size()) {
+            store.restore(letters.subList(replayed, letters.size()));
+        }
+        return replayed;
+    }
+
+    private DeadLetterStore<T> deadLetterStore() {
+        if (deadLetterStore == null) {
+            throw new UnsupportedOperationException("The dead letter queue does not keep the history of the poisoned elements");
+        }
+        return deadLetterStore;
     }
 
     /**
-     * {@inheritDoc}
+     * Inserts dead letters back in the queue, as many as fit, with a fresh count of retries. The elements keep
+     * the time they were first seen.
      *
-     * @throws UnsupportedOperationException
+     * @return the number of dead letters inserted, the first ones of the list
      */
-    @Override
-    public boolean retainAll(Collection<?> objects) {
-        throw new UnsupportedOperationException("Retain All Operation is not allowed");
+    int replay(List<DeadLetter<T>> letters) {
+        long now = System.nanoTime();
+        List<Envelope<T>> envelopes = new ArrayList<Envelope<T>>(letters.size());
+        for (DeadLetter<T> letter : letters) {
+            envelopes.add(new Envelope<T>(letter.getElement(), now, 0, 0, letter.getFirstSeenTime(), null));
+        }
+        return insertAll(envelopes, false);
     }
 
     /**
      * {@inheritDoc}
-     *
-     * @throws UnsupportedOperationException
      */
     @Override
-    public void clear() {
-        throw new UnsupportedOperationException("Clear Operation is not allowed");
+    public int numberOfElementsWaitingForAck() {
+        return inFlight.size();
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public int size() {
-        return internalQueue.size();
+    public QueueMetrics metrics() {
+        return metrics;
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public boolean isEmpty() {
-        return internalQueue.isEmpty();
+    public boolean add(T t) {
+        admitOrFail();
+        try {
+            Envelope<T> envelope = envelope(t);
+            boolean inserted = false;
+            try {
+                inserted = internalQueue.add(envelope);
+            } finally {
+                enqueued(envelope, inserted);
+            }
+            return inserted;
+        } finally {
+            exit();
+        }
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public boolean contains(Object o) {
-        return internalQueue.contains(o);
+    public boolean offer(T t) {
+        if (!admit()) {
+            return false;
+        }
+        try {
+            Envelope<T> envelope = envelope(t);
+            return enqueued(envelope, internalQueue.offer(envelope));
+        } finally {
+            exit();
+        }
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public Iterator<T> iterator() {
-        return internalQueue.iterator();
+    public boolean offerDelayed(T element, long delay, TimeUnit unit) {
+        long delayMillis = unit.toMillis(delay);
+        if (delayMillis <= 0) {
+            return offer(element);
+        }
+        if (element == null) {
+            throw new NullPointerException();
+        }
+        if (closed || !admit()) {
+            return false;
+        }
+        try {
+            Envelope<T> envelope = envelope(element);
+            if (scheduleDelayed(new DelayedElement<T>(this, envelope, clock.millis() + delayMillis, true))) {
+                return true;
+            }
+            return enqueued(envelope, false);
+        } finally {
+            exit();
+        }
     }
 
     /**
      * {@inheritDoc}
+     *
+     * @throws UnsupportedOperationException
      */
     @Override
-    public Object[] toArray() {
-        return internalQueue.toArray();
+    public T remove() {
+        throw new UnsupportedOperationException("Remove operation is not Supported");
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public <T1> T1[] toArray(T1[] t1s) {
-        return internalQueue.toArray(t1s);
+    public T poll() {
+        enter();
+        try {
+            Envelope<T> envelope = shuttingDown ? null : internalQueue.poll();
+            if (envelope != null) {
+                //read before the delivery can be settled and its envelope recycled
+                T element = envelope.getElement();
+                waitForAck(envelope);
+                return element;
+            }
+            return null;
+        } finally {
+            exit();
+        }
     }
 
     /**
      * {@inheritDoc}
-     *
-     * @throws UnsupportedOperationException
      */
     @Override
-    public int drainTo(Collection<? super T> objects) {
-        throw new UnsupportedOperationException("Drain To Operation is not allowed");
+    public T element() {
+        return internalQueue.element().getElement();
     }
 
     /**
      * {@inheritDoc}
-     *
-     * @throws UnsupportedOperationException
      */
     @Override
-    public int drainTo(Collection<? super T> objects, int i) {
-        throw new UnsupportedOperationException("Drain To Operation is not allowed");
+    public T peek() {
+        Envelope<T> envelope = internalQueue.peek();
+        return envelope != null ? envelope.getElement() : null;
     }
 
     /**
-     * Stores an element to the waiting for ack aux queue.
-     *
-     * @param element the element who will be waiting for the ack.
-     * @return the element
+     * {@inheritDoc}
      */
-    private T waitForAck(T element) {
-        waitingForAck.add(new ExpiryWrapper<T>(element, timeout));
+    @Override
+    public void put(T t) throws InterruptedException {
+        admitOrFail();
+        try {
+            Envelope<T> envelope = envelope(t);
+            boolean inserted = false;
+            try {
+                internalQueue.put(envelope);
+                inserted = true;
+            } finally {
+                enqueued(envelope, inserted);
+            }
+        } finally {
+            exit();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean offer(T t, long l, TimeUnit timeUnit) throws InterruptedException {
+        if (!admit()) {
+            return false;
+        }
+        try {
+            Envelope<T> envelope = envelope(t);
+            boolean inserted = false;
+            try {
+                inserted = internalQueue.offer(envelope, l, timeUnit);
+            } finally {
+                enqueued(envelope, inserted);
+            }
+            return inserted;
+        } finally {
+            exit();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public T take() throws InterruptedException {
+        return deliverElement(0, null);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public T poll(long l, TimeUnit timeUnit) throws InterruptedException {
+        return deliverElement(l, timeUnit);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Delivery<T> takeDelivery() throws InterruptedException {
+        return deliver(0, null, timeout);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Delivery<T> takeDeliveryWithLease(long lease, TimeUnit unit) throws InterruptedException {
+        return deliver(0, null, unit.toMillis(lease));
+    }
+
+    /**
+     * Retrieves and removes the head of this queue, waiting up to the timeout, the delivery must be acknowledged
+     * within the lease instead of the timeout of the queue.
+     *
+     * @param leaseMillis the time the consumer has to acknowledge the delivery in milliseconds
+     */
+    Delivery<T> pollDelivery(long timeout, TimeUnit unit, long leaseMillis) throws InterruptedException {
+        return deliver(timeout, unit, leaseMillis);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Extending a lease only moves the deadline of the delivery, the expiry engine files it again when it comes
+     * across its former deadline.
+     */
+    @Override
+    public boolean extendLease(long deliveryTag, long duration, TimeUnit unit) {
+        ExpiryWrapper<T> wrapper = inFlight.get(deliveryTag);
+        return wrapper != null && wrapper.extendLease(deliveryTag, clock.millis() + unit.toMillis(duration));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The element is searched among the elements waiting for acknowledgement, prefer
+     * {@link #extendLease(long, long, TimeUnit)} when the delivery tag is available.
+     */
+    @Override
+    public boolean extendLease(T element, long duration, TimeUnit unit) {
+        long deliveryTag = inFlight.find(element, deliveryTags.get());
+        return deliveryTag != InFlightIndex.NO_TAG && extendLease(deliveryTag, duration, unit);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Delivery<T> pollDelivery(long timeout, TimeUnit unit) throws InterruptedException {
+        return deliver(timeout, unit, this.timeout);
+    }
+
+    /**
+     * Takes an element out of the storage, waiting up to the timeout, and delivers it.
+     *
+     * @param timeout     the time to wait
+     * @param unit        a TimeUnit determining how to interpret the timeout, null to wait until an element is
+     *                    available
+     * @param leaseMillis the time the consumer has to acknowledge the delivery in milliseconds
+     * @return the delivery, or null if no element became available within the timeout
+     */
+    private ExpiryWrapper<T> deliver(long timeout, TimeUnit unit, long leaseMillis) throws InterruptedException {
+        enter();
+        try {
+            Envelope<T> envelope = retrieve(timeout, unit);
+            return envelope != null ? waitForAck(envelope, leaseMillis) : null;
+        } finally {
+            exit();
+        }
+    }
+
+    /**
+     * Takes an element out of the storage, waiting up to the timeout, and delivers it under the timeout of the
+     * queue.
+     *
+     * @param timeout the time to wait
+     * @param unit    a TimeUnit determining how to interpret the timeout, null to wait until an element is available
+     * @return the element, or null if no element became available within the timeout
+     */
+    private T deliverElement(long timeout, TimeUnit unit) throws InterruptedException {
+        enter();
+        try {
+            Envelope<T> envelope = retrieve(timeout, unit);
+            if (envelope == null) {
+                return null;
+            }
+            //read before the delivery can be settled and its envelope recycled
+            T element = envelope.getElement();
+            waitForAck(envelope);
+            return element;
+        } finally {
+            exit();
+        }
+    }
+
+    /**
+     * Takes an element out of the storage, waiting up to the timeout, within an operation started by the caller.
+     * <p/>
+     * The consumers waiting for an element are interrupted by a shutdown, the queue will not get any. A take on a
+     * queue shutting down fails unless it does not wait.
+     *
+     * @param timeout the time to wait
+     * @param unit    a TimeUnit determining how to interpret the timeout, null to wait until an element is
+     *                available
+     * @return the envelope of the element, or null if none became available within the timeout
+     * @throws IllegalStateException if the queue is shutting down and the take waits
+     */
+    private Envelope<T> retrieve(long timeout, TimeUnit unit) throws InterruptedException {
+        Envelope<T> envelope = shuttingDown ? null : internalQueue.poll();
+        if (envelope != null || (unit != null && timeout <= 0)) {
+            return envelope;
+        }
+        Thread consumer = Thread.currentThread();
+        waitingConsumers.put(consumer, Boolean.TRUE);
+        try {
+            if (!shuttingDown) {
+                envelope = unit == null ? internalQueue.take() : internalQueue.poll(timeout, unit);
+            }
+        } catch (InterruptedException e) {
+            if (!shuttingDown) {
+                throw e;
+            }
+        } finally {
+            if (waitingConsumers.remove(consumer) == null) {
+                //interrupted by the shutdown, possibly after the element was taken
+                Thread.interrupted();
+            }
+        }
+        if (envelope == null && shuttingDown) {
+            throw new IllegalStateException("Queue is shut down");
+        }
+        return envelope;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<T> takeAsync() {
+        return elementOf(takeDeliveryAsync());
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Pending takes are served oldest first, by the thread that makes an element available: a producer, the
+     * expiry thread re-queueing an element or, for a queue ordered by key, the consumer acknowledging the
+     * previous element of a key.
+     */
+    @Override
+    public CompletableFuture<Delivery<T>> takeDeliveryAsync() {
+        final FutureTake<T> take = new FutureTake<T>();
+        take.future.whenComplete(new BiConsumer<Delivery<T>, Throwable>() {
+            @Override
+            public void accept(Delivery<T> delivery, Throwable failure) {
+                if (failure != null) {
+                    asyncTakes.remove(take);
+                }
+            }
+        });
+        takeAsync(take);
+        return take.future;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Subscription subscribe(DeliveryHandler<T> handler, int concurrency) {
+        return subscribe(handler, concurrency, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Subscription subscribe(DeliveryHandler<T> handler, int concurrency, Executor executor) {
+        return new HandlerSubscription<T>(this, handler, executor).start(concurrency);
+    }
+
+    /**
+     * Adapts the future of a delivery to the future of its element. Cancelling either future cancels the other,
+     * a delivery completed as the future of the element is cancelled times out.
+     */
+    static <T> CompletableFuture<T> elementOf(final CompletableFuture<Delivery<T>> delivery) {
+        final CompletableFuture<T> element = new CompletableFuture<T>();
+        delivery.whenComplete(new BiConsumer<Delivery<T>, Throwable>() {
+            @Override
+            public void accept(Delivery<T> taken, Throwable failure) {
+                if (taken != null) {
+                    element.complete(taken.getElement());
+                } else if (delivery.isCancelled()) {
+                    element.cancel(false);
+                } else {
+                    element.completeExceptionally(failure);
+                }
+            }
+        });
+        element.whenComplete(new BiConsumer<T, Throwable>() {
+            @Override
+            public void accept(T taken, Throwable failure) {
+                if (element.isCancelled()) {
+                    delivery.cancel(false);
+                }
+            }
+        });
         return element;
+    }
+
+    /**
+     * Registers an asynchronous take, completed right away if an element is available. The take is cancelled if
+     * the queue is closed.
+     */
+    void takeAsync(AsyncTake<T> take) {
+        asyncTakes.addLast(take);
+        dispatchAsyncTakes();
+        if (closed || shuttingDown) {
+            cancelAsyncTakes();
+        }
+    }
+
+    /**
+     * Forgets an asynchronous take that is no longer interested in an element.
+     */
+    void cancelTakeAsync(AsyncTake<T> take) {
+        asyncTakes.remove(take);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<Delivery<T>> takeBatch(int maxElements, long timeout, TimeUnit unit) throws InterruptedException {
+        if (maxElements <= 0) {
+            return Collections.emptyList();
+        }
+        enter();
+        try {
+            Envelope<T> first = retrieve(timeout, unit);
+            if (first == null) {
+                return Collections.emptyList();
+            }
+            List<Envelope<T>> envelopes = new ArrayList<Envelope<T>>();
+            envelopes.add(first);
+            internalQueue.drainTo(envelopes, maxElements - 1);
+            return new ArrayList<Delivery<T>>(waitForAck(envelopes));
+        } finally {
+            exit();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int remainingCapacity() {
+        return internalQueue.remainingCapacity();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws UnsupportedOperationException
+     */
+    @Override
+    public boolean remove(Object o) {
+        throw new UnsupportedOperationException("Remove Operation is not allowed");
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws UnsupportedOperationException
+     */
+    @Override
+    public boolean containsAll(Collection<?> objects) {
+        throw new UnsupportedOperationException("Bulk operations are not allowed");
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The elements are inserted all at once, or not at all if they do not fit in the queue.
+     *
+     * @throws IllegalStateException if the elements do not fit in the queue
+     */
+
+    @Override
+    public boolean addAll(Collection<? extends T> ts) {
+        if (ts == this) {
+            throw new IllegalArgumentException("Cannot add a queue to itself");
+        }
+        if (ts.isEmpty()) {
+            return false;
+        }
+        if (shuttingDown) {
+            throw new IllegalStateException("Queue is shut down");
+        }
+        if (offerAll(ts, true) == 0) {
+            throw new IllegalStateException("Queue full");
+        }
+        return true;
+
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * When the internal queue is not a {@link BulkBlockingQueue} the elements are offered one by one and the
+     * capacity check of allOrNothing is not atomic.
+     */
+    @Override
+    public int offerAll(Collection<? extends T> elements, boolean allOrNothing) {
+        long now = System.nanoTime();
+        long firstSeenTime = System.currentTimeMillis();
+        List<Envelope<T>> envelopes = new ArrayList<Envelope<T>>(elements.size());
+        for (T element : elements) {
+            envelopes.add(new Envelope<T>(element, now, 0, 0, firstSeenTime, null));
+        }
+        return insertAll(envelopes, allOrNothing);
+    }
+
+    /**
+     * Inserts new elements in the storage, in a single insertion if the storage is a {@link BulkBlockingQueue}.
+     *
+     * @return the number of elements inserted, the first ones of the list
+     */
+    private int insertAll(List<Envelope<T>> envelopes, boolean allOrNothing) {
+        if (!admit()) {
+            return 0;
+        }
+        try {
+            if (journal != null) {
+                List<T> elements = new ArrayList<T>(envelopes.size());
+                for (Envelope<T> envelope : envelopes) {
+                    elements.add(envelope.getElement());
+                }
+                long[] ids = journal.enqueue(elements, codec);
+                journal.sync();
+                for (int i = 0; i < ids.length; i++) {
+                    envelopes.get(i).setJournalId(ids[i]);
+                }
+            }
+            int inserted = 0;
+            if (internalQueue instanceof BulkBlockingQueue) {
+                inserted = ((BulkBlockingQueue<Envelope<T>>) internalQueue).offerAll(envelopes, allOrNothing);
+            } else if (!allOrNothing || internalQueue.remainingCapacity() >= envelopes.size()) {
+                for (Envelope<T> envelope : envelopes) {
+                    if (!internalQueue.offer(envelope)) {
+                        break;
+                    }
+                    inserted++;
+                }
+            }
+            metrics.enqueued(inserted);
+            if (journal != null) {
+                for (Envelope<T> envelope : envelopes.subList(inserted, envelopes.size())) {
+                    journal.acknowledged(envelope.getJournalId());
+                }
+            }
+            if (inserted > 0) {
+                elementsAvailable();
+            }
+            return inserted;
+        } finally {
+            exit();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws UnsupportedOperationException
+     */
+    @Override
+    public boolean removeAll(Collection<?> objects) {
+        throw new UnsupportedOperationException("Remove All Operation is not allowed");
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws UnsupportedOperationException
+     */
+    @Override
+    public boolean retainAll(Collection<?> objects) {
+        throw new UnsupportedOperationException("Retain All Operation is not allowed");
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws UnsupportedOperationException
+     */
+    @Override
+    public void clear() {
+        throw new UnsupportedOperationException("Clear Operation is not allowed");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size() {
+        return internalQueue.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isEmpty() {
+        return internalQueue.isEmpty();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean contains(Object o) {
+        if (o == null) {
+            return false;
+        }
+        for (Envelope<T> envelope : internalQueue) {
+            if (o.equals(envelope.getElement())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Iterator<T> iterator() {
+        final Iterator<Envelope<T>> envelopes = internalQueue.iterator();
+        return new Iterator<T>() {
+            @Override
+            public boolean hasNext() {
+                return envelopes.hasNext();
+            }
+
+            @Override
+            public T next() {
+                return envelopes.next().getElement();
+            }
+
+            @Override
+            public void remove() {
+                envelopes.remove();
+            }
+        };
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object[] toArray() {
+        Object[] elements = internalQueue.toArray();
+        for (int i = 0; i < elements.length; i++) {
+            elements[i] = ((Envelope<?>) elements[i]).getElement();
+        }
+        return elements;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T1> T1[] toArray(T1[] t1s) {
+        Object[] elements = toArray();
+        T1[] array = t1s.length >= elements.length ? t1s
+                : (T1[]) Array.newInstance(t1s.getClass().getComponentType(), elements.length);
+        System.arraycopy(elements, 0, array, 0, elements.length);
+        if (array.length > elements.length) {
+            array[elements.length] = null;
+        }
+        return array;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The drained elements are waiting for acknowledgement as a single unit, see
+     * {@link #takeBatch(int, long, TimeUnit)}.
+     */
+    @Override
+    public int drainTo(Collection<? super T> objects) {
+        return drainTo(objects, Integer.MAX_VALUE);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The drained elements are waiting for acknowledgement as a single unit, see
+     * {@link #takeBatch(int, long, TimeUnit)}. Nothing is drained once a shutdown started, the elements left are
+     * handed over by the shutdown.
+     */
+    @Override
+    public int drainTo(Collection<? super T> objects, int i) {
+        if (objects == this) {
+            throw new IllegalArgumentException("Cannot drain a queue to itself");
+        }
+        enter();
+        try {
+            if (shuttingDown) {
+                return 0;
+            }
+            List<Envelope<T>> envelopes = new ArrayList<Envelope<T>>();
+            int count = internalQueue.drainTo(envelopes, i);
+            if (count > 0) {
+                //read before the deliveries can be settled and their envelopes recycled
+                List<T> elements = new ArrayList<T>(count);
+                for (Envelope<T> envelope : envelopes) {
+                    elements.add(envelope.getElement());
+                }
+                waitForAck(envelopes);
+                objects.addAll(elements);
+            }
+            return count;
+        } finally {
+            exit();
+        }
+    }
+
+    /**
+     * Wraps an element inserted by a producer, a durable queue writes it to the journal before it is inserted.
+     */
+    private Envelope<T> envelope(T element) {
+        Envelope<T> envelope = Envelope.obtain(element, System.nanoTime());
+        if (journal != null) {
+            envelope.setJournalId(journal.enqueue(element, codec));
+            journal.sync();
+        }
+        return envelope;
+    }
 
+    /**
+     * Counts an element inserted by a producer, or removes it from the journal if it was not inserted.
+     *
+     * @param inserted whether the element was inserted
+     * @return inserted
+     */
+    private boolean enqueued(Envelope<T> envelope, boolean inserted) {
+        if (inserted) {
+            metrics.enqueued(1);
+            elementsAvailable();
+        } else if (journal != null) {
+            journal.acknowledged(envelope.getJournalId());
+        }
+        return inserted;
     }
 
-    private boolean checkForValidElement(T element) {
-        Integer count = countOfElements.get(element);
-        if (count == null) {
-            countOfElements.put(element, 1);
-            return true;
+    /**
+     * Stores an element to the waiting for ack aux queue under a new delivery tag.
+     *
+     * @param envelope the element who will be waiting for the ack.
+     * @return the delivery of the element
+     */
+    private ExpiryWrapper<T> waitForAck(Envelope<T> envelope) {
+        return waitForAck(envelope, timeout);
+    }
+
+    /**
+     * Stores an element to the waiting for ack aux queue under a new delivery tag, with its own lease.
+     *
+     * @param envelope    the element who will be waiting for the ack.
+     * @param leaseMillis the time the consumer has to acknowledge the element in milliseconds
+     * @return the delivery of the element
+     */
+    private ExpiryWrapper<T> waitForAck(Envelope<T> envelope, long leaseMillis) {
+        long now = System.nanoTime();
+        metrics.delivered(now - envelope.getEnqueueTime());
+        long tag = deliveryTags.incrementAndGet();
+        long deadline = clock.millis() + leaseMillis;
+        if (journal != null) {
+            journal.delivered(envelope.getJournalId());
         }
-        if (count >= requeueLimit) {
-            return false;
+        ExpiryWrapper<T> wrapper = closed ? null : inFlight.reuse(tag);
+        if (wrapper != null) {
+            //indexed before it can expire, as a new wrapper
+            wrapper.redeliver(tag, envelope, now);
+            inFlight.put(wrapper);
+            if (wrapper.reschedule(deadline, expiryScheduler)) {
+                return wrapper;
+            }
+            //still filed by the expiry engine at a later deadline, it is dropped once the engine discards it
+            inFlight.remove(tag);
+        }
+        wrapper = new ExpiryWrapper<T>(this, tag, envelope, now, deadline);
+        inFlight.put(wrapper);
+        if (!closed) {
+            expiryScheduler.schedule(wrapper);
+        }
+        return wrapper;
+
+    }
+
+    /**
+     * Stores a number of elements to the waiting for ack aux queue as a single unit with one deadline, each
+     * element under a new delivery tag.
+     *
+     * @param envelopes the elements who will be waiting for the ack.
+     * @return the deliveries of the elements
+     */
+    private List<ExpiryWrapper<T>> waitForAck(List<Envelope<T>> envelopes) {
+        long now = System.nanoTime();
+        long deadline = clock.millis() + timeout;
+        long tag = deliveryTags.getAndAdd(envelopes.size());
+        ExpiryBatch<T> batch = new ExpiryBatch<T>(this, deadline, envelopes.size());
+        for (Envelope<T> envelope : envelopes) {
+            metrics.delivered(now - envelope.getEnqueueTime());
+            if (journal != null) {
+                journal.delivered(envelope.getJournalId());
+            }
+            ExpiryWrapper<T> wrapper = new ExpiryWrapper<T>(this, ++tag, envelope, now, deadline, batch);
+            batch.wrappers.add(wrapper);
+            inFlight.put(wrapper);
+        }
+        if (!closed) {
+            expiryScheduler.schedule(batch);
+        }
+        return batch.wrappers;
+    }
+
+    /**
+     * Serves the asynchronous takes waiting for an element, if any, once an element may have become available.
+     */
+    private void elementsAvailable() {
+        if (!asyncTakes.isEmpty()) {
+            dispatchAsyncTakes();
         }
-        countOfElements.put(element, count + 1);
-        return true;
     }
 
     /**
-     * Delay implementation that wraps a Element of type <T> and gives it a expiry in
-     * milliseconds.
+     * Hands the elements of the storage to the asynchronous takes, oldest first, until either runs out. A take
+     * that found the storage empty is put back at the head before the storage is looked at again, so an element
+     * inserted meanwhile is not missed by both the producer and this loop.
+     * <p/>
+     * An element whose take was cancelled while it was being delivered is put back in the queue, without counting
+     * a re-queue.
+     */
+    private void dispatchAsyncTakes() {
+        enter();
+        try {
+            AsyncTake<T> take;
+            while (!shuttingDown && (take = asyncTakes.pollFirst()) != null) {
+                if (take.isDone()) {
+                    continue;
+                }
+                Envelope<T> envelope = internalQueue.poll();
+                if (envelope == null) {
+                    asyncTakes.addFirst(take);
+                    if (internalQueue.peek() == null) {
+                        return;
+                    }
+                    continue;
+                }
+                ExpiryWrapper<T> wrapper = waitForAck(envelope);
+                long tag = wrapper.getTag();
+                if (!take.complete(wrapper) && inFlight.remove(tag) != null) {
+                    wrapper.settled();
+                    requeue(envelope, 0);
+                }
+            }
+        } finally {
+            exit();
+        }
+    }
+
+    private void cancelAsyncTakes() {
+        AsyncTake<T> take;
+        while ((take = asyncTakes.poll()) != null) {
+            take.cancel();
+        }
+    }
+
+    /**
+     * Counts one more re-queue of the element.
+     *
+     * @return true if the element can still be re-queued, false if it went over the re-queue limit
+     */
+    private boolean checkForValidElement(Envelope<T> envelope) {
+        int previous = envelope.incrementRequeueCount();
+        return previous == 0 || previous < requeueLimit;
+    }
+
+    /**
+     * Expiry task that wraps a Element of type <T> and gives it a deadline in
+     * milliseconds. A wrapper is a single delivery of the element at a time, identified by its tag: once the
+     * consumer settled the delivery the wrapper stands for a later delivery, under a new tag.
      *
      * @param <T>
      */
-    private class ExpiryWrapper<T> implements Delayed {
+    private static class ExpiryWrapper<T> extends ExpiryTask implements InFlightIndex.Record<T> {
+
+        @SuppressWarnings("rawtypes")
+        private static final AtomicLongFieldUpdater<ExpiryWrapper> TAG =
+                AtomicLongFieldUpdater.newUpdater(ExpiryWrapper.class, "tag");
+
+        private final LinkedBlockingQueueWithAck<T> queue;
+        //the tag of the delivery the wrapper stands for, NO_TAG once claimed by whoever settles it
+        private volatile long tag;
+        //null once the consumer settled the delivery
+        private volatile Envelope<T> envelope;
+        //System.nanoTime() of the delivery
+        private long deliveryTime;
+        //the batch the element was delivered in, null if it was delivered on its own
+        private final ExpiryBatch<T> batch;
+
+        public ExpiryWrapper(final LinkedBlockingQueueWithAck<T> queue, final long tag, final Envelope<T> envelope,
+                             final long deliveryTime, final long deadline) {
+            this(queue, tag, envelope, deliveryTime, deadline, null);
+        }
 
-        private final T entity;
-        private final long ttl;
-        private final long initial;
+        public ExpiryWrapper(final LinkedBlockingQueueWithAck<T> queue, final long tag, final Envelope<T> envelope,
+                             final long deliveryTime, final long deadline, final ExpiryBatch<T> batch) {
+            super(deadline);
+            this.queue = queue;
+            this.tag = tag;
+            this.envelope = envelope;
+            this.deliveryTime = deliveryTime;
+            this.batch = batch;
+        }
 
-        public ExpiryWrapper(final T entity, final long ttl) {
-            this.entity = entity;
-            this.ttl = ttl;
-            this.initial = System.currentTimeMillis();
+        /**
+         * {inheritDoc}
+         */
+        @Override
+        public void expire() {
+            queue.expire(this);
         }
 
         /**
-         * Returns the wrapped element
+         * Pushes the deadline of this delivery, or of its batch, out.
+         * <p/>
+         * A wrapper reused for another delivery between the check of the tag and the extension gets a longer lease,
+         * a stale tag never settles it.
          *
-         * @return the wrpped element T
+         * @return false if the delivery already timed out or was acknowledged
          */
-        public T getEntity() {
-            return entity;
+        public boolean extendLease(long tag, long deadline) {
+            if (this.tag != tag) {
+                return false;
+            }
+            return batch == null ? extendDeadline(deadline) && this.tag == tag : batch.extendDeadline(deadline);
+        }
+
+        /**
+         * Stops tracking the expiry of this delivery once it was acknowledged.
+         *
+         * @return true if the wrapper can stand for another delivery, false if it belongs to a batch or already
+         *         expired
+         */
+        public boolean settled() {
+            if (batch == null) {
+                return cancel();
+            }
+            batch.settled();
+            return false;
         }
 
         /**
          * {inheritDoc}
          */
         @Override
-        public long getDelay(TimeUnit timeUnit) {
+        public boolean claim(long tag) {
+            return tag != InFlightIndex.NO_TAG && TAG.compareAndSet(this, tag, InFlightIndex.NO_TAG);
+        }
 
-            return timeUnit.convert(ttl - (System.currentTimeMillis() - initial), TimeUnit.MILLISECONDS);
+        /**
+         * Makes a wrapper that was settled by its consumer stand for a new delivery, the tag is published last.
+         */
+        void redeliver(long tag, Envelope<T> envelope, long deliveryTime) {
+            this.envelope = envelope;
+            this.deliveryTime = deliveryTime;
+            this.tag = tag;
+        }
 
+        /**
+         * Forgets the element of a settled delivery, so that a spare wrapper does not keep it alive.
+         */
+        void clear() {
+            envelope = null;
         }
 
         /**
          * {inheritDoc}
          */
         @Override
-        public int compareTo(Delayed delayed) {
-            long thisTimeLeft = this.getDelay(TimeUnit.MILLISECONDS);
-            long thatTimeLeft = delayed.getDelay(TimeUnit.MILLISECONDS);
-
-            return thisTimeLeft > thatTimeLeft ? +1 : thisTimeLeft < thatTimeLeft ? -1 : 0;
+        public long getTag() {
+            return tag;
         }
 
         /**
-         * /**
          * {inheritDoc}
-         * <p/>
-         * only takes into account the wrapped element
+         */
+        @Override
+        public T getElement() {
+            Envelope<T> envelope = this.envelope;
+            return envelope != null ? envelope.getElement() : null;
+        }
+
+        /**
+         * Returns the wrapped element
          *
-         * @param o the object to compare to
-         * @return true if parameter and entity are the same
+         * @return the wrpped element T
+         */
+        public T getEntity() {
+            return getElement();
+        }
+
+        public Envelope<T> getEnvelope() {
+            return envelope;
+        }
+
+        public long getDeliveryTime() {
+            return deliveryTime;
+        }
+
+        @Override
+        public String toString() {
+            return "ExpiryWrapper{" +
+                    "tag=" + tag +
+                    ", entity=" + getElement() +
+                    '}';
+        }
+    }
+
+    /**
+     * Expiry task of elements delivered as a single unit, it is cancelled once every element was acknowledged.
+     *
+     * @param <T>
+     */
+    private static class ExpiryBatch<T> extends ExpiryTask {
+
+        private final LinkedBlockingQueueWithAck<T> queue;
+        private final List<ExpiryWrapper<T>> wrappers;
+        private final AtomicInteger outstanding;
+
+        public ExpiryBatch(final LinkedBlockingQueueWithAck<T> queue, final long deadline, final int size) {
+            super(deadline);
+            this.queue = queue;
+            this.wrappers = new ArrayList<ExpiryWrapper<T>>(size);
+            this.outstanding = new AtomicInteger(size);
+        }
+
+        /**
+         * {inheritDoc}
          */
         @Override
-        @SuppressWarnings("unchecked")
-        public boolean equals(Object o) {
-            if (o instanceof ExpiryWrapper) {
-                ExpiryWrapper that = (ExpiryWrapper) o;
+        public void expire() {
+            for (ExpiryWrapper<T> wrapper : wrappers) {
+                queue.expire(wrapper);
+            }
+        }
+
+        /**
+         * Records the acknowledgement of one of the elements of the batch.
+         */
+        public void settled() {
+            if (outstanding.decrementAndGet() == 0) {
+                cancel();
+            }
+        }
+    }
 
-                return entity.equals(that.entity);
+    /**
+     * Re-queues an element whose acknowledgement timed out, or sends it to the dead letter queue.
+     */
+    private void expire(ExpiryWrapper<T> wrappedElement) {
+        enter();
+        try {
+            if (closed || inFlight.remove(wrappedElement.getTag()) == null) {
+                //already acknowledged
+                return;
             }
-            return false;
+            metrics.timedOut();
+            T element = wrappedElement.getEntity();
+            Envelope<T> envelope = wrappedElement.getEnvelope();
+            envelope.setLastFailure(DeadLetter.TIMED_OUT);
+            if (checkForValidElement(envelope)) {
+                logger.debug("re-queuing object {} due to timeout", element);
+                requeue(envelope, redeliveryPolicy.redeliveryDelay(envelope.getRequeueCount()));
+            } else {
+                addElementToDeadLetterQueue(envelope);
+            }
+        } finally {
+            exit();
+        }
+    }
+
+    /**
+     * Inserts an element that was waiting in the expiry scheduler, or tries again a little later if the queue is
+     * full. Elements that were not inserted when the queue is closed are dropped, a durable queue recovers them.
+     * <p/>
+     * The element is only forgotten once released, so that a shutdown waits for it.
+     */
+    private void release(DelayedElement<T> delayed) {
+        enter();
+        try {
+            insertDelayed(delayed);
+        } finally {
+            delayedElements.remove(delayed);
+            exit();
+        }
+    }
+
+    private void insertDelayed(DelayedElement<T> delayed) {
+        if (closed) {
+            return;
+        }
+        Envelope<T> envelope = delayed.envelope;
+        if (shuttingDown) {
+            handOver(envelope, !delayed.fromProducer);
+            return;
+        }
+        if (keyOrderedQueue != null && !delayed.fromProducer) {
+            reinsert(envelope);
+            return;
+        }
+        envelope.setEnqueueTime(System.nanoTime());
+        if (internalQueue.offer(envelope)) {
+            if (delayed.fromProducer) {
+                metrics.enqueued(1);
+            }
+            elementsAvailable();
+            return;
+        }
+        long retry = clock.millis() + FULL_QUEUE_RETRY_MILLIS;
+        if (!scheduleDelayed(new DelayedElement<T>(this, envelope, retry, delayed.fromProducer))) {
+            logger.warn("Dropping delayed element {}, the queue is full and the expiry scheduler is shut down",
+                    envelope.getElement());
+        }
+    }
+
+    /**
+     * Expiry task of an element waiting for its delay to elapse before it is inserted.
+     *
+     * @param <T>
+     */
+    private static class DelayedElement<T> extends ExpiryTask {
+
+        private final LinkedBlockingQueueWithAck<T> queue;
+        private final Envelope<T> envelope;
+        //true if inserted by a producer, false if re-queued
+        private final boolean fromProducer;
+
+        public DelayedElement(LinkedBlockingQueueWithAck<T> queue, Envelope<T> envelope, long deadline,
+                              boolean fromProducer) {
+            super(deadline);
+            this.queue = queue;
+            this.envelope = envelope;
+            this.fromProducer = fromProducer;
         }
 
         /**
          * {inheritDoc}
-         * <p/>
-         * only takes into account the wrapped entity
-         *
-         * @return the hashCode of the wrapped entity
          */
         @Override
-        public int hashCode() {
-            return entity.hashCode();
+        public void expire() {
+            queue.release(this);
         }
 
         @Override
         public String toString() {
-            return "ExpiryWrapper{" +
-                    "entity=" + entity +
+            return "DelayedElement{" +
+                    "entity=" + envelope.getElement() +
                     '}';
         }
     }
 
     /**
-     * Runnable implementation that blocks while waiting for expired objects in the
-     * internal queue and re-queues them.
+     * A take waiting for an element without blocking a thread.
+     *
+     * @param <T>
+     */
+    abstract static class AsyncTake<T> {
+
+        /**
+         * @return true once the take was completed or cancelled
+         */
+        abstract boolean isDone();
+
+        /**
+         * Hands a delivery to the take.
+         *
+         * @return false if the take no longer wants it, e.g. it was cancelled meanwhile
+         */
+        abstract boolean complete(Delivery<T> delivery);
+
+        /**
+         * Gives up the take, the queue was closed.
+         */
+        abstract void cancel();
+    }
+
+    /**
+     * Take completing a future.
+     *
+     * @param <T>
      */
-    private class ExpiryListenerRunner implements Runnable {
+    private static class FutureTake<T> extends AsyncTake<T> {
+
+        private final CompletableFuture<Delivery<T>> future = new CompletableFuture<Delivery<T>>();
 
         @Override
-        public void run() {
-            boolean run = true;
-            while (run) {
-                try {
-                    ExpiryWrapper<T> wrappedElement = waitingForAck.take();
-                    T element = wrappedElement.getEntity();
-                    if (checkForValidElement(element)) {
-                        logger.debug("re-queuing object {} due to timeout", element);
-                        internalQueue.add(element);
-                    } else {
-                        addElementToDeadLetterQueue(element);
-                    }
+        boolean isDone() {
+            return future.isDone();
+        }
 
+        @Override
+        boolean complete(Delivery<T> delivery) {
+            return future.complete(delivery);
+        }
 
-                } catch (InterruptedException e) {
-                    logger.error("Internal Listener interrupted", e);
-                }
+        @Override
+        void cancel() {
+            future.cancel(false);
+        }
+    }
+
+    /**
+     * Builder of LinkedBlockingQueueWithAck, by default the queue has a capacity of Integer.MAX_VALUE, re-queues
+     * elements Integer.MAX_VALUE times and stores the elements in a {@link LinkedBlockingBulkQueue}.
+     *
+     * @param <T> The type of element to be stored in the queue
+     */
+    public static class Builder<T> {
+
+        private final long timeout;
+        private int capacity = Integer.MAX_VALUE;
+        private int maximumRetries = Integer.MAX_VALUE;
+        private Queue<T> deadLetterQueue = new DeadLetterStore<T>();
+        private ExpiryEngine expiryEngine;
+        private ExpiryScheduler expiryScheduler;
+        private StorageFactory<T> storageFactory;
+        private File offHeapDirectory;
+        private Codec<T> offHeapCodec;
+        private SegmentedJournal journal;
+        private Codec<T> codec = new SerializableCodec<T>();
+        private int priorityLevels;
+        private Prioritizer<? super T> prioritizer;
+        private RedeliveryPolicy redeliveryPolicy = new FixedRedeliveryPolicy(0, TimeUnit.MILLISECONDS);
+        private StripedQueueMetrics metrics;
+        private KeyExtractor<? super T> keyExtractor;
+        private ThreadFactory expiryThreadFactory;
+        private ExpiryClock expiryClock = ExpiryClock.MONOTONIC;
+
+        /**
+         * @param timeout the timeout before elements are re-queued in milliseconds
+         */
+        public Builder(long timeout) {
+            this.timeout = timeout;
+        }
+
+        /**
+         * @param capacity the maximum capacity of the queue, ignored when a storage factory is given
+         */
+        public Builder<T> capacity(int capacity) {
+            this.capacity = capacity;
+            return this;
+        }
+
+        /**
+         * @param maximumRetries the maximum number of times a element can be requeued before giving up
+         */
+        public Builder<T> maximumRetries(int maximumRetries) {
+            this.maximumRetries = maximumRetries;
+            return this;
+        }
+
+        /**
+         * Sets the queue the poisoned elements go to, an unbounded {@link DeadLetterStore} by default. Only a
+         * {@link DeadLetterStore} keeps the history of the poisoned elements and can replay them, other queues
+         * are offered the elements and drop them when full.
+         *
+         * @param deadLetterQueue queue to push the poisoned elements to
+         */
+        public Builder<T> deadLetterQueue(Queue<T> deadLetterQueue) {
+            this.deadLetterQueue = deadLetterQueue;
+            return this;
+        }
+
+        /**
+         * @param expiryEngine the engine tracking the elements waiting for acknowledgement, ignored when an expiry
+         *                     scheduler is given
+         */
+        public Builder<T> expiryEngine(ExpiryEngine expiryEngine) {
+            this.expiryEngine = expiryEngine;
+            return this;
+        }
+
+        /**
+         * Sets a scheduler, usually shared with other queues, that tracks the elements waiting for acknowledgement
+         * instead of a thread of this queue. The scheduler is not shut down when the queue is closed.
+         *
+         * @param expiryScheduler the scheduler tracking the elements waiting for acknowledgement
+         */
+        public Builder<T> expiryScheduler(ExpiryScheduler expiryScheduler) {
+            this.expiryScheduler = expiryScheduler;
+            return this;
+        }
+
+        /**
+         * Sets the factory of the queue the elements are stored in while they wait to be taken, e.g.
+         * {@link MpmcArrayBlockingQueue#factory(int)} so that bounded queues do not allocate a node per element.
+         * The storage is closed with the queue if it is Closeable. Replaces an off-heap storage.
+         * <p/>
+         * Every insertion still allocates the holder the queue stores for the element, so no storage makes the
+         * insertion of a new element allocation free.
+         *
+         * @param storageFactory the factory of the storage, its capacity is the capacity of the queue
+         */
+        public Builder<T> storage(StorageFactory<T> storageFactory) {
+            this.storageFactory = storageFactory;
+            this.offHeapDirectory = null;
+            return this;
+        }
+
+        /**
+         * Keeps the elements waiting to be taken off the heap, in a {@link MappedFileBlockingQueue} holding at most
+         * the capacity of the queue, to hold a large backlog of elements. Replaces a storage factory.
+         *
+         * @param directory the directory of the segment files
+         * @param codec     the codec of the elements, the codec of the journal is separate
+         */
+        public Builder<T> offHeapStorage(File directory, Codec<T> codec) {
+            this.offHeapDirectory = directory;
+            this.offHeapCodec = codec;
+            this.storageFactory = null;
+            return this;
+        }
+
+        /**
+         * Sets how long elements that are negatively acknowledged, or whose acknowledgement times out, wait
+         * before they are delivered again, e.g. an
+         * {@link org.gmelo.collection.impl.redelivery.ExponentialBackoffRedeliveryPolicy}. Elements are put back
+         * in the queue right away otherwise. Delays are tracked by the expiry engine, they are rounded up to its
+         * tick.
+         *
+         * @param redeliveryPolicy the policy giving the delay before each redelivery
+         */
+        public Builder<T> redeliveryPolicy(RedeliveryPolicy redeliveryPolicy) {
+            this.redeliveryPolicy = redeliveryPolicy;
+            return this;
+        }
+
+        /**
+         * Delivers the elements of the same key one at a time and in order: the next element of a key is only
+         * delivered once the previous one is acknowledged or poisoned, and re-queued elements are delivered again
+         * before the later elements of their key. The queue is backed by a {@link KeyOrderedBlockingQueue}.
+         * Ignored when a storage factory or an off-heap storage is given, priorities are ignored when set.
+         *
+         * @param keyExtractor the key extractor of the elements
+         */
+        public Builder<T> orderedByKey(KeyExtractor<? super T> keyExtractor) {
+            this.keyExtractor = keyExtractor;
+            return this;
+        }
+
+        /**
+         * Orders the elements by priority rather than FIFO, the elements of the same priority staying FIFO. The
+         * capacity of the queue is shared by every priority. Ignored when a storage factory or an off-heap storage is
+         * given.
+         *
+         * @param levels      the number of priority levels
+         * @param prioritizer the prioritizer of the elements
+         */
+        public Builder<T> priorities(int levels, Prioritizer<? super T> prioritizer) {
+            this.priorityLevels = levels;
+            this.prioritizer = prioritizer;
+            return this;
+        }
+
+        /**
+         * Makes the queue durable, every element is written to the journal and the elements the journal holds
+         * are put back in the queue when it is built. The journal is closed with the queue.
+         *
+         * @param journal the journal of the queue, must not be used by anything else
+         */
+        public Builder<T> journal(SegmentedJournal journal) {
+            this.journal = journal;
+            return this;
+        }
+
+        /**
+         * Sets the codec writing the elements to the journal, e.g. a
+         * {@link org.gmelo.collection.impl.codec.StringCodec} for String elements. Java serialization is used
+         * otherwise. An off-heap storage is given its own codec.
+         *
+         * @param codec the codec of the elements
+         */
+        public Builder<T> codec(Codec<T> codec) {
+            this.codec = codec;
+            return this;
+        }
+
+        /**
+         * Creates the expiry thread of the queue with the given factory, e.g. a factory of virtual threads on
+         * Java 21. Ignored if an expiry scheduler is given.
+         */
+        public Builder<T> expiryThreadFactory(ThreadFactory expiryThreadFactory) {
+            this.expiryThreadFactory = expiryThreadFactory;
+            return this;
+        }
 
+        /**
+         * Reads the deadlines of the elements waiting for acknowledgement on the given clock, a monotonic clock by
+         * default. Ignored if an expiry engine or scheduler is given, the queue then uses their clock.
+         */
+        public Builder<T> expiryClock(ExpiryClock expiryClock) {
+            if (expiryClock == null) {
+                throw new NullPointerException("expiryClock");
             }
+            this.expiryClock = expiryClock;
+            return this;
         }
-    }
-}
 
+        /**
+         * Records the metrics of the queue in metrics shared with other queues, e.g. the shards of a
+         * {@link ShardedBlockingQueueWithAck}.
+         */
+        Builder<T> metrics(StripedQueueMetrics metrics) {
+            this.metrics = metrics;
+            return this;
+        }
 
+        public LinkedBlockingQueueWithAck<T> build() {
+            return new LinkedBlockingQueueWithAck<T>(this);
+        }
+    }
+}
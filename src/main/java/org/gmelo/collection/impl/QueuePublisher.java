@@ -0,0 +1,274 @@
+package org.gmelo.collection.impl;
+
+import org.gmelo.collection.BlockingQueueWithAck;
+import org.gmelo.collection.Delivery;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * A {@link Flow.Publisher} of the deliveries of a {@link BlockingQueueWithAck}, to consume the queue from a
+ * reactive pipeline. Every subscriber competes for the elements of the queue like any other consumer.
+ * <p/>
+ * Elements are only taken from the queue once the subscriber requested them, with
+ * {@link BlockingQueueWithAck#takeDeliveryAsync()}, so a slow subscriber leaves the elements in the queue and
+ * producers are held back by the capacity of the queue. No more than maximumOutstanding takes wait for elements
+ * at once, however large the demand.
+ * <p/>
+ * With auto acknowledgement a delivery is acknowledged once onNext returns, and negatively acknowledged if onNext
+ * throws, which also cancels the subscription; the delivery is only valid until onNext returns then. Otherwise
+ * the subscriber acknowledges the deliveries by tag, they time out like any other delivery. Elements taken once
+ * the subscription is cancelled are negatively acknowledged. The subscriber completes once the queue is closed.
+ * <p/>
+ * The subscriber is signalled on the executor, one signal at a time.
+ * <p/>
+ * Needs Java 9 or later.
+ *
+ * @param <T> The type of element published
+ *
+ * User: GMelo
+ */
+public class QueuePublisher<T> implements Flow.Publisher<Delivery<T>> {
+
+    private final Logger logger = LoggerFactory.getLogger(QueuePublisher.class);
+
+    private final BlockingQueueWithAck<T> queue;
+    //true to acknowledge the deliveries once onNext returns
+    private final boolean autoAcknowledge;
+    //runs the signals to the subscribers
+    private final Executor executor;
+    //the maximum number of takes waiting for elements for a subscriber
+    private final int maximumOutstanding;
+
+    /**
+     * Creates a publisher signalling the subscribers on the common fork join pool, with up to
+     * {@link Flow#defaultBufferSize()} takes waiting for elements per subscriber.
+     *
+     * @param queue           the queue to take the elements from
+     * @param autoAcknowledge true to acknowledge the deliveries once onNext returns
+     */
+    public QueuePublisher(BlockingQueueWithAck<T> queue, boolean autoAcknowledge) {
+        this(queue, autoAcknowledge, ForkJoinPool.commonPool(), Flow.defaultBufferSize());
+    }
+
+    /**
+     * @param queue              the queue to take the elements from
+     * @param autoAcknowledge    true to acknowledge the deliveries once onNext returns
+     * @param executor           the executor signalling the subscribers
+     * @param maximumOutstanding the maximum number of takes waiting for elements per subscriber
+     */
+    public QueuePublisher(BlockingQueueWithAck<T> queue, boolean autoAcknowledge, Executor executor,
+                          int maximumOutstanding) {
+        if (queue == null || executor == null) {
+            throw new NullPointerException();
+        }
+        if (maximumOutstanding <= 0) {
+            throw new IllegalArgumentException("maximumOutstanding must be positive: " + maximumOutstanding);
+        }
+        this.queue = queue;
+        this.autoAcknowledge = autoAcknowledge;
+        this.executor = executor;
+        this.maximumOutstanding = maximumOutstanding;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void subscribe(Flow.Subscriber<? super Delivery<T>> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException();
+        }
+        subscriber.onSubscribe(new QueueSubscription(subscriber));
+    }
+
+    /**
+     * Subscription of a subscriber. Requests, cancellation and taken elements are recorded by any thread and
+     * acted upon by a single drain loop on the executor, which signals the subscriber and takes more elements.
+     */
+    private class QueueSubscription implements Flow.Subscription, Runnable {
+
+        private final Flow.Subscriber<? super Delivery<T>> subscriber;
+        //demand not yet turned into takes, Long.MAX_VALUE if unbounded
+        private final AtomicLong requested = new AtomicLong();
+        //deliveries taken and not yet signalled
+        private final Queue<Delivery<T>> ready = new ConcurrentLinkedQueue<Delivery<T>>();
+        //takes waiting for elements
+        private final Set<CompletableFuture<Delivery<T>>> takes =
+                Collections.newSetFromMap(new ConcurrentHashMap<CompletableFuture<Delivery<T>>, Boolean>());
+        //number of times the drain loop was asked to run
+        private final AtomicInteger work = new AtomicInteger();
+        private volatile boolean cancelled;
+        //true once the queue was closed
+        private volatile boolean completed;
+        //request that broke the rules of the specification, null if none
+        private volatile IllegalArgumentException invalidRequest;
+        //takes issued and not yet signalled, only used by the drain loop
+        private int outstanding;
+        //true once the subscriber was sent onComplete or onError, only used by the drain loop
+        private boolean terminated;
+
+        QueueSubscription(Flow.Subscriber<? super Delivery<T>> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                invalidRequest = new IllegalArgumentException("non-positive subscription request: " + n);
+            } else {
+                long current;
+                long next;
+                do {
+                    current = requested.get();
+                    next = current + n < 0 ? Long.MAX_VALUE : current + n;
+                } while (!requested.compareAndSet(current, next));
+            }
+            schedule();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void cancel() {
+            cancelled = true;
+            schedule();
+        }
+
+        /**
+         * The drain loop.
+         */
+        @Override
+        public void run() {
+            int missed = 1;
+            while (true) {
+                if (cancelled || terminated) {
+                    stop();
+                } else if (invalidRequest != null) {
+                    cancelled = true;
+                    terminated = true;
+                    stop();
+                    subscriber.onError(invalidRequest);
+                } else {
+                    signal();
+                }
+                missed = work.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Signals the deliveries taken, then takes as many elements as the demand allows.
+         */
+        private void signal() {
+            Delivery<T> delivery;
+            while (!cancelled && (delivery = ready.poll()) != null) {
+                outstanding--;
+                onNext(delivery);
+            }
+            if (cancelled) {
+                stop();
+                return;
+            }
+            if (completed) {
+                terminated = true;
+                subscriber.onComplete();
+                return;
+            }
+            while (outstanding < maximumOutstanding && takeDemand()) {
+                outstanding++;
+                take();
+            }
+        }
+
+        private void onNext(Delivery<T> delivery) {
+            try {
+                subscriber.onNext(delivery);
+            } catch (RuntimeException e) {
+                logger.error("Subscriber failed on element " + delivery.getElement() + ", cancelling the subscription", e);
+                cancelled = true;
+                //the element must not go back to a take of this subscription
+                stop();
+                if (autoAcknowledge) {
+                    queue.negativelyAcknowledge(delivery.getTag(), e.toString());
+                }
+                return;
+            }
+            if (autoAcknowledge) {
+                queue.acknowledge(delivery.getTag(), BlockingQueueWithAck.Acknowledgement.ACK);
+            }
+        }
+
+        /**
+         * Uses one element of the demand.
+         *
+         * @return false if there is no demand
+         */
+        private boolean takeDemand() {
+            while (true) {
+                long current = requested.get();
+                if (current == 0) {
+                    return false;
+                }
+                if (current == Long.MAX_VALUE || requested.compareAndSet(current, current - 1)) {
+                    return true;
+                }
+            }
+        }
+
+        private void take() {
+            final CompletableFuture<Delivery<T>> take = queue.takeDeliveryAsync();
+            takes.add(take);
+            take.whenComplete(new BiConsumer<Delivery<T>, Throwable>() {
+                @Override
+                public void accept(Delivery<T> delivery, Throwable failure) {
+                    takes.remove(take);
+                    if (delivery != null) {
+                        ready.add(delivery);
+                    } else if (!cancelled) {
+                        //the queue was closed
+                        completed = true;
+                    }
+                    schedule();
+                }
+            });
+        }
+
+        /**
+         * Gives up the takes still waiting and hands back the elements that will never be signalled.
+         */
+        private void stop() {
+            for (CompletableFuture<Delivery<T>> take : takes) {
+                take.cancel(false);
+            }
+            Delivery<T> delivery;
+            while ((delivery = ready.poll()) != null) {
+                queue.acknowledge(delivery.getTag(), BlockingQueueWithAck.Acknowledgement.NACK);
+            }
+        }
+
+        private void schedule() {
+            if (work.getAndIncrement() == 0) {
+                executor.execute(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,1096 @@
+package org.gmelo.collection.impl;
+
+import org.gmelo.collection.BlockingQueueWithAck;
+import org.gmelo.collection.DeadLetter;
+import org.gmelo.collection.Delivery;
+import org.gmelo.collection.DeliveryHandler;
+import org.gmelo.collection.KeyExtractor;
+import org.gmelo.collection.Prioritizer;
+import org.gmelo.collection.QueueMetrics;
+import org.gmelo.collection.RedeliveryPolicy;
+import org.gmelo.collection.Subscription;
+import org.gmelo.collection.impl.expiry.ExpiryClock;
+import org.gmelo.collection.impl.expiry.ExpiryScheduler;
+import org.gmelo.collection.impl.expiry.HashedWheelExpiryEngine;
+import org.gmelo.collection.impl.metrics.StripedQueueMetrics;
+import org.gmelo.collection.impl.redelivery.FixedRedeliveryPolicy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Array;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+
+/**
+ * A queue with acknowledgements striped across a number of {@link LinkedBlockingQueueWithAck} shards, so that
+ * producers and consumers on many cores do not all contend on the same locks.
+ * <p/>
+ * Every thread is given a home shard the first time it uses the queue, round robin. Producers insert in their
+ * home shard, or in the shard of the key of the element when the queue is built with a {@link KeyExtractor}.
+ * Consumers take from their home shard and steal from the other shards when it is empty. A consumer blocked on
+ * an empty queue waits on its home shard and looks at the other shards again every few milliseconds, an element
+ * inserted in a shard none of whose consumers is waiting can take that long to be delivered.
+ * <p/>
+ * Elements are FIFO within a shard only. size(), {@link #numberOfElementsWaitingForAck()} and the
+ * {@link #metrics()} add up the shards, and the shards share the same dead letter queue. The shards share a
+ * single expiry thread, scheduling a timeout does not take any lock.
+ * <p/>
+ * Delivery tags are unique for the lifetime of the queue and carry the shard of the delivery, they are not
+ * monotonic across the queue: they only increase among the deliveries of the same shard.
+ *
+ * @param <T> The type of element to be stored in the queue
+ *
+ * User: GMelo
+ */
+public class ShardedBlockingQueueWithAck<T> implements BlockingQueueWithAck<T> {
+
+    //Number of ticks of the default expiry engine in one timeout
+    private static final int TICKS_PER_TIMEOUT = 64;
+    //Time a blocked consumer waits on its home shard before it looks at the other shards again
+    private static final long STEAL_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+
+    private final Logger logger = LoggerFactory.getLogger(ShardedBlockingQueueWithAck.class);
+
+    private final LinkedBlockingQueueWithAck<T>[] shards;
+    // Timeout before re-queueing objects
+    private final long timeout;
+    //routes the elements to the shard of their key, null to use the home shard of the producer
+    private final KeyExtractor<? super T> keyExtractor;
+    //expiry thread shared by the shards
+    private final ExpiryScheduler expiryScheduler;
+    //metrics shared by the shards
+    private final StripedQueueMetrics metrics = new StripedQueueMetrics();
+    //dead letter queue shared by the shards
+    private final Queue<T> deadLetterQueue;
+    //source of the home shards
+    private final AtomicInteger nextHome = new AtomicInteger();
+    private final ThreadLocal<Integer> home = new ThreadLocal<Integer>() {
+        @Override
+        protected Integer initialValue() {
+            return (nextHome.getAndIncrement() & Integer.MAX_VALUE) % shards.length;
+        }
+    };
+
+    @SuppressWarnings("unchecked")
+    private ShardedBlockingQueueWithAck(Builder<T> builder) {
+        if (builder.shards <= 0) {
+            throw new IllegalArgumentException("The number of shards must be positive: " + builder.shards);
+        }
+        timeout = builder.timeout;
+        keyExtractor = builder.keyExtractor;
+        deadLetterQueue = builder.deadLetterQueue;
+        expiryScheduler = new ExpiryScheduler(
+                new HashedWheelExpiryEngine(Math.max(1, builder.timeout / TICKS_PER_TIMEOUT), builder.expiryClock),
+                "ShardedBlockingQueue timeout-listener");
+        shards = (LinkedBlockingQueueWithAck<T>[]) new LinkedBlockingQueueWithAck[builder.shards];
+        for (int i = 0; i < shards.length; i++) {
+            LinkedBlockingQueueWithAck.Builder<T> shard = new LinkedBlockingQueueWithAck.Builder<T>(builder.timeout)
+                    .capacity(builder.capacity)
+                    .maximumRetries(builder.maximumRetries)
+                    .deadLetterQueue(deadLetterQueue)
+                    .expiryScheduler(expiryScheduler)
+                    .redeliveryPolicy(builder.redeliveryPolicy)
+                    .metrics(metrics);
+            if (builder.prioritizer != null) {
+                shard.priorities(builder.priorityLevels, builder.prioritizer);
+            }
+            if (builder.orderedByKey) {
+                shard.orderedByKey(keyExtractor);
+            }
+            shards[i] = shard.build();
+        }
+    }
+
+    /**
+     * Returns the number of shards of the queue.
+     *
+     * @return the number of shards
+     */
+    public int numberOfShards() {
+        return shards.length;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Without a {@link KeyExtractor} the element is searched in every shard, prefer
+     * {@link #acknowledge(long, Acknowledgement)} when the delivery tag is available.
+     */
+    @Override
+    public void acknowledge(T element, Acknowledgement acknowledgement) {
+        if (keyExtractor != null) {
+            shards[shardOf(element)].acknowledge(element, acknowledgement);
+            return;
+        }
+        for (LinkedBlockingQueueWithAck<T> shard : shards) {
+            if (shard.acknowledgeIfWaiting(element, acknowledgement)) {
+                return;
+            }
+        }
+        logger.warn("Attempting to acknowledge element {} that was already re-queued, timeout should be increased. ", element);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void acknowledge(long deliveryTag, Acknowledgement acknowledgement) {
+        shards[shardOfTag(deliveryTag)].acknowledge(tagInShard(deliveryTag), acknowledgement);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void negativelyAcknowledge(long deliveryTag, long redeliveryDelay, TimeUnit unit) {
+        shards[shardOfTag(deliveryTag)].negativelyAcknowledge(tagInShard(deliveryTag), redeliveryDelay, unit);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void negativelyAcknowledge(long deliveryTag, String reason) {
+        shards[shardOfTag(deliveryTag)].negativelyAcknowledge(tagInShard(deliveryTag), reason);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void acknowledgeBatch(Collection<? extends Delivery<T>> deliveries, Acknowledgement acknowledgement) {
+        for (Delivery<T> delivery : deliveries) {
+            acknowledge(delivery.getTag(), acknowledgement);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Delivery<T> takeDelivery() throws InterruptedException {
+        return takeDeliveryWithLease(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Delivery<T> takeDeliveryWithLease(long lease, TimeUnit unit) throws InterruptedException {
+        Delivery<T> delivery = null;
+        while (delivery == null) {
+            delivery = pollDelivery(Long.MAX_VALUE, unit.toMillis(lease));
+        }
+        return delivery;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Delivery<T> pollDelivery(long timeout, TimeUnit unit) throws InterruptedException {
+        return pollDelivery(unit.toNanos(timeout), this.timeout);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean extendLease(long deliveryTag, long duration, TimeUnit unit) {
+        return shards[shardOfTag(deliveryTag)].extendLease(tagInShard(deliveryTag), duration, unit);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean extendLease(T element, long duration, TimeUnit unit) {
+        if (keyExtractor != null) {
+            return shards[shardOf(element)].extendLease(element, duration, unit);
+        }
+        for (LinkedBlockingQueueWithAck<T> shard : shards) {
+            if (shard.extendLease(element, duration, unit)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<T> takeAsync() {
+        return LinkedBlockingQueueWithAck.elementOf(takeDeliveryAsync());
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Takes an element from any shard right away if one is available, otherwise the take waits in every shard,
+     * the first shard to get an element completes it.
+     */
+    @Override
+    public CompletableFuture<Delivery<T>> takeDeliveryAsync() {
+        final CompletableFuture<Delivery<T>> future = new CompletableFuture<Delivery<T>>();
+        Delivery<T> delivery;
+        try {
+            delivery = pollDelivery(0, timeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.completeExceptionally(e);
+            return future;
+        }
+        if (delivery != null) {
+            future.complete(delivery);
+            return future;
+        }
+        final List<ShardTake<T>> takes = new ArrayList<ShardTake<T>>(shards.length);
+        int home = home();
+        for (int i = 0; i < shards.length; i++) {
+            takes.add(new ShardTake<T>(future, (home + i) % shards.length, shards.length));
+        }
+        future.whenComplete(new BiConsumer<Delivery<T>, Throwable>() {
+            @Override
+            public void accept(Delivery<T> delivery, Throwable failure) {
+                for (ShardTake<T> take : takes) {
+                    shards[take.shard].cancelTakeAsync(take);
+                }
+            }
+        });
+        for (ShardTake<T> take : takes) {
+            if (future.isDone()) {
+                break;
+            }
+            shards[take.shard].takeAsync(take);
+        }
+        return future;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Subscription subscribe(DeliveryHandler<T> handler, int concurrency) {
+        return subscribe(handler, concurrency, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Subscription subscribe(DeliveryHandler<T> handler, int concurrency, Executor executor) {
+        return new HandlerSubscription<T>(this, handler, executor).start(concurrency);
+    }
+
+    /**
+     * Takes an element from the home shard, or from another shard if it is empty, waiting up to the timeout.
+     *
+     * @param timeoutNanos the time to wait for an element in nanoseconds
+     * @param leaseMillis  the time the consumer has to acknowledge the delivery in milliseconds
+     */
+    private Delivery<T> pollDelivery(long timeoutNanos, long leaseMillis) throws InterruptedException {
+        long remaining = timeoutNanos;
+        long deadline = System.nanoTime() + remaining;
+        int home = home();
+        while (true) {
+            for (int i = 0; i < shards.length; i++) {
+                int index = (home + i) % shards.length;
+                if (!shards[index].isEmpty()) {
+                    Delivery<T> delivery = shards[index].pollDelivery(0, TimeUnit.NANOSECONDS, leaseMillis);
+                    if (delivery != null) {
+                        return new ShardDelivery<T>(delivery, index, shards.length);
+                    }
+                }
+            }
+            if (remaining <= 0) {
+                return null;
+            }
+            Delivery<T> delivery = shards[home].pollDelivery(Math.min(remaining, STEAL_INTERVAL_NANOS),
+                    TimeUnit.NANOSECONDS, leaseMillis);
+            if (delivery != null) {
+                return new ShardDelivery<T>(delivery, home, shards.length);
+            }
+            remaining = deadline - System.nanoTime();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The batch is taken from a single shard, the home shard of the consumer unless it is empty.
+     */
+    @Override
+    public List<Delivery<T>> takeBatch(int maxElements, long timeout, TimeUnit unit) throws InterruptedException {
+        if (maxElements <= 0) {
+            return Collections.emptyList();
+        }
+        long remaining = unit.toNanos(timeout);
+        long deadline = System.nanoTime() + remaining;
+        int home = home();
+        while (true) {
+            for (int i = 0; i < shards.length; i++) {
+                int index = (home + i) % shards.length;
+                if (!shards[index].isEmpty()) {
+                    List<Delivery<T>> batch = shards[index].takeBatch(maxElements, 0, TimeUnit.NANOSECONDS);
+                    if (!batch.isEmpty()) {
+                        return wrap(batch, index);
+                    }
+                }
+            }
+            if (remaining <= 0) {
+                return Collections.emptyList();
+            }
+            List<Delivery<T>> batch = shards[home].takeBatch(maxElements, Math.min(remaining, STEAL_INTERVAL_NANOS),
+                    TimeUnit.NANOSECONDS);
+            if (!batch.isEmpty()) {
+                return wrap(batch, home);
+            }
+            remaining = deadline - System.nanoTime();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Given a {@link KeyExtractor} the elements can go to several shards, the capacity check of allOrNothing is
+     * then not atomic.
+     */
+    @Override
+    public int offerAll(Collection<? extends T> elements, boolean allOrNothing) {
+        if (keyExtractor == null) {
+            return shards[home()].offerAll(elements, allOrNothing);
+        }
+        List<List<T>> byShard = new ArrayList<List<T>>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            byShard.add(new ArrayList<T>());
+        }
+        for (T element : elements) {
+            byShard.get(shardOf(element)).add(element);
+        }
+        if (allOrNothing) {
+            for (int i = 0; i < shards.length; i++) {
+                if (shards[i].remainingCapacity() < byShard.get(i).size()) {
+                    return 0;
+                }
+            }
+        }
+        int inserted = 0;
+        for (int i = 0; i < shards.length; i++) {
+            if (!byShard.get(i).isEmpty()) {
+                inserted += shards[i].offerAll(byShard.get(i), allOrNothing);
+            }
+        }
+        return inserted;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean offerDelayed(T element, long delay, TimeUnit unit) {
+        return producerShard(element).offerDelayed(element, delay, unit);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The shards share the same dead letter queue.
+     */
+    @Override
+    public Queue<T> poisonedElements() {
+        return deadLetterQueue;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws UnsupportedOperationException if the dead letter queue is not a {@link DeadLetterStore}
+     */
+    @Override
+    public List<DeadLetter<T>> deadLetters() {
+        return deadLetterStore().deadLetters();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The elements go to the home shard of the calling thread, or to the shard of their key, with a single
+     * insertion per shard.
+     *
+     * @throws UnsupportedOperationException if the dead letter queue is not a {@link DeadLetterStore}
+     */
+    @Override
+    public int replayPoisoned(Predicate<? super DeadLetter<T>> filter) {
+        DeadLetterStore<T> store = deadLetterStore();
+        List<DeadLetter<T>> letters = store.removeMatching(filter);
+        if (letters.isEmpty()) {
+            return 0;
+        }
+        int replayed = 0;
+        List<DeadLetter<T>> remaining = new ArrayList<DeadLetter<T>>();
+        if (keyExtractor == null) {
+            replayed = shards[home()].replay(letters);
+            remaining.addAll(letters.subList(replayed, letters.size()));
+        } else {
+            List<List<DeadLetter<T>>> byShard = new ArrayList<List<DeadLetter<T>>>(shards.length);
+            for (int i = 0; i < shards.length; i++) {
+                byShard.add(new ArrayList<DeadLetter<T>>());
+            }
+            for (DeadLetter<T> letter : letters) {
+                byShard.get(shardOf(letter.getElement())).add(letter);
+            }
+            for (int i = 0; i < shards.length; i++) {
+                List<DeadLetter<T>> shardLetters = byShard.get(i);
+                if (!shardLetters.isEmpty()) {
+                    int inserted = shards[i].replay(shardLetters);
+                    replayed += inserted;
+                    remaining.addAll(shardLetters.subList(inserted, shardLetters.size()));
+                }
+            }
+        }
+        if (!remaining.isEmpty()) {
+            store.restore(remaining);
+        }
+        return replayed;
+    }
+
+    private DeadLetterStore<T> deadLetterStore() {
+        if (!(deadLetterQueue instanceof DeadLetterStore)) {
+            throw new UnsupportedOperationException("The dead letter queue does not keep the history of the poisoned elements");
+        }
+        return (DeadLetterStore<T>) deadLetterQueue;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int numberOfElementsWaitingForAck() {
+        int waiting = 0;
+        for (LinkedBlockingQueueWithAck<T> shard : shards) {
+            waiting += shard.numberOfElementsWaitingForAck();
+        }
+        return waiting;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public QueueMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Closes every shard and stops the expiry thread shared by the shards.
+     */
+    @Override
+    public void close() {
+        for (LinkedBlockingQueueWithAck<T> shard : shards) {
+            shard.close();
+        }
+        expiryScheduler.shutdown();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Every shard stops at once and the shards share the timeout. The elements are returned shard by shard, the
+     * expiry thread shared by the shards is stopped.
+     */
+    @Override
+    public List<T> shutdown(long timeout, TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (LinkedBlockingQueueWithAck<T> shard : shards) {
+            shard.beginShutdown();
+        }
+        boolean interrupted = false;
+        for (LinkedBlockingQueueWithAck<T> shard : shards) {
+            if (!shard.awaitAcknowledgements(deadline)) {
+                interrupted = true;
+                break;
+            }
+        }
+        List<T> remaining = new ArrayList<T>();
+        for (LinkedBlockingQueueWithAck<T> shard : shards) {
+            remaining.addAll(shard.completeShutdown());
+        }
+        expiryScheduler.shutdown();
+        if (!interrupted) {
+            try {
+                expiryScheduler.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return remaining;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean add(T t) {
+        return producerShard(t).add(t);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean offer(T t) {
+        return producerShard(t).offer(t);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void put(T t) throws InterruptedException {
+        producerShard(t).put(t);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean offer(T t, long l, TimeUnit timeUnit) throws InterruptedException {
+        return producerShard(t).offer(t, l, timeUnit);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws UnsupportedOperationException
+     */
+    @Override
+    public T remove() {
+        throw new UnsupportedOperationException("Remove operation is not Supported");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public T poll() {
+        try {
+            Delivery<T> delivery = pollDelivery(0, TimeUnit.NANOSECONDS);
+            return delivery != null ? delivery.getElement() : null;
+        } catch (InterruptedException e) {
+            //polling without a timeout does not wait
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public T element() {
+        T element = peek();
+        if (element == null) {
+            throw new NoSuchElementException();
+        }
+        return element;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public T peek() {
+        int home = home();
+        for (int i = 0; i < shards.length; i++) {
+            T element = shards[(home + i) % shards.length].peek();
+            if (element != null) {
+                return element;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public T take() throws InterruptedException {
+        return takeDelivery().getElement();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public T poll(long l, TimeUnit timeUnit) throws InterruptedException {
+        Delivery<T> delivery = pollDelivery(l, timeUnit);
+        return delivery != null ? delivery.getElement() : null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int remainingCapacity() {
+        long remaining = 0;
+        for (LinkedBlockingQueueWithAck<T> shard : shards) {
+            remaining += shard.remainingCapacity();
+        }
+        return (int) Math.min(remaining, Integer.MAX_VALUE);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws UnsupportedOperationException
+     */
+    @Override
+    public boolean remove(Object o) {
+        throw new UnsupportedOperationException("Remove Operation is not allowed");
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws UnsupportedOperationException
+     */
+    @Override
+    public boolean containsAll(Collection<?> objects) {
+        throw new UnsupportedOperationException("Bulk operations are not allowed");
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The elements are inserted all at once, or not at all if they do not fit in the queue.
+     *
+     * @throws IllegalStateException if the elements do not fit in the queue
+     */
+    @Override
+    public boolean addAll(Collection<? extends T> ts) {
+        if (ts == this) {
+            throw new IllegalArgumentException("Cannot add a queue to itself");
+        }
+        if (ts.isEmpty()) {
+            return false;
+        }
+        if (offerAll(ts, true) == 0) {
+            throw new IllegalStateException("Queue full");
+        }
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws UnsupportedOperationException
+     */
+    @Override
+    public boolean removeAll(Collection<?> objects) {
+        throw new UnsupportedOperationException("Remove All Operation is not allowed");
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws UnsupportedOperationException
+     */
+    @Override
+    public boolean retainAll(Collection<?> objects) {
+        throw new UnsupportedOperationException("Retain All Operation is not allowed");
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws UnsupportedOperationException
+     */
+    @Override
+    public void clear() {
+        throw new UnsupportedOperationException("Clear Operation is not allowed");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size() {
+        long size = 0;
+        for (LinkedBlockingQueueWithAck<T> shard : shards) {
+            size += shard.size();
+        }
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isEmpty() {
+        for (LinkedBlockingQueueWithAck<T> shard : shards) {
+            if (!shard.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean contains(Object o) {
+        for (LinkedBlockingQueueWithAck<T> shard : shards) {
+            if (shard.contains(o)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Iterates over the shards one after the other.
+     */
+    @Override
+    public Iterator<T> iterator() {
+        return new Iterator<T>() {
+            private int shard;
+            private Iterator<T> current = shards[0].iterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!current.hasNext() && shard < shards.length - 1) {
+                    current = shards[++shard].iterator();
+                }
+                return current.hasNext();
+            }
+
+            @Override
+            public T next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return current.next();
+            }
+
+            @Override
+            public void remove() {
+                current.remove();
+            }
+        };
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object[] toArray() {
+        List<Object> elements = new ArrayList<Object>();
+        for (LinkedBlockingQueueWithAck<T> shard : shards) {
+            elements.addAll(Arrays.asList(shard.toArray()));
+        }
+        return elements.toArray();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T1> T1[] toArray(T1[] t1s) {
+        Object[] elements = toArray();
+        T1[] array = t1s.length >= elements.length ? t1s
+                : (T1[]) Array.newInstance(t1s.getClass().getComponentType(), elements.length);
+        System.arraycopy(elements, 0, array, 0, elements.length);
+        if (array.length > elements.length) {
+            array[elements.length] = null;
+        }
+        return array;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The elements drained from each shard are waiting for acknowledgement as a single unit.
+     */
+    @Override
+    public int drainTo(Collection<? super T> objects) {
+        return drainTo(objects, Integer.MAX_VALUE);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The elements drained from each shard are waiting for acknowledgement as a single unit.
+     */
+    @Override
+    public int drainTo(Collection<? super T> objects, int i) {
+        if (objects == this) {
+            throw new IllegalArgumentException("Cannot drain a queue to itself");
+        }
+        int home = home();
+        int count = 0;
+        for (int s = 0; s < shards.length && count < i; s++) {
+            count += shards[(home + s) % shards.length].drainTo(objects, i - count);
+        }
+        return count;
+    }
+
+    /**
+     * Returns the home shard of the current thread.
+     */
+    private int home() {
+        return home.get();
+    }
+
+    /**
+     * Returns the shard a producer inserts the element in.
+     */
+    private LinkedBlockingQueueWithAck<T> producerShard(T element) {
+        if (element == null) {
+            throw new NullPointerException();
+        }
+        return shards[keyExtractor != null ? shardOf(element) : home()];
+    }
+
+    /**
+     * Returns the shard of the key of the element.
+     */
+    private int shardOf(T element) {
+        int hash = keyExtractor.keyOf(element).hashCode();
+        hash ^= hash >>> 16;
+        return (hash & Integer.MAX_VALUE) % shards.length;
+    }
+
+    /**
+     * Returns the shard of a delivery tag of this queue.
+     */
+    private int shardOfTag(long deliveryTag) {
+        return (int) Math.floorMod(deliveryTag, (long) shards.length);
+    }
+
+    /**
+     * Returns the tag the shard gave to a delivery of this queue.
+     */
+    private long tagInShard(long deliveryTag) {
+        return Math.floorDiv(deliveryTag, (long) shards.length);
+    }
+
+    private List<Delivery<T>> wrap(List<Delivery<T>> deliveries, int shard) {
+        List<Delivery<T>> wrapped = new ArrayList<Delivery<T>>(deliveries.size());
+        for (Delivery<T> delivery : deliveries) {
+            wrapped.add(new ShardDelivery<T>(delivery, shard, shards.length));
+        }
+        return wrapped;
+    }
+
+    /**
+     * Delivery of a shard, whose tag carries the shard.
+     *
+     * @param <T>
+     */
+    private static class ShardDelivery<T> implements Delivery<T> {
+
+        private final long tag;
+        private final T element;
+
+        public ShardDelivery(Delivery<T> delivery, int shard, int shards) {
+            this.tag = delivery.getTag() * shards + shard;
+            this.element = delivery.getElement();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public long getTag() {
+            return tag;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public T getElement() {
+            return element;
+        }
+
+        @Override
+        public String toString() {
+            return "ShardDelivery{" +
+                    "tag=" + tag +
+                    ", entity=" + element +
+                    '}';
+        }
+    }
+
+    /**
+     * Asynchronous take of the queue waiting in one of the shards, every shard is given its own take of the same
+     * future.
+     *
+     * @param <T>
+     */
+    private static class ShardTake<T> extends LinkedBlockingQueueWithAck.AsyncTake<T> {
+
+        private final CompletableFuture<Delivery<T>> future;
+        private final int shard;
+        private final int shards;
+
+        public ShardTake(CompletableFuture<Delivery<T>> future, int shard, int shards) {
+            this.future = future;
+            this.shard = shard;
+            this.shards = shards;
+        }
+
+        @Override
+        boolean isDone() {
+            return future.isDone();
+        }
+
+        @Override
+        boolean complete(Delivery<T> delivery) {
+            return future.complete(new ShardDelivery<T>(delivery, shard, shards));
+        }
+
+        @Override
+        void cancel() {
+            future.cancel(false);
+        }
+    }
+
+    /**
+     * Builder of ShardedBlockingQueueWithAck, by default the queue has one shard per available processor, each
+     * with a capacity of Integer.MAX_VALUE, and re-queues elements Integer.MAX_VALUE times.
+     *
+     * @param <T> The type of element to be stored in the queue
+     */
+    public static class Builder<T> {
+
+        private final long timeout;
+        private int shards = Runtime.getRuntime().availableProcessors();
+        private int capacity = Integer.MAX_VALUE;
+        private int maximumRetries = Integer.MAX_VALUE;
+        private Queue<T> deadLetterQueue = new DeadLetterStore<T>();
+        private KeyExtractor<? super T> keyExtractor;
+        private boolean orderedByKey;
+        private int priorityLevels;
+        private Prioritizer<? super T> prioritizer;
+        private RedeliveryPolicy redeliveryPolicy = new FixedRedeliveryPolicy(0, TimeUnit.MILLISECONDS);
+        private ExpiryClock expiryClock = ExpiryClock.MONOTONIC;
+
+        /**
+         * @param timeout the timeout before elements are re-queued in milliseconds
+         */
+        public Builder(long timeout) {
+            this.timeout = timeout;
+        }
+
+        /**
+         * @param shards the number of shards
+         */
+        public Builder<T> shards(int shards) {
+            this.shards = shards;
+            return this;
+        }
+
+        /**
+         * @param capacity the maximum capacity of each shard
+         */
+        public Builder<T> capacity(int capacity) {
+            this.capacity = capacity;
+            return this;
+        }
+
+        /**
+         * @param maximumRetries the maximum number of times a element can be requeued before giving up
+         */
+        public Builder<T> maximumRetries(int maximumRetries) {
+            this.maximumRetries = maximumRetries;
+            return this;
+        }
+
+        /**
+         * @param deadLetterQueue queue to push the poisoned elements of every shard to, an unbounded
+         *                        {@link DeadLetterStore} by default
+         */
+        public Builder<T> deadLetterQueue(Queue<T> deadLetterQueue) {
+            this.deadLetterQueue = deadLetterQueue;
+            return this;
+        }
+
+        /**
+         * Inserts the elements in the shard of their key rather than the home shard of the producer, elements
+         * with equal keys stay in order.
+         *
+         * @param keyExtractor the key extractor of the elements
+         */
+        public Builder<T> shardBy(KeyExtractor<? super T> keyExtractor) {
+            this.keyExtractor = keyExtractor;
+            return this;
+        }
+
+        /**
+         * Inserts the elements in the shard of their key and delivers the elements of the same key one at a time
+         * and in order, see {@link LinkedBlockingQueueWithAck.Builder#orderedByKey(KeyExtractor)}.
+         *
+         * @param keyExtractor the key extractor of the elements
+         */
+        public Builder<T> orderedByKey(KeyExtractor<? super T> keyExtractor) {
+            this.keyExtractor = keyExtractor;
+            this.orderedByKey = true;
+            return this;
+        }
+
+        /**
+         * @param redeliveryPolicy the policy giving the delay before each redelivery, see
+         *                         {@link LinkedBlockingQueueWithAck.Builder#redeliveryPolicy(RedeliveryPolicy)}
+         */
+        public Builder<T> redeliveryPolicy(RedeliveryPolicy redeliveryPolicy) {
+            this.redeliveryPolicy = redeliveryPolicy;
+            return this;
+        }
+
+        /**
+         * Reads the deadlines of the elements waiting for acknowledgement on the given clock, see
+         * {@link LinkedBlockingQueueWithAck.Builder#expiryClock(ExpiryClock)}.
+         */
+        public Builder<T> expiryClock(ExpiryClock expiryClock) {
+            if (expiryClock == null) {
+                throw new NullPointerException("expiryClock");
+            }
+            this.expiryClock = expiryClock;
+            return this;
+        }
+
+        /**
+         * Orders the elements of each shard by priority, see
+         * {@link LinkedBlockingQueueWithAck.Builder#priorities(int, Prioritizer)}.
+         *
+         * @param levels      the number of priority levels
+         * @param prioritizer the prioritizer of the elements
+         */
+        public Builder<T> priorities(int levels, Prioritizer<? super T> prioritizer) {
+            this.priorityLevels = levels;
+            this.prioritizer = prioritizer;
+            return this;
+        }
+
+        public ShardedBlockingQueueWithAck<T> build() {
+            return new ShardedBlockingQueueWithAck<T>(this);
+        }
+    }
+}
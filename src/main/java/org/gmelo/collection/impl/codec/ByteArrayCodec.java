@@ -0,0 +1,31 @@
+package org.gmelo.collection.impl.codec;
+
+import org.gmelo.collection.Codec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Codec of byte[] elements, the array is copied as is.
+ *
+ * User: GMelo
+ */
+public class ByteArrayCodec implements Codec<byte[]> {
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void encode(byte[] element, ByteBuffer buffer) {
+        buffer.put(element);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte[] decode(ByteBuffer buffer) {
+        byte[] element = new byte[buffer.remaining()];
+        buffer.get(element);
+        return element;
+    }
+}
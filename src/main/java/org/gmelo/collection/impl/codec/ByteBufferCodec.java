@@ -0,0 +1,53 @@
+package org.gmelo.collection.impl.codec;
+
+import org.gmelo.collection.Codec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Codec of ByteBuffer elements, the bytes between the position and the limit of the element are copied. The
+ * position of the element is not changed, so the same buffer can be inserted in more than one queue at once.
+ * <p/>
+ * Decoded elements are heap buffers, set the direct flag to get direct buffers instead.
+ *
+ * User: GMelo
+ */
+public class ByteBufferCodec implements Codec<ByteBuffer> {
+
+    private final boolean direct;
+
+    /**
+     * Creates a codec decoding elements in heap buffers
+     */
+    public ByteBufferCodec() {
+        this(false);
+    }
+
+    /**
+     * @param direct true to decode elements in direct buffers
+     */
+    public ByteBufferCodec(boolean direct) {
+        this.direct = direct;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void encode(ByteBuffer element, ByteBuffer buffer) {
+        //a duplicate leaves the position of the element alone for the other threads reading it
+        buffer.put(element.duplicate());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ByteBuffer decode(ByteBuffer buffer) {
+        ByteBuffer element = direct ? ByteBuffer.allocateDirect(buffer.remaining())
+                : ByteBuffer.allocate(buffer.remaining());
+        element.put(buffer);
+        element.flip();
+        return element;
+    }
+}
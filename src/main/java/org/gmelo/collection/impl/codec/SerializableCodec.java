@@ -0,0 +1,55 @@
+package org.gmelo.collection.impl.codec;
+
+import org.gmelo.collection.Codec;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * Codec of any Serializable element, through Java serialization. It works for every element type but
+ * allocates a stream per element and writes a class description with every element, prefer a dedicated codec
+ * where throughput matters.
+ *
+ * @param <T> The type of element encoded
+ *
+ * User: GMelo
+ */
+public class SerializableCodec<T> implements Codec<T> {
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws IllegalArgumentException if the element cannot be serialized
+     */
+    @Override
+    public void encode(T element, ByteBuffer buffer) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            ObjectOutputStream output = new ObjectOutputStream(bytes);
+            output.writeObject(element);
+            output.close();
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Element cannot be serialized: " + element, e);
+        }
+        buffer.put(bytes.toByteArray());
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws IllegalStateException if the bytes cannot be deserialized
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public T decode(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        try {
+            return (T) new ObjectInputStream(new ByteArrayInputStream(bytes)).readObject();
+        } catch (IOException e) {
+            throw new IllegalStateException("Element cannot be deserialized", e);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Element cannot be deserialized", e);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package org.gmelo.collection.impl.codec;
+
+import org.gmelo.collection.Codec;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Codec of String elements encoded in UTF-8. The characters are encoded straight into the buffer, heap or
+ * direct, without going through an intermediate array or a CharsetEncoder.
+ * <p/>
+ * Like String.getBytes, a lone surrogate is encoded as '?'.
+ *
+ * User: GMelo
+ */
+public class StringCodec implements Codec<String> {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void encode(String element, ByteBuffer buffer) {
+        int length = element.length();
+        if (buffer.remaining() < length) {
+            //every character takes one byte at least
+            throw new BufferOverflowException();
+        }
+        for (int i = 0; i < length; i++) {
+            char c = element.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | c >> 6));
+                buffer.put((byte) (0x80 | c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(element.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, element.charAt(++i));
+                buffer.put((byte) (0xF0 | codePoint >> 18));
+                buffer.put((byte) (0x80 | codePoint >> 12 & 0x3F));
+                buffer.put((byte) (0x80 | codePoint >> 6 & 0x3F));
+                buffer.put((byte) (0x80 | codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                buffer.put((byte) '?');
+            } else {
+                buffer.put((byte) (0xE0 | c >> 12));
+                buffer.put((byte) (0x80 | c >> 6 & 0x3F));
+                buffer.put((byte) (0x80 | c & 0x3F));
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String decode(ByteBuffer buffer) {
+        int length = buffer.remaining();
+        if (buffer.hasArray()) {
+            String element = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, UTF_8);
+            buffer.position(buffer.limit());
+            return element;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+}
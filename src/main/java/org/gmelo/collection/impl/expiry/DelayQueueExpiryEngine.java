@@ -0,0 +1,77 @@
+package org.gmelo.collection.impl.expiry;
+
+import java.util.Collection;
+import java.util.concurrent.DelayQueue;
+
+/**
+ * Expiry engine backed by a {@link DelayQueue}, scheduling a task is a O(log n) heap insertion under
+ * the lock of the DelayQueue. A task whose deadline was extended stays in the heap at its former deadline, and is
+ * inserted again at the new one when it comes out.
+ *
+ * User: GMelo
+ */
+public class DelayQueueExpiryEngine implements ExpiryEngine {
+
+    private final DelayQueue<ExpiryTask> tasks = new DelayQueue<ExpiryTask>();
+    private final ExpiryClock clock;
+
+    /**
+     * Creates an engine on the monotonic clock.
+     */
+    public DelayQueueExpiryEngine() {
+        this(ExpiryClock.MONOTONIC);
+    }
+
+    /**
+     * Creates an engine on the given clock. The engine waits for the earliest task in real time, a clock moved by
+     * hand is only looked at again once that wait is over.
+     *
+     * @param clock the clock the deadlines are compared to
+     */
+    public DelayQueueExpiryEngine(ExpiryClock clock) {
+        if (clock == null) {
+            throw new NullPointerException("clock");
+        }
+        this.clock = clock;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void schedule(ExpiryTask task) {
+        task.clock = clock;
+        tasks.add(task);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int awaitExpired(Collection<? super ExpiryTask> expired) throws InterruptedException {
+        int count = 0;
+        while (count == 0) {
+            ExpiryTask task = tasks.take();
+            do {
+                int result = task.markExpired(clock.millis());
+                if (result == ExpiryTask.MARKED_EXPIRED) {
+                    expired.add(task);
+                    count++;
+                } else if (result == ExpiryTask.DEADLINE_EXTENDED) {
+                    task.filedDeadline = task.getDeadline();
+                    tasks.add(task);
+                }
+                task = tasks.poll();
+            } while (task != null);
+        }
+        return count;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ExpiryClock getClock() {
+        return clock;
+    }
+}
@@ -0,0 +1,38 @@
+package org.gmelo.collection.impl.expiry;
+
+/**
+ * Source of the current time of an {@link ExpiryEngine}, in milliseconds. The deadlines of the tasks given to an
+ * engine must be read on the clock of the engine, see {@link ExpiryEngine#getClock()}.
+ *
+ * User: GMelo
+ */
+public interface ExpiryClock {
+
+    /**
+     * System.currentTimeMillis(), deadlines move with the wall clock when it is set. Only used when given
+     * explicitly, the engines and the queues read {@link #MONOTONIC} by default.
+     */
+    public static final ExpiryClock WALL = new ExpiryClock() {
+        @Override
+        public long millis() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public String toString() {
+            return "ExpiryClock.WALL";
+        }
+    };
+
+    /**
+     * Milliseconds counted with System.nanoTime(), see {@link MonotonicExpiryClock}.
+     */
+    public static final ExpiryClock MONOTONIC = new MonotonicExpiryClock();
+
+    /**
+     * Returns the current time.
+     *
+     * @return the current time in milliseconds
+     */
+    public long millis();
+}
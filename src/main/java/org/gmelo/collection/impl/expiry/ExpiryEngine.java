@@ -0,0 +1,38 @@
+package org.gmelo.collection.impl.expiry;
+
+import java.util.Collection;
+
+/**
+ * Keeps track of {@link ExpiryTask}s and hands them out once their deadline has passed.
+ * <p/>
+ * {@link #schedule(ExpiryTask)} is safe to call from any thread, {@link #awaitExpired(Collection)}
+ * is meant to be called in a loop by a single thread.
+ *
+ * User: GMelo
+ */
+public interface ExpiryEngine {
+
+    /**
+     * Starts tracking a task until it expires or is cancelled.
+     *
+     * @param task the task to track
+     */
+    public void schedule(ExpiryTask task);
+
+    /**
+     * Waits until at least one task is due, then moves every task that is due to the collection.
+     * Cancelled tasks are silently discarded.
+     *
+     * @param expired collection receiving the expired tasks
+     * @return the number of tasks added to the collection
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public int awaitExpired(Collection<? super ExpiryTask> expired) throws InterruptedException;
+
+    /**
+     * Returns the clock the deadlines of the tasks are compared to.
+     *
+     * @return the clock of the engine
+     */
+    public ExpiryClock getClock();
+}
@@ -0,0 +1,160 @@
+package org.gmelo.collection.impl.expiry;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a single thread that waits for tasks to expire in an {@link ExpiryEngine} and calls
+ * {@link ExpiryTask#expire()} on them.
+ * <p/>
+ * A scheduler can be shared by any number of queues, so that one thread services the timeouts of all of them.
+ * Whoever creates a shared scheduler is responsible for shutting it down once the queues using it are closed.
+ * Cancelled tasks stay in the engine until their deadline, so the scheduler references the elements of a closed
+ * queue until then.
+ *
+ * User: GMelo
+ */
+public class ExpiryScheduler {
+
+    private static final String DEFAULT_THREAD_NAME = "ExpiryScheduler timeout-listener";
+
+    private final Logger logger = LoggerFactory.getLogger(ExpiryScheduler.class);
+
+    private final ExpiryEngine expiryEngine;
+    private final ExecutorService executorService;
+    private volatile boolean shutdown;
+
+    /**
+     * Creates a scheduler over the given engine and starts its thread
+     *
+     * @param expiryEngine the engine tracking the tasks, must not be used by anything else
+     */
+    public ExpiryScheduler(ExpiryEngine expiryEngine) {
+        this(expiryEngine, DEFAULT_THREAD_NAME);
+    }
+
+    /**
+     * Creates a scheduler over the given engine and starts its thread
+     *
+     * @param expiryEngine the engine tracking the tasks, must not be used by anything else
+     * @param threadName   the name of the thread of the scheduler
+     */
+    public ExpiryScheduler(ExpiryEngine expiryEngine, final String threadName) {
+        this(expiryEngine, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, threadName);
+            }
+        });
+    }
+
+    /**
+     * Creates a scheduler over the given engine and starts its thread, e.g. a virtual thread on Java 21. The
+     * thread only waits on the engine, which never pins a virtual thread to its carrier.
+     *
+     * @param expiryEngine  the engine tracking the tasks, must not be used by anything else
+     * @param threadFactory the factory of the thread of the scheduler
+     */
+    public ExpiryScheduler(ExpiryEngine expiryEngine, ThreadFactory threadFactory) {
+        this.expiryEngine = expiryEngine;
+        executorService = Executors.newSingleThreadExecutor(threadFactory);
+        executorService.execute(new ExpiryListenerRunner());
+    }
+
+    /**
+     * Starts tracking a task, once it expires its {@link ExpiryTask#expire()} is called on the thread of the
+     * scheduler.
+     *
+     * @param task the task to track
+     * @return false if the task was not scheduled because the scheduler is shut down
+     */
+    public boolean schedule(ExpiryTask task) {
+        if (shutdown) {
+            return false;
+        }
+        expiryEngine.schedule(task);
+        return true;
+    }
+
+    /**
+     * Returns the clock the deadlines of the tasks must be read on, the clock of the engine.
+     *
+     * @return the clock of the engine
+     */
+    public ExpiryClock getClock() {
+        return expiryEngine.getClock();
+    }
+
+    /**
+     * Stops the thread of the scheduler, tasks that did not expire yet never will.
+     */
+    public void shutdown() {
+        shutdown = true;
+        executorService.shutdownNow();
+    }
+
+    /**
+     * Returns true if the scheduler was shut down.
+     *
+     * @return true if shut down
+     */
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    /**
+     * Blocks until the thread of the scheduler stopped after a shutdown, or the timeout elapses.
+     *
+     * @param timeout the maximum time to wait
+     * @param unit    the time unit of the timeout argument
+     * @return true if the thread stopped, false if the timeout elapsed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return executorService.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * Runnable implementation that blocks while waiting for expired tasks in the
+     * expiry engine and expires them, until the thread is interrupted. An interrupt that does not come from
+     * {@link #shutdown()} shuts the scheduler down as well.
+     */
+    private class ExpiryListenerRunner implements Runnable {
+
+        @Override
+        public void run() {
+            List<ExpiryTask> expired = new ArrayList<ExpiryTask>();
+            while (!shutdown) {
+                try {
+                    expiryEngine.awaitExpired(expired);
+                    for (ExpiryTask task : expired) {
+                        try {
+                            task.expire();
+                        } catch (RuntimeException e) {
+                            logger.error("Failed to expire task " + task, e);
+                        }
+                    }
+                    expired.clear();
+
+
+                } catch (InterruptedException e) {
+                    if (!shutdown) {
+                        //nothing would expire the tasks scheduled from now on
+                        shutdown = true;
+                        executorService.shutdown();
+                        logger.error("Internal Listener interrupted, tasks no longer expire", e);
+                    }
+                    return;
+                }
+
+            }
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package org.gmelo.collection.impl.expiry;
+
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Something that expires at a deadline, in milliseconds, unless it is cancelled first.
+ * <p/>
+ * Cancellation is lazy: {@link #cancel()} only flips the state of the task and the {@link ExpiryEngine}
+ * discards it when it comes across it, so cancelling never takes a lock. Extending the deadline is lazy as
+ * well: {@link #extendDeadline(long)} only moves the deadline, the engine keeps the task where it was filed and
+ * files it again at the new deadline when it comes across it.
+ * <p/>
+ * A task that was cancelled can be scheduled again with {@link #reschedule(long, ExpiryScheduler)}, so its owner
+ * can recycle it instead of creating a task per deadline. A cancelled task the engine still holds is revived in
+ * place, as if its deadline had been extended.
+ *
+ * User: GMelo
+ */
+public abstract class ExpiryTask implements Delayed {
+
+    private static final int SCHEDULED = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+    //the deadline is being moved, the task cannot expire or be cancelled meanwhile
+    private static final int EXTENDING = 3;
+    //the task was cancelled and the engine let go of it
+    private static final int RELEASED = 4;
+
+    //results of markExpired
+    static final int MARKED_EXPIRED = 0;
+    static final int DEADLINE_EXTENDED = 1;
+    static final int DISCARDED = 2;
+
+    private static final AtomicIntegerFieldUpdater<ExpiryTask> STATE =
+            AtomicIntegerFieldUpdater.newUpdater(ExpiryTask.class, "state");
+
+    private volatile long deadline;
+    private volatile int state = SCHEDULED;
+
+    //the deadline the delay queue engine ordered the task by, only changed before the task is added to it
+    long filedDeadline;
+    //the clock of the delay queue engine, set before the task is added to it
+    ExpiryClock clock = ExpiryClock.MONOTONIC;
+
+    //bookkeeping of the wheel engine, only touched by the thread sweeping the wheel once the task is on the wheel
+    long remainingRounds;
+    //the next task of the bucket, or the previous task scheduled while the task waits to be placed on the wheel
+    ExpiryTask next;
+    ExpiryTask previous;
+
+    protected ExpiryTask(long deadline) {
+        this.deadline = deadline;
+        this.filedDeadline = deadline;
+    }
+
+    /**
+     * Returns the time at which the task expires, in milliseconds.
+     *
+     * @return the deadline
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Pushes the deadline of the task out, a deadline is never brought forward.
+     *
+     * @param deadline the new deadline in milliseconds
+     * @return true if the task is still scheduled, false if it had already expired or been cancelled
+     */
+    public boolean extendDeadline(long deadline) {
+        if (!STATE.compareAndSet(this, SCHEDULED, EXTENDING)) {
+            return false;
+        }
+        if (deadline > this.deadline) {
+            this.deadline = deadline;
+        }
+        state = SCHEDULED;
+        return true;
+    }
+
+    /**
+     * Cancels the task so it does not expire.
+     *
+     * @return true if the task was cancelled, false if it had already expired or been cancelled
+     */
+    public boolean cancel() {
+        while (!STATE.compareAndSet(this, SCHEDULED, CANCELLED)) {
+            if (state != EXTENDING) {
+                return false;
+            }
+            Thread.yield();
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the task was cancelled.
+     *
+     * @return true if cancelled
+     */
+    public boolean isCancelled() {
+        int state = this.state;
+        return state == CANCELLED || state == RELEASED;
+    }
+
+    /**
+     * Schedules a task that was cancelled to expire at a new deadline.
+     * <p/>
+     * A cancelled task the engine has not discarded yet is filed again by the engine when it comes across it, so the
+     * new deadline cannot be before the former one; the task cannot be rescheduled then. A task the engine discarded
+     * is scheduled afresh, unless the scheduler is shut down.
+     *
+     * @param deadline  the new deadline in milliseconds
+     * @param scheduler the scheduler the task was scheduled with
+     * @return true if the task expires at the new deadline, false if it was not cancelled or is held by the engine
+     *         at a later deadline
+     */
+    public boolean reschedule(long deadline, ExpiryScheduler scheduler) {
+        while (true) {
+            int current = state;
+            if (current == CANCELLED) {
+                if (deadline < this.deadline) {
+                    return false;
+                }
+                if (STATE.compareAndSet(this, CANCELLED, EXTENDING)) {
+                    this.deadline = deadline;
+                    state = SCHEDULED;
+                    return true;
+                }
+            } else if (current == RELEASED) {
+                //no other thread touches the task until it is scheduled
+                this.deadline = deadline;
+                this.filedDeadline = deadline;
+                state = SCHEDULED;
+                scheduler.schedule(this);
+                return true;
+            } else if (current != EXTENDING) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Called by the {@link ExpiryScheduler} once the task expired.
+     */
+    public abstract void expire();
+
+    /**
+     * Marks the task as expired unless its deadline was extended past now, used by the engines before handing
+     * the task out.
+     *
+     * @param now the current time in milliseconds
+     * @return MARKED_EXPIRED if the task expired, DEADLINE_EXTENDED if it must be filed again at its new deadline
+     *         or DISCARDED if it was cancelled
+     */
+    int markExpired(long now) {
+        while (deadline <= now) {
+            if (STATE.compareAndSet(this, SCHEDULED, EXPIRED)) {
+                return MARKED_EXPIRED;
+            }
+            int current = state;
+            if (current == CANCELLED) {
+                if (STATE.compareAndSet(this, CANCELLED, RELEASED)) {
+                    return DISCARDED;
+                }
+            } else if (current == EXTENDING) {
+                Thread.yield();
+            } else if (current != SCHEDULED) {
+                return DISCARDED;
+            }
+        }
+        return DEADLINE_EXTENDED;
+    }
+
+    /**
+     * Lets go of a cancelled task, used by the engines once they no longer reference it.
+     *
+     * @return true if the task is discarded, false if it was rescheduled meanwhile and must be filed again
+     */
+    boolean discard() {
+        while (!STATE.compareAndSet(this, CANCELLED, RELEASED)) {
+            if (state != EXTENDING) {
+                return state == RELEASED;
+            }
+            Thread.yield();
+        }
+        return true;
+    }
+
+    /**
+     * {inheritDoc}
+     */
+    @Override
+    public long getDelay(TimeUnit timeUnit) {
+        return timeUnit.convert(filedDeadline - clock.millis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * {inheritDoc}
+     */
+    @Override
+    public int compareTo(Delayed delayed) {
+        if (delayed instanceof ExpiryTask) {
+            long thatDeadline = ((ExpiryTask) delayed).filedDeadline;
+            return filedDeadline > thatDeadline ? +1 : filedDeadline < thatDeadline ? -1 : 0;
+        }
+        long thisTimeLeft = this.getDelay(TimeUnit.MILLISECONDS);
+        long thatTimeLeft = delayed.getDelay(TimeUnit.MILLISECONDS);
+
+        return thisTimeLeft > thatTimeLeft ? +1 : thisTimeLeft < thatTimeLeft ? -1 : 0;
+    }
+}
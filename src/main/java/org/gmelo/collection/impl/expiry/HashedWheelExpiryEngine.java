@@ -0,0 +1,259 @@
+package org.gmelo.collection.impl.expiry;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Expiry engine backed by a hashed timing wheel.
+ * <p/>
+ * Time is divided in ticks of tickDuration milliseconds and every task goes to the bucket of the tick its
+ * deadline falls in, so scheduling and cancelling are O(1). Scheduled tasks are handed over to the sweeping
+ * thread through a lock free stack linked through the tasks themselves, so scheduling does not allocate, and only
+ * the sweeping thread touches the buckets. Tasks expire up to one
+ * tick after their deadline, never before. A task whose deadline was extended is filed again when the wheel
+ * reaches its former deadline.
+ * <p/>
+ * The sweeping thread parks while there are no tasks instead of waking up every tick. It never sleeps more than
+ * a tick at a time, so it follows a clock moved by hand within a tick.
+ *
+ * User: GMelo
+ */
+public class HashedWheelExpiryEngine implements ExpiryEngine {
+
+    private static final int DEFAULT_TICKS_PER_WHEEL = 512;
+
+    private final long tickDuration;
+    private final ExpiryTask[] heads;
+    private final ExpiryTask[] tails;
+    private final int mask;
+    //last task scheduled but not yet placed on the wheel, linked to the previous ones through next
+    private final AtomicReference<ExpiryTask> pending = new AtomicReference<ExpiryTask>();
+    private final ExpiryClock clock;
+    private final long startTime;
+
+    //the fields below are only touched by the sweeping thread
+    private long tick;
+    private int tasksOnWheel;
+
+    private volatile Thread parkedSweeper;
+
+    /**
+     * Creates a wheel with 512 ticks of tickDuration on the monotonic clock
+     *
+     * @param tickDuration the duration of a tick in milliseconds
+     */
+    public HashedWheelExpiryEngine(long tickDuration) {
+        this(tickDuration, DEFAULT_TICKS_PER_WHEEL);
+    }
+
+    /**
+     * Creates a wheel with 512 ticks of tickDuration
+     *
+     * @param tickDuration the duration of a tick in milliseconds
+     * @param clock        the clock the deadlines are compared to
+     */
+    public HashedWheelExpiryEngine(long tickDuration, ExpiryClock clock) {
+        this(tickDuration, DEFAULT_TICKS_PER_WHEEL, clock);
+    }
+
+    /**
+     * Creates a wheel on the monotonic clock.
+     *
+     * @param tickDuration  the duration of a tick in milliseconds
+     * @param ticksPerWheel the number of buckets in the wheel, rounded up to a power of two
+     */
+    public HashedWheelExpiryEngine(long tickDuration, int ticksPerWheel) {
+        this(tickDuration, ticksPerWheel, ExpiryClock.MONOTONIC);
+    }
+
+    /**
+     * Creates a wheel.
+     *
+     * @param tickDuration  the duration of a tick in milliseconds
+     * @param ticksPerWheel the number of buckets in the wheel, rounded up to a power of two
+     * @param clock         the clock the deadlines are compared to
+     */
+    public HashedWheelExpiryEngine(long tickDuration, int ticksPerWheel, ExpiryClock clock) {
+        if (clock == null) {
+            throw new NullPointerException("clock");
+        }
+        if (tickDuration <= 0) {
+            throw new IllegalArgumentException("tickDuration must be positive: " + tickDuration);
+        }
+        if (ticksPerWheel <= 0 || ticksPerWheel > 1 << 30) {
+            throw new IllegalArgumentException("ticksPerWheel out of range: " + ticksPerWheel);
+        }
+        int size = Integer.highestOneBit(ticksPerWheel);
+        if (size < ticksPerWheel) {
+            size <<= 1;
+        }
+        this.tickDuration = tickDuration;
+        this.heads = new ExpiryTask[size];
+        this.tails = new ExpiryTask[size];
+        this.mask = size - 1;
+        this.clock = clock;
+        this.startTime = clock.millis();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void schedule(ExpiryTask task) {
+        push(task);
+        Thread sweeper = parkedSweeper;
+        if (sweeper != null) {
+            LockSupport.unpark(sweeper);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int awaitExpired(Collection<? super ExpiryTask> expired) throws InterruptedException {
+        int count = 0;
+        while (count == 0) {
+            if (tasksOnWheel == 0 && pending.get() == null) {
+                awaitSchedule();
+                //nothing is on the wheel, so it can skip the ticks that went by while parked
+                tick = Math.max(tick, (clock.millis() - startTime) / tickDuration);
+            }
+            waitForNextTick();
+            transferPending();
+            count = expireBucket((int) (tick & mask), expired);
+            tick++;
+        }
+        return count;
+    }
+
+    private void awaitSchedule() throws InterruptedException {
+        parkedSweeper = Thread.currentThread();
+        try {
+            while (pending.get() == null) {
+                LockSupport.park(this);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        } finally {
+            parkedSweeper = null;
+        }
+    }
+
+    private void waitForNextTick() throws InterruptedException {
+        long sleep = startTime + (tick + 1) * tickDuration - clock.millis();
+        if (sleep > 0) {
+            TimeUnit.MILLISECONDS.sleep(Math.min(sleep, tickDuration));
+        }
+    }
+
+    private void push(ExpiryTask task) {
+        ExpiryTask head;
+        do {
+            head = pending.get();
+            task.next = head;
+        } while (!pending.compareAndSet(head, task));
+    }
+
+    /**
+     * Places the pending tasks on the wheel, in the order they were scheduled.
+     */
+    private void transferPending() {
+        ExpiryTask reversed = pending.getAndSet(null);
+        ExpiryTask task = null;
+        while (reversed != null) {
+            ExpiryTask next = reversed.next;
+            reversed.next = task;
+            task = reversed;
+            reversed = next;
+        }
+        while (task != null) {
+            ExpiryTask next = task.next;
+            transfer(task);
+            task = next;
+        }
+    }
+
+    private void transfer(ExpiryTask task) {
+        if (task.isCancelled()) {
+            task.next = null;
+            if (task.discard()) {
+                return;
+            }
+        }
+        long calculated = (task.getDeadline() - startTime) / tickDuration;
+        task.remainingRounds = (calculated - tick) / heads.length;
+        //tasks that are already overdue go to the current bucket
+        int index = (int) (Math.max(calculated, tick) & mask);
+        link(index, task);
+    }
+
+    private int expireBucket(int index, Collection<? super ExpiryTask> expired) {
+        int count = 0;
+        long now = clock.millis();
+        ExpiryTask task = heads[index];
+        while (task != null) {
+            ExpiryTask next = task.next;
+            if (task.isCancelled()) {
+                unlink(index, task);
+                if (!task.discard()) {
+                    //rescheduled meanwhile
+                    push(task);
+                }
+            } else if (task.remainingRounds <= 0) {
+                unlink(index, task);
+                int result = task.markExpired(now);
+                if (result == ExpiryTask.MARKED_EXPIRED) {
+                    expired.add(task);
+                    count++;
+                } else if (result == ExpiryTask.DEADLINE_EXTENDED) {
+                    //filed again at its new deadline on the next tick
+                    push(task);
+                }
+            } else {
+                task.remainingRounds--;
+            }
+            task = next;
+        }
+        return count;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ExpiryClock getClock() {
+        return clock;
+    }
+
+    private void link(int index, ExpiryTask task) {
+        task.next = null;
+        task.previous = tails[index];
+        if (tails[index] == null) {
+            heads[index] = task;
+        } else {
+            tails[index].next = task;
+        }
+        tails[index] = task;
+        tasksOnWheel++;
+    }
+
+    private void unlink(int index, ExpiryTask task) {
+        if (task.previous == null) {
+            heads[index] = task.next;
+        } else {
+            task.previous.next = task.next;
+        }
+        if (task.next == null) {
+            tails[index] = task.previous;
+        } else {
+            task.next.previous = task.previous;
+        }
+        task.next = null;
+        task.previous = null;
+        tasksOnWheel--;
+    }
+}
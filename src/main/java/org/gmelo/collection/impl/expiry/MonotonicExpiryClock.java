@@ -0,0 +1,29 @@
+package org.gmelo.collection.impl.expiry;
+
+/**
+ * Clock counting milliseconds with System.nanoTime(), so the deadlines of tasks neither come early nor hang when
+ * the wall clock is stepped, e.g. by NTP. The clock starts at the wall clock time this class was loaded, its time
+ * drifts away from the wall clock afterwards.
+ * <p/>
+ * Reading the clock does not take a system call on the usual platforms.
+ *
+ * User: GMelo
+ */
+public final class MonotonicExpiryClock implements ExpiryClock {
+
+    private static final long ORIGIN_MILLIS = System.currentTimeMillis();
+    private static final long ORIGIN_NANOS = System.nanoTime();
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long millis() {
+        return ORIGIN_MILLIS + (System.nanoTime() - ORIGIN_NANOS) / 1000000;
+    }
+
+    @Override
+    public String toString() {
+        return "ExpiryClock.MONOTONIC";
+    }
+}
@@ -0,0 +1,662 @@
+package org.gmelo.collection.impl.journal;
+
+import org.gmelo.collection.Codec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the life of the elements of a queue, split in segment files so that it can be reclaimed
+ * once the elements in it are acknowledged.
+ * <p/>
+ * Every element is appended with an ENQUEUE record that holds its payload, the number of times it was re-queued
+ * and gives it an id, further records
+ * refer to the element by id: DELIVER when it is taken, ACK when it leaves the queue for good and NACK when it is
+ * put back in the queue. An element put back in the queue is appended again with a new id, so an old segment is
+ * not kept alive by an element that keeps being re-queued.
+ * <p/>
+ * Elements are encoded by a {@link Codec} straight into the write buffer of the journal. Records are buffered
+ * and written by a flusher thread, which fsyncs the log for every thread waiting in
+ * {@link #sync()} at once (group commit) and otherwise every flush interval. Segments are deleted, oldest first,
+ * once every element they hold was acknowledged and the records that settled them are on disk: the ENQUEUE
+ * record of a re-queued element must be durable before the segment holding its previous ENQUEUE goes away.
+ * <p/>
+ * A failure to write or fsync the log is fatal: the records it held may be lost, so the flusher stops, the
+ * threads waiting in {@link #sync()} fail and so does every later append, until the journal is opened again.
+ * <p/>
+ * The log is replayed when it is opened, the elements that were not acknowledged are returned by
+ * {@link #recover()}. A record torn by a crash at the end of a segment is discarded.
+ * <p/>
+ * Segments are written through RandomAccessFile rather than FileChannel, interrupting a thread that appends
+ * a record must not close the journal for every other thread.
+ *
+ * User: GMelo
+ */
+public class SegmentedJournal implements Closeable {
+
+    public static final long DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 10;
+
+    private static final String SEGMENT_SUFFIX = ".journal";
+    private static final int BUFFER_SIZE = 256 * 1024;
+    //length, type, id and checksum
+    private static final int RECORD_OVERHEAD = 4 + 1 + 8 + 4;
+
+    private static final byte ENQUEUE = 1;
+    private static final byte DELIVER = 2;
+    private static final byte ACK = 3;
+    private static final byte NACK = 4;
+
+    private final Logger logger = LoggerFactory.getLogger(SegmentedJournal.class);
+
+    private final File directory;
+    private final long segmentSize;
+    private final long flushIntervalNanos;
+
+    //guards every field below, the flusher only releases it to fsync
+    private final ReentrantLock lock = new ReentrantLock();
+    //signalled when a thread waits for its records to be durable
+    private final Condition flushRequested = lock.newCondition();
+    //signalled when the records appended up to synced are durable
+    private final Condition durable = lock.newCondition();
+    //segments by the id of their first element
+    private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final CRC32 checksum = new CRC32();
+    private Segment current;
+    private long nextId;
+    //bytes appended and bytes known to be on disk, since the journal was opened
+    private long written;
+    private long synced;
+    private int syncWaiters;
+    private boolean closed;
+    //the error that stopped the journal, appends and syncs fail once it is set
+    private IOException failure;
+    private List<Entry> recovered;
+
+    private final ExecutorService flusher;
+
+    /**
+     * Opens, or creates, the journal in the given directory with the default segment size and flush interval.
+     *
+     * @param directory the directory of the segment files, must not be used by anything else
+     * @throws IOException if the journal cannot be read or created
+     */
+    public SegmentedJournal(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Opens, or creates, the journal in the given directory.
+     *
+     * @param directory     the directory of the segment files, must not be used by anything else
+     * @param segmentSize   the size in bytes after which a new segment is started
+     * @param flushInterval the longest time records not waited for by {@link #sync()} stay in memory
+     * @param unit          a TimeUnit determining how to interpret the flushInterval parameter
+     * @throws IOException if the journal cannot be read or created
+     */
+    public SegmentedJournal(File directory, long segmentSize, long flushInterval, TimeUnit unit) throws IOException {
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException("Segment size must be positive: " + segmentSize);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create journal directory " + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.flushIntervalNanos = unit.toNanos(flushInterval);
+        recovered = replay();
+        if (!segments.isEmpty()) {
+            nextId = Math.max(nextId, segments.lastKey());
+        }
+        current = segments.containsKey(nextId) ? segments.get(nextId) : openSegment(nextId);
+        deleteAcknowledgedSegments();
+        flusher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "SegmentedJournal flusher");
+            }
+        });
+        flusher.execute(new Flusher());
+    }
+
+    /**
+     * Returns the elements that were not acknowledged when the journal was last closed, or when the process
+     * crashed, in the order they were enqueued. They keep their ids. Only the first call returns the elements.
+     *
+     * @return the unacknowledged elements
+     */
+    public List<Entry> recover() {
+        lock.lock();
+        try {
+            List<Entry> entries = recovered;
+            recovered = Collections.emptyList();
+            return entries;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends a new element, it is durable once {@link #sync()} returns.
+     *
+     * @param element the element
+     * @param codec   the codec writing the element
+     * @return the id of the element
+     */
+    public <T> long enqueue(T element, Codec<? super T> codec) {
+        lock.lock();
+        try {
+            return appendEnqueue(0, element, codec);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends a number of new elements, they are durable once {@link #sync()} returns.
+     *
+     * @param elements the elements
+     * @param codec    the codec writing the elements
+     * @return the id of each element
+     */
+    public <T> long[] enqueue(List<? extends T> elements, Codec<? super T> codec) {
+        long[] ids = new long[elements.size()];
+        lock.lock();
+        try {
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = appendEnqueue(0, elements.get(i), codec);
+            }
+            return ids;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records that an element was handed to a consumer.
+     *
+     * @param id the id of the element
+     */
+    public void delivered(long id) {
+        lock.lock();
+        try {
+            append(DELIVER, id, 0, null, null);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records that an element left the queue for good, acknowledged or poisoned, or that it was never inserted.
+     *
+     * @param id the id of the element
+     */
+    public void acknowledged(long id) {
+        lock.lock();
+        try {
+            append(ACK, id, 0, null, null);
+            settle(id);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records that an element was put back in the queue, the element is appended again under a new id.
+     *
+     * @param id       the id of the element
+     * @param requeues the number of times the element was re-queued, this time included
+     * @param element  the element
+     * @param codec    the codec writing the element
+     * @return the new id of the element
+     */
+    public <T> long requeued(long id, int requeues, T element, Codec<? super T> codec) {
+        lock.lock();
+        try {
+            //the old segment outlives the new ENQUEUE until it is synced, a crash recovers the old or the new copy
+            long newId = appendEnqueue(requeues, element, codec);
+            append(NACK, id, 0, null, null);
+            settle(id);
+            return newId;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until every record appended by the calling thread is on disk. The wait is not interruptible, it
+     * lasts as long as one fsync at most.
+     *
+     * @throws IllegalStateException if the journal is closed, or fails, before the records are on disk
+     */
+    public void sync() {
+        lock.lock();
+        try {
+            long target = written;
+            if (synced >= target) {
+                return;
+            }
+            syncWaiters++;
+            try {
+                flushRequested.signal();
+                while (synced < target) {
+                    checkFailure();
+                    if (closed) {
+                        throw new IllegalStateException("Journal closed");
+                    }
+                    durable.awaitUninterruptibly();
+                }
+            } finally {
+                syncWaiters--;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the pending records to disk, stops the flusher and closes the segments. Records appended after the
+     * journal is closed are ignored.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                writeBuffer();
+                current.file.getFD().sync();
+                synced = written;
+                deleteAcknowledgedSegments();
+            } catch (IOException e) {
+                logger.error("Failed to flush journal {}", directory, e);
+            }
+            for (Segment segment : segments.values()) {
+                segment.close();
+            }
+            flushRequested.signalAll();
+            durable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        flusher.shutdownNow();
+    }
+
+    /**
+     * Returns the number of segment files of the journal.
+     *
+     * @return the number of segments
+     */
+    public int numberOfSegments() {
+        lock.lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void checkFailure() {
+        if (failure != null) {
+            throw new IllegalStateException("Journal " + directory + " failed", failure);
+        }
+    }
+
+    /**
+     * Stops the journal after a write or an fsync failed, the threads waiting for their records fail.
+     */
+    private void fail(IOException e) {
+        if (failure == null) {
+            failure = e;
+            logger.error("Failed to write journal {}, the journal is stopped", directory, e);
+        }
+        durable.signalAll();
+    }
+
+    private <T> long appendEnqueue(int requeues, T element, Codec<? super T> codec) {
+        long id = nextId++;
+        append(ENQUEUE, id, requeues, element, codec);
+        current.live++;
+        return id;
+    }
+
+    /**
+     * Appends a record, the number of re-queues and the element are only written for ENQUEUE records. The record
+     * is written in the buffer, or in a larger one of its own when it does not fit in an empty buffer.
+     */
+    private <T> void append(byte type, long id, int requeues, T element, Codec<? super T> codec) {
+        if (closed) {
+            return;
+        }
+        checkFailure();
+        try {
+            if (type == ENQUEUE && current.size >= segmentSize) {
+                roll(id);
+            }
+            ByteBuffer target = buffer;
+            int start = buffer.position();
+            while (true) {
+                try {
+                    target.putInt(0).put(type).putLong(id);
+                    if (type == ENQUEUE) {
+                        target.putInt(requeues);
+                        codec.encode(element, target);
+                    }
+                    //room for the checksum
+                    target.putInt(0);
+                    break;
+                } catch (BufferOverflowException e) {
+                    target.position(start);
+                    if (start > 0) {
+                        writeBuffer();
+                        start = 0;
+                    } else {
+                        target = ByteBuffer.allocate(target.capacity() * 2);
+                    }
+                } catch (RuntimeException e) {
+                    //the element cannot be encoded, drop what was written of the record
+                    target.position(start);
+                    throw e;
+                }
+            }
+            int end = target.position();
+            int length = end - start - 4 - 4;
+            checksum.reset();
+            checksum.update(target.array(), start + 4, length);
+            target.putInt(start, length);
+            target.putInt(end - 4, (int) checksum.getValue());
+            if (target != buffer) {
+                current.file.write(target.array(), 0, end);
+            }
+            current.size += end - start;
+            written += end - start;
+        } catch (IOException e) {
+            fail(e);
+            throw new IllegalStateException("Failed to append to journal " + directory, e);
+        }
+    }
+
+    /**
+     * Seals the current segment and starts a new one whose first element is the given id.
+     */
+    private void roll(long firstId) throws IOException {
+        writeBuffer();
+        current.file.getFD().sync();
+        synced = written;
+        durable.signalAll();
+        current = openSegment(firstId);
+        deleteAcknowledgedSegments();
+    }
+
+    private void settle(long id) {
+        Map.Entry<Long, Segment> entry = segments.floorEntry(id);
+        if (entry != null) {
+            entry.getValue().live--;
+            entry.getValue().settled = written;
+            deleteAcknowledgedSegments();
+        }
+    }
+
+    /**
+     * Deletes the oldest segments as long as every element in them was acknowledged and the records appended up to
+     * their last acknowledgement are on disk. Younger segments are kept even if they are empty, they may hold the
+     * acknowledgements of the elements of older ones.
+     */
+    private void deleteAcknowledgedSegments() {
+        while (!segments.isEmpty()) {
+            Segment oldest = segments.firstEntry().getValue();
+            if (oldest == current || oldest.live > 0 || oldest.settled > synced) {
+                return;
+            }
+            segments.remove(oldest.firstId);
+            oldest.close();
+            if (!oldest.path.delete()) {
+                logger.warn("Failed to delete journal segment {}", oldest.path);
+            }
+        }
+    }
+
+    private void writeBuffer() throws IOException {
+        try {
+            current.file.write(buffer.array(), 0, buffer.position());
+        } finally {
+            buffer.clear();
+        }
+    }
+
+    private Segment openSegment(long firstId) throws IOException {
+        File path = new File(directory, String.format("%020d%s", firstId, SEGMENT_SUFFIX));
+        Segment segment = new Segment(path, new RandomAccessFile(path, "rw"), firstId);
+        segment.size = segment.file.length();
+        segment.file.seek(segment.size);
+        segments.put(firstId, segment);
+        return segment;
+    }
+
+    /**
+     * Reads every segment, truncating a torn record at the end of one, and returns the elements that were not
+     * acknowledged. New records go to a new segment, unless the last one read holds no element.
+     */
+    private List<Entry> replay() throws IOException {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        TreeMap<Long, File> ordered = new TreeMap<Long, File>();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                ordered.put(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())), file);
+            }
+        }
+        LinkedHashMap<Long, Entry> live = new LinkedHashMap<Long, Entry>();
+        for (Long firstId : ordered.keySet()) {
+            replaySegment(openSegment(firstId), live);
+        }
+        for (Entry entry : live.values()) {
+            segments.floorEntry(entry.id).getValue().live++;
+        }
+        if (!live.isEmpty()) {
+            logger.info("Recovered {} unacknowledged elements from journal {}", live.size(), directory);
+        }
+        return new ArrayList<Entry>(live.values());
+    }
+
+    private void replaySegment(Segment segment, Map<Long, Entry> live) throws IOException {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.path)));
+        long valid = 0;
+        try {
+            while (valid + RECORD_OVERHEAD <= segment.size) {
+                int length = input.readInt();
+                if (length < 1 + 8 || valid + RECORD_OVERHEAD - 1 - 8 + length > segment.size) {
+                    break;
+                }
+                byte[] body = new byte[length];
+                input.readFully(body);
+                int expected = input.readInt();
+                checksum.reset();
+                checksum.update(body, 0, length);
+                if ((int) checksum.getValue() != expected) {
+                    break;
+                }
+                ByteBuffer record = ByteBuffer.wrap(body);
+                byte type = record.get();
+                long id = record.getLong();
+                if (type == ENQUEUE) {
+                    int requeues = record.getInt();
+                    byte[] payload = new byte[record.remaining()];
+                    record.get(payload);
+                    live.put(id, new Entry(id, requeues, payload));
+                } else if (type == DELIVER) {
+                    Entry entry = live.get(id);
+                    if (entry != null) {
+                        entry.delivered = true;
+                    }
+                } else {
+                    live.remove(id);
+                }
+                nextId = Math.max(nextId, id + 1);
+                valid += RECORD_OVERHEAD - 1 - 8 + length;
+            }
+        } finally {
+            input.close();
+        }
+        if (valid < segment.size) {
+            logger.warn("Discarding {} bytes at the end of journal segment {}", segment.size - valid, segment.path);
+            segment.file.setLength(valid);
+            segment.file.seek(valid);
+            segment.size = valid;
+        }
+    }
+
+    /**
+     * Writes the buffered records and fsyncs them, right away for the threads waiting in {@link #sync()} and
+     * every flush interval otherwise.
+     */
+    private class Flusher implements Runnable {
+
+        @Override
+        public void run() {
+            while (true) {
+                Segment segment;
+                long target;
+                lock.lock();
+                try {
+                    while (!closed && failure == null && syncWaiters == 0) {
+                        if (written == synced) {
+                            flushRequested.await();
+                        } else if (flushRequested.awaitNanos(flushIntervalNanos) <= 0) {
+                            break;
+                        }
+                    }
+                    if (closed || failure != null) {
+                        return;
+                    }
+                    writeBuffer();
+                    segment = current;
+                    target = written;
+                } catch (InterruptedException e) {
+                    return;
+                } catch (IOException e) {
+                    fail(e);
+                    return;
+                } finally {
+                    lock.unlock();
+                }
+                try {
+                    //the waiting threads append to the buffer meanwhile, and are synced by the next round
+                    segment.file.getFD().sync();
+                } catch (IOException e) {
+                    if (!segment.closed) {
+                        lock.lock();
+                        try {
+                            fail(e);
+                            return;
+                        } finally {
+                            lock.unlock();
+                        }
+                    }
+                    //the segment was synced when the next one was started, and deleted since
+                }
+                lock.lock();
+                try {
+                    synced = Math.max(synced, target);
+                    durable.signalAll();
+                    if (!closed) {
+                        deleteAcknowledgedSegments();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    private static class Segment {
+
+        private final File path;
+        private final RandomAccessFile file;
+        private final long firstId;
+        private long size;
+        //elements enqueued in the segment that were not acknowledged
+        private int live;
+        //bytes written by the journal when an element of the segment was last acknowledged or re-queued
+        private long settled;
+        private volatile boolean closed;
+
+        Segment(File path, RandomAccessFile file, long firstId) {
+            this.path = path;
+            this.file = file;
+            this.firstId = firstId;
+        }
+
+        void close() {
+            closed = true;
+            try {
+                file.close();
+            } catch (IOException e) {
+                //nothing left to write
+            }
+        }
+    }
+
+    /**
+     * An element recovered from the journal.
+     */
+    public static class Entry {
+
+        private final long id;
+        private final int requeues;
+        private final byte[] payload;
+        private boolean delivered;
+
+        Entry(long id, int requeues, byte[] payload) {
+            this.id = id;
+            this.requeues = requeues;
+            this.payload = payload;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        /**
+         * Returns the number of times the element was re-queued before it was last written to the journal.
+         *
+         * @return the number of re-queues
+         */
+        public int getRequeues() {
+            return requeues;
+        }
+
+        public byte[] getPayload() {
+            return payload;
+        }
+
+        /**
+         * Returns true if the element was handed to a consumer that did not acknowledge it.
+         *
+         * @return true if the element was in flight
+         */
+        public boolean isDelivered() {
+            return delivered;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package org.gmelo.collection.impl.metrics;
+
+import org.gmelo.collection.LatencyHistogram;
+import org.gmelo.collection.QueueMetrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Queue metrics recorded with striped counters, producers, consumers and the expiry thread updating them at the
+ * same time do not contend with each other.
+ *
+ * User: GMelo
+ */
+public class StripedQueueMetrics implements QueueMetrics {
+
+    private final LongAdder enqueued = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder acknowledged = new LongAdder();
+    private final LongAdder negativelyAcknowledged = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+    private final LongAdder deadLettered = new LongAdder();
+    private final StripedLatencyHistogram timeInQueue = new StripedLatencyHistogram();
+    private final StripedLatencyHistogram ackLatency = new StripedLatencyHistogram();
+
+    /**
+     * Records elements inserted by producers.
+     */
+    public void enqueued(int elements) {
+        enqueued.add(elements);
+    }
+
+    /**
+     * Records the delivery of an element that waited in the queue for the given time.
+     */
+    public void delivered(long timeInQueueNanos) {
+        delivered.increment();
+        timeInQueue.record(timeInQueueNanos);
+    }
+
+    /**
+     * Records a positive acknowledgement given the given time after the delivery.
+     */
+    public void acknowledged(long ackLatencyNanos) {
+        acknowledged.increment();
+        ackLatency.record(ackLatencyNanos);
+    }
+
+    /**
+     * Records a negative acknowledgement given the given time after the delivery.
+     */
+    public void negativelyAcknowledged(long ackLatencyNanos) {
+        negativelyAcknowledged.increment();
+        ackLatency.record(ackLatencyNanos);
+    }
+
+    /**
+     * Records a delivery whose acknowledgement timed out.
+     */
+    public void timedOut() {
+        timedOut.increment();
+    }
+
+    /**
+     * Records an element sent to the dead letter queue.
+     */
+    public void deadLettered() {
+        deadLettered.increment();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getEnqueued() {
+        return enqueued.sum();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getDelivered() {
+        return delivered.sum();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getAcknowledged() {
+        return acknowledged.sum();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getNegativelyAcknowledged() {
+        return negativelyAcknowledged.sum();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getTimedOut() {
+        return timedOut.sum();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getDeadLettered() {
+        return deadLettered.sum();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public LatencyHistogram getTimeInQueue() {
+        return timeInQueue;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public LatencyHistogram getAckLatency() {
+        return ackLatency;
+    }
+
+    @Override
+    public String toString() {
+        return "QueueMetrics{" +
+                "enqueued=" + getEnqueued() +
+                ", delivered=" + getDelivered() +
+                ", acknowledged=" + getAcknowledged() +
+                ", negativelyAcknowledged=" + getNegativelyAcknowledged() +
+                ", timedOut=" + getTimedOut() +
+                ", deadLettered=" + getDeadLettered() +
+                '}';
+    }
+}
@@ -0,0 +1,86 @@
+package org.gmelo.collection.impl.redelivery;
+
+import org.gmelo.collection.RedeliveryPolicy;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Multiplies the delay before a redelivery by the same factor every time an element is re-queued, up to a
+ * maximum.
+ * <p/>
+ * A jitter of j takes a random part, up to j, off every delay, so that the elements that failed together during
+ * an outage do not all come back at the same instant once it is over. A jitter of 0 gives the exact delays, a
+ * jitter of 1 spreads them evenly between 0 and the exact delay.
+ *
+ * User: GMelo
+ */
+public class ExponentialBackoffRedeliveryPolicy implements RedeliveryPolicy {
+
+    private final long initialDelayMillis;
+    private final long maximumDelayMillis;
+    private final double multiplier;
+    private final double jitter;
+
+    /**
+     * Creates a policy doubling the delay every time, with a jitter of 0.5
+     *
+     * @param initialDelay the delay before the first redelivery
+     * @param maximumDelay the longest delay
+     * @param unit         a TimeUnit determining how to interpret the delay parameters
+     */
+    public ExponentialBackoffRedeliveryPolicy(long initialDelay, long maximumDelay, TimeUnit unit) {
+        this(initialDelay, maximumDelay, unit, 2, 0.5);
+    }
+
+    /**
+     * @param initialDelay the delay before the first redelivery
+     * @param maximumDelay the longest delay
+     * @param unit         a TimeUnit determining how to interpret the delay parameters
+     * @param multiplier   the factor applied to the delay on every redelivery, at least 1
+     * @param jitter       the largest part of a delay taken off at random, between 0 and 1
+     */
+    public ExponentialBackoffRedeliveryPolicy(long initialDelay, long maximumDelay, TimeUnit unit,
+                                              double multiplier, double jitter) {
+        if (initialDelay < 0 || maximumDelay < initialDelay) {
+            throw new IllegalArgumentException("Delays must be positive and the maximum at least the initial one: "
+                    + initialDelay + ", " + maximumDelay);
+        }
+        if (multiplier < 1) {
+            throw new IllegalArgumentException("multiplier must be at least 1: " + multiplier);
+        }
+        if (jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("jitter must be between 0 and 1: " + jitter);
+        }
+        this.initialDelayMillis = unit.toMillis(initialDelay);
+        this.maximumDelayMillis = unit.toMillis(maximumDelay);
+        this.multiplier = multiplier;
+        this.jitter = jitter;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long redeliveryDelay(int requeues) {
+        double delay = initialDelayMillis * Math.pow(multiplier, Math.max(0, requeues - 1));
+        //the power overflows to infinity for large counts, which times an initial delay of 0 is NaN
+        if (!(delay < maximumDelayMillis)) {
+            delay = initialDelayMillis == 0 ? 0 : maximumDelayMillis;
+        }
+        if (jitter > 0) {
+            delay -= delay * jitter * ThreadLocalRandom.current().nextDouble();
+        }
+        return Math.round(delay);
+    }
+
+    @Override
+    public String toString() {
+        return "ExponentialBackoffRedeliveryPolicy{" +
+                "initialDelayMillis=" + initialDelayMillis +
+                ", maximumDelayMillis=" + maximumDelayMillis +
+                ", multiplier=" + multiplier +
+                ", jitter=" + jitter +
+                '}';
+    }
+}
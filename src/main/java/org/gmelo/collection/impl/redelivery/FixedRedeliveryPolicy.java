@@ -0,0 +1,41 @@
+package org.gmelo.collection.impl.redelivery;
+
+import org.gmelo.collection.RedeliveryPolicy;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Waits the same time before every redelivery, a delay of 0 puts elements back in the queue right away.
+ *
+ * User: GMelo
+ */
+public class FixedRedeliveryPolicy implements RedeliveryPolicy {
+
+    private final long delayMillis;
+
+    /**
+     * @param delay the time to wait before every redelivery
+     * @param unit  a TimeUnit determining how to interpret the delay parameter
+     */
+    public FixedRedeliveryPolicy(long delay, TimeUnit unit) {
+        if (delay < 0) {
+            throw new IllegalArgumentException("delay must not be negative: " + delay);
+        }
+        this.delayMillis = unit.toMillis(delay);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long redeliveryDelay(int requeues) {
+        return delayMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "FixedRedeliveryPolicy{" +
+                "delayMillis=" + delayMillis +
+                '}';
+    }
+}
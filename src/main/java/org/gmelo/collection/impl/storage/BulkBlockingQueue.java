@@ -0,0 +1,27 @@
+package org.gmelo.collection.impl.storage;
+
+import java.util.Collection;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A BlockingQueue that can insert a number of elements at once, taking its locks and waking up
+ * waiting consumers once for the whole batch.
+ *
+ * @param <T> The type of element to be stored in the queue
+ *
+ * User: GMelo
+ */
+public interface BulkBlockingQueue<T> extends BlockingQueue<T> {
+
+    /**
+     * Inserts the elements at the tail of the queue, in iteration order, if it is possible to do so
+     * immediately without exceeding the capacity of the queue.
+     *
+     * @param elements     the elements to insert
+     * @param allOrNothing if true nothing is inserted unless every element fits, otherwise as many elements as fit
+     *                     are inserted
+     * @return the number of elements inserted
+     * @throws NullPointerException if any of the elements is null, in which case nothing is inserted
+     */
+    public int offerAll(Collection<? extends T> elements, boolean allOrNothing);
+}
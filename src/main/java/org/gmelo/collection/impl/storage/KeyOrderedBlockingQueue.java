@@ -0,0 +1,412 @@
+package org.gmelo.collection.impl.storage;
+
+import org.gmelo.collection.KeyExtractor;
+import org.gmelo.collection.impl.Envelope;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Storage of a queue with acknowledgements that delivers the elements of the same key one at a time and in
+ * order, e.g. the events of an account.
+ * <p/>
+ * The elements of each key wait in their own FIFO lane. Taking the head of a lane makes the lane busy: the
+ * next element of the key cannot be taken until the queue calls {@link #release(Envelope)}, once the element
+ * taken is acknowledged or dead-lettered. An element that is re-queued instead goes back to the head of its lane
+ * with {@link #requeue(Envelope)}, ahead of the elements of its key inserted since. Lanes whose head can be taken
+ * are served in the order they became available.
+ * <p/>
+ * The capacity bounds the elements waiting in the lanes, re-queued elements are always accepted. size() counts
+ * the elements waiting behind a busy lane, which cannot be taken, so a non empty queue may have nothing to take.
+ * <p/>
+ * A single lock guards the lanes. The key of an element is read before the lock is taken.
+ *
+ * @param <T> The type of element to be stored in the queue
+ *
+ * User: GMelo
+ */
+public class KeyOrderedBlockingQueue<T> extends AbstractQueue<Envelope<T>>
+        implements BulkBlockingQueue<Envelope<T>> {
+
+    private final KeyExtractor<? super T> keyExtractor;
+    private final int capacity;
+    //lanes with elements waiting or an element taken, by key
+    private final Map<Object, Lane<T>> lanes = new LinkedHashMap<Object, Lane<T>>();
+    //lanes whose head can be taken
+    private final ArrayDeque<Lane<T>> ready = new ArrayDeque<Lane<T>>();
+    //number of elements waiting in the lanes
+    private int count;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    /**
+     * Creates a queue with a capacity of Integer.MAX_VALUE
+     *
+     * @param keyExtractor the key extractor of the elements
+     */
+    public KeyOrderedBlockingQueue(KeyExtractor<? super T> keyExtractor) {
+        this(Integer.MAX_VALUE, keyExtractor);
+    }
+
+    /**
+     * @param capacity     the maximum number of elements waiting in the lanes
+     * @param keyExtractor the key extractor of the elements
+     */
+    public KeyOrderedBlockingQueue(int capacity, KeyExtractor<? super T> keyExtractor) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        if (keyExtractor == null) {
+            throw new NullPointerException("keyExtractor");
+        }
+        this.capacity = capacity;
+        this.keyExtractor = keyExtractor;
+    }
+
+    /**
+     * Puts a taken element back at the head of its lane, and makes the lane available again.
+     *
+     * @param envelope the element taken from this queue
+     */
+    public void requeue(Envelope<T> envelope) {
+        Object key = keyOf(envelope);
+        lock.lock();
+        try {
+            Lane<T> lane = lanes.get(key);
+            if (lane == null) {
+                lane = new Lane<T>(key);
+                lanes.put(key, lane);
+                lane.elements.addFirst(envelope);
+                makeReady(lane);
+            } else {
+                lane.elements.addFirst(envelope);
+                if (lane.busy) {
+                    lane.busy = false;
+                    makeReady(lane);
+                }
+            }
+            count++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Makes the next element of the key of a taken element available, once the element is done with.
+     *
+     * @param envelope the element taken from this queue
+     */
+    public void release(Envelope<T> envelope) {
+        Object key = keyOf(envelope);
+        lock.lock();
+        try {
+            Lane<T> lane = lanes.get(key);
+            if (lane == null || !lane.busy) {
+                return;
+            }
+            lane.busy = false;
+            if (lane.elements.isEmpty()) {
+                lanes.remove(key);
+            } else {
+                makeReady(lane);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean offer(Envelope<T> envelope) {
+        Object key = keyOf(envelope);
+        lock.lock();
+        try {
+            if (count == capacity) {
+                return false;
+            }
+            insert(envelope, key);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void put(Envelope<T> envelope) throws InterruptedException {
+        Object key = keyOf(envelope);
+        lock.lockInterruptibly();
+        try {
+            while (count == capacity) {
+                notFull.await();
+            }
+            insert(envelope, key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean offer(Envelope<T> envelope, long timeout, TimeUnit unit) throws InterruptedException {
+        Object key = keyOf(envelope);
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (count == capacity) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = notFull.awaitNanos(nanos);
+            }
+            insert(envelope, key);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int offerAll(Collection<? extends Envelope<T>> elements, boolean allOrNothing) {
+        List<Object> keys = new ArrayList<Object>(elements.size());
+        for (Envelope<T> envelope : elements) {
+            keys.add(keyOf(envelope));
+        }
+        lock.lock();
+        try {
+            if (allOrNothing && capacity - count < keys.size()) {
+                return 0;
+            }
+            int inserted = 0;
+            for (Envelope<T> envelope : elements) {
+                if (count == capacity) {
+                    break;
+                }
+                insert(envelope, keys.get(inserted++));
+            }
+            return inserted;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Envelope<T> poll() {
+        lock.lock();
+        try {
+            return ready.isEmpty() ? null : extract();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Envelope<T> take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (ready.isEmpty()) {
+                notEmpty.await();
+            }
+            return extract();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Envelope<T> poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (ready.isEmpty()) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return extract();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Returns the element that would be taken next, null if every lane is busy.
+     */
+    @Override
+    public Envelope<T> peek() {
+        lock.lock();
+        try {
+            Lane<T> lane = ready.peek();
+            return lane != null ? lane.elements.peekFirst() : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int drainTo(Collection<? super Envelope<T>> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Drains at most one element of each key.
+     */
+    @Override
+    public int drainTo(Collection<? super Envelope<T>> c, int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException("Cannot drain a queue to itself");
+        }
+        lock.lock();
+        try {
+            int drained = 0;
+            while (drained < maxElements && !ready.isEmpty()) {
+                c.add(extract());
+                drained++;
+            }
+            return drained;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int remainingCapacity() {
+        lock.lock();
+        try {
+            return capacity - count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Iterates over a snapshot of the elements waiting, lane by lane, and does not support remove.
+     */
+    @Override
+    public Iterator<Envelope<T>> iterator() {
+        List<Envelope<T>> snapshot = new ArrayList<Envelope<T>>();
+        lock.lock();
+        try {
+            for (Lane<T> lane : lanes.values()) {
+                snapshot.addAll(lane.elements);
+            }
+        } finally {
+            lock.unlock();
+        }
+        return Collections.unmodifiableList(snapshot).iterator();
+    }
+
+    private Object keyOf(Envelope<T> envelope) {
+        if (envelope == null) {
+            throw new NullPointerException();
+        }
+        return keyExtractor.keyOf(envelope.getElement());
+    }
+
+    /**
+     * Appends an element to its lane, holding the lock.
+     */
+    private void insert(Envelope<T> envelope, Object key) {
+        Lane<T> lane = lanes.get(key);
+        if (lane == null) {
+            lane = new Lane<T>(key);
+            lanes.put(key, lane);
+            lane.elements.addLast(envelope);
+            makeReady(lane);
+        } else {
+            lane.elements.addLast(envelope);
+        }
+        count++;
+    }
+
+    /**
+     * Takes the head of the first lane available and makes the lane busy, holding the lock.
+     */
+    private Envelope<T> extract() {
+        Lane<T> lane = ready.poll();
+        Envelope<T> envelope = lane.elements.pollFirst();
+        lane.busy = true;
+        count--;
+        notFull.signal();
+        return envelope;
+    }
+
+    private void makeReady(Lane<T> lane) {
+        ready.addLast(lane);
+        notEmpty.signal();
+    }
+
+    /**
+     * The elements waiting for a key, available to be taken unless busy.
+     *
+     * @param <T>
+     */
+    private static class Lane<T> {
+
+        private final Object key;
+        private final ArrayDeque<Envelope<T>> elements = new ArrayDeque<Envelope<T>>();
+        //true while an element of the key is taken
+        private boolean busy;
+
+        public Lane(Object key) {
+            this.key = key;
+        }
+
+        @Override
+        public String toString() {
+            return "Lane{" +
+                    "key=" + key +
+                    ", waiting=" + elements.size() +
+                    ", busy=" + busy +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,509 @@
+package org.gmelo.collection.impl.storage;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An optionally-bounded blocking queue based on linked nodes, with the same two lock design as
+ * link#http://docs.oracle.com/javase/7/docs/api/java/util/concurrent/LinkedBlockingQueue.html: producers only
+ * contend on the put lock and consumers on the take lock.
+ * <p/>
+ * On top of that {@link #offerAll(Collection, boolean)} links a whole batch of nodes, created before taking the
+ * lock, with a single acquisition of the put lock and a single signal to the waiting consumers.
+ * <p/>
+ * Iterators work on a snapshot of the queue taken when they are created and do not support removal.
+ *
+ * @param <T> The type of element to be stored in the queue
+ *
+ * User: GMelo
+ */
+public class LinkedBlockingBulkQueue<T> extends AbstractQueue<T> implements BulkBlockingQueue<T> {
+
+    private static class Node<T> {
+        T item;
+        Node<T> next;
+
+        Node(T item) {
+            this.item = item;
+        }
+    }
+
+    private final int capacity;
+    private final AtomicInteger count = new AtomicInteger();
+
+    //head.item is always null
+    private Node<T> head;
+    private Node<T> last;
+
+    private final ReentrantLock takeLock = new ReentrantLock();
+    private final Condition notEmpty = takeLock.newCondition();
+    private final ReentrantLock putLock = new ReentrantLock();
+    private final Condition notFull = putLock.newCondition();
+
+    /**
+     * Creates a queue with a capacity of Integer.MAX_VALUE
+     */
+    public LinkedBlockingBulkQueue() {
+        this(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Creates a queue with the given capacity
+     *
+     * @param capacity the capacity of the queue
+     */
+    public LinkedBlockingBulkQueue(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        last = head = new Node<T>(null);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int offerAll(Collection<? extends T> elements, boolean allOrNothing) {
+        if (elements.isEmpty()) {
+            return 0;
+        }
+        Node<T> first = null;
+        Node<T> tail = null;
+        int size = 0;
+        for (T element : elements) {
+            if (element == null) {
+                throw new NullPointerException();
+            }
+            Node<T> node = new Node<T>(element);
+            if (first == null) {
+                first = node;
+            } else {
+                tail.next = node;
+            }
+            tail = node;
+            size++;
+        }
+        int inserted;
+        int c;
+        putLock.lock();
+        try {
+            int available = capacity - count.get();
+            if (available <= 0 || (allOrNothing && size > available)) {
+                return 0;
+            }
+            inserted = Math.min(size, available);
+            if (inserted < size) {
+                tail = first;
+                for (int i = 1; i < inserted; i++) {
+                    tail = tail.next;
+                }
+                tail.next = null;
+            }
+            last.next = first;
+            last = tail;
+            c = count.getAndAdd(inserted);
+            if (c + inserted < capacity) {
+                notFull.signal();
+            }
+        } finally {
+            putLock.unlock();
+        }
+        if (c == 0) {
+            signalNotEmpty();
+        }
+        return inserted;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void put(T t) throws InterruptedException {
+        if (t == null) {
+            throw new NullPointerException();
+        }
+        Node<T> node = new Node<T>(t);
+        int c;
+        putLock.lockInterruptibly();
+        try {
+            while (count.get() == capacity) {
+                notFull.await();
+            }
+            c = enqueue(node);
+        } finally {
+            putLock.unlock();
+        }
+        if (c == 0) {
+            signalNotEmpty();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean offer(T t, long timeout, TimeUnit unit) throws InterruptedException {
+        if (t == null) {
+            throw new NullPointerException();
+        }
+        long nanos = unit.toNanos(timeout);
+        Node<T> node = new Node<T>(t);
+        int c;
+        putLock.lockInterruptibly();
+        try {
+            while (count.get() == capacity) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = notFull.awaitNanos(nanos);
+            }
+            c = enqueue(node);
+        } finally {
+            putLock.unlock();
+        }
+        if (c == 0) {
+            signalNotEmpty();
+        }
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean offer(T t) {
+        if (t == null) {
+            throw new NullPointerException();
+        }
+        if (count.get() == capacity) {
+            return false;
+        }
+        Node<T> node = new Node<T>(t);
+        int c = -1;
+        putLock.lock();
+        try {
+            if (count.get() < capacity) {
+                c = enqueue(node);
+            }
+        } finally {
+            putLock.unlock();
+        }
+        if (c == 0) {
+            signalNotEmpty();
+        }
+        return c >= 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public T take() throws InterruptedException {
+        T t;
+        int c;
+        takeLock.lockInterruptibly();
+        try {
+            while (count.get() == 0) {
+                notEmpty.await();
+            }
+            t = dequeue();
+            c = count.getAndDecrement();
+            if (c > 1) {
+                notEmpty.signal();
+            }
+        } finally {
+            takeLock.unlock();
+        }
+        if (c == capacity) {
+            signalNotFull();
+        }
+        return t;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        T t;
+        int c;
+        takeLock.lockInterruptibly();
+        try {
+            while (count.get() == 0) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            t = dequeue();
+            c = count.getAndDecrement();
+            if (c > 1) {
+                notEmpty.signal();
+            }
+        } finally {
+            takeLock.unlock();
+        }
+        if (c == capacity) {
+            signalNotFull();
+        }
+        return t;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public T poll() {
+        if (count.get() == 0) {
+            return null;
+        }
+        T t = null;
+        int c = -1;
+        takeLock.lock();
+        try {
+            if (count.get() > 0) {
+                t = dequeue();
+                c = count.getAndDecrement();
+                if (c > 1) {
+                    notEmpty.signal();
+                }
+            }
+        } finally {
+            takeLock.unlock();
+        }
+        if (c == capacity) {
+            signalNotFull();
+        }
+        return t;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public T peek() {
+        if (count.get() == 0) {
+            return null;
+        }
+        takeLock.lock();
+        try {
+            Node<T> first = head.next;
+            return first == null ? null : first.item;
+        } finally {
+            takeLock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int drainTo(Collection<? super T> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int drainTo(Collection<? super T> c, int maxElements) {
+        if (c == null) {
+            throw new NullPointerException();
+        }
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        if (maxElements <= 0) {
+            return 0;
+        }
+        boolean signalNotFull = false;
+        int drained = 0;
+        takeLock.lock();
+        try {
+            int n = Math.min(maxElements, count.get());
+            while (drained < n) {
+                c.add(dequeue());
+                drained++;
+            }
+        } finally {
+            if (drained > 0) {
+                signalNotFull = count.getAndAdd(-drained) == capacity;
+            }
+            takeLock.unlock();
+        }
+        if (signalNotFull) {
+            signalNotFull();
+        }
+        return drained;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean remove(Object o) {
+        if (o == null) {
+            return false;
+        }
+        fullyLock();
+        try {
+            for (Node<T> trail = head, p = trail.next; p != null; trail = p, p = p.next) {
+                if (o.equals(p.item)) {
+                    unlink(p, trail);
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            fullyUnlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean contains(Object o) {
+        if (o == null) {
+            return false;
+        }
+        fullyLock();
+        try {
+            for (Node<T> p = head.next; p != null; p = p.next) {
+                if (o.equals(p.item)) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            fullyUnlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Iterator<T> iterator() {
+        return Collections.unmodifiableList(snapshot()).iterator();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object[] toArray() {
+        return snapshot().toArray();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public <T1> T1[] toArray(T1[] a) {
+        return snapshot().toArray(a);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size() {
+        return count.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int remainingCapacity() {
+        return capacity - count.get();
+    }
+
+    private List<T> snapshot() {
+        fullyLock();
+        try {
+            List<T> list = new ArrayList<T>(count.get());
+            for (Node<T> p = head.next; p != null; p = p.next) {
+                list.add(p.item);
+            }
+            return list;
+        } finally {
+            fullyUnlock();
+        }
+    }
+
+    /**
+     * Links a node at the end of the queue, must hold the put lock.
+     *
+     * @return the count before the insertion
+     */
+    private int enqueue(Node<T> node) {
+        last = last.next = node;
+        int c = count.getAndIncrement();
+        if (c + 1 < capacity) {
+            notFull.signal();
+        }
+        return c;
+    }
+
+    /**
+     * Removes a node from the head of the queue, must hold the take lock.
+     */
+    private T dequeue() {
+        Node<T> h = head;
+        Node<T> first = h.next;
+        h.next = h;
+        head = first;
+        T t = first.item;
+        first.item = null;
+        return t;
+    }
+
+    /**
+     * Unlinks interior node p with predecessor trail, must hold both locks.
+     */
+    private void unlink(Node<T> p, Node<T> trail) {
+        p.item = null;
+        trail.next = p.next;
+        if (last == p) {
+            last = trail;
+        }
+        if (count.getAndDecrement() == capacity) {
+            notFull.signal();
+        }
+    }
+
+    private void signalNotEmpty() {
+        takeLock.lock();
+        try {
+            notEmpty.signal();
+        } finally {
+            takeLock.unlock();
+        }
+    }
+
+    private void signalNotFull() {
+        putLock.lock();
+        try {
+            notFull.signal();
+        } finally {
+            putLock.unlock();
+        }
+    }
+
+    private void fullyLock() {
+        putLock.lock();
+        takeLock.lock();
+    }
+
+    private void fullyUnlock() {
+        takeLock.unlock();
+        putLock.unlock();
+    }
+}
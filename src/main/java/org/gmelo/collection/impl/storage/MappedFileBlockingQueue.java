@@ -0,0 +1,515 @@
+package org.gmelo.collection.impl.storage;
+
+import org.gmelo.collection.Codec;
+import org.gmelo.collection.impl.Envelope;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A blocking queue whose elements are kept off the heap, in memory-mapped segment files, so that the number of
+ * elements waiting is bounded by the disk rather than the heap.
+ * <p/>
+ * Only an index entry is kept on the heap for every element, in a ring of parallel arrays: the segment, offset
+ * and length of the element and the fields of its envelope, 44 bytes per element with compressed references and
+ * 52 bytes without, plus the last failure of the elements that failed before. The index doubles when it is full
+ * and halves when it is a quarter full, down to its initial size, so a burst does not keep its index. Elements are
+ * encoded by a {@link Codec} straight into the tail segment when they are inserted and decoded when they are
+ * taken, a segment file is deleted once every element in it was taken. An element larger than a segment starts
+ * a segment large enough to hold it.
+ * <p/>
+ * The files are only a place to keep the elements out of the heap, they are not read back after a restart,
+ * see {@link org.gmelo.collection.impl.journal.SegmentedJournal} for durability. Mapped memory is returned to
+ * the operating system when the buffers of deleted segments are garbage collected.
+ * <p/>
+ * The queue uses a single lock, like ArrayBlockingQueue, iterators work on a snapshot and removing arbitrary
+ * elements is not supported.
+ *
+ * @param <T> The type of element stored in the queue
+ *
+ * User: GMelo
+ */
+public class MappedFileBlockingQueue<T> extends AbstractQueue<Envelope<T>>
+        implements BulkBlockingQueue<Envelope<T>>, Closeable {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    private static final int INITIAL_INDEX_SIZE = 1024;
+
+    private final Logger logger = LoggerFactory.getLogger(MappedFileBlockingQueue.class);
+
+    private final File directory;
+    private final Codec<T> codec;
+    private final int segmentSize;
+    private final int capacity;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    //index of the elements, parallel arrays used as a ring starting at head
+    private Segment[] segments = new Segment[INITIAL_INDEX_SIZE];
+    private int[] offsets = new int[INITIAL_INDEX_SIZE];
+    private int[] lengths = new int[INITIAL_INDEX_SIZE];
+    private long[] enqueueTimes = new long[INITIAL_INDEX_SIZE];
+    private int[] requeueCounts = new int[INITIAL_INDEX_SIZE];
+    private long[] journalIds = new long[INITIAL_INDEX_SIZE];
+    private long[] firstSeenTimes = new long[INITIAL_INDEX_SIZE];
+    //only the elements that failed before have a last failure, kept on the heap
+    private String[] lastFailures = new String[INITIAL_INDEX_SIZE];
+    private int head;
+    private int count;
+    //segment the elements are appended to
+    private Segment tail;
+    private boolean closed;
+
+    /**
+     * Creates an unbounded queue with the default segment size
+     *
+     * @param directory the directory of the segment files
+     * @param codec     the codec of the elements
+     */
+    public MappedFileBlockingQueue(File directory, Codec<T> codec) {
+        this(directory, codec, DEFAULT_SEGMENT_SIZE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Creates a queue
+     *
+     * @param directory   the directory of the segment files
+     * @param codec       the codec of the elements
+     * @param segmentSize the size in bytes of each segment file
+     * @param capacity    the maximum number of elements in the queue
+     */
+    public MappedFileBlockingQueue(File directory, Codec<T> codec, int segmentSize, int capacity) {
+        if (segmentSize <= 0 || capacity <= 0) {
+            throw new IllegalArgumentException("Segment size and capacity must be positive");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalArgumentException("Cannot create directory " + directory);
+        }
+        this.directory = directory;
+        this.codec = codec;
+        this.segmentSize = segmentSize;
+        this.capacity = capacity;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean offer(Envelope<T> envelope) {
+        if (envelope == null) {
+            throw new NullPointerException();
+        }
+        lock.lock();
+        try {
+            if (count == capacity) {
+                return false;
+            }
+            enqueue(envelope);
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int offerAll(Collection<? extends Envelope<T>> elements, boolean allOrNothing) {
+        for (Envelope<T> envelope : elements) {
+            if (envelope == null) {
+                throw new NullPointerException();
+            }
+        }
+        lock.lock();
+        try {
+            int free = capacity - count;
+            if (free == 0 || (allOrNothing && free < elements.size())) {
+                return 0;
+            }
+            int inserted = 0;
+            for (Envelope<T> envelope : elements) {
+                if (inserted == free) {
+                    break;
+                }
+                enqueue(envelope);
+                inserted++;
+            }
+            notEmpty.signalAll();
+            return inserted;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void put(Envelope<T> envelope) throws InterruptedException {
+        if (envelope == null) {
+            throw new NullPointerException();
+        }
+        lock.lockInterruptibly();
+        try {
+            while (count == capacity) {
+                notFull.await();
+            }
+            enqueue(envelope);
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean offer(Envelope<T> envelope, long timeout, TimeUnit unit) throws InterruptedException {
+        if (envelope == null) {
+            throw new NullPointerException();
+        }
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (count == capacity) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = notFull.awaitNanos(nanos);
+            }
+            enqueue(envelope);
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Envelope<T> poll() {
+        lock.lock();
+        try {
+            return count == 0 ? null : dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Envelope<T> take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                notEmpty.await();
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Envelope<T> poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Envelope<T> peek() {
+        lock.lock();
+        try {
+            return count == 0 ? null : read(head);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int drainTo(Collection<? super Envelope<T>> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int drainTo(Collection<? super Envelope<T>> c, int maxElements) {
+        if (c == null) {
+            throw new NullPointerException();
+        }
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        lock.lock();
+        try {
+            int drained = 0;
+            while (drained < maxElements && count > 0) {
+                c.add(dequeue());
+                drained++;
+            }
+            return drained;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Iterator<Envelope<T>> iterator() {
+        lock.lock();
+        try {
+            List<Envelope<T>> snapshot = new ArrayList<Envelope<T>>(count);
+            for (int i = 0; i < count; i++) {
+                snapshot.add(read(index(head + i)));
+            }
+            return Collections.unmodifiableList(snapshot).iterator();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int remainingCapacity() {
+        return capacity - size();
+    }
+
+    /**
+     * Drops every element and deletes the segment files.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            Set<Segment> open = new HashSet<Segment>();
+            for (int i = 0; i < count; i++) {
+                open.add(segments[index(head + i)]);
+            }
+            if (tail != null) {
+                open.add(tail);
+            }
+            for (Segment segment : open) {
+                delete(segment);
+            }
+            tail = null;
+            count = 0;
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void enqueue(Envelope<T> envelope) {
+        if (closed) {
+            throw new IllegalStateException("Queue closed");
+        }
+        if (count == offsets.length) {
+            resize(offsets.length > Integer.MAX_VALUE / 2 ? Integer.MAX_VALUE : offsets.length * 2);
+        }
+        if (tail != null && tail.unread == 0) {
+            //every element of the tail was taken, start it over instead of mapping a new file
+            tail.position = 0;
+        }
+        if (tail == null) {
+            tail = new Segment(directory, segmentSize);
+        }
+        int length = write(envelope.getElement());
+        int index = index(head + count);
+        segments[index] = tail;
+        offsets[index] = tail.position;
+        lengths[index] = length;
+        enqueueTimes[index] = envelope.getEnqueueTime();
+        requeueCounts[index] = envelope.getRequeueCount();
+        journalIds[index] = envelope.getJournalId();
+        firstSeenTimes[index] = envelope.getFirstSeenTime();
+        lastFailures[index] = envelope.getLastFailure();
+        tail.position += length;
+        tail.unread++;
+        count++;
+    }
+
+    /**
+     * Encodes the element after the last one of the tail, in a new tail if it does not fit, twice as large as
+     * the tail if the element does not fit in an empty one.
+     *
+     * @return the number of bytes written
+     */
+    private int write(T element) {
+        while (true) {
+            ByteBuffer buffer = tail.buffer;
+            buffer.position(tail.position);
+            try {
+                codec.encode(element, buffer);
+                return buffer.position() - tail.position;
+            } catch (BufferOverflowException e) {
+                int size = segmentSize;
+                if (tail.position == 0) {
+                    if (tail.size == Integer.MAX_VALUE) {
+                        throw new IllegalArgumentException("Element too large for a segment: " + element);
+                    }
+                    size = tail.size > Integer.MAX_VALUE / 2 ? Integer.MAX_VALUE : tail.size * 2;
+                }
+                if (tail.unread == 0) {
+                    delete(tail);
+                }
+                tail = new Segment(directory, size);
+            }
+        }
+    }
+
+    private Envelope<T> dequeue() {
+        Envelope<T> envelope = read(head);
+        Segment segment = segments[head];
+        segments[head] = null;
+        lastFailures[head] = null;
+        head = index(head + 1);
+        count--;
+        if (--segment.unread == 0 && segment != tail) {
+            delete(segment);
+        }
+        if (offsets.length > INITIAL_INDEX_SIZE && count <= offsets.length / 4) {
+            resize(offsets.length / 2);
+        }
+        notFull.signal();
+        return envelope;
+    }
+
+    private Envelope<T> read(int index) {
+        ByteBuffer buffer = segments[index].buffer;
+        buffer.limit(offsets[index] + lengths[index]);
+        buffer.position(offsets[index]);
+        try {
+            return new Envelope<T>(codec.decode(buffer), enqueueTimes[index], requeueCounts[index],
+                    journalIds[index], firstSeenTimes[index], lastFailures[index]);
+        } finally {
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Moves the index to arrays of the given length, the elements are moved to the start of the new arrays.
+     */
+    private void resize(int length) {
+        int first = Math.min(count, offsets.length - head);
+        int rest = count - first;
+        segments = move(segments, new Segment[length], first, rest);
+        offsets = move(offsets, new int[length], first, rest);
+        lengths = move(lengths, new int[length], first, rest);
+        enqueueTimes = move(enqueueTimes, new long[length], first, rest);
+        requeueCounts = move(requeueCounts, new int[length], first, rest);
+        journalIds = move(journalIds, new long[length], first, rest);
+        firstSeenTimes = move(firstSeenTimes, new long[length], first, rest);
+        lastFailures = move(lastFailures, new String[length], first, rest);
+        head = 0;
+    }
+
+    /**
+     * Copies the first entries of the ring from the head to the end of the array, then the rest from its start.
+     */
+    private <A> A move(A from, A to, int first, int rest) {
+        System.arraycopy(from, head, to, 0, first);
+        System.arraycopy(from, 0, to, first, rest);
+        return to;
+    }
+
+    private void delete(Segment segment) {
+        if (!segment.file.delete()) {
+            logger.warn("Failed to delete segment {}", segment.file);
+        }
+    }
+
+    private int index(int position) {
+        return position % offsets.length;
+    }
+
+    /**
+     * A memory-mapped file holding the encoded elements one after the other.
+     */
+    private static class Segment {
+
+        private final File file;
+        private final MappedByteBuffer buffer;
+        private final int size;
+        //where the next element is written
+        private int position;
+        //elements written in the segment that were not taken
+        private int unread;
+
+        Segment(File directory, int size) {
+            this.size = size;
+            try {
+                file = File.createTempFile("segment-", ".mapped", directory);
+                RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+                try {
+                    randomAccessFile.setLength(size);
+                    buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+                } finally {
+                    randomAccessFile.close();
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot map a segment in " + directory, e);
+            }
+        }
+    }
+}
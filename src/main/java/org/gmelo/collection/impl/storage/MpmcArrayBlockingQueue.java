@@ -0,0 +1,402 @@
+package org.gmelo.collection.impl.storage;
+
+import org.gmelo.collection.StorageFactory;
+
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * A bounded, lock free, multi-producer multi-consumer blocking queue backed by a preallocated ring buffer.
+ * <p/>
+ * Every slot of the ring carries a sequence number telling producers and consumers whether it is free for the
+ * current lap, so inserting and removing an element is a CAS on the tail or the head and does not allocate.
+ * Threads that have to block park on a lock and a condition, which is only touched when someone is waiting.
+ * <p/>
+ * {@link #offerAll(Collection, boolean)} claims all the slots it needs with a single CAS.
+ * size, peek, contains and iteration are best effort while other threads are modifying the queue, iterators
+ * work on a snapshot and removing arbitrary elements is not supported.
+ *
+ * @param <T> The type of element to be stored in the queue
+ *
+ * User: GMelo
+ */
+public class MpmcArrayBlockingQueue<T> extends AbstractQueue<T> implements BulkBlockingQueue<T> {
+
+    private final int capacity;
+    private final AtomicReferenceArray<T> items;
+    private final AtomicLongArray sequences;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final AtomicInteger waitingConsumers = new AtomicInteger();
+    private final AtomicInteger waitingProducers = new AtomicInteger();
+
+    /**
+     * Creates a queue with the given capacity
+     *
+     * @param capacity the capacity of the queue, at least 2 as a slot of a ring of one could not tell a full
+     *                 lap from an empty one
+     */
+    public MpmcArrayBlockingQueue(int capacity) {
+        if (capacity < 2) {
+            throw new IllegalArgumentException("capacity must be at least 2: " + capacity);
+        }
+        this.capacity = capacity;
+        this.items = new AtomicReferenceArray<T>(capacity);
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Returns a factory of storages of the given capacity, for
+     * {@link org.gmelo.collection.impl.LinkedBlockingQueueWithAck.Builder#storage(StorageFactory)}.
+     *
+     * @param capacity the capacity of the storages, at least 2
+     */
+    public static <T> StorageFactory<T> factory(final int capacity) {
+        if (capacity < 2) {
+            throw new IllegalArgumentException("capacity must be at least 2: " + capacity);
+        }
+        return new StorageFactory<T>() {
+            @Override
+            public <E> BlockingQueue<E> newStorage(Function<? super E, ? extends T> elementOf) {
+                return new MpmcArrayBlockingQueue<E>(capacity);
+            }
+        };
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean offer(T t) {
+        if (t == null) {
+            throw new NullPointerException();
+        }
+        long position = tail.get();
+        while (true) {
+            int index = index(position);
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    items.lazySet(index, t);
+                    sequences.set(index, position + 1);
+                    signalNotEmpty();
+                    return true;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int offerAll(Collection<? extends T> elements, boolean allOrNothing) {
+        int size = elements.size();
+        for (T element : elements) {
+            if (element == null) {
+                throw new NullPointerException();
+            }
+        }
+        if (size == 0) {
+            return 0;
+        }
+        while (true) {
+            long position = tail.get();
+            int free = 0;
+            boolean stale = false;
+            while (free < size) {
+                long difference = sequences.get(index(position + free)) - (position + free);
+                if (difference == 0) {
+                    free++;
+                } else {
+                    //a slot ahead of the tail we read is taken, another producer moved the tail
+                    stale = difference > 0;
+                    break;
+                }
+            }
+            if (stale) {
+                continue;
+            }
+            if (free == 0 || (allOrNothing && free < size)) {
+                return 0;
+            }
+            if (tail.compareAndSet(position, position + free)) {
+                Iterator<? extends T> iterator = elements.iterator();
+                for (int i = 0; i < free; i++) {
+                    int index = index(position + i);
+                    items.lazySet(index, iterator.next());
+                    sequences.set(index, position + i + 1);
+                }
+                signalAllNotEmpty();
+                return free;
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public T poll() {
+        long position = head.get();
+        while (true) {
+            int index = index(position);
+            long difference = sequences.get(index) - (position + 1);
+            if (difference == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    T t = items.get(index);
+                    items.lazySet(index, null);
+                    sequences.set(index, position + capacity);
+                    signalNotFull();
+                    return t;
+                }
+                position = head.get();
+            } else if (difference < 0) {
+                return null;
+            } else {
+                position = head.get();
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void put(T t) throws InterruptedException {
+        while (!offer(t)) {
+            lock.lockInterruptibly();
+            waitingProducers.incrementAndGet();
+            try {
+                if (offer(t)) {
+                    return;
+                }
+                notFull.await();
+            } finally {
+                waitingProducers.decrementAndGet();
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean offer(T t, long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        while (!offer(t)) {
+            if (nanos <= 0) {
+                return false;
+            }
+            lock.lockInterruptibly();
+            waitingProducers.incrementAndGet();
+            try {
+                if (offer(t)) {
+                    return true;
+                }
+                nanos = notFull.awaitNanos(nanos);
+            } finally {
+                waitingProducers.decrementAndGet();
+                lock.unlock();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public T take() throws InterruptedException {
+        T t;
+        while ((t = poll()) == null) {
+            lock.lockInterruptibly();
+            waitingConsumers.incrementAndGet();
+            try {
+                t = poll();
+                if (t != null) {
+                    return t;
+                }
+                notEmpty.await();
+            } finally {
+                waitingConsumers.decrementAndGet();
+                lock.unlock();
+            }
+        }
+        return t;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        T t;
+        while ((t = poll()) == null) {
+            if (nanos <= 0) {
+                return null;
+            }
+            lock.lockInterruptibly();
+            waitingConsumers.incrementAndGet();
+            try {
+                t = poll();
+                if (t != null) {
+                    return t;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            } finally {
+                waitingConsumers.decrementAndGet();
+                lock.unlock();
+            }
+        }
+        return t;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public T peek() {
+        while (true) {
+            long position = head.get();
+            int index = index(position);
+            if (sequences.get(index) - (position + 1) < 0) {
+                return null;
+            }
+            T t = items.get(index);
+            if (t != null && head.get() == position) {
+                return t;
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int drainTo(Collection<? super T> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int drainTo(Collection<? super T> c, int maxElements) {
+        if (c == null) {
+            throw new NullPointerException();
+        }
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        int drained = 0;
+        T t;
+        while (drained < maxElements && (t = poll()) != null) {
+            c.add(t);
+            drained++;
+        }
+        return drained;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Iterator<T> iterator() {
+        return Collections.unmodifiableList(snapshot()).iterator();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size() {
+        while (true) {
+            long before = head.get();
+            long size = tail.get() - before;
+            if (head.get() == before) {
+                return (int) Math.max(0, Math.min(capacity, size));
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int remainingCapacity() {
+        return capacity - size();
+    }
+
+    private List<T> snapshot() {
+        List<T> list = new ArrayList<T>();
+        long position = head.get();
+        long end = tail.get();
+        for (; position < end; position++) {
+            T t = items.get(index(position));
+            if (t != null) {
+                list.add(t);
+            }
+        }
+        return list;
+    }
+
+    private int index(long position) {
+        return (int) (position % capacity);
+    }
+
+    private void signalNotEmpty() {
+        if (waitingConsumers.get() > 0) {
+            lock.lock();
+            try {
+                notEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void signalAllNotEmpty() {
+        if (waitingConsumers.get() > 0) {
+            lock.lock();
+            try {
+                notEmpty.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void signalNotFull() {
+        if (waitingProducers.get() > 0) {
+            lock.lock();
+            try {
+                notFull.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,565 @@
+package org.gmelo.collection.impl.storage;
+
+import org.gmelo.collection.Prioritizer;
+import org.gmelo.collection.impl.Envelope;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An optionally-bounded blocking queue with a fixed number of priority levels, each one a FIFO list of linked
+ * nodes. The head of the queue is the oldest element of the most urgent level that is not empty.
+ * <p/>
+ * It has the same two lock design as {@link LinkedBlockingBulkQueue}: producers only contend on the put lock,
+ * which guards the tails of every level, and consumers on the take lock, which guards their heads. Unlike a
+ * PriorityBlockingQueue a single lock is never shared by producers and consumers, and inserting or taking an
+ * element costs at most one scan of the levels rather than a heap operation.
+ * <p/>
+ * The level of an element is given by a {@link Prioritizer}, asked before any lock is taken, so an element put
+ * back in the queue after a timeout or a negative acknowledgement goes back to its own level rather than behind
+ * every other element.
+ * <p/>
+ * Iterators work on a snapshot of the queue, in priority order, taken when they are created and do not support
+ * removal.
+ *
+ * @param <T> The type of element stored in the queue
+ *
+ * User: GMelo
+ */
+public class PriorityBucketBlockingQueue<T> extends AbstractQueue<Envelope<T>>
+        implements BulkBlockingQueue<Envelope<T>> {
+
+    private static class Node<T> {
+        Envelope<T> item;
+        //a consumer may find a node of a more urgent level before the producer that links it counts it, the
+        //volatile link publishes the item in that case
+        volatile Node<T> next;
+
+        Node(Envelope<T> item) {
+            this.item = item;
+        }
+    }
+
+    /**
+     * The elements of one priority, head.item is always null.
+     */
+    private static class Level<T> {
+        Node<T> head;
+        Node<T> last;
+
+        Level() {
+            last = head = new Node<T>(null);
+        }
+    }
+
+    private final Prioritizer<? super T> prioritizer;
+    private final Level<T>[] levels;
+    private final int capacity;
+    private final AtomicInteger count = new AtomicInteger();
+
+    private final ReentrantLock takeLock = new ReentrantLock();
+    private final Condition notEmpty = takeLock.newCondition();
+    private final ReentrantLock putLock = new ReentrantLock();
+    private final Condition notFull = putLock.newCondition();
+
+    /**
+     * Creates a queue with a capacity of Integer.MAX_VALUE
+     *
+     * @param levels      the number of priority levels
+     * @param prioritizer the prioritizer of the elements
+     */
+    public PriorityBucketBlockingQueue(int levels, Prioritizer<? super T> prioritizer) {
+        this(levels, Integer.MAX_VALUE, prioritizer);
+    }
+
+    /**
+     * Creates a queue with the given capacity, shared by every level
+     *
+     * @param levels      the number of priority levels
+     * @param capacity    the capacity of the queue
+     * @param prioritizer the prioritizer of the elements
+     */
+    @SuppressWarnings("unchecked")
+    public PriorityBucketBlockingQueue(int levels, int capacity, Prioritizer<? super T> prioritizer) {
+        if (levels <= 0) {
+            throw new IllegalArgumentException("levels must be positive: " + levels);
+        }
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        if (prioritizer == null) {
+            throw new NullPointerException();
+        }
+        this.prioritizer = prioritizer;
+        this.capacity = capacity;
+        this.levels = new Level[levels];
+        for (int i = 0; i < levels; i++) {
+            this.levels[i] = new Level<T>();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Each element is inserted at the tail of its level.
+     *
+     * @throws IllegalArgumentException if the priority of an element is not one of the levels of the queue, in
+     *                                  which case nothing is inserted
+     */
+    @Override
+    public int offerAll(Collection<? extends Envelope<T>> elements, boolean allOrNothing) {
+        if (elements.isEmpty()) {
+            return 0;
+        }
+        int size = elements.size();
+        List<Node<T>> nodes = new ArrayList<Node<T>>(size);
+        int[] priorities = new int[size];
+        for (Envelope<T> element : elements) {
+            priorities[nodes.size()] = levelOf(element);
+            nodes.add(new Node<T>(element));
+        }
+        int inserted;
+        int c;
+        putLock.lock();
+        try {
+            int available = capacity - count.get();
+            if (available <= 0 || (allOrNothing && size > available)) {
+                return 0;
+            }
+            inserted = Math.min(size, available);
+            for (int i = 0; i < inserted; i++) {
+                Level<T> level = levels[priorities[i]];
+                level.last = level.last.next = nodes.get(i);
+            }
+            c = count.getAndAdd(inserted);
+            if (c + inserted < capacity) {
+                notFull.signal();
+            }
+        } finally {
+            putLock.unlock();
+        }
+        if (c == 0) {
+            signalNotEmpty();
+        }
+        return inserted;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void put(Envelope<T> t) throws InterruptedException {
+        int priority = levelOf(t);
+        Node<T> node = new Node<T>(t);
+        int c;
+        putLock.lockInterruptibly();
+        try {
+            while (count.get() == capacity) {
+                notFull.await();
+            }
+            c = enqueue(node, priority);
+        } finally {
+            putLock.unlock();
+        }
+        if (c == 0) {
+            signalNotEmpty();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean offer(Envelope<T> t, long timeout, TimeUnit unit) throws InterruptedException {
+        int priority = levelOf(t);
+        long nanos = unit.toNanos(timeout);
+        Node<T> node = new Node<T>(t);
+        int c;
+        putLock.lockInterruptibly();
+        try {
+            while (count.get() == capacity) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = notFull.awaitNanos(nanos);
+            }
+            c = enqueue(node, priority);
+        } finally {
+            putLock.unlock();
+        }
+        if (c == 0) {
+            signalNotEmpty();
+        }
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean offer(Envelope<T> t) {
+        int priority = levelOf(t);
+        if (count.get() == capacity) {
+            return false;
+        }
+        Node<T> node = new Node<T>(t);
+        int c = -1;
+        putLock.lock();
+        try {
+            if (count.get() < capacity) {
+                c = enqueue(node, priority);
+            }
+        } finally {
+            putLock.unlock();
+        }
+        if (c == 0) {
+            signalNotEmpty();
+        }
+        return c >= 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Envelope<T> take() throws InterruptedException {
+        Envelope<T> t;
+        int c;
+        takeLock.lockInterruptibly();
+        try {
+            while (count.get() == 0) {
+                notEmpty.await();
+            }
+            t = dequeue();
+            c = count.getAndDecrement();
+            if (c > 1) {
+                notEmpty.signal();
+            }
+        } finally {
+            takeLock.unlock();
+        }
+        if (c == capacity) {
+            signalNotFull();
+        }
+        return t;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Envelope<T> poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        Envelope<T> t;
+        int c;
+        takeLock.lockInterruptibly();
+        try {
+            while (count.get() == 0) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            t = dequeue();
+            c = count.getAndDecrement();
+            if (c > 1) {
+                notEmpty.signal();
+            }
+        } finally {
+            takeLock.unlock();
+        }
+        if (c == capacity) {
+            signalNotFull();
+        }
+        return t;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Envelope<T> poll() {
+        if (count.get() == 0) {
+            return null;
+        }
+        Envelope<T> t = null;
+        int c = -1;
+        takeLock.lock();
+        try {
+            if (count.get() > 0) {
+                t = dequeue();
+                c = count.getAndDecrement();
+                if (c > 1) {
+                    notEmpty.signal();
+                }
+            }
+        } finally {
+            takeLock.unlock();
+        }
+        if (c == capacity) {
+            signalNotFull();
+        }
+        return t;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Envelope<T> peek() {
+        if (count.get() == 0) {
+            return null;
+        }
+        takeLock.lock();
+        try {
+            for (Level<T> level : levels) {
+                Node<T> first = level.head.next;
+                if (first != null) {
+                    return first.item;
+                }
+            }
+            return null;
+        } finally {
+            takeLock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int drainTo(Collection<? super Envelope<T>> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int drainTo(Collection<? super Envelope<T>> c, int maxElements) {
+        if (c == null) {
+            throw new NullPointerException();
+        }
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        if (maxElements <= 0) {
+            return 0;
+        }
+        boolean signalNotFull = false;
+        int drained = 0;
+        takeLock.lock();
+        try {
+            int n = Math.min(maxElements, count.get());
+            while (drained < n) {
+                c.add(dequeue());
+                drained++;
+            }
+        } finally {
+            if (drained > 0) {
+                signalNotFull = count.getAndAdd(-drained) == capacity;
+            }
+            takeLock.unlock();
+        }
+        if (signalNotFull) {
+            signalNotFull();
+        }
+        return drained;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean remove(Object o) {
+        if (o == null) {
+            return false;
+        }
+        fullyLock();
+        try {
+            for (Level<T> level : levels) {
+                for (Node<T> trail = level.head, p = trail.next; p != null; trail = p, p = p.next) {
+                    if (o.equals(p.item)) {
+                        unlink(level, p, trail);
+                        return true;
+                    }
+                }
+            }
+            return false;
+        } finally {
+            fullyUnlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean contains(Object o) {
+        if (o == null) {
+            return false;
+        }
+        fullyLock();
+        try {
+            for (Level<T> level : levels) {
+                for (Node<T> p = level.head.next; p != null; p = p.next) {
+                    if (o.equals(p.item)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        } finally {
+            fullyUnlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Iterator<Envelope<T>> iterator() {
+        return Collections.unmodifiableList(snapshot()).iterator();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object[] toArray() {
+        return snapshot().toArray();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public <T1> T1[] toArray(T1[] a) {
+        return snapshot().toArray(a);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size() {
+        return count.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int remainingCapacity() {
+        return capacity - count.get();
+    }
+
+    private List<Envelope<T>> snapshot() {
+        fullyLock();
+        try {
+            List<Envelope<T>> list = new ArrayList<Envelope<T>>(count.get());
+            for (Level<T> level : levels) {
+                for (Node<T> p = level.head.next; p != null; p = p.next) {
+                    list.add(p.item);
+                }
+            }
+            return list;
+        } finally {
+            fullyUnlock();
+        }
+    }
+
+    /**
+     * Asks the prioritizer for the level of an element.
+     */
+    private int levelOf(Envelope<T> envelope) {
+        if (envelope == null) {
+            throw new NullPointerException();
+        }
+        int priority = prioritizer.priorityOf(envelope.getElement());
+        if (priority < 0 || priority >= levels.length) {
+            throw new IllegalArgumentException("Priority " + priority + " of " + envelope.getElement()
+                    + " is not between 0 and " + (levels.length - 1));
+        }
+        return priority;
+    }
+
+    /**
+     * Links a node at the end of its level, must hold the put lock.
+     *
+     * @return the count before the insertion
+     */
+    private int enqueue(Node<T> node, int priority) {
+        Level<T> level = levels[priority];
+        level.last = level.last.next = node;
+        int c = count.getAndIncrement();
+        if (c + 1 < capacity) {
+            notFull.signal();
+        }
+        return c;
+    }
+
+    /**
+     * Removes the node at the head of the most urgent level that is not empty, must hold the take lock and the
+     * count must be positive.
+     */
+    private Envelope<T> dequeue() {
+        for (Level<T> level : levels) {
+            Node<T> h = level.head;
+            Node<T> first = h.next;
+            if (first != null) {
+                h.next = h;
+                level.head = first;
+                Envelope<T> t = first.item;
+                first.item = null;
+                return t;
+            }
+        }
+        throw new IllegalStateException("No element in any level");
+    }
+
+    /**
+     * Unlinks interior node p of the level with predecessor trail, must hold both locks.
+     */
+    private void unlink(Level<T> level, Node<T> p, Node<T> trail) {
+        p.item = null;
+        trail.next = p.next;
+        if (level.last == p) {
+            level.last = trail;
+        }
+        if (count.getAndDecrement() == capacity) {
+            notFull.signal();
+        }
+    }
+
+    private void signalNotEmpty() {
+        takeLock.lock();
+        try {
+            notEmpty.signal();
+        } finally {
+            takeLock.unlock();
+        }
+    }
+
+    private void signalNotFull() {
+        putLock.lock();
+        try {
+            notFull.signal();
+        } finally {
+            putLock.unlock();
+        }
+    }
+
+    private void fullyLock() {
+        putLock.lock();
+        takeLock.lock();
+    }
+
+    private void fullyUnlock() {
+        takeLock.unlock();
+        putLock.unlock();
+    }
+}
@@ -0,0 +1,148 @@
+package org.gmelo.collection;
+
+import junit.framework.Assert;
+import org.gmelo.collection.impl.LinkedBlockingQueueWithAck;
+import org.gmelo.collection.impl.ShardedBlockingQueueWithAck;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * User: GMelo
+ */
+public class AsyncConsumerTest {
+
+    @Test
+    public void testTakeAsyncCompletesOnceAnElementIsInserted() throws Exception {
+        LinkedBlockingQueueWithAck<String> queue = new LinkedBlockingQueueWithAck<String>(1000);
+        CompletableFuture<Delivery<String>> first = queue.takeDeliveryAsync();
+        CompletableFuture<String> second = queue.takeAsync();
+        Assert.assertFalse(first.isDone());
+        Assert.assertFalse(second.isDone());
+
+        queue.addAll(Arrays.asList("first", "second"));
+        Delivery<String> delivery = first.get(1, TimeUnit.SECONDS);
+        Assert.assertEquals("first", delivery.getElement());
+        Assert.assertEquals("second", second.get(1, TimeUnit.SECONDS));
+        Assert.assertEquals(2, queue.numberOfElementsWaitingForAck());
+
+        queue.acknowledge(delivery.getTag(), BlockingQueueWithAck.Acknowledgement.NACK);
+        Assert.assertEquals("first", queue.takeAsync().get(1, TimeUnit.SECONDS));
+        queue.close();
+    }
+
+    @Test
+    public void testCancelledTakeDoesNotConsumeElements() throws Exception {
+        LinkedBlockingQueueWithAck<String> queue = new LinkedBlockingQueueWithAck<String>(1000);
+        CompletableFuture<String> cancelled = queue.takeAsync();
+        Assert.assertTrue(cancelled.cancel(false));
+
+        queue.add("element");
+        Assert.assertEquals(0, queue.numberOfElementsWaitingForAck());
+        Assert.assertEquals("element", queue.poll());
+
+        CompletableFuture<String> pending = queue.takeAsync();
+        queue.close();
+        Assert.assertTrue(pending.isCancelled());
+    }
+
+    @Test
+    public void testSubscriptionAcknowledgesHandledElements() throws Exception {
+        final int elements = 1000;
+        final LinkedBlockingQueueWithAck<Integer> queue = new LinkedBlockingQueueWithAck<Integer>(5000);
+        final CountDownLatch handled = new CountDownLatch(elements);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maximumRunning = new AtomicInteger();
+        final Set<Integer> failed = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        Subscription subscription = queue.subscribe(new DeliveryHandler<Integer>() {
+            @Override
+            public void handle(Delivery<Integer> delivery) throws Exception {
+                int now = running.incrementAndGet();
+                while (true) {
+                    int maximum = maximumRunning.get();
+                    if (now <= maximum || maximumRunning.compareAndSet(maximum, now)) {
+                        break;
+                    }
+                }
+                try {
+                    //every tenth element fails the first time
+                    if (delivery.getElement() % 10 == 0 && failed.add(delivery.getElement())) {
+                        throw new IllegalStateException("failed " + delivery.getElement());
+                    }
+                    handled.countDown();
+                } finally {
+                    running.decrementAndGet();
+                }
+            }
+        }, 3, executor);
+
+        for (int i = 0; i < elements; i++) {
+            queue.put(i);
+        }
+        Assert.assertTrue(handled.await(10, TimeUnit.SECONDS));
+        subscription.cancel();
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+
+        Assert.assertTrue(maximumRunning.get() <= 3);
+        Assert.assertEquals(elements / 10, failed.size());
+        Assert.assertEquals(elements + elements / 10, queue.metrics().getDelivered());
+        Assert.assertEquals(elements, queue.metrics().getAcknowledged());
+        Assert.assertEquals(elements / 10, queue.metrics().getNegativelyAcknowledged());
+        Assert.assertTrue(queue.isEmpty());
+        Assert.assertEquals(0, queue.numberOfElementsWaitingForAck());
+        queue.close();
+    }
+
+    @Test
+    public void testCancelledSubscriptionStopsTakingElements() throws Exception {
+        LinkedBlockingQueueWithAck<String> queue = new LinkedBlockingQueueWithAck<String>(1000);
+        final BlockingQueue<String> handled = new LinkedBlockingQueue<String>();
+        Subscription subscription = queue.subscribe(new DeliveryHandler<String>() {
+            @Override
+            public void handle(Delivery<String> delivery) {
+                handled.add(delivery.getElement());
+            }
+        }, 2);
+
+        queue.add("before");
+        Assert.assertEquals("before", handled.poll(1, TimeUnit.SECONDS));
+        subscription.cancel();
+        Assert.assertTrue(subscription.isCancelled());
+
+        queue.add("after");
+        Assert.assertNull(handled.poll(100, TimeUnit.MILLISECONDS));
+        Assert.assertEquals("after", queue.poll());
+        queue.close();
+    }
+
+    @Test
+    public void testShardedTakeAsyncCompletesFromAnyShard() throws Exception {
+        final ShardedBlockingQueueWithAck<String> queue = new ShardedBlockingQueueWithAck.Builder<String>(1000)
+                .shards(4).build();
+        CompletableFuture<Delivery<String>> taken = queue.takeDeliveryAsync();
+        Assert.assertFalse(taken.isDone());
+
+        //inserted in the home shard of another thread
+        ExecutorService producers = Executors.newFixedThreadPool(3);
+        for (int i = 0; i < 3; i++) {
+            producers.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return queue.add(Thread.currentThread().getName());
+                }
+            }).get();
+        }
+        producers.shutdown();
+
+        Delivery<String> delivery = taken.get(1, TimeUnit.SECONDS);
+        Assert.assertEquals(1, queue.numberOfElementsWaitingForAck());
+        Assert.assertEquals(2, queue.size());
+        queue.acknowledge(delivery.getTag(), BlockingQueueWithAck.Acknowledgement.ACK);
+        Assert.assertEquals(0, queue.numberOfElementsWaitingForAck());
+        queue.close();
+    }
+}
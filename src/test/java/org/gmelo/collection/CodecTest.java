@@ -0,0 +1,108 @@
+package org.gmelo.collection;
+
+import junit.framework.Assert;
+import org.gmelo.collection.impl.codec.ByteArrayCodec;
+import org.gmelo.collection.impl.codec.ByteBufferCodec;
+import org.gmelo.collection.impl.codec.SerializableCodec;
+import org.gmelo.collection.impl.codec.StringCodec;
+import org.junit.Test;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * User: GMelo
+ */
+public class CodecTest {
+
+    @Test
+    public void testByteArrayCodec() {
+        ByteArrayCodec codec = new ByteArrayCodec();
+        byte[] element = {1, 2, 3};
+
+        Assert.assertTrue(Arrays.equals(element, roundTrip(codec, element, ByteBuffer.allocate(16))));
+        Assert.assertTrue(Arrays.equals(new byte[0], roundTrip(codec, new byte[0], ByteBuffer.allocate(16))));
+    }
+
+    @Test
+    public void testByteBufferCodecLeavesElementAlone() {
+        ByteBufferCodec codec = new ByteBufferCodec(true);
+        ByteBuffer element = ByteBuffer.wrap(new byte[]{0, 1, 2, 3});
+        element.position(1);
+
+        ByteBuffer decoded = roundTrip(codec, element, ByteBuffer.allocateDirect(16));
+
+        Assert.assertEquals(1, element.position());
+        Assert.assertTrue(decoded.isDirect());
+        Assert.assertEquals(ByteBuffer.wrap(new byte[]{1, 2, 3}), decoded);
+    }
+
+    @Test
+    public void testStringCodecWritesUtf8() throws Exception {
+        StringCodec codec = new StringCodec();
+        List<String> elements = Arrays.asList("", "Message", "a\u00e7\u00e3o", "\u65e5\u672c", "\ud83d\ude00 smile",
+                "lone \ud800 surrogate", "\udc00");
+
+        for (String element : elements) {
+            ByteBuffer heap = ByteBuffer.allocate(64);
+            codec.encode(element, heap);
+            heap.flip();
+            byte[] bytes = new byte[heap.remaining()];
+            heap.duplicate().get(bytes);
+
+            Assert.assertTrue(element, Arrays.equals(element.getBytes("UTF-8"), bytes));
+            Assert.assertEquals(new String(bytes, "UTF-8"), codec.decode(heap));
+            Assert.assertEquals(new String(bytes, "UTF-8"), roundTrip(codec, element, ByteBuffer.allocateDirect(64)));
+        }
+    }
+
+    @Test
+    public void testBufferIsReused() {
+        StringCodec codec = new StringCodec();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(32);
+
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertEquals("Message " + i, roundTrip(codec, "Message " + i, buffer));
+        }
+    }
+
+    @Test
+    public void testOverflowIsReported() {
+        List<Codec<String>> codecs = new ArrayList<Codec<String>>();
+        codecs.add(new StringCodec());
+        codecs.add(new SerializableCodec<String>());
+        for (Codec<String> codec : codecs) {
+            try {
+                codec.encode("\u65e5\u672c", ByteBuffer.allocate(4));
+                Assert.fail("Expected an overflow from " + codec);
+            } catch (BufferOverflowException e) {
+                //expected
+            }
+        }
+    }
+
+    @Test
+    public void testSerializableCodec() {
+        SerializableCodec<List<Integer>> codec = new SerializableCodec<List<Integer>>();
+        List<Integer> element = new ArrayList<Integer>(Arrays.asList(1, 2, 3));
+
+        Assert.assertEquals(element, roundTrip(codec, element, ByteBuffer.allocate(1024)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSerializableCodecRejectsNotSerializable() {
+        new SerializableCodec<Object>().encode(new Object(), ByteBuffer.allocate(1024));
+    }
+
+    private <T> T roundTrip(Codec<T> codec, T element, ByteBuffer buffer) {
+        buffer.clear();
+        codec.encode(element, buffer);
+        buffer.flip();
+        T decoded = codec.decode(buffer);
+        Assert.assertFalse(buffer.hasRemaining());
+        return decoded;
+    }
+}
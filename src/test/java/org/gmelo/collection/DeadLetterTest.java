@@ -0,0 +1,179 @@
+package org.gmelo.collection;
+
+import junit.framework.Assert;
+import org.gmelo.collection.impl.DeadLetterStore;
+import org.gmelo.collection.impl.LinkedBlockingQueueWithAck;
+import org.gmelo.collection.impl.ShardedBlockingQueueWithAck;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * User: GMelo
+ */
+public class DeadLetterTest {
+
+    @Test
+    public void testPoisonedElementKeepsItsHistory() throws InterruptedException {
+        long before = System.currentTimeMillis();
+        LinkedBlockingQueueWithAck<String> queue = new LinkedBlockingQueueWithAck.Builder<String>(5000)
+                .maximumRetries(1).build();
+        queue.add("element");
+
+        queue.negativelyAcknowledge(queue.takeDelivery().getTag(), "connection refused");
+        queue.negativelyAcknowledge(queue.takeDelivery().getTag(), "connection reset");
+
+        List<DeadLetter<String>> deadLetters = queue.deadLetters();
+        Assert.assertEquals(1, deadLetters.size());
+        DeadLetter<String> deadLetter = deadLetters.get(0);
+        Assert.assertEquals("element", deadLetter.getElement());
+        Assert.assertEquals(2, deadLetter.getAttempts());
+        Assert.assertEquals("connection reset", deadLetter.getLastFailure());
+        Assert.assertTrue(deadLetter.getFirstSeenTime() >= before);
+        Assert.assertTrue(deadLetter.getDeadLetterTime() >= deadLetter.getFirstSeenTime());
+        Assert.assertEquals("element", queue.poisonedElements().peek());
+        queue.close();
+    }
+
+    @Test
+    public void testTimedOutElementIsRecordedAsTimedOut() throws InterruptedException {
+        LinkedBlockingQueueWithAck<String> queue = new LinkedBlockingQueueWithAck.Builder<String>(50)
+                .maximumRetries(1).build();
+        queue.add("element");
+        queue.take();
+        queue.acknowledge(queue.poll(1, TimeUnit.SECONDS), BlockingQueueWithAck.Acknowledgement.NACK);
+
+        Assert.assertEquals(DeadLetter.NEGATIVELY_ACKNOWLEDGED, queue.deadLetters().get(0).getLastFailure());
+
+        queue.add("slow");
+        queue.take();
+        queue.take();
+        long deadline = System.currentTimeMillis() + 2000;
+        while (queue.deadLetters().size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        DeadLetter<String> deadLetter = queue.deadLetters().get(1);
+        Assert.assertEquals("slow", deadLetter.getElement());
+        Assert.assertEquals(DeadLetter.TIMED_OUT, deadLetter.getLastFailure());
+        queue.close();
+    }
+
+    @Test
+    public void testStoreOverflowPolicies() {
+        DeadLetterStore<Integer> dropOldest = new DeadLetterStore<Integer>(2, DeadLetterStore.OverflowPolicy.DROP_OLDEST);
+        DeadLetterStore<Integer> dropNewest = new DeadLetterStore<Integer>(2, DeadLetterStore.OverflowPolicy.DROP_NEWEST);
+        for (int i = 0; i < 3; i++) {
+            Assert.assertTrue(dropOldest.offer(i));
+            Assert.assertEquals(i < 2, dropNewest.offer(i));
+        }
+
+        Assert.assertEquals(Arrays.asList(1, 2), Arrays.asList(dropOldest.toArray()));
+        Assert.assertEquals(Arrays.asList(0, 1), Arrays.asList(dropNewest.toArray()));
+        Assert.assertEquals(1, dropOldest.getDropped());
+        Assert.assertEquals(1, dropNewest.getDropped());
+        Assert.assertEquals(0, dropOldest.deadLetters().get(0).getAttempts());
+        Assert.assertNull(dropOldest.deadLetters().get(0).getLastFailure());
+    }
+
+    @Test
+    public void testFullDeadLetterQueueDoesNotStopTheExpiry() throws InterruptedException {
+        LinkedBlockingQueueWithAck<String> queue = new LinkedBlockingQueueWithAck.Builder<String>(50)
+                .maximumRetries(1).deadLetterQueue(new ArrayBlockingQueue<String>(1)).build();
+        queue.addAll(Arrays.asList("first", "second"));
+        //every element times out twice, the second poisoned element does not fit
+        for (int i = 0; i < 4; i++) {
+            Assert.assertNotNull(queue.poll(2, TimeUnit.SECONDS));
+        }
+        long deadline = System.currentTimeMillis() + 2000;
+        while (queue.metrics().getDeadLettered() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(2, queue.metrics().getDeadLettered());
+        Assert.assertEquals(1, queue.poisonedElements().size());
+        Assert.assertEquals(0, queue.numberOfElementsWaitingForAck());
+
+        //the expiry thread still re-queues elements
+        queue.add("third");
+        queue.take();
+        Assert.assertEquals("third", queue.poll(2, TimeUnit.SECONDS));
+        queue.close();
+    }
+
+    @Test
+    public void testReplayPoisonedElements() throws InterruptedException {
+        LinkedBlockingQueueWithAck<String> queue = new LinkedBlockingQueueWithAck.Builder<String>(5000)
+                .capacity(2).maximumRetries(1).build();
+        for (String element : Arrays.asList("a", "b", "c", "d")) {
+            queue.add(element);
+            for (int i = 0; i < 2; i++) {
+                queue.negativelyAcknowledge(queue.takeDelivery().getTag(), "a".equals(element) ? "invalid" : "outage");
+            }
+        }
+        Assert.assertEquals(4, queue.poisonedElements().size());
+
+        int replayed = queue.replayPoisoned(new Predicate<DeadLetter<String>>() {
+            @Override
+            public boolean test(DeadLetter<String> deadLetter) {
+                return "outage".equals(deadLetter.getLastFailure());
+            }
+        });
+
+        //only two fit in the queue, the last one stays poisoned, ahead of the others
+        Assert.assertEquals(2, replayed);
+        Assert.assertEquals(2, queue.size());
+        Assert.assertEquals(2, queue.poisonedElements().size());
+        Assert.assertEquals("d", queue.deadLetters().get(0).getElement());
+        Assert.assertEquals(2, queue.deadLetters().get(0).getAttempts());
+        Assert.assertEquals("a", queue.deadLetters().get(1).getElement());
+
+        //replayed elements get a fresh count of retries
+        Delivery<String> delivery = queue.takeDelivery();
+        Assert.assertEquals("b", delivery.getElement());
+        queue.negativelyAcknowledge(delivery.getTag(), "outage");
+        Assert.assertEquals(2, queue.poisonedElements().size());
+        Assert.assertEquals("c", queue.take());
+        Assert.assertEquals("b", queue.take());
+        queue.close();
+    }
+
+    @Test
+    public void testShardsReplayTheSharedDeadLetters() throws InterruptedException {
+        ShardedBlockingQueueWithAck<String> queue = new ShardedBlockingQueueWithAck.Builder<String>(5000)
+                .shards(4).maximumRetries(1).build();
+        queue.addAll(Arrays.asList("a", "b", "c"));
+        for (int i = 0; i < 6; i++) {
+            queue.negativelyAcknowledge(queue.takeDelivery().getTag(), "outage");
+        }
+        Assert.assertEquals(3, queue.deadLetters().size());
+
+        Assert.assertEquals(3, queue.replayPoisoned(new Predicate<DeadLetter<String>>() {
+            @Override
+            public boolean test(DeadLetter<String> deadLetter) {
+                return true;
+            }
+        }));
+        Assert.assertTrue(queue.poisonedElements().isEmpty());
+        Assert.assertEquals(3, queue.size());
+        queue.close();
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testReplayNeedsADeadLetterStore() {
+        LinkedBlockingQueueWithAck<String> queue = new LinkedBlockingQueueWithAck.Builder<String>(5000)
+                .deadLetterQueue(new ArrayBlockingQueue<String>(10)).build();
+        try {
+            queue.replayPoisoned(new Predicate<DeadLetter<String>>() {
+                @Override
+                public boolean test(DeadLetter<String> deadLetter) {
+                    return true;
+                }
+            });
+        } finally {
+            queue.close();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package org.gmelo.collection;
+
+import junit.framework.Assert;
+import org.gmelo.collection.impl.LinkedBlockingQueueWithAck;
+import org.gmelo.collection.impl.ShardedBlockingQueueWithAck;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * User: GMelo
+ */
+public class DuplicateElementsTest {
+
+    @Test
+    public void testEqualElementsAreRequeuedIndependently() throws InterruptedException {
+        LinkedBlockingQueueWithAck<String> queue = new LinkedBlockingQueueWithAck.Builder<String>(5000)
+                .maximumRetries(1).build();
+        queue.addAll(Arrays.asList("same", "same"));
+
+        Delivery<String> first = queue.takeDelivery();
+        Delivery<String> second = queue.takeDelivery();
+        Assert.assertFalse(first.getTag() == second.getTag());
+
+        queue.acknowledge(first.getTag(), BlockingQueueWithAck.Acknowledgement.NACK);
+        first = queue.takeDelivery();
+        //the first NAck of the second copy, a shared count would poison it
+        queue.acknowledge(second.getTag(), BlockingQueueWithAck.Acknowledgement.NACK);
+        Assert.assertTrue(queue.poisonedElements().isEmpty());
+        queue.acknowledge(first.getTag(), BlockingQueueWithAck.Acknowledgement.NACK);
+        second = queue.takeDelivery();
+        queue.acknowledge(second.getTag(), BlockingQueueWithAck.Acknowledgement.ACK);
+
+        //only the copy NAcked twice is poisoned
+        Assert.assertEquals(1, queue.poisonedElements().size());
+        Assert.assertTrue(queue.isEmpty());
+        Assert.assertEquals(0, queue.numberOfElementsWaitingForAck());
+        queue.close();
+    }
+
+    @Test
+    public void testAcknowledgingOneCopyKeepsTheTimeoutOfTheOther() throws InterruptedException {
+        LinkedBlockingQueueWithAck<String> queue = new LinkedBlockingQueueWithAck<String>(200);
+        queue.addAll(Arrays.asList("same", "same"));
+        Delivery<String> first = queue.takeDelivery();
+        queue.takeDelivery();
+
+        queue.acknowledge(first.getTag(), BlockingQueueWithAck.Acknowledgement.ACK);
+        Assert.assertEquals("same", queue.poll(2, TimeUnit.SECONDS));
+        Assert.assertEquals(1, queue.metrics().getTimedOut());
+        Assert.assertEquals(1, queue.numberOfElementsWaitingForAck());
+        Assert.assertTrue(queue.isEmpty());
+        queue.close();
+    }
+
+    @Test
+    public void testConcurrentConsumersOfIdenticalElements() throws Exception {
+        final int elements = 20000;
+        final ShardedBlockingQueueWithAck<String> queue = new ShardedBlockingQueueWithAck.Builder<String>(5000)
+                .shards(2).build();
+        for (int i = 0; i < elements; i++) {
+            queue.add("same");
+        }
+
+        final AtomicInteger acknowledged = new AtomicInteger();
+        final AtomicInteger negativelyAcknowledged = new AtomicInteger();
+        ExecutorService service = Executors.newFixedThreadPool(8);
+        List<Future<Set<Long>>> consumers = new ArrayList<Future<Set<Long>>>();
+        for (int c = 0; c < 8; c++) {
+            consumers.add(service.submit(new Callable<Set<Long>>() {
+                @Override
+                public Set<Long> call() throws Exception {
+                    Set<Long> tags = new HashSet<Long>();
+                    while (acknowledged.get() < elements) {
+                        Delivery<String> delivery = queue.pollDelivery(10, TimeUnit.MILLISECONDS);
+                        if (delivery == null) {
+                            continue;
+                        }
+                        Assert.assertTrue(tags.add(delivery.getTag()));
+                        if (ThreadLocalRandom.current().nextInt(10) == 0) {
+                            negativelyAcknowledged.incrementAndGet();
+                            queue.acknowledge(delivery.getTag(), BlockingQueueWithAck.Acknowledgement.NACK);
+                        } else {
+                            acknowledged.incrementAndGet();
+                            queue.acknowledge(delivery.getTag(), BlockingQueueWithAck.Acknowledgement.ACK);
+                        }
+                    }
+                    return tags;
+                }
+            }));
+        }
+        Set<Long> tags = new HashSet<Long>();
+        int deliveries = 0;
+        for (Future<Set<Long>> consumer : consumers) {
+            Set<Long> consumed = consumer.get(30, TimeUnit.SECONDS);
+            deliveries += consumed.size();
+            tags.addAll(consumed);
+        }
+        service.shutdown();
+
+        Assert.assertEquals(deliveries, tags.size());
+        Assert.assertEquals(elements, acknowledged.get());
+        Assert.assertEquals(elements, queue.metrics().getAcknowledged());
+        Assert.assertEquals(negativelyAcknowledged.get(), queue.metrics().getNegativelyAcknowledged());
+        Assert.assertEquals(0, queue.metrics().getTimedOut());
+        Assert.assertTrue(queue.isEmpty());
+        Assert.assertEquals(0, queue.numberOfElementsWaitingForAck());
+        queue.close();
+    }
+}
@@ -0,0 +1,210 @@
+package org.gmelo.collection;
+
+import junit.framework.Assert;
+import org.gmelo.collection.impl.LinkedBlockingQueueWithAck;
+import org.gmelo.collection.impl.expiry.DelayQueueExpiryEngine;
+import org.gmelo.collection.impl.expiry.ExpiryClock;
+import org.gmelo.collection.impl.expiry.ExpiryEngine;
+import org.gmelo.collection.impl.expiry.ExpiryTask;
+import org.gmelo.collection.impl.expiry.HashedWheelExpiryEngine;
+import org.gmelo.collection.util.ManualExpiryClock;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * User: GMelo
+ */
+public class ExpiryEngineTest {
+
+    @Test
+    public void testWheelExpiresAfterDeadline() throws InterruptedException {
+        assertExpiresAfterDeadline(new HashedWheelExpiryEngine(1));
+    }
+
+    @Test
+    public void testDelayQueueExpiresAfterDeadline() throws InterruptedException {
+        assertExpiresAfterDeadline(new DelayQueueExpiryEngine());
+    }
+
+    @Test
+    public void testWheelSkipsCancelled() throws InterruptedException {
+        assertSkipsCancelled(new HashedWheelExpiryEngine(1));
+    }
+
+    @Test
+    public void testDelayQueueSkipsCancelled() throws InterruptedException {
+        assertSkipsCancelled(new DelayQueueExpiryEngine());
+    }
+
+    @Test
+    public void testWheelFilesExtendedTaskAgain() throws InterruptedException {
+        assertExtendedTaskExpiresAtNewDeadline(new HashedWheelExpiryEngine(1));
+    }
+
+    @Test
+    public void testDelayQueueFilesExtendedTaskAgain() throws InterruptedException {
+        assertExtendedTaskExpiresAtNewDeadline(new DelayQueueExpiryEngine());
+    }
+
+    @Test
+    public void testEnginesReadTheMonotonicClockByDefault() {
+        Assert.assertSame(ExpiryClock.MONOTONIC, new HashedWheelExpiryEngine(1).getClock());
+        Assert.assertSame(ExpiryClock.MONOTONIC, new HashedWheelExpiryEngine(1, 4).getClock());
+        Assert.assertSame(ExpiryClock.MONOTONIC, new DelayQueueExpiryEngine().getClock());
+    }
+
+    @Test
+    public void testWheelDeadlineBeyondOneRotation() throws InterruptedException {
+        ExpiryEngine engine = new HashedWheelExpiryEngine(1, 4);
+        long deadline = engine.getClock().millis() + 30;
+        engine.schedule(new TestTask(deadline));
+
+        List<ExpiryTask> expired = new ArrayList<ExpiryTask>();
+        engine.awaitExpired(expired);
+
+        Assert.assertEquals(1, expired.size());
+        Assert.assertTrue(engine.getClock().millis() >= deadline);
+    }
+
+    @Test
+    public void testWheelBatchesTasksDueInTheSameTick() throws InterruptedException {
+        ExpiryEngine engine = new HashedWheelExpiryEngine(20);
+        long deadline = engine.getClock().millis() + 5;
+        for (int i = 0; i < 100; i++) {
+            engine.schedule(new TestTask(deadline));
+        }
+
+        List<ExpiryTask> expired = new ArrayList<ExpiryTask>();
+
+        Assert.assertEquals(100, engine.awaitExpired(expired));
+    }
+
+    @Test
+    public void testPoisonAckQueueWithDelayQueueEngine() throws InterruptedException {
+        LinkedBlockingQueueWithAck<String> queue = new LinkedBlockingQueueWithAck<String>(10, Integer.MAX_VALUE, 3,
+                new LinkedBlockingQueue<String>(), new DelayQueueExpiryEngine());
+
+        String message = "Message";
+        queue.add(message);
+        queue.take();
+        queue.take();
+        queue.take();
+        queue.take();
+        String s = queue.poll(15, TimeUnit.MILLISECONDS);
+
+        Assert.assertEquals(message, queue.poisonedElements().peek());
+        Assert.assertNull(s);
+    }
+
+    @Test
+    public void testWheelFollowsItsClock() throws Exception {
+        final ManualExpiryClock clock = new ManualExpiryClock(1000);
+        final ExpiryEngine engine = new HashedWheelExpiryEngine(1, clock);
+        engine.schedule(new TestTask(1050));
+        ExecutorService service = Executors.newSingleThreadExecutor();
+        Future<Integer> expired = service.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return engine.awaitExpired(new ArrayList<ExpiryTask>());
+            }
+        });
+
+        //far more real time than the delay of the task goes by
+        try {
+            expired.get(200, TimeUnit.MILLISECONDS);
+            Assert.fail("expired before the clock reached the deadline");
+        } catch (TimeoutException e) {
+            //the clock did not move
+        }
+        clock.advance(50);
+        Assert.assertEquals(Integer.valueOf(1), expired.get(1, TimeUnit.SECONDS));
+        service.shutdownNow();
+    }
+
+    @Test
+    public void testQueueTimesOutOnItsClock() throws InterruptedException {
+        ManualExpiryClock clock = new ManualExpiryClock(0);
+        LinkedBlockingQueueWithAck<String> queue = new LinkedBlockingQueueWithAck.Builder<String>(100)
+                .expiryClock(clock).build();
+        queue.add("element");
+        queue.take();
+
+        Assert.assertNull(queue.poll(200, TimeUnit.MILLISECONDS));
+        clock.advance(99);
+        Assert.assertNull(queue.poll(50, TimeUnit.MILLISECONDS));
+        clock.advance(1);
+        Assert.assertEquals("element", queue.poll(1, TimeUnit.SECONDS));
+        Assert.assertEquals(1, queue.metrics().getTimedOut());
+        queue.close();
+    }
+
+    private static class TestTask extends ExpiryTask {
+
+        TestTask(long deadline) {
+            super(deadline);
+        }
+
+        @Override
+        public void expire() {
+        }
+    }
+
+    private void assertExpiresAfterDeadline(ExpiryEngine engine) throws InterruptedException {
+        long now = engine.getClock().millis();
+        ExpiryTask late = new TestTask(now + 20);
+        ExpiryTask early = new TestTask(now + 10);
+        engine.schedule(late);
+        engine.schedule(early);
+
+        List<ExpiryTask> expired = new ArrayList<ExpiryTask>();
+        while (expired.size() < 2) {
+            engine.awaitExpired(expired);
+            Assert.assertTrue(engine.getClock().millis() >= expired.get(expired.size() - 1).getDeadline());
+        }
+
+        Assert.assertSame(early, expired.get(0));
+        Assert.assertSame(late, expired.get(1));
+    }
+
+    private void assertExtendedTaskExpiresAtNewDeadline(ExpiryEngine engine) throws InterruptedException {
+        long now = engine.getClock().millis();
+        ExpiryTask extended = new TestTask(now + 5);
+        ExpiryTask other = new TestTask(now + 20);
+        engine.schedule(extended);
+        engine.schedule(other);
+        Assert.assertTrue(extended.extendDeadline(now + 40));
+        Assert.assertTrue(extended.extendDeadline(now + 10));
+        Assert.assertEquals(now + 40, extended.getDeadline());
+
+        List<ExpiryTask> expired = new ArrayList<ExpiryTask>();
+        while (expired.size() < 2) {
+            engine.awaitExpired(expired);
+            Assert.assertTrue(engine.getClock().millis() >= expired.get(expired.size() - 1).getDeadline());
+        }
+
+        Assert.assertSame(other, expired.get(0));
+        Assert.assertSame(extended, expired.get(1));
+        Assert.assertFalse(extended.extendDeadline(now + 100));
+    }
+
+    private void assertSkipsCancelled(ExpiryEngine engine) throws InterruptedException {
+        long now = engine.getClock().millis();
+        ExpiryTask cancelled = new TestTask(now + 5);
+        ExpiryTask kept = new TestTask(now + 15);
+        engine.schedule(cancelled);
+        engine.schedule(kept);
+        Assert.assertTrue(cancelled.cancel());
+
+        List<ExpiryTask> expired = new ArrayList<ExpiryTask>();
+        while (expired.isEmpty()) {
+            engine.awaitExpired(expired);
+        }
+
+        Assert.assertEquals(1, expired.size());
+        Assert.assertSame(kept, expired.get(0));
+        Assert.assertFalse(kept.cancel());
+    }
+}
@@ -0,0 +1,156 @@
+package org.gmelo.collection;
+
+import junit.framework.Assert;
+import org.gmelo.collection.impl.LinkedBlockingQueueWithAck;
+import org.gmelo.collection.impl.expiry.DelayQueueExpiryEngine;
+import org.gmelo.collection.impl.expiry.ExpiryClock;
+import org.gmelo.collection.impl.expiry.ExpiryScheduler;
+import org.gmelo.collection.impl.expiry.ExpiryTask;
+import org.gmelo.collection.impl.expiry.HashedWheelExpiryEngine;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * User: GMelo
+ */
+public class ExpirySchedulerTest {
+
+    private final ExpiryScheduler scheduler = new ExpiryScheduler(new HashedWheelExpiryEngine(1));
+
+    @After
+    public void after() {
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void testSharedSchedulerServicesAllQueues() throws InterruptedException {
+        List<LinkedBlockingQueueWithAck<String>> queues = new ArrayList<LinkedBlockingQueueWithAck<String>>();
+        for (int i = 0; i < 100; i++) {
+            LinkedBlockingQueueWithAck<String> queue = new LinkedBlockingQueueWithAck.Builder<String>(10)
+                    .expiryScheduler(scheduler)
+                    .build();
+            queue.add("Message " + i);
+            queue.take();
+            queues.add(queue);
+        }
+
+        Thread.sleep(50);
+
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals(0, queues.get(i).numberOfElementsWaitingForAck());
+            Assert.assertEquals("Message " + i, queues.get(i).poll());
+        }
+    }
+
+    @Test
+    public void testCloseDeregistersQueue() throws InterruptedException {
+        LinkedBlockingQueueWithAck<String> closedQueue = new LinkedBlockingQueueWithAck.Builder<String>(10)
+                .expiryScheduler(scheduler)
+                .build();
+        LinkedBlockingQueueWithAck<String> openQueue = new LinkedBlockingQueueWithAck.Builder<String>(10)
+                .expiryScheduler(scheduler)
+                .build();
+        closedQueue.add("Message");
+        openQueue.add("Message");
+        closedQueue.take();
+        openQueue.take();
+
+        closedQueue.close();
+        Thread.sleep(50);
+
+        Assert.assertEquals(0, closedQueue.size());
+        Assert.assertEquals(1, openQueue.size());
+        Assert.assertFalse(scheduler.isShutdown());
+    }
+
+    @Test
+    public void testCloseStopsOwnExpiryThread() throws InterruptedException {
+        LinkedBlockingQueueWithAck<String> queue = new LinkedBlockingQueueWithAck<String>(10);
+        int threads = countExpiryThreads();
+
+        queue.close();
+        Thread.sleep(50);
+
+        Assert.assertEquals(threads - 1, countExpiryThreads());
+    }
+
+    @Test
+    public void testShutdown() throws InterruptedException {
+        scheduler.shutdown();
+
+        Assert.assertTrue(scheduler.awaitTermination(1, TimeUnit.SECONDS));
+        Assert.assertTrue(scheduler.isShutdown());
+    }
+
+    @Test
+    public void testWheelReschedulesCancelledTask() throws InterruptedException {
+        assertReschedulesCancelledTask(scheduler);
+    }
+
+    @Test
+    public void testDelayQueueReschedulesCancelledTask() throws InterruptedException {
+        ExpiryScheduler delayQueueScheduler = new ExpiryScheduler(new DelayQueueExpiryEngine());
+        try {
+            assertReschedulesCancelledTask(delayQueueScheduler);
+        } finally {
+            delayQueueScheduler.shutdown();
+        }
+    }
+
+    private void assertReschedulesCancelledTask(ExpiryScheduler scheduler) throws InterruptedException {
+        long now = ExpiryClock.MONOTONIC.millis();
+        LatchTask revived = new LatchTask(now + 5);
+        LatchTask discarded = new LatchTask(now + 5);
+        LatchTask held = new LatchTask(now + 1000);
+        scheduler.schedule(revived);
+        scheduler.schedule(discarded);
+        scheduler.schedule(held);
+        Assert.assertTrue(revived.cancel());
+        Assert.assertTrue(discarded.cancel());
+        Assert.assertTrue(held.cancel());
+
+        //still held by the engine, filed again at the new deadline
+        Assert.assertTrue(revived.reschedule(now + 30, scheduler));
+        //a deadline before the one the engine holds the task at cannot be honoured
+        Assert.assertFalse(held.reschedule(now + 30, scheduler));
+        Assert.assertFalse(revived.reschedule(now + 60, scheduler));
+
+        Assert.assertTrue(revived.expired.await(1, TimeUnit.SECONDS));
+        Assert.assertTrue(ExpiryClock.MONOTONIC.millis() >= now + 30);
+
+        //let go of by the engine by now, scheduled afresh
+        long later = ExpiryClock.MONOTONIC.millis();
+        Assert.assertTrue(discarded.reschedule(later + 5, scheduler));
+        Assert.assertTrue(discarded.expired.await(1, TimeUnit.SECONDS));
+        Assert.assertEquals(1, held.expired.getCount());
+    }
+
+    private static class LatchTask extends ExpiryTask {
+
+        private final CountDownLatch expired = new CountDownLatch(1);
+
+        LatchTask(long deadline) {
+            super(deadline);
+        }
+
+        @Override
+        public void expire() {
+            expired.countDown();
+        }
+    }
+
+    private int countExpiryThreads() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("LinkedBlockingQueue timeout-listener") && thread.isAlive()) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,134 @@
+package org.gmelo.collection;
+
+import junit.framework.Assert;
+import org.gmelo.collection.impl.LinkedBlockingQueueWithAck;
+import org.gmelo.collection.impl.ShardedBlockingQueueWithAck;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * User: GMelo
+ */
+public class KeyOrderedDeliveryTest {
+
+    //the account of "account-sequence" elements
+    private static final KeyExtractor<String> ACCOUNT = new KeyExtractor<String>() {
+        @Override
+        public Object keyOf(String element) {
+            return element.substring(0, element.indexOf('-'));
+        }
+    };
+
+    @Test
+    public void testOneElementPerKeyInFlight() throws InterruptedException {
+        LinkedBlockingQueueWithAck<String> queue = new LinkedBlockingQueueWithAck.Builder<String>(1000)
+                .orderedByKey(ACCOUNT).build();
+        queue.addAll(Arrays.asList("a-0", "a-1", "b-0", "a-2"));
+
+        Assert.assertEquals("a-0", queue.take());
+        Assert.assertEquals("b-0", queue.take());
+        Assert.assertNull(queue.poll(50, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(2, queue.size());
+
+        queue.acknowledge("a-0", BlockingQueueWithAck.Acknowledgement.ACK);
+        Assert.assertEquals("a-1", queue.poll(50, TimeUnit.MILLISECONDS));
+        queue.acknowledge("b-0", BlockingQueueWithAck.Acknowledgement.ACK);
+        Assert.assertNull(queue.poll());
+        queue.acknowledge("a-1", BlockingQueueWithAck.Acknowledgement.ACK);
+        Assert.assertEquals("a-2", queue.poll());
+        queue.close();
+    }
+
+    @Test
+    public void testRedeliveryAheadOfLaterElementsOfTheKey() throws InterruptedException {
+        LinkedBlockingQueueWithAck<String> queue = new LinkedBlockingQueueWithAck.Builder<String>(100)
+                .orderedByKey(ACCOUNT).build();
+        queue.addAll(Arrays.asList("a-0", "a-1"));
+
+        Assert.assertEquals("a-0", queue.take());
+        queue.acknowledge("a-0", BlockingQueueWithAck.Acknowledgement.NACK);
+        Assert.assertEquals("a-0", queue.take());
+
+        //times out
+        Assert.assertEquals("a-0", queue.poll(1, TimeUnit.SECONDS));
+        queue.acknowledge("a-0", BlockingQueueWithAck.Acknowledgement.ACK);
+        Assert.assertEquals("a-1", queue.take());
+        queue.acknowledge("a-1", BlockingQueueWithAck.Acknowledgement.ACK);
+        queue.close();
+    }
+
+    @Test
+    public void testPoisonedElementReleasesItsKey() throws InterruptedException {
+        LinkedBlockingQueueWithAck<String> queue = new LinkedBlockingQueueWithAck.Builder<String>(1000)
+                .maximumRetries(1).orderedByKey(ACCOUNT).build();
+        queue.addAll(Arrays.asList("a-0", "a-1"));
+
+        for (int i = 0; i < 2; i++) {
+            Assert.assertEquals("a-0", queue.take());
+            queue.acknowledge("a-0", BlockingQueueWithAck.Acknowledgement.NACK);
+        }
+
+        Assert.assertEquals("a-0", queue.poisonedElements().peek());
+        Assert.assertEquals("a-1", queue.poll());
+        queue.close();
+    }
+
+    @Test
+    public void testConcurrentConsumersKeepTheOrderOfEachKey() throws Exception {
+        final int keys = 16;
+        final int perKey = 500;
+        final ShardedBlockingQueueWithAck<String> queue = new ShardedBlockingQueueWithAck.Builder<String>(5000)
+                .shards(2).orderedByKey(ACCOUNT).build();
+        for (int i = 0; i < perKey; i++) {
+            for (int k = 0; k < keys; k++) {
+                queue.add(k + "-" + i);
+            }
+        }
+
+        final ConcurrentMap<String, Integer> processed = new ConcurrentHashMap<String, Integer>();
+        final Set<String> inFlight = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        final CountDownLatch done = new CountDownLatch(keys * perKey);
+        ExecutorService service = Executors.newFixedThreadPool(8);
+        List<Future<Void>> consumers = new ArrayList<Future<Void>>();
+        for (int c = 0; c < 8; c++) {
+            consumers.add(service.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    while (done.getCount() > 0) {
+                        Delivery<String> delivery = queue.pollDelivery(10, TimeUnit.MILLISECONDS);
+                        if (delivery == null) {
+                            continue;
+                        }
+                        String element = delivery.getElement();
+                        String key = (String) ACCOUNT.keyOf(element);
+                        int sequence = Integer.parseInt(element.substring(element.indexOf('-') + 1));
+                        Assert.assertTrue("two elements of " + key + " in flight", inFlight.add(key));
+                        if (ThreadLocalRandom.current().nextInt(10) == 0) {
+                            inFlight.remove(key);
+                            queue.acknowledge(delivery.getTag(), BlockingQueueWithAck.Acknowledgement.NACK);
+                            continue;
+                        }
+                        Integer previous = processed.put(key, sequence);
+                        Assert.assertEquals(previous == null ? 0 : previous + 1, sequence);
+                        inFlight.remove(key);
+                        queue.acknowledge(delivery.getTag(), BlockingQueueWithAck.Acknowledgement.ACK);
+                        done.countDown();
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> consumer : consumers) {
+            consumer.get(30, TimeUnit.SECONDS);
+        }
+        service.shutdown();
+
+        for (int k = 0; k < keys; k++) {
+            Assert.assertEquals(Integer.valueOf(perKey - 1), processed.get(String.valueOf(k)));
+        }
+        Assert.assertTrue(queue.isEmpty());
+        queue.close();
+    }
+}
@@ -0,0 +1,94 @@
+package org.gmelo.collection;
+
+import junit.framework.Assert;
+import org.gmelo.collection.impl.LinkedBlockingQueueWithAck;
+import org.gmelo.collection.impl.ShardedBlockingQueueWithAck;
+import org.gmelo.collection.impl.expiry.DelayQueueExpiryEngine;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * User: GMelo
+ */
+public class LeaseExtensionTest {
+
+    @Test
+    public void testExtendedDeliveryIsNotRedelivered() throws InterruptedException {
+        assertExtendedDeliveryIsNotRedelivered(new LinkedBlockingQueueWithAck.Builder<String>(100).build());
+    }
+
+    @Test
+    public void testExtendedDeliveryIsNotRedeliveredWithDelayQueueEngine() throws InterruptedException {
+        assertExtendedDeliveryIsNotRedelivered(new LinkedBlockingQueueWithAck.Builder<String>(100)
+                .expiryEngine(new DelayQueueExpiryEngine()).build());
+    }
+
+    @Test
+    public void testExtendedDeliveryIsNotRedeliveredFromShards() throws InterruptedException {
+        assertExtendedDeliveryIsNotRedelivered(new ShardedBlockingQueueWithAck.Builder<String>(100)
+                .shards(3).build());
+    }
+
+    @Test
+    public void testExtendLeaseByElement() throws InterruptedException {
+        LinkedBlockingQueueWithAck<String> queue = new LinkedBlockingQueueWithAck.Builder<String>(100).build();
+        queue.add("a");
+        Assert.assertEquals("a", queue.take());
+        Assert.assertTrue(queue.extendLease("a", 1, TimeUnit.SECONDS));
+        Assert.assertFalse(queue.extendLease("b", 1, TimeUnit.SECONDS));
+
+        Assert.assertNull(queue.poll(300, TimeUnit.MILLISECONDS));
+        queue.acknowledge("a", BlockingQueueWithAck.Acknowledgement.ACK);
+        Assert.assertFalse(queue.extendLease("a", 1, TimeUnit.SECONDS));
+        queue.close();
+    }
+
+    @Test
+    public void testLeaseOfTheWholeBatchIsExtended() throws InterruptedException {
+        LinkedBlockingQueueWithAck<String> queue = new LinkedBlockingQueueWithAck.Builder<String>(100).build();
+        queue.add("a");
+        queue.add("b");
+        List<Delivery<String>> batch = queue.takeBatch(2, 0, TimeUnit.MILLISECONDS);
+        Assert.assertTrue(queue.extendLease(batch.get(0).getTag(), 1, TimeUnit.SECONDS));
+
+        Assert.assertNull(queue.poll(300, TimeUnit.MILLISECONDS));
+        queue.acknowledgeBatch(batch, BlockingQueueWithAck.Acknowledgement.ACK);
+        Assert.assertEquals(0, queue.numberOfElementsWaitingForAck());
+        queue.close();
+    }
+
+    @Test
+    public void testTakeWithItsOwnLease() throws InterruptedException {
+        LinkedBlockingQueueWithAck<String> queue = new LinkedBlockingQueueWithAck<String>(10000, Integer.MAX_VALUE,
+                Integer.MAX_VALUE, new LinkedBlockingQueue<String>());
+        queue.add("a");
+        long taken = System.nanoTime();
+        Delivery<String> delivery = queue.takeDeliveryWithLease(50, TimeUnit.MILLISECONDS);
+
+        Assert.assertEquals("a", queue.poll(1, TimeUnit.SECONDS));
+        Assert.assertTrue(System.nanoTime() - taken >= TimeUnit.MILLISECONDS.toNanos(50));
+        Assert.assertFalse(queue.extendLease(delivery.getTag(), 1, TimeUnit.SECONDS));
+        queue.acknowledge("a", BlockingQueueWithAck.Acknowledgement.ACK);
+        queue.close();
+    }
+
+    private void assertExtendedDeliveryIsNotRedelivered(BlockingQueueWithAck<String> queue)
+            throws InterruptedException {
+        queue.add("a");
+        Delivery<String> delivery = queue.takeDelivery();
+        //keeps the lease alive well past the timeout of the queue
+        for (int i = 0; i < 6; i++) {
+            Assert.assertTrue(queue.extendLease(delivery.getTag(), 100, TimeUnit.MILLISECONDS));
+            Assert.assertNull(queue.poll(50, TimeUnit.MILLISECONDS));
+        }
+        queue.acknowledge(delivery.getTag(), BlockingQueueWithAck.Acknowledgement.ACK);
+
+        Assert.assertEquals(0, queue.metrics().getTimedOut());
+        Assert.assertEquals(0, queue.numberOfElementsWaitingForAck());
+        Assert.assertFalse(queue.extendLease(delivery.getTag(), 100, TimeUnit.MILLISECONDS));
+        queue.close();
+    }
+}
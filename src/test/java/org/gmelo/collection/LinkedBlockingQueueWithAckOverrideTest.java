@@ -1,11 +1,15 @@
 package org.gmelo.collection;
 
+import junit.framework.Assert;
+import org.gmelo.collection.impl.Envelope;
 import org.gmelo.collection.impl.LinkedBlockingQueueWithAck;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentMatcher;
 import org.mockito.Mockito;
 
 import java.lang.reflect.Field;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
@@ -23,6 +27,7 @@ public class LinkedBlockingQueueWithAckOverrideTest {
     private TimeUnit timeUnit = TimeUnit.MILLISECONDS;
     private long millSeconds = 30L;
     private List<String> stringList = Collections.singletonList(message);
+    private Envelope<String> envelope = new Envelope<String>(message, System.nanoTime());
 
 
     @Before
@@ -36,13 +41,13 @@ public class LinkedBlockingQueueWithAckOverrideTest {
     @Test
     public void testAdd() throws Exception {
         queueWithAck.add(message);
-        Mockito.verify(mockedInternalQueue, Mockito.atLeastOnce()).add(message);
+        Mockito.verify(mockedInternalQueue, Mockito.atLeastOnce()).add(envelopeOf(message));
     }
 
     @Test
     public void testOfferNoTimeout() throws Exception {
         queueWithAck.offer(message);
-        Mockito.verify(mockedInternalQueue, Mockito.atLeastOnce()).offer(message);
+        Mockito.verify(mockedInternalQueue, Mockito.atLeastOnce()).offer(envelopeOf(message));
 
     }
 
@@ -60,7 +65,8 @@ public class LinkedBlockingQueueWithAckOverrideTest {
 
     @Test
     public void testElement() throws Exception {
-        queueWithAck.element();
+        Mockito.when(mockedInternalQueue.element()).thenReturn(envelope);
+        Assert.assertEquals(message, queueWithAck.element());
         Mockito.verify(mockedInternalQueue, Mockito.atLeastOnce()).element();
 
     }
@@ -74,20 +80,21 @@ public class LinkedBlockingQueueWithAckOverrideTest {
     @Test
     public void testPut() throws Exception {
         queueWithAck.put(message);
-        Mockito.verify(mockedInternalQueue, Mockito.atLeastOnce()).put(message);
+        Mockito.verify(mockedInternalQueue, Mockito.atLeastOnce()).put(envelopeOf(message));
 
     }
 
     @Test
     public void testOfferWTimeout() throws Exception {
         queueWithAck.offer(message, millSeconds, timeUnit);
-        Mockito.verify(mockedInternalQueue, Mockito.atLeastOnce()).offer(message, millSeconds, timeUnit);
+        Mockito.verify(mockedInternalQueue, Mockito.atLeastOnce()).offer(envelopeOf(message), Mockito.eq(millSeconds), Mockito.eq(timeUnit));
 
     }
 
     @Test
     public void testTake() throws Exception {
-        queueWithAck.take();
+        Mockito.when(mockedInternalQueue.take()).thenReturn(envelope);
+        Assert.assertEquals(message, queueWithAck.take());
         Mockito.verify(mockedInternalQueue, Mockito.atLeastOnce()).take();
 
     }
@@ -116,8 +123,17 @@ public class LinkedBlockingQueueWithAckOverrideTest {
         queueWithAck.containsAll(stringList);
     }
 
-    @Test(expected = java.lang.UnsupportedOperationException.class)
+    @Test
     public void testAddAll() throws Exception {
+        Mockito.when(mockedInternalQueue.remainingCapacity()).thenReturn(Integer.MAX_VALUE);
+        Mockito.when(mockedInternalQueue.offer(Mockito.any())).thenReturn(true);
+        queueWithAck.addAll(stringList);
+        Mockito.verify(mockedInternalQueue, Mockito.atLeastOnce()).offer(envelopeOf(message));
+    }
+
+    @Test(expected = java.lang.IllegalStateException.class)
+    public void testAddAllFull() throws Exception {
+        Mockito.when(mockedInternalQueue.remainingCapacity()).thenReturn(0);
         queueWithAck.addAll(stringList);
     }
 
@@ -151,8 +167,9 @@ public class LinkedBlockingQueueWithAckOverrideTest {
 
     @Test
     public void testContains() throws Exception {
-        queueWithAck.contains(message);
-        Mockito.verify(mockedInternalQueue, Mockito.atLeastOnce()).contains(message);
+        Mockito.when(mockedInternalQueue.iterator()).thenReturn(Arrays.asList(envelope).iterator());
+        Assert.assertTrue(queueWithAck.contains(message));
+        Mockito.verify(mockedInternalQueue, Mockito.atLeastOnce()).iterator();
     }
 
     @Test
@@ -164,25 +181,38 @@ public class LinkedBlockingQueueWithAckOverrideTest {
 
     @Test
     public void testToArrayNoParam() throws Exception {
-        queueWithAck.toArray();
+        Mockito.when(mockedInternalQueue.toArray()).thenReturn(new Object[]{envelope});
+        Assert.assertEquals(message, queueWithAck.toArray()[0]);
         Mockito.verify(mockedInternalQueue, Mockito.atLeastOnce()).toArray();
 
     }
 
     @Test
     public void testToArray() throws Exception {
-        queueWithAck.toArray(new String[1]);
-        Mockito.verify(mockedInternalQueue, Mockito.atLeastOnce()).toArray(new String[1]);
+        Mockito.when(mockedInternalQueue.toArray()).thenReturn(new Object[]{envelope});
+        Assert.assertEquals(message, queueWithAck.toArray(new String[1])[0]);
+        Mockito.verify(mockedInternalQueue, Mockito.atLeastOnce()).toArray();
 
     }
 
-    @Test(expected = java.lang.UnsupportedOperationException.class)
+    @Test
     public void testDrainToParam() throws Exception {
         queueWithAck.drainTo(stringList);
+        Mockito.verify(mockedInternalQueue, Mockito.atLeastOnce()).drainTo(Mockito.anyCollection(), Mockito.eq(Integer.MAX_VALUE));
     }
 
-    @Test(expected = java.lang.UnsupportedOperationException.class)
+    @Test
     public void testDrainTo() throws Exception {
         queueWithAck.drainTo(stringList, 0);
+        Mockito.verify(mockedInternalQueue, Mockito.atLeastOnce()).drainTo(Mockito.anyCollection(), Mockito.eq(0));
+    }
+
+    private Envelope<String> envelopeOf(final String element) {
+        return Mockito.argThat(new ArgumentMatcher<Envelope<String>>() {
+            @Override
+            public boolean matches(Object argument) {
+                return argument instanceof Envelope && element.equals(((Envelope) argument).getElement());
+            }
+        });
     }
 }
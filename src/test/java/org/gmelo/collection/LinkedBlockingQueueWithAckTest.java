@@ -2,11 +2,22 @@ package org.gmelo.collection;
 
 import junit.framework.Assert;
 import org.gmelo.collection.impl.LinkedBlockingQueueWithAck;
+import org.gmelo.collection.impl.codec.StringCodec;
+import org.gmelo.collection.impl.metrics.StripedLatencyHistogram;
 import org.gmelo.collection.util.ConsumerCallable;
 import org.gmelo.collection.util.Consumers;
+import org.junit.Rule;
 import org.junit.Test;
-
+import org.junit.rules.TemporaryFolder;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * User: GMelo
@@ -14,6 +25,9 @@ import java.util.concurrent.*;
 
 public class LinkedBlockingQueueWithAckTest {
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Test
     public void testReceiveResend() throws ExecutionException, InterruptedException {
         LinkedBlockingQueueWithAck<String> queue = new LinkedBlockingQueueWithAck<String>(100);
@@ -133,5 +147,437 @@ public class LinkedBlockingQueueWithAckTest {
 
     }
 
+    @Test
+    public void testAckByTag() throws InterruptedException {
+        LinkedBlockingQueueWithAck<String> queue = new LinkedBlockingQueueWithAck<String>(50);
+
+        queue.add("Something");
+
+        Delivery<String> delivery = queue.takeDelivery();
+        Assert.assertEquals("Something", delivery.getElement());
+        Assert.assertEquals(1, queue.numberOfElementsWaitingForAck());
+
+        queue.acknowledge(delivery.getTag(), LinkedBlockingQueueWithAck.Acknowledgement.ACK);
+        Assert.assertEquals(0, queue.numberOfElementsWaitingForAck());
+
+        Thread.sleep(60);
+
+        Assert.assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testNAckByTag() throws InterruptedException {
+        LinkedBlockingQueueWithAck<String> queue = new LinkedBlockingQueueWithAck<String>(1000);
+
+        queue.add("Something");
+
+        Delivery<String> delivery = queue.pollDelivery(10, TimeUnit.MILLISECONDS);
+        queue.acknowledge(delivery.getTag(), LinkedBlockingQueueWithAck.Acknowledgement.NACK);
+
+        Assert.assertEquals(1, queue.size());
+        Assert.assertEquals(0, queue.numberOfElementsWaitingForAck());
+    }
+
+    @Test
+    public void testDeliveryTagsAreUniquePerDelivery() throws InterruptedException {
+        LinkedBlockingQueueWithAck<String> queue = new LinkedBlockingQueueWithAck<String>(1000);
+
+        queue.add("Something");
+
+        Delivery<String> first = queue.takeDelivery();
+        //a delivery is only valid until it is settled
+        long firstTag = first.getTag();
+        String firstElement = first.getElement();
+        queue.acknowledge(firstTag, LinkedBlockingQueueWithAck.Acknowledgement.NACK);
+        Delivery<String> second = queue.takeDelivery();
+
+        Assert.assertEquals(firstElement, second.getElement());
+        Assert.assertTrue(second.getTag() > firstTag);
+
+        //the first delivery was already settled, acknowledging it again must not affect the second one
+        queue.acknowledge(firstTag, LinkedBlockingQueueWithAck.Acknowledgement.ACK);
+        Assert.assertEquals(1, queue.numberOfElementsWaitingForAck());
+    }
+
+    @Test
+    public void testStaleTagsDoNotSettleReusedDeliveries() throws InterruptedException {
+        LinkedBlockingQueueWithAck<String> queue = new LinkedBlockingQueueWithAck<String>(10000);
+        List<Long> tags = new ArrayList<Long>();
+        List<Delivery<String>> deliveries = new ArrayList<Delivery<String>>();
+        for (int i = 0; i < 1000; i++) {
+            queue.add("Message " + i);
+            //negatively acknowledged every other time, then delivered again
+            for (int attempt = 0; attempt <= i % 2; attempt++) {
+                Delivery<String> delivery = queue.takeDelivery();
+                Assert.assertEquals("Message " + i, delivery.getElement());
+                tags.add(delivery.getTag());
+                deliveries.add(delivery);
+                queue.acknowledge(delivery.getTag(), attempt < i % 2 ? LinkedBlockingQueueWithAck.Acknowledgement.NACK
+                        : LinkedBlockingQueueWithAck.Acknowledgement.ACK);
+            }
+        }
+        queue.add("live");
+        Delivery<String> live = queue.takeDelivery();
+        long liveTag = live.getTag();
+        //settled deliveries stand for later ones
+        Assert.assertTrue(deliveries.contains(live));
+
+        for (long tag : tags) {
+            queue.acknowledge(tag, LinkedBlockingQueueWithAck.Acknowledgement.NACK);
+            Assert.assertFalse(queue.extendLease(tag, 1, TimeUnit.SECONDS));
+        }
+        Assert.assertEquals(1, queue.numberOfElementsWaitingForAck());
+        Assert.assertEquals(0, queue.size());
+        Assert.assertEquals(liveTag, live.getTag());
+        Assert.assertEquals("live", live.getElement());
+        queue.acknowledge(liveTag, LinkedBlockingQueueWithAck.Acknowledgement.ACK);
+        Assert.assertEquals(0, queue.numberOfElementsWaitingForAck());
+    }
+
+    @Test
+    public void testAckByTagAfterTimeout() throws InterruptedException {
+        LinkedBlockingQueueWithAck<String> queue = new LinkedBlockingQueueWithAck<String>(10);
+
+        queue.add("Something");
+
+        Delivery<String> delivery = queue.takeDelivery();
+        Thread.sleep(30);
+        queue.acknowledge(delivery.getTag(), LinkedBlockingQueueWithAck.Acknowledgement.ACK);
+
+        Assert.assertEquals(1, queue.size());
+    }
+
+    @Test
+    public void testStringElementsStoredOffHeap() throws Exception {
+        LinkedBlockingQueueWithAck<String> queue = new LinkedBlockingQueueWithAck.Builder<String>(1000)
+                .maximumRetries(1)
+                .offHeapStorage(folder.newFolder("store"), new StringCodec())
+                .build();
+        String other = "Some Other Message \u00e7\u00e3o";
+        queue.addAll(Arrays.asList("Some Message", other));
+
+        Assert.assertEquals("Some Message", queue.take());
+        queue.acknowledge(queue.take(), LinkedBlockingQueueWithAck.Acknowledgement.NACK);
+        Assert.assertEquals(other, queue.take());
+        queue.acknowledge(other, LinkedBlockingQueueWithAck.Acknowledgement.NACK);
+        queue.acknowledge("Some Message", LinkedBlockingQueueWithAck.Acknowledgement.ACK);
+
+        Assert.assertTrue(queue.isEmpty());
+        Assert.assertEquals(0, queue.numberOfElementsWaitingForAck());
+        Assert.assertEquals(other, queue.poisonedElements().peek());
+        queue.close();
+    }
+
+    @Test
+    public void testRequeueCountReleasedOnAck() throws Exception {
+        LinkedBlockingQueueWithAck<Integer> queue = new LinkedBlockingQueueWithAck<Integer>(1000, 1);
+        Object inFlight = field(queue, "inFlight");
+        AtomicReferenceArray<?> ring = (AtomicReferenceArray<?>) field(inFlight, "ring");
+        Map<?, ?> overflow = (Map<?, ?>) field(inFlight, "overflow");
+        Collection<?> delayedElements = (Collection<?>) field(queue, "delayedElements");
+
+        //every value once, nothing kept for an element may outlive its acknowledgement
+        for (int i = 0; i < 1000000; i++) {
+            queue.add(i);
+            queue.acknowledge(queue.takeDelivery().getTag(), LinkedBlockingQueueWithAck.Acknowledgement.NACK);
+            queue.acknowledge(queue.takeDelivery().getTag(), LinkedBlockingQueueWithAck.Acknowledgement.ACK);
+            Assert.assertEquals(0, queue.numberOfElementsWaitingForAck());
+            Assert.assertTrue(overflow.isEmpty());
+        }
+
+        for (int i = 0; i < ring.length(); i++) {
+            Assert.assertNull(ring.get(i));
+        }
+        Assert.assertTrue(delayedElements.isEmpty());
+        Assert.assertTrue(queue.poisonedElements().isEmpty());
+        Assert.assertEquals(1000000, queue.metrics().getAcknowledged());
+        Assert.assertEquals(0, queue.size());
+        queue.close();
+    }
+
+    @Test
+    public void testReinsertedElementDoesNotInheritRequeues() throws Exception {
+        LinkedBlockingQueueWithAck<Integer> queue = new LinkedBlockingQueueWithAck<Integer>(1000, 1);
+
+        //the same value is added again once acknowledged, it must not inherit the re-queues of the previous one
+        for (int i = 0; i < 1000; i++) {
+            queue.add(42);
+            queue.acknowledge(queue.takeDelivery().getTag(), LinkedBlockingQueueWithAck.Acknowledgement.NACK);
+            queue.acknowledge(queue.takeDelivery().getTag(), LinkedBlockingQueueWithAck.Acknowledgement.ACK);
+        }
+
+        Assert.assertTrue(queue.poisonedElements().isEmpty());
+        Assert.assertEquals(0, queue.numberOfElementsWaitingForAck());
+        Assert.assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testRequeueLimitAfterNAcks() throws InterruptedException {
+        LinkedBlockingQueueWithAck<String> queue = new LinkedBlockingQueueWithAck<String>(1000, 2);
+
+        queue.add("Something");
+        for (int i = 0; i < 3; i++) {
+            queue.acknowledge(queue.take(), LinkedBlockingQueueWithAck.Acknowledgement.NACK);
+        }
+
+        Assert.assertEquals(0, queue.size());
+        Assert.assertEquals("Something", queue.poisonedElements().peek());
+    }
+
+    @Test
+    public void testTakeBatch() throws InterruptedException {
+        LinkedBlockingQueueWithAck<String> queue = new LinkedBlockingQueueWithAck<String>(1000);
+        for (int i = 0; i < 5; i++) {
+            queue.add("Message " + i);
+        }
+
+        List<Delivery<String>> batch = queue.takeBatch(3, 10, TimeUnit.MILLISECONDS);
+
+        Assert.assertEquals(3, batch.size());
+        Assert.assertEquals("Message 0", batch.get(0).getElement());
+        Assert.assertEquals("Message 2", batch.get(2).getElement());
+        Assert.assertEquals(2, queue.size());
+        Assert.assertEquals(3, queue.numberOfElementsWaitingForAck());
+
+        queue.acknowledgeBatch(batch, LinkedBlockingQueueWithAck.Acknowledgement.ACK);
+
+        Assert.assertEquals(0, queue.numberOfElementsWaitingForAck());
+        Assert.assertEquals(2, queue.size());
+    }
+
+    @Test
+    public void testTakeBatchTimesOutWhenEmpty() throws InterruptedException {
+        LinkedBlockingQueueWithAck<String> queue = new LinkedBlockingQueueWithAck<String>(1000);
+
+        Assert.assertTrue(queue.takeBatch(10, 10, TimeUnit.MILLISECONDS).isEmpty());
+    }
+
+    @Test
+    public void testBatchTimeoutRequeuesUnacknowledgedSubset() throws InterruptedException {
+        LinkedBlockingQueueWithAck<String> queue = new LinkedBlockingQueueWithAck<String>(20);
+        for (int i = 0; i < 4; i++) {
+            queue.add("Message " + i);
+        }
+
+        List<Delivery<String>> batch = queue.takeBatch(4, 10, TimeUnit.MILLISECONDS);
+        queue.acknowledgeBatch(batch.subList(0, 2), LinkedBlockingQueueWithAck.Acknowledgement.ACK);
+        queue.acknowledge(batch.get(2).getTag(), LinkedBlockingQueueWithAck.Acknowledgement.NACK);
+
+        Assert.assertEquals(1, queue.size());
+        Assert.assertEquals(1, queue.numberOfElementsWaitingForAck());
+
+        Thread.sleep(50);
+
+        Assert.assertEquals(2, queue.size());
+        Assert.assertEquals(0, queue.numberOfElementsWaitingForAck());
+        Assert.assertTrue(queue.contains("Message 2"));
+        Assert.assertTrue(queue.contains("Message 3"));
+    }
+
+    @Test
+    public void testDrainToWaitsForAck() throws InterruptedException {
+        LinkedBlockingQueueWithAck<String> queue = new LinkedBlockingQueueWithAck<String>(1000);
+        queue.add("Message 0");
+        queue.add("Message 1");
+
+        List<String> drained = new ArrayList<String>();
+
+        Assert.assertEquals(2, queue.drainTo(drained));
+        Assert.assertEquals(2, queue.numberOfElementsWaitingForAck());
+
+        queue.acknowledge("Message 1", LinkedBlockingQueueWithAck.Acknowledgement.ACK);
+        queue.acknowledge("Message 0", LinkedBlockingQueueWithAck.Acknowledgement.NACK);
+
+        Assert.assertEquals(0, queue.numberOfElementsWaitingForAck());
+        Assert.assertEquals("Message 0", queue.peek());
+    }
+
+    @Test
+    public void testAddAll() throws InterruptedException {
+        LinkedBlockingQueueWithAck<String> queue = new LinkedBlockingQueueWithAck<String>(1000);
+
+        Assert.assertTrue(queue.addAll(Arrays.asList("Message 0", "Message 1", "Message 2")));
+
+        Assert.assertEquals(3, queue.size());
+        Assert.assertEquals("Message 0", queue.take());
+    }
+
+    @Test
+    public void testOfferAllHonoursCapacity() {
+        LinkedBlockingQueueWithAck<String> queue = new LinkedBlockingQueueWithAck<String>(1000, 3, 1,
+                new LinkedBlockingQueue<String>());
+        List<String> elements = Arrays.asList("Message 0", "Message 1", "Message 2", "Message 3");
+
+        Assert.assertEquals(0, queue.offerAll(elements, true));
+        Assert.assertEquals(0, queue.size());
+
+        Assert.assertEquals(3, queue.offerAll(elements, false));
+        Assert.assertEquals(3, queue.size());
+        Assert.assertEquals(0, queue.remainingCapacity());
+        Assert.assertFalse(queue.contains("Message 3"));
+    }
+
+    @Test(expected = java.lang.IllegalStateException.class)
+    public void testAddAllOverCapacity() {
+        LinkedBlockingQueueWithAck<String> queue = new LinkedBlockingQueueWithAck<String>(1000, 1, 1,
+                new LinkedBlockingQueue<String>());
+
+        queue.addAll(Arrays.asList("Message 0", "Message 1"));
+    }
 
+    @Test
+    public void testOfferAllWithNullInsertsNothing() {
+        LinkedBlockingQueueWithAck<String> queue = new LinkedBlockingQueueWithAck<String>(1000);
+
+        try {
+            queue.offerAll(Arrays.asList("Message 0", null), false);
+            Assert.fail();
+        } catch (NullPointerException e) {
+            Assert.assertEquals(0, queue.size());
+        }
+    }
+
+    @Test
+    public void testOfferAllWakesUpConsumers() throws Exception {
+        final LinkedBlockingQueueWithAck<String> queue = new LinkedBlockingQueueWithAck<String>(1000);
+        ExecutorService service = Executors.newFixedThreadPool(3);
+        List<Future<String>> futures = new ArrayList<Future<String>>();
+        for (int i = 0; i < 3; i++) {
+            futures.add(service.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return queue.take();
+                }
+            }));
+        }
+        Thread.sleep(20);
+
+        queue.offerAll(Arrays.asList("Message 0", "Message 1", "Message 2"), true);
+
+        for (Future<String> future : futures) {
+            Assert.assertNotNull(future.get(1, TimeUnit.SECONDS));
+        }
+        service.shutdown();
+    }
+
+    @Test
+    public void testMetricsCounters() throws InterruptedException {
+        LinkedBlockingQueueWithAck<String> queue = new LinkedBlockingQueueWithAck<String>(10, 1);
+        queue.offerAll(Arrays.asList("Acked", "NAcked", "TimedOut"), true);
+
+        queue.acknowledge(queue.takeDelivery().getTag(), BlockingQueueWithAck.Acknowledgement.ACK);
+        queue.acknowledge(queue.takeDelivery().getTag(), BlockingQueueWithAck.Acknowledgement.NACK);
+        Assert.assertEquals("TimedOut", queue.take());
+        Assert.assertEquals("NAcked", queue.take());
+        Assert.assertEquals("TimedOut", queue.poll(50, TimeUnit.MILLISECONDS));
+        queue.acknowledge("TimedOut", BlockingQueueWithAck.Acknowledgement.ACK);
+        //the second delivery of NAcked times out at about the same time as the first one of TimedOut
+        for (int i = 0; i < 100 && queue.poisonedElements().isEmpty(); i++) {
+            Thread.sleep(10);
+        }
+        queue.close();
+
+        Assert.assertEquals("NAcked", queue.poisonedElements().peek());
+        QueueMetrics metrics = queue.metrics();
+        Assert.assertEquals(3, metrics.getEnqueued());
+        Assert.assertEquals(5, metrics.getDelivered());
+        Assert.assertEquals(2, metrics.getAcknowledged());
+        Assert.assertEquals(1, metrics.getNegativelyAcknowledged());
+        Assert.assertEquals(2, metrics.getTimedOut());
+        Assert.assertEquals(1, metrics.getDeadLettered());
+    }
+
+    @Test
+    public void testMetricsLatencies() throws InterruptedException {
+        LinkedBlockingQueueWithAck<String> queue = new LinkedBlockingQueueWithAck<String>(1000);
+        queue.add("Message");
+        Thread.sleep(20);
+        Delivery<String> delivery = queue.takeDelivery();
+        Thread.sleep(10);
+        queue.acknowledge(delivery.getTag(), BlockingQueueWithAck.Acknowledgement.ACK);
+        queue.close();
+
+        LatencyHistogram timeInQueue = queue.metrics().getTimeInQueue();
+        Assert.assertEquals(1, timeInQueue.getCount());
+        Assert.assertTrue(timeInQueue.getMax(TimeUnit.MILLISECONDS) >= 20);
+        Assert.assertEquals(timeInQueue.getMax(TimeUnit.NANOSECONDS), timeInQueue.getPercentile(100, TimeUnit.NANOSECONDS));
+        LatencyHistogram ackLatency = queue.metrics().getAckLatency();
+        Assert.assertEquals(1, ackLatency.getCount());
+        Assert.assertTrue(ackLatency.getMean(TimeUnit.MILLISECONDS) >= 10);
+    }
+
+    @Test
+    public void testManyDeliveriesWaitingForAck() throws InterruptedException {
+        final int elements = 10000;
+        LinkedBlockingQueueWithAck<Integer> queue = new LinkedBlockingQueueWithAck<Integer>(60000);
+        for (int i = 0; i < elements; i++) {
+            queue.add(i);
+        }
+        List<Delivery<Integer>> deliveries = new ArrayList<Delivery<Integer>>();
+        for (int i = 0; i < elements; i++) {
+            deliveries.add(queue.takeDelivery());
+        }
+        Assert.assertEquals(elements, queue.numberOfElementsWaitingForAck());
+
+        //newest first, then the oldest by element
+        for (int i = elements - 1; i > 0; i--) {
+            queue.acknowledge(deliveries.get(i).getTag(), BlockingQueueWithAck.Acknowledgement.ACK);
+        }
+        Assert.assertEquals(1, queue.numberOfElementsWaitingForAck());
+        queue.acknowledge(Integer.valueOf(0), BlockingQueueWithAck.Acknowledgement.ACK);
+        Assert.assertEquals(0, queue.numberOfElementsWaitingForAck());
+        Assert.assertEquals(elements, queue.metrics().getAcknowledged());
+        queue.close();
+    }
+
+    @Test
+    public void testAcknowledgeByElementAmongManyDeliveries() throws InterruptedException {
+        final int elements = 5000;
+        LinkedBlockingQueueWithAck<Integer> queue = new LinkedBlockingQueueWithAck<Integer>(60000);
+        for (int i = 0; i < elements; i++) {
+            queue.add(i);
+        }
+        for (int i = 0; i < elements; i++) {
+            queue.take();
+        }
+
+        //the deliveries of the first lap of the ring hold the slots, the later ones overflow
+        Assert.assertTrue(queue.extendLease(Integer.valueOf(elements - 1), 1, TimeUnit.MINUTES));
+        Assert.assertTrue(queue.extendLease(Integer.valueOf(0), 1, TimeUnit.MINUTES));
+        Assert.assertFalse(queue.extendLease(Integer.valueOf(elements), 1, TimeUnit.MINUTES));
+        queue.acknowledge(Integer.valueOf(elements - 1), BlockingQueueWithAck.Acknowledgement.ACK);
+        queue.acknowledge(Integer.valueOf(10), BlockingQueueWithAck.Acknowledgement.ACK);
+        Assert.assertEquals(elements - 2, queue.numberOfElementsWaitingForAck());
+        Assert.assertFalse(queue.extendLease(Integer.valueOf(10), 1, TimeUnit.MINUTES));
+        for (int i = 0; i < elements - 1; i++) {
+            if (i != 10) {
+                queue.acknowledge(Integer.valueOf(i), BlockingQueueWithAck.Acknowledgement.ACK);
+            }
+        }
+        Assert.assertEquals(0, queue.numberOfElementsWaitingForAck());
+        Assert.assertEquals(elements, queue.metrics().getAcknowledged());
+        queue.close();
+    }
+
+    @Test
+    public void testLatencyHistogramPercentiles() {
+        StripedLatencyHistogram histogram = new StripedLatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(i));
+        }
+
+        Assert.assertEquals(1000, histogram.getCount());
+        Assert.assertEquals(1000, histogram.getMax(TimeUnit.MICROSECONDS));
+        Assert.assertEquals(500.5, histogram.getMean(TimeUnit.MICROSECONDS), 0.001);
+        long median = histogram.getPercentile(50, TimeUnit.MICROSECONDS);
+        Assert.assertTrue(median >= 500 && median <= 625);
+        long p99 = histogram.getPercentile(99, TimeUnit.MICROSECONDS);
+        Assert.assertTrue(p99 >= 990 && p99 <= 1000);
+    }
+
+    private static Object field(Object owner, String name) throws Exception {
+        Field field = owner.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        return field.get(owner);
+    }
 }
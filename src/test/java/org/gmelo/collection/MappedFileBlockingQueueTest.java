@@ -0,0 +1,174 @@
+package org.gmelo.collection;
+
+import junit.framework.Assert;
+import org.gmelo.collection.impl.Envelope;
+import org.gmelo.collection.impl.LinkedBlockingQueueWithAck;
+import org.gmelo.collection.impl.codec.ByteArrayCodec;
+import org.gmelo.collection.impl.storage.MappedFileBlockingQueue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * User: GMelo
+ */
+public class MappedFileBlockingQueueTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ByteArrayCodec codec = new ByteArrayCodec();
+
+    @Test
+    public void testFifoAndCapacity() throws Exception {
+        MappedFileBlockingQueue<byte[]> queue =
+                new MappedFileBlockingQueue<byte[]>(folder.newFolder("store"), codec, 1024, 3);
+
+        Assert.assertTrue(queue.offer(envelope("Message 0")));
+        Assert.assertTrue(queue.offer(envelope("Message 1")));
+        Assert.assertTrue(queue.offer(envelope("Message 2")));
+        Assert.assertFalse(queue.offer(envelope("Message 3")));
+        Assert.assertEquals(0, queue.remainingCapacity());
+        Assert.assertEquals("Message 0", text(queue.peek()));
+
+        Assert.assertEquals("Message 0", text(queue.poll()));
+        Assert.assertTrue(queue.offer(envelope("Message 3")));
+        Assert.assertEquals(Arrays.asList("Message 1", "Message 2", "Message 3"), texts(queue));
+        queue.close();
+    }
+
+    @Test
+    public void testIndexShrinksAfterABurst() throws Exception {
+        MappedFileBlockingQueue<byte[]> queue = new MappedFileBlockingQueue<byte[]>(folder.newFolder("store"), codec);
+        Field offsets = MappedFileBlockingQueue.class.getDeclaredField("offsets");
+        offsets.setAccessible(true);
+        int initial = ((int[]) offsets.get(queue)).length;
+        //wrap the head of the index before the burst
+        for (int i = 0; i < initial / 2; i++) {
+            queue.offer(envelope("Warm up"));
+            queue.poll();
+        }
+
+        for (int i = 0; i < 10000; i++) {
+            queue.offer(envelope("Message " + i));
+        }
+        Assert.assertTrue(((int[]) offsets.get(queue)).length >= 10000);
+        for (int i = 0; i < 9990; i++) {
+            Assert.assertEquals("Message " + i, text(queue.poll()));
+        }
+
+        Assert.assertEquals(initial, ((int[]) offsets.get(queue)).length);
+        for (int i = 9990; i < 10000; i++) {
+            Assert.assertEquals("Message " + i, text(queue.poll()));
+        }
+        queue.close();
+    }
+
+    @Test
+    public void testKeepsEnvelopeMetadata() throws Exception {
+        MappedFileBlockingQueue<byte[]> queue = new MappedFileBlockingQueue<byte[]>(folder.newFolder("store"), codec);
+        queue.put(new Envelope<byte[]>("Message".getBytes("UTF-8"), 42, 3, 7));
+
+        Envelope<byte[]> envelope = queue.take();
+
+        Assert.assertEquals("Message", text(envelope));
+        Assert.assertEquals(42, envelope.getEnqueueTime());
+        Assert.assertEquals(3, envelope.getRequeueCount());
+        Assert.assertEquals(7, envelope.getJournalId());
+        queue.close();
+    }
+
+    @Test
+    public void testSegmentsAreDeletedOnceTaken() throws Exception {
+        File directory = folder.newFolder("store");
+        MappedFileBlockingQueue<byte[]> queue =
+                new MappedFileBlockingQueue<byte[]>(directory, codec, 64, Integer.MAX_VALUE);
+        List<Envelope<byte[]>> envelopes = new ArrayList<Envelope<byte[]>>();
+        for (int i = 0; i < 5000; i++) {
+            envelopes.add(envelope("Message " + i));
+        }
+        Assert.assertEquals(5000, queue.offerAll(envelopes, true));
+        Assert.assertTrue(directory.list().length > 100);
+
+        for (int i = 0; i < 5000; i++) {
+            Assert.assertEquals("Message " + i, text(queue.take()));
+        }
+
+        Assert.assertEquals(1, directory.list().length);
+        queue.close();
+        Assert.assertEquals(0, directory.list().length);
+    }
+
+    @Test
+    public void testElementLargerThanSegment() throws Exception {
+        MappedFileBlockingQueue<byte[]> queue =
+                new MappedFileBlockingQueue<byte[]>(folder.newFolder("store"), codec, 16, 10);
+        byte[] large = new byte[1000];
+        large[999] = 1;
+
+        queue.offer(new Envelope<byte[]>(large, 0));
+        queue.offer(envelope("Small"));
+
+        Assert.assertTrue(Arrays.equals(large, queue.poll().getElement()));
+        Assert.assertEquals("Small", text(queue.poll()));
+        Assert.assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+        queue.close();
+    }
+
+    @Test
+    public void testAckQueueWithMappedStorage() throws Exception {
+        LinkedBlockingQueueWithAck<byte[]> queue = new LinkedBlockingQueueWithAck.Builder<byte[]>(10)
+                .offHeapStorage(folder.newFolder("store"), codec)
+                .build();
+        queue.add("Message".getBytes("UTF-8"));
+
+        Assert.assertEquals("Message", new String(queue.take(), "UTF-8"));
+        byte[] redelivered = queue.poll(100, TimeUnit.MILLISECONDS);
+
+        Assert.assertEquals("Message", new String(redelivered, "UTF-8"));
+        queue.acknowledge(redelivered, BlockingQueueWithAck.Acknowledgement.ACK);
+        Assert.assertTrue(queue.isEmpty());
+        queue.close();
+    }
+
+    @Test
+    public void testPoisonsElementWithMappedStorage() throws Exception {
+        LinkedBlockingQueueWithAck<byte[]> queue = new LinkedBlockingQueueWithAck.Builder<byte[]>(1000)
+                .maximumRetries(2)
+                .offHeapStorage(folder.newFolder("store"), codec)
+                .build();
+        queue.add("Poison".getBytes("UTF-8"));
+
+        //every take hands back a new array, the re-queues are counted on the envelope kept in the storage
+        for (int i = 0; i < 3; i++) {
+            queue.acknowledge(queue.takeDelivery().getTag(), BlockingQueueWithAck.Acknowledgement.NACK);
+        }
+
+        Assert.assertTrue(queue.isEmpty());
+        Assert.assertEquals("Poison", new String(queue.poisonedElements().peek(), "UTF-8"));
+        queue.close();
+    }
+
+    private Envelope<byte[]> envelope(String text) throws Exception {
+        return new Envelope<byte[]>(text.getBytes("UTF-8"), System.nanoTime());
+    }
+
+    private String text(Envelope<byte[]> envelope) throws Exception {
+        return new String(envelope.getElement(), "UTF-8");
+    }
+
+    private List<String> texts(MappedFileBlockingQueue<byte[]> queue) throws Exception {
+        List<String> texts = new ArrayList<String>();
+        for (Envelope<byte[]> envelope : queue) {
+            texts.add(text(envelope));
+        }
+        return texts;
+    }
+}
@@ -0,0 +1,118 @@
+package org.gmelo.collection;
+
+import junit.framework.Assert;
+import org.gmelo.collection.impl.LinkedBlockingQueueWithAck;
+import org.gmelo.collection.impl.storage.MpmcArrayBlockingQueue;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * User: GMelo
+ */
+public class MpmcArrayBlockingQueueTest {
+
+    @Test
+    public void testFifoAndCapacity() {
+        MpmcArrayBlockingQueue<String> queue = new MpmcArrayBlockingQueue<String>(3);
+
+        Assert.assertTrue(queue.offer("Message 0"));
+        Assert.assertTrue(queue.offer("Message 1"));
+        Assert.assertTrue(queue.offer("Message 2"));
+        Assert.assertFalse(queue.offer("Message 3"));
+        Assert.assertEquals(3, queue.size());
+        Assert.assertEquals(0, queue.remainingCapacity());
+        Assert.assertEquals("Message 0", queue.peek());
+
+        Assert.assertEquals("Message 0", queue.poll());
+        Assert.assertTrue(queue.offer("Message 3"));
+        Assert.assertEquals(Arrays.asList("Message 1", "Message 2", "Message 3"), new ArrayList<String>(queue));
+    }
+
+    @Test
+    public void testOfferAll() {
+        MpmcArrayBlockingQueue<String> queue = new MpmcArrayBlockingQueue<String>(3);
+        queue.offer("Message 0");
+
+        Assert.assertEquals(0, queue.offerAll(Arrays.asList("Message 1", "Message 2", "Message 3"), true));
+        Assert.assertEquals(2, queue.offerAll(Arrays.asList("Message 1", "Message 2", "Message 3"), false));
+        Assert.assertEquals(Arrays.asList("Message 0", "Message 1", "Message 2"), new ArrayList<String>(queue));
+    }
+
+    @Test
+    public void testPollTimesOut() throws InterruptedException {
+        MpmcArrayBlockingQueue<String> queue = new MpmcArrayBlockingQueue<String>(2);
+
+        Assert.assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+        queue.put("Message");
+        queue.put("Message");
+        Assert.assertFalse(queue.offer("Message", 10, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testConcurrentProducersAndConsumers() throws Exception {
+        final MpmcArrayBlockingQueue<Integer> queue = new MpmcArrayBlockingQueue<Integer>(16);
+        final int perProducer = 20000;
+        ExecutorService service = Executors.newFixedThreadPool(8);
+        List<Future<List<Integer>>> consumers = new ArrayList<Future<List<Integer>>>();
+
+        for (int p = 0; p < 4; p++) {
+            final int producer = p;
+            service.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (int i = 0; i < perProducer; i++) {
+                        queue.put(producer * perProducer + i);
+                    }
+                    return null;
+                }
+            });
+        }
+        for (int c = 0; c < 4; c++) {
+            consumers.add(service.submit(new Callable<List<Integer>>() {
+                @Override
+                public List<Integer> call() throws Exception {
+                    List<Integer> taken = new ArrayList<Integer>();
+                    Integer element;
+                    while ((element = queue.poll(200, TimeUnit.MILLISECONDS)) != null) {
+                        taken.add(element);
+                    }
+                    return taken;
+                }
+            }));
+        }
+
+        Set<Integer> all = new HashSet<Integer>();
+        int total = 0;
+        for (Future<List<Integer>> consumer : consumers) {
+            List<Integer> taken = consumer.get();
+            total += taken.size();
+            all.addAll(taken);
+        }
+        service.shutdown();
+
+        Assert.assertEquals(4 * perProducer, total);
+        Assert.assertEquals(4 * perProducer, all.size());
+    }
+
+    @Test
+    public void testAckQueueWithArrayStorage() throws InterruptedException {
+        LinkedBlockingQueueWithAck<String> queue = new LinkedBlockingQueueWithAck.Builder<String>(10)
+                .storage(MpmcArrayBlockingQueue.<String>factory(4))
+                .maximumRetries(3)
+                .build();
+
+        String message = "Message";
+        queue.add(message);
+        queue.take();
+        queue.take();
+        queue.take();
+        queue.take();
+        String s = queue.poll(15, TimeUnit.MILLISECONDS);
+
+        Assert.assertEquals(message, queue.poisonedElements().peek());
+        Assert.assertNull(s);
+        Assert.assertEquals(4, queue.remainingCapacity());
+    }
+}
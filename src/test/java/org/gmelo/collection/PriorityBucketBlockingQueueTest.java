@@ -0,0 +1,170 @@
+package org.gmelo.collection;
+
+import junit.framework.Assert;
+import org.gmelo.collection.impl.Envelope;
+import org.gmelo.collection.impl.LinkedBlockingQueueWithAck;
+import org.gmelo.collection.impl.storage.PriorityBucketBlockingQueue;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * User: GMelo
+ */
+public class PriorityBucketBlockingQueueTest {
+
+    //"urgent" messages first, then "normal" ones, then everything else
+    private static final Prioritizer<String> PRIORITIZER = new Prioritizer<String>() {
+        @Override
+        public int priorityOf(String element) {
+            if (element.startsWith("urgent")) {
+                return 0;
+            }
+            return element.startsWith("normal") ? 1 : 2;
+        }
+    };
+
+    @Test
+    public void testPriorityOrderAndCapacity() {
+        PriorityBucketBlockingQueue<String> queue = new PriorityBucketBlockingQueue<String>(3, 4, PRIORITIZER);
+
+        Assert.assertTrue(queue.offer(envelope("low 0")));
+        Assert.assertTrue(queue.offer(envelope("normal 0")));
+        Assert.assertTrue(queue.offer(envelope("low 1")));
+        Assert.assertTrue(queue.offer(envelope("urgent 0")));
+        Assert.assertFalse(queue.offer(envelope("urgent 1")));
+        Assert.assertEquals(0, queue.remainingCapacity());
+        Assert.assertEquals("urgent 0", queue.peek().getElement());
+
+        Assert.assertEquals(Arrays.asList("urgent 0", "normal 0", "low 0", "low 1"), elements(queue));
+        Assert.assertEquals("urgent 0", queue.poll().getElement());
+        Assert.assertTrue(queue.offer(envelope("urgent 1")));
+        Assert.assertEquals("urgent 1", queue.poll().getElement());
+        Assert.assertEquals("normal 0", queue.poll().getElement());
+        Assert.assertEquals("low 0", queue.poll().getElement());
+    }
+
+    @Test
+    public void testOfferAllAndDrain() {
+        PriorityBucketBlockingQueue<String> queue = new PriorityBucketBlockingQueue<String>(3, 3, PRIORITIZER);
+        queue.offer(envelope("low 0"));
+
+        Assert.assertEquals(0, queue.offerAll(envelopes("normal 0", "urgent 0", "low 1"), true));
+        Assert.assertEquals(2, queue.offerAll(envelopes("normal 0", "urgent 0", "low 1"), false));
+        List<Envelope<String>> drained = new ArrayList<Envelope<String>>();
+        Assert.assertEquals(3, queue.drainTo(drained));
+
+        Assert.assertEquals("urgent 0", drained.get(0).getElement());
+        Assert.assertEquals("normal 0", drained.get(1).getElement());
+        Assert.assertEquals("low 0", drained.get(2).getElement());
+        Assert.assertTrue(queue.isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsUnknownPriority() {
+        new PriorityBucketBlockingQueue<String>(2, PRIORITIZER).offer(envelope("low"));
+    }
+
+    @Test
+    public void testRedeliveryKeepsItsPriority() throws InterruptedException {
+        LinkedBlockingQueueWithAck<String> queue = new LinkedBlockingQueueWithAck.Builder<String>(50)
+                .maximumRetries(2).priorities(3, PRIORITIZER).build();
+        queue.addAll(Arrays.asList("low 0", "low 1", "urgent 0"));
+
+        Assert.assertEquals("urgent 0", queue.take());
+        queue.acknowledge("urgent 0", BlockingQueueWithAck.Acknowledgement.NACK);
+        Assert.assertEquals("urgent 0", queue.take());
+        queue.add("normal 0");
+        Assert.assertEquals("normal 0", queue.take());
+
+        //both deliveries time out and go back ahead of the backlog
+        Thread.sleep(200);
+        Assert.assertEquals("urgent 0", queue.take());
+        Assert.assertEquals("normal 0", queue.take());
+        Assert.assertEquals("low 0", queue.take());
+        queue.close();
+    }
+
+    @Test
+    public void testPoisonedAtItsPriority() throws InterruptedException {
+        LinkedBlockingQueueWithAck<String> queue = new LinkedBlockingQueueWithAck.Builder<String>(1000)
+                .maximumRetries(1).priorities(3, PRIORITIZER).build();
+        queue.addAll(Arrays.asList("low 0", "urgent 0"));
+
+        for (int i = 0; i < 2; i++) {
+            Assert.assertEquals("urgent 0", queue.take());
+            queue.acknowledge("urgent 0", BlockingQueueWithAck.Acknowledgement.NACK);
+        }
+
+        Assert.assertEquals("urgent 0", queue.poisonedElements().peek());
+        Assert.assertEquals("low 0", queue.take());
+        queue.acknowledge("low 0", BlockingQueueWithAck.Acknowledgement.ACK);
+        Assert.assertTrue(queue.isEmpty());
+        queue.close();
+    }
+
+    @Test
+    public void testConcurrentProducersAndConsumers() throws Exception {
+        final PriorityBucketBlockingQueue<Integer> queue = new PriorityBucketBlockingQueue<Integer>(4, 16,
+                new Prioritizer<Integer>() {
+                    @Override
+                    public int priorityOf(Integer element) {
+                        return element % 4;
+                    }
+                });
+        final int perProducer = 20000;
+        ExecutorService service = Executors.newFixedThreadPool(8);
+        List<Future<List<Integer>>> consumers = new ArrayList<Future<List<Integer>>>();
+        for (int i = 0; i < 4; i++) {
+            final int producer = i;
+            service.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (int j = 0; j < perProducer; j++) {
+                        queue.put(new Envelope<Integer>(producer * perProducer + j, 0));
+                    }
+                    return null;
+                }
+            });
+            consumers.add(service.submit(new Callable<List<Integer>>() {
+                @Override
+                public List<Integer> call() throws Exception {
+                    List<Integer> taken = new ArrayList<Integer>();
+                    for (int j = 0; j < perProducer; j++) {
+                        taken.add(queue.take().getElement());
+                    }
+                    return taken;
+                }
+            }));
+        }
+        Set<Integer> all = new HashSet<Integer>();
+        for (Future<List<Integer>> consumer : consumers) {
+            all.addAll(consumer.get(30, TimeUnit.SECONDS));
+        }
+        service.shutdown();
+
+        Assert.assertEquals(4 * perProducer, all.size());
+        Assert.assertTrue(queue.isEmpty());
+    }
+
+    private Envelope<String> envelope(String element) {
+        return new Envelope<String>(element, System.nanoTime());
+    }
+
+    private List<Envelope<String>> envelopes(String... elements) {
+        List<Envelope<String>> envelopes = new ArrayList<Envelope<String>>();
+        for (String element : elements) {
+            envelopes.add(envelope(element));
+        }
+        return envelopes;
+    }
+
+    private List<String> elements(PriorityBucketBlockingQueue<String> queue) {
+        List<String> elements = new ArrayList<String>();
+        for (Envelope<String> envelope : queue) {
+            elements.add(envelope.getElement());
+        }
+        return elements;
+    }
+}
@@ -0,0 +1,148 @@
+package org.gmelo.collection;
+
+import junit.framework.Assert;
+import org.gmelo.collection.impl.LinkedBlockingQueueWithAck;
+import org.gmelo.collection.impl.QueuePublisher;
+import org.junit.Test;
+
+import java.util.concurrent.*;
+
+/**
+ * User: GMelo
+ */
+public class QueuePublisherTest {
+
+    @Test
+    public void testDeliversOnlyTheElementsRequested() throws Exception {
+        LinkedBlockingQueueWithAck<Integer> queue = new LinkedBlockingQueueWithAck<Integer>(5000);
+        for (int i = 0; i < 10; i++) {
+            queue.add(i);
+        }
+        RecordingSubscriber<Integer> subscriber = new RecordingSubscriber<Integer>();
+        new QueuePublisher<Integer>(queue, true).subscribe(subscriber);
+
+        subscriber.subscription.get(1, TimeUnit.SECONDS).request(3);
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(Integer.valueOf(i), subscriber.next(1, TimeUnit.SECONDS).getElement());
+        }
+        Assert.assertNull(subscriber.next(100, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(7, queue.size());
+        Assert.assertEquals(3, queue.metrics().getAcknowledged());
+        Assert.assertEquals(0, queue.numberOfElementsWaitingForAck());
+
+        subscriber.subscription.get().request(Long.MAX_VALUE);
+        for (int i = 3; i < 10; i++) {
+            Assert.assertEquals(Integer.valueOf(i), subscriber.next(1, TimeUnit.SECONDS).getElement());
+        }
+        queue.add(10);
+        Assert.assertEquals(Integer.valueOf(10), subscriber.next(1, TimeUnit.SECONDS).getElement());
+        queue.close();
+        Assert.assertTrue(subscriber.completed.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testFailingSubscriberNegativelyAcknowledges() throws Exception {
+        LinkedBlockingQueueWithAck<String> queue = new LinkedBlockingQueueWithAck<String>(5000);
+        queue.add("element");
+        RecordingSubscriber<String> subscriber = new RecordingSubscriber<String>() {
+            @Override
+            public void onNext(Delivery<String> delivery) {
+                super.onNext(delivery);
+                throw new IllegalStateException("failed " + delivery.getElement());
+            }
+        };
+        new QueuePublisher<String>(queue, true).subscribe(subscriber);
+        subscriber.subscription.get(1, TimeUnit.SECONDS).request(5);
+
+        Assert.assertEquals("element", subscriber.next(1, TimeUnit.SECONDS).getElement());
+        Assert.assertEquals("element", queue.poll(1, TimeUnit.SECONDS));
+        Assert.assertEquals(1, queue.metrics().getNegativelyAcknowledged());
+
+        queue.add("after");
+        Assert.assertNull(subscriber.next(100, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(1, queue.size());
+        queue.close();
+    }
+
+    @Test
+    public void testManualAcknowledgement() throws Exception {
+        LinkedBlockingQueueWithAck<String> queue = new LinkedBlockingQueueWithAck<String>(5000);
+        queue.add("element");
+        RecordingSubscriber<String> subscriber = new RecordingSubscriber<String>();
+        new QueuePublisher<String>(queue, false).subscribe(subscriber);
+        subscriber.subscription.get(1, TimeUnit.SECONDS).request(1);
+
+        Delivery<String> delivery = subscriber.next(1, TimeUnit.SECONDS);
+        Assert.assertEquals(1, queue.numberOfElementsWaitingForAck());
+        queue.acknowledge(delivery.getTag(), BlockingQueueWithAck.Acknowledgement.ACK);
+        Assert.assertEquals(0, queue.numberOfElementsWaitingForAck());
+        queue.close();
+    }
+
+    @Test
+    public void testNonPositiveRequestFailsTheSubscriber() throws Exception {
+        LinkedBlockingQueueWithAck<String> queue = new LinkedBlockingQueueWithAck<String>(5000);
+        RecordingSubscriber<String> subscriber = new RecordingSubscriber<String>();
+        new QueuePublisher<String>(queue, true).subscribe(subscriber);
+        subscriber.subscription.get(1, TimeUnit.SECONDS).request(0);
+
+        Assert.assertTrue(subscriber.error.get(1, TimeUnit.SECONDS) instanceof IllegalArgumentException);
+        queue.add("element");
+        Assert.assertEquals("element", queue.poll());
+        queue.close();
+    }
+
+    private static class RecordingSubscriber<T> implements Flow.Subscriber<Delivery<T>> {
+
+        private final CompletableFuture<Flow.Subscription> subscription = new CompletableFuture<Flow.Subscription>();
+        private final BlockingQueue<Delivery<T>> received = new LinkedBlockingQueue<Delivery<T>>();
+        private final CompletableFuture<Throwable> error = new CompletableFuture<Throwable>();
+        private final CountDownLatch completed = new CountDownLatch(1);
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription.complete(subscription);
+        }
+
+        @Override
+        public void onNext(Delivery<T> delivery) {
+            //the delivery is only valid until it is acknowledged
+            received.add(new Received<T>(delivery.getTag(), delivery.getElement()));
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error.complete(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            completed.countDown();
+        }
+
+        public Delivery<T> next(long timeout, TimeUnit unit) throws InterruptedException {
+            return received.poll(timeout, unit);
+        }
+    }
+
+    private static class Received<T> implements Delivery<T> {
+
+        private final long tag;
+        private final T element;
+
+        private Received(long tag, T element) {
+            this.tag = tag;
+            this.element = element;
+        }
+
+        @Override
+        public long getTag() {
+            return tag;
+        }
+
+        @Override
+        public T getElement() {
+            return element;
+        }
+    }
+}
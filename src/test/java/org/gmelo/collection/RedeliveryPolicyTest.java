@@ -0,0 +1,131 @@
+package org.gmelo.collection;
+
+import junit.framework.Assert;
+import org.gmelo.collection.impl.LinkedBlockingQueueWithAck;
+import org.gmelo.collection.impl.redelivery.ExponentialBackoffRedeliveryPolicy;
+import org.gmelo.collection.impl.redelivery.FixedRedeliveryPolicy;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * User: GMelo
+ */
+public class RedeliveryPolicyTest {
+
+    @Test
+    public void testExponentialBackoffWithoutJitter() {
+        RedeliveryPolicy policy = new ExponentialBackoffRedeliveryPolicy(100, 1000, TimeUnit.MILLISECONDS, 2, 0);
+
+        Assert.assertEquals(100, policy.redeliveryDelay(1));
+        Assert.assertEquals(200, policy.redeliveryDelay(2));
+        Assert.assertEquals(800, policy.redeliveryDelay(4));
+        Assert.assertEquals(1000, policy.redeliveryDelay(5));
+        Assert.assertEquals(1000, policy.redeliveryDelay(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void testJitterStaysWithinBounds() {
+        RedeliveryPolicy policy = new ExponentialBackoffRedeliveryPolicy(1, 60, TimeUnit.SECONDS);
+        for (int i = 0; i < 1000; i++) {
+            long delay = policy.redeliveryDelay(3);
+            Assert.assertTrue(String.valueOf(delay), delay >= 2000 && delay <= 4000);
+        }
+    }
+
+    @Test
+    public void testJitteredDelayStaysBetweenItsShareAndTheExactDelay() {
+        RedeliveryPolicy exact = new ExponentialBackoffRedeliveryPolicy(10, 10000, TimeUnit.MILLISECONDS, 1.5, 0);
+        for (double jitter : new double[]{0, 0.1, 0.5, 1}) {
+            RedeliveryPolicy policy = new ExponentialBackoffRedeliveryPolicy(10, 10000, TimeUnit.MILLISECONDS, 1.5,
+                    jitter);
+            for (int requeues = 1; requeues <= 40; requeues++) {
+                long expected = exact.redeliveryDelay(requeues);
+                for (int i = 0; i < 100; i++) {
+                    long delay = policy.redeliveryDelay(requeues);
+                    String message = "jitter " + jitter + ", requeues " + requeues + ": " + delay;
+                    //the delay is rounded to the millisecond
+                    Assert.assertTrue(message, delay >= Math.floor((1 - jitter) * expected));
+                    Assert.assertTrue(message, delay <= expected);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testDelaySaturatesAtTheMaximum() {
+        RedeliveryPolicy policy = new ExponentialBackoffRedeliveryPolicy(1, 5, TimeUnit.MINUTES, 10, 0);
+        RedeliveryPolicy jittered = new ExponentialBackoffRedeliveryPolicy(1, 5, TimeUnit.MINUTES, 10, 0.5);
+        RedeliveryPolicy immediate = new ExponentialBackoffRedeliveryPolicy(0, 5, TimeUnit.MINUTES, 10, 0);
+        long maximum = TimeUnit.MINUTES.toMillis(5);
+
+        //10^1000 overflows a double
+        for (int requeues : new int[]{3, 100, 1001, 100000, Integer.MAX_VALUE}) {
+            Assert.assertEquals(maximum, policy.redeliveryDelay(requeues));
+            long delay = jittered.redeliveryDelay(requeues);
+            Assert.assertTrue(String.valueOf(delay), delay >= maximum / 2 && delay <= maximum);
+            Assert.assertEquals(0, immediate.redeliveryDelay(requeues));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsMaximumBelowInitialDelay() {
+        new ExponentialBackoffRedeliveryPolicy(10, 1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testNackedElementWaitsForTheFixedDelay() throws InterruptedException {
+        LinkedBlockingQueueWithAck<String> queue = new LinkedBlockingQueueWithAck.Builder<String>(1000)
+                .redeliveryPolicy(new FixedRedeliveryPolicy(200, TimeUnit.MILLISECONDS)).build();
+        queue.add("a");
+        queue.add("b");
+
+        Assert.assertEquals("a", queue.take());
+        long nacked = System.nanoTime();
+        queue.acknowledge("a", BlockingQueueWithAck.Acknowledgement.NACK);
+        Assert.assertEquals(1, queue.size());
+        Assert.assertEquals("b", queue.take());
+        queue.acknowledge("b", BlockingQueueWithAck.Acknowledgement.ACK);
+
+        Assert.assertEquals("a", queue.poll(2, TimeUnit.SECONDS));
+        Assert.assertTrue(System.nanoTime() - nacked >= TimeUnit.MILLISECONDS.toNanos(200));
+        queue.acknowledge("a", BlockingQueueWithAck.Acknowledgement.ACK);
+        queue.close();
+    }
+
+    @Test
+    public void testNegativeAcknowledgementOverridesThePolicy() throws InterruptedException {
+        LinkedBlockingQueueWithAck<String> queue = new LinkedBlockingQueueWithAck.Builder<String>(1000)
+                .redeliveryPolicy(new FixedRedeliveryPolicy(1, TimeUnit.HOURS)).build();
+        queue.add("a");
+
+        Delivery<String> delivery = queue.takeDelivery();
+        queue.negativelyAcknowledge(delivery.getTag(), 0, TimeUnit.MILLISECONDS);
+        Assert.assertEquals("a", queue.poll());
+
+        queue.acknowledge("a", BlockingQueueWithAck.Acknowledgement.NACK);
+        Assert.assertNull(queue.poll(100, TimeUnit.MILLISECONDS));
+        queue.close();
+    }
+
+    @Test
+    public void testOfferDelayed() throws InterruptedException {
+        LinkedBlockingQueueWithAck<String> queue = new LinkedBlockingQueueWithAck.Builder<String>(1000)
+                .capacity(1).build();
+        long offered = System.nanoTime();
+        Assert.assertTrue(queue.offerDelayed("later", 100, TimeUnit.MILLISECONDS));
+        Assert.assertTrue(queue.offer("now"));
+        Assert.assertEquals(1, queue.size());
+
+        //the delayed element waits for room in the queue
+        Thread.sleep(300);
+        Assert.assertEquals("now", queue.take());
+        queue.acknowledge("now", BlockingQueueWithAck.Acknowledgement.ACK);
+        Assert.assertEquals("later", queue.poll(1, TimeUnit.SECONDS));
+        Assert.assertTrue(System.nanoTime() - offered >= TimeUnit.MILLISECONDS.toNanos(100));
+        queue.acknowledge("later", BlockingQueueWithAck.Acknowledgement.ACK);
+
+        queue.close();
+        Assert.assertFalse(queue.offerDelayed("closed", 100, TimeUnit.MILLISECONDS));
+    }
+}
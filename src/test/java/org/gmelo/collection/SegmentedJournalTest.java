@@ -0,0 +1,268 @@
+package org.gmelo.collection;
+
+import junit.framework.Assert;
+import org.gmelo.collection.impl.LinkedBlockingQueueWithAck;
+import org.gmelo.collection.impl.codec.StringCodec;
+import org.gmelo.collection.impl.journal.SegmentedJournal;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * User: GMelo
+ */
+public class SegmentedJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRecoversUnacknowledgedElements() throws Exception {
+        File directory = folder.newFolder("journal");
+        LinkedBlockingQueueWithAck<String> queue = durableQueue(directory);
+        queue.addAll(Arrays.asList("Acked", "InFlight", "Ready"));
+        queue.acknowledge(queue.takeDelivery().getTag(), BlockingQueueWithAck.Acknowledgement.ACK);
+        Assert.assertEquals("InFlight", queue.take());
+        queue.close();
+
+        queue = durableQueue(directory);
+
+        Assert.assertEquals(2, queue.size());
+        Assert.assertEquals("InFlight", queue.take());
+        Assert.assertEquals("Ready", queue.take());
+        queue.close();
+    }
+
+    @Test
+    public void testRequeuedElementIsRecoveredOnce() throws Exception {
+        File directory = folder.newFolder("journal");
+        LinkedBlockingQueueWithAck<String> queue = durableQueue(directory);
+        queue.add("Message");
+        queue.acknowledge(queue.takeDelivery().getTag(), BlockingQueueWithAck.Acknowledgement.NACK);
+        Assert.assertEquals("Message", queue.take());
+        queue.close();
+
+        queue = durableQueue(directory);
+
+        Assert.assertEquals(1, queue.size());
+        queue.close();
+    }
+
+    @Test
+    public void testElementThatWasNotInsertedIsNotRecovered() throws Exception {
+        File directory = folder.newFolder("journal");
+        LinkedBlockingQueueWithAck<String> queue = new LinkedBlockingQueueWithAck.Builder<String>(1000)
+                .capacity(1).journal(new SegmentedJournal(directory)).codec(new StringCodec()).build();
+        Assert.assertTrue(queue.offer("Inserted"));
+        Assert.assertFalse(queue.offer("Rejected"));
+        queue.close();
+
+        queue = durableQueue(directory);
+
+        Assert.assertEquals(1, queue.size());
+        Assert.assertEquals("Inserted", queue.peek());
+        queue.close();
+    }
+
+    @Test
+    public void testPoisonsElementThatKeepsCrashingItsConsumer() throws Exception {
+        File directory = folder.newFolder("journal");
+        for (int i = 0; i < 2; i++) {
+            LinkedBlockingQueueWithAck<String> queue = new LinkedBlockingQueueWithAck.Builder<String>(1000)
+                    .maximumRetries(1).journal(new SegmentedJournal(directory)).build();
+            if (i == 0) {
+                queue.add("Poison");
+            }
+            Assert.assertEquals("Poison", queue.take());
+            queue.close();
+        }
+
+        LinkedBlockingQueueWithAck<String> queue = new LinkedBlockingQueueWithAck.Builder<String>(1000)
+                .maximumRetries(1).journal(new SegmentedJournal(directory)).build();
+
+        Assert.assertTrue(queue.isEmpty());
+        Assert.assertEquals("Poison", queue.poisonedElements().peek());
+        queue.close();
+    }
+
+    @Test
+    public void testDeletesSegmentsOnceAcknowledged() throws Exception {
+        File directory = folder.newFolder("journal");
+        SegmentedJournal journal = new SegmentedJournal(directory, 256, 10, TimeUnit.MILLISECONDS);
+        LinkedBlockingQueueWithAck<String> queue = new LinkedBlockingQueueWithAck.Builder<String>(1000)
+                .journal(journal).build();
+        for (int i = 0; i < 100; i++) {
+            queue.add("Message " + i);
+        }
+        Assert.assertTrue(journal.numberOfSegments() > 10);
+
+        for (int i = 0; i < 100; i++) {
+            queue.acknowledge(queue.takeDelivery().getTag(), BlockingQueueWithAck.Acknowledgement.ACK);
+        }
+        //segments are deleted once the acknowledgements are on disk
+        journal.sync();
+
+        Assert.assertEquals(1, journal.numberOfSegments());
+        Assert.assertEquals(1, directory.list().length);
+        queue.close();
+
+        queue = durableQueue(directory);
+        Assert.assertTrue(queue.isEmpty());
+        queue.close();
+    }
+
+    @Test
+    public void testDiscardsTornRecord() throws Exception {
+        File directory = folder.newFolder("journal");
+        LinkedBlockingQueueWithAck<String> queue = durableQueue(directory);
+        queue.add("Message");
+        queue.close();
+        File[] segments = directory.listFiles();
+        Assert.assertEquals(1, segments.length);
+        appendGarbage(segments[0]);
+
+        queue = durableQueue(directory);
+        Assert.assertEquals("Message", queue.take());
+        queue.add("Another Message");
+        queue.close();
+
+        queue = durableQueue(directory);
+        Assert.assertEquals(2, queue.size());
+        queue.close();
+    }
+
+    @Test
+    public void testConcurrentProducersAreDurable() throws Exception {
+        File directory = folder.newFolder("journal");
+        final LinkedBlockingQueueWithAck<String> queue = durableQueue(directory);
+        ExecutorService service = Executors.newFixedThreadPool(4);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int i = 0; i < 4; i++) {
+            final int producer = i;
+            futures.add(service.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (int j = 0; j < 100; j++) {
+                        queue.put("Message " + producer + "-" + j);
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get(10, TimeUnit.SECONDS);
+        }
+        service.shutdown();
+        queue.close();
+
+        LinkedBlockingQueueWithAck<String> recovered = durableQueue(directory);
+        Assert.assertEquals(400, recovered.size());
+        recovered.close();
+    }
+
+    @Test
+    public void testRecoversElementLargerThanWriteBuffer() throws Exception {
+        File directory = folder.newFolder("journal");
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; builder.length() < 1024 * 1024; i++) {
+            builder.append("Message ").append(i).append('\n');
+        }
+        String large = builder.toString();
+        LinkedBlockingQueueWithAck<String> queue = durableQueue(directory);
+        queue.addAll(Arrays.asList("Small", large, "Another Small"));
+        queue.close();
+
+        queue = durableQueue(directory);
+
+        Assert.assertEquals(Arrays.asList("Small", large, "Another Small"), Arrays.asList(queue.toArray()));
+        queue.close();
+    }
+
+    @Test
+    public void testRequeuedElementSurvivesACrashBeforeTheFlush() throws Exception {
+        File directory = folder.newFolder("journal");
+        //every element starts a segment, records only reach the disk when a segment is started or synced
+        SegmentedJournal journal = new SegmentedJournal(directory, 1, 1, TimeUnit.HOURS);
+        StringCodec codec = new StringCodec();
+        long id = journal.enqueue("Message", codec);
+        journal.delivered(id);
+        journal.requeued(id, 1, "Message", codec);
+
+        //the new ENQUEUE is still in memory, the segment of the old one must still be on disk
+        File crashed = folder.newFolder("crashed");
+        copySegments(directory, crashed);
+        SegmentedJournal recovered = new SegmentedJournal(crashed);
+        List<SegmentedJournal.Entry> entries = recovered.recover();
+        recovered.close();
+        Assert.assertEquals(1, entries.size());
+        Assert.assertEquals("Message", codec.decode(ByteBuffer.wrap(entries.get(0).getPayload())));
+
+        //once the new ENQUEUE is durable the old segment goes
+        Assert.assertEquals(2, journal.numberOfSegments());
+        journal.sync();
+        Assert.assertEquals(1, journal.numberOfSegments());
+        journal.close();
+    }
+
+    @Test
+    public void testWriteFailureStopsTheJournal() throws Exception {
+        SegmentedJournal journal = new SegmentedJournal(folder.newFolder("journal"));
+        StringCodec codec = new StringCodec();
+        journal.enqueue("Message", codec);
+        journal.sync();
+        //the next write of the flusher fails
+        Field current = SegmentedJournal.class.getDeclaredField("current");
+        current.setAccessible(true);
+        Object segment = current.get(journal);
+        Field file = segment.getClass().getDeclaredField("file");
+        file.setAccessible(true);
+        ((RandomAccessFile) file.get(segment)).close();
+
+        journal.enqueue("Lost", codec);
+        try {
+            journal.sync();
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertTrue(e.getCause() instanceof IOException);
+        }
+        try {
+            journal.enqueue("Rejected", codec);
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            //expected
+        }
+        journal.close();
+    }
+
+    private LinkedBlockingQueueWithAck<String> durableQueue(File directory) throws IOException {
+        return new LinkedBlockingQueueWithAck.Builder<String>(1000)
+                .journal(new SegmentedJournal(directory)).codec(new StringCodec()).build();
+    }
+
+    private void copySegments(File from, File to) throws IOException {
+        for (File segment : from.listFiles()) {
+            Files.copy(segment.toPath(), new File(to, segment.getName()).toPath());
+        }
+    }
+
+    private void appendGarbage(File file) throws IOException {
+        FileOutputStream output = new FileOutputStream(file, true);
+        try {
+            output.write(new byte[]{0, 0, 0, 42, 1, 2, 3});
+        } finally {
+            output.close();
+        }
+    }
+}
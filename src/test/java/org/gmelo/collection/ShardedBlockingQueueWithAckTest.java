@@ -0,0 +1,196 @@
+package org.gmelo.collection;
+
+import junit.framework.Assert;
+import org.gmelo.collection.impl.ShardedBlockingQueueWithAck;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * User: GMelo
+ */
+public class ShardedBlockingQueueWithAckTest {
+
+    //the account of "account-message" elements
+    private static final KeyExtractor<String> ACCOUNT = new KeyExtractor<String>() {
+        @Override
+        public Object keyOf(String element) {
+            return element.substring(0, element.indexOf('-'));
+        }
+    };
+
+    @Test
+    public void testAcknowledgeByTagAcrossShards() throws InterruptedException {
+        ShardedBlockingQueueWithAck<String> queue = new ShardedBlockingQueueWithAck.Builder<String>(1000)
+                .shards(4).shardBy(ACCOUNT).build();
+        for (int i = 0; i < 20; i++) {
+            queue.add(i + "-message");
+        }
+        Assert.assertEquals(20, queue.size());
+
+        Set<Long> tags = new HashSet<Long>();
+        List<Delivery<String>> deliveries = new ArrayList<Delivery<String>>();
+        for (int i = 0; i < 20; i++) {
+            Delivery<String> delivery = queue.takeDelivery();
+            Assert.assertTrue(tags.add(delivery.getTag()));
+            deliveries.add(delivery);
+        }
+        Assert.assertTrue(queue.isEmpty());
+        Assert.assertEquals(20, queue.numberOfElementsWaitingForAck());
+
+        queue.acknowledgeBatch(deliveries.subList(0, 19), BlockingQueueWithAck.Acknowledgement.ACK);
+        queue.acknowledge(deliveries.get(19).getTag(), BlockingQueueWithAck.Acknowledgement.NACK);
+        Assert.assertEquals(deliveries.get(19).getElement(), queue.take());
+        queue.acknowledge(deliveries.get(19).getElement(), BlockingQueueWithAck.Acknowledgement.ACK);
+
+        Assert.assertEquals(0, queue.numberOfElementsWaitingForAck());
+        Assert.assertEquals(20, queue.metrics().getEnqueued());
+        Assert.assertEquals(21, queue.metrics().getDelivered());
+        Assert.assertEquals(20, queue.metrics().getAcknowledged());
+        queue.close();
+    }
+
+    @Test
+    public void testForeignTagsAreIgnored() throws InterruptedException {
+        ShardedBlockingQueueWithAck<String> queue = new ShardedBlockingQueueWithAck.Builder<String>(1000)
+                .shards(3).build();
+        queue.add("0-message");
+        Delivery<String> delivery = queue.takeDelivery();
+
+        for (long tag : new long[]{-1, -delivery.getTag(), Long.MIN_VALUE, Long.MAX_VALUE, 0}) {
+            queue.acknowledge(tag, BlockingQueueWithAck.Acknowledgement.ACK);
+            queue.negativelyAcknowledge(tag, 0, TimeUnit.MILLISECONDS);
+            queue.negativelyAcknowledge(tag, "failed");
+            Assert.assertFalse(queue.extendLease(tag, 1, TimeUnit.SECONDS));
+        }
+
+        Assert.assertEquals(1, queue.numberOfElementsWaitingForAck());
+        Assert.assertEquals(0, queue.size());
+        queue.acknowledge(delivery.getTag(), BlockingQueueWithAck.Acknowledgement.ACK);
+        Assert.assertEquals(0, queue.numberOfElementsWaitingForAck());
+        queue.close();
+    }
+
+    @Test
+    public void testConsumerStealsFromOtherShards() throws Exception {
+        final ShardedBlockingQueueWithAck<String> queue = new ShardedBlockingQueueWithAck.Builder<String>(1000)
+                .shards(4).build();
+        //every element goes to the home shard of this thread
+        for (int i = 0; i < 10; i++) {
+            queue.add("element " + i);
+        }
+
+        ExecutorService service = Executors.newFixedThreadPool(3);
+        List<Future<String>> taken = new ArrayList<Future<String>>();
+        for (int i = 0; i < 10; i++) {
+            taken.add(service.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    String element = queue.poll(1, TimeUnit.SECONDS);
+                    queue.acknowledge(element, BlockingQueueWithAck.Acknowledgement.ACK);
+                    return element;
+                }
+            }));
+        }
+        Set<String> elements = new HashSet<String>();
+        for (Future<String> element : taken) {
+            elements.add(element.get(5, TimeUnit.SECONDS));
+        }
+        service.shutdown();
+
+        Assert.assertEquals(10, elements.size());
+        Assert.assertEquals(0, queue.numberOfElementsWaitingForAck());
+        queue.close();
+    }
+
+    @Test
+    public void testBlockedConsumerSeesElementsOfOtherShards() throws Exception {
+        final ShardedBlockingQueueWithAck<String> queue = new ShardedBlockingQueueWithAck.Builder<String>(1000)
+                .shards(4).shardBy(ACCOUNT).build();
+        Future<String> taken = Executors.newSingleThreadExecutor().submit(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return queue.take();
+            }
+        });
+        Thread.sleep(50);
+        queue.add("a-message");
+        Assert.assertEquals("a-message", taken.get(1, TimeUnit.SECONDS));
+        queue.close();
+    }
+
+    @Test
+    public void testPoisonedElementsOfEveryShard() throws InterruptedException {
+        ShardedBlockingQueueWithAck<String> queue = new ShardedBlockingQueueWithAck.Builder<String>(1000)
+                .shards(3).maximumRetries(1).shardBy(ACCOUNT).build();
+        queue.addAll(Arrays.asList("a-0", "b-0", "c-0", "d-0"));
+
+        for (int i = 0; i < 8; i++) {
+            queue.acknowledge(queue.take(), BlockingQueueWithAck.Acknowledgement.NACK);
+        }
+
+        Assert.assertEquals(new HashSet<String>(Arrays.asList("a-0", "b-0", "c-0", "d-0")),
+                new HashSet<String>(queue.poisonedElements()));
+        Assert.assertEquals(4, queue.metrics().getDeadLettered());
+        Assert.assertTrue(queue.isEmpty());
+        queue.close();
+    }
+
+    @Test
+    public void testCapacityIsPerShard() {
+        ShardedBlockingQueueWithAck<String> queue = new ShardedBlockingQueueWithAck.Builder<String>(1000)
+                .shards(2).capacity(2).shardBy(ACCOUNT).build();
+        Assert.assertEquals(4, queue.remainingCapacity());
+
+        Assert.assertEquals(0, queue.offerAll(Arrays.asList("a-0", "a-1", "a-2"), true));
+        Assert.assertEquals(2, queue.offerAll(Arrays.asList("a-0", "a-1", "a-2"), false));
+        Assert.assertFalse(queue.offer("a-3"));
+        Assert.assertEquals(2, queue.size());
+        Assert.assertEquals(Arrays.asList("a-0", "a-1"), Arrays.asList(queue.toArray(new String[0])));
+        queue.close();
+    }
+
+    @Test
+    public void testConcurrentProducersAndConsumers() throws Exception {
+        final ShardedBlockingQueueWithAck<Integer> queue = new ShardedBlockingQueueWithAck.Builder<Integer>(5000)
+                .shards(4).build();
+        final int perProducer = 20000;
+        ExecutorService service = Executors.newFixedThreadPool(8);
+        List<Future<List<Integer>>> consumers = new ArrayList<Future<List<Integer>>>();
+        for (int i = 0; i < 4; i++) {
+            final int producer = i;
+            service.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (int j = 0; j < perProducer; j++) {
+                        queue.put(producer * perProducer + j);
+                    }
+                    return null;
+                }
+            });
+            consumers.add(service.submit(new Callable<List<Integer>>() {
+                @Override
+                public List<Integer> call() throws Exception {
+                    List<Integer> taken = new ArrayList<Integer>();
+                    for (int j = 0; j < perProducer; j++) {
+                        Delivery<Integer> delivery = queue.takeDelivery();
+                        queue.acknowledge(delivery.getTag(), BlockingQueueWithAck.Acknowledgement.ACK);
+                        taken.add(delivery.getElement());
+                    }
+                    return taken;
+                }
+            }));
+        }
+        Set<Integer> all = new HashSet<Integer>();
+        for (Future<List<Integer>> consumer : consumers) {
+            all.addAll(consumer.get(30, TimeUnit.SECONDS));
+        }
+        service.shutdown();
+
+        Assert.assertEquals(4 * perProducer, all.size());
+        Assert.assertTrue(queue.isEmpty());
+        Assert.assertEquals(0, queue.numberOfElementsWaitingForAck());
+        queue.close();
+    }
+}
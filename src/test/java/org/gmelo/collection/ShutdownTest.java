@@ -0,0 +1,320 @@
+package org.gmelo.collection;
+
+import junit.framework.Assert;
+import org.gmelo.collection.impl.LinkedBlockingQueueWithAck;
+import org.gmelo.collection.impl.ShardedBlockingQueueWithAck;
+import org.gmelo.collection.impl.expiry.ExpiryScheduler;
+import org.gmelo.collection.impl.expiry.HashedWheelExpiryEngine;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * User: GMelo
+ */
+public class ShutdownTest {
+
+    private static final KeyExtractor<String> ACCOUNT = new KeyExtractor<String>() {
+        @Override
+        public Object keyOf(String element) {
+            return element.substring(0, element.indexOf('-'));
+        }
+    };
+
+    @Test
+    public void testShutdownHandsOverReadyAndUnacknowledgedElements() throws Exception {
+        final LinkedBlockingQueueWithAck<String> queue = new LinkedBlockingQueueWithAck<String>(5000);
+        queue.addAll(Arrays.asList("acknowledged", "abandoned", "ready", "last"));
+        final Delivery<String> acknowledged = queue.takeDelivery();
+        queue.takeDelivery();
+
+        ScheduledExecutorService consumer = Executors.newSingleThreadScheduledExecutor();
+        consumer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                queue.acknowledge(acknowledged.getTag(), BlockingQueueWithAck.Acknowledgement.ACK);
+            }
+        }, 50, TimeUnit.MILLISECONDS);
+        List<String> remaining = queue.shutdown(300, TimeUnit.MILLISECONDS);
+        consumer.shutdown();
+
+        Assert.assertEquals(Arrays.asList("ready", "last", "abandoned"), remaining);
+        Assert.assertEquals(1, queue.metrics().getAcknowledged());
+        Assert.assertEquals(0, queue.numberOfElementsWaitingForAck());
+        Assert.assertEquals(0, queue.size());
+        Assert.assertFalse(queue.offer("rejected"));
+        try {
+            queue.add("rejected");
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            //expected
+        }
+    }
+
+    @Test
+    public void testShutdownReturnsOnceEveryDeliveryIsSettled() throws Exception {
+        final LinkedBlockingQueueWithAck<String> queue = new LinkedBlockingQueueWithAck<String>(5000);
+        queue.add("failing");
+        final Delivery<String> delivery = queue.takeDelivery();
+
+        ScheduledExecutorService consumer = Executors.newSingleThreadScheduledExecutor();
+        consumer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                queue.acknowledge(delivery.getTag(), BlockingQueueWithAck.Acknowledgement.NACK);
+            }
+        }, 50, TimeUnit.MILLISECONDS);
+        long start = System.nanoTime();
+        List<String> remaining = queue.shutdown(10, TimeUnit.SECONDS);
+        consumer.shutdown();
+
+        Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        //negatively acknowledged, but not delivered again
+        Assert.assertEquals(Collections.singletonList("failing"), remaining);
+        Assert.assertEquals(1, queue.metrics().getNegativelyAcknowledged());
+    }
+
+    @Test
+    public void testShutdownHandsOverDelayedElements() throws Exception {
+        LinkedBlockingQueueWithAck<String> queue = new LinkedBlockingQueueWithAck<String>(5000);
+        queue.add("retried");
+        queue.negativelyAcknowledge(queue.takeDelivery().getTag(), 1, TimeUnit.HOURS);
+        queue.offerDelayed("scheduled", 1, TimeUnit.HOURS);
+
+        List<String> remaining = queue.shutdown(0, TimeUnit.MILLISECONDS);
+
+        Assert.assertEquals(new HashSet<String>(Arrays.asList("retried", "scheduled")), new HashSet<String>(remaining));
+        Assert.assertFalse(queue.offerDelayed("rejected", 1, TimeUnit.HOURS));
+    }
+
+    @Test
+    public void testShutdownKeepsTheOrderOfEachKey() throws Exception {
+        LinkedBlockingQueueWithAck<String> queue = new LinkedBlockingQueueWithAck.Builder<String>(5000)
+                .orderedByKey(ACCOUNT).build();
+        queue.addAll(Arrays.asList("a-1", "a-2", "b-1", "a-3"));
+        Assert.assertEquals("a-1", queue.take());
+
+        List<String> remaining = queue.shutdown(0, TimeUnit.MILLISECONDS);
+
+        Assert.assertEquals(4, remaining.size());
+        Assert.assertTrue(remaining.indexOf("a-1") < remaining.indexOf("a-2"));
+        Assert.assertTrue(remaining.indexOf("a-2") < remaining.indexOf("a-3"));
+        Assert.assertTrue(remaining.contains("b-1"));
+    }
+
+    @Test
+    public void testDrainToTakesNothingOnceShutdownStarted() throws Exception {
+        final LinkedBlockingQueueWithAck<String> queue = new LinkedBlockingQueueWithAck.Builder<String>(5000)
+                .orderedByKey(ACCOUNT).build();
+        queue.addAll(Arrays.asList("a-1", "a-2"));
+        long tag = queue.takeDelivery().getTag();
+        ExecutorService shutdown = Executors.newSingleThreadExecutor();
+        Future<List<String>> remaining = shutdown.submit(new Callable<List<String>>() {
+            @Override
+            public List<String> call() throws Exception {
+                return queue.shutdown(10, TimeUnit.SECONDS);
+            }
+        });
+        //the queue rejects elements once the shutdown started
+        int probes = 0;
+        while (queue.offer("probe-" + probes)) {
+            probes++;
+            Thread.sleep(1);
+        }
+
+        //the acknowledgement makes a-2 available, for the shutdown to hand over
+        queue.acknowledge(tag, BlockingQueueWithAck.Acknowledgement.ACK);
+        List<String> drained = new ArrayList<String>();
+        Assert.assertEquals(0, queue.drainTo(drained));
+        Assert.assertTrue(drained.isEmpty());
+
+        List<String> handedOver = remaining.get(1, TimeUnit.SECONDS);
+        Assert.assertEquals(probes + 1, handedOver.size());
+        Assert.assertTrue(handedOver.contains("a-2"));
+        Assert.assertEquals(0, queue.numberOfElementsWaitingForAck());
+        shutdown.shutdown();
+    }
+
+    @Test
+    public void testShutdownHandsOverEveryElementOfTheProducersItRacesWith() throws Exception {
+        for (int round = 0; round < 20; round++) {
+            final LinkedBlockingQueueWithAck<Integer> queue = new LinkedBlockingQueueWithAck.Builder<Integer>(5000)
+                    .capacity(16).build();
+            final Set<Integer> accepted = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+            final AtomicBoolean stopped = new AtomicBoolean();
+            final CountDownLatch started = new CountDownLatch(4);
+            ExecutorService producers = Executors.newFixedThreadPool(4);
+            for (int p = 0; p < 4; p++) {
+                final int producer = p;
+                producers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        started.countDown();
+                        for (int i = producer; !stopped.get(); i += 4) {
+                            try {
+                                //put blocks once the storage is full, until the shutdown drains it
+                                if (producer % 2 == 0) {
+                                    queue.put(i);
+                                } else if (!queue.offer(i)) {
+                                    continue;
+                                }
+                                accepted.add(i);
+                            } catch (IllegalStateException e) {
+                                return;
+                            } catch (InterruptedException e) {
+                                return;
+                            }
+                        }
+                    }
+                });
+            }
+            started.await();
+            Thread.sleep(round % 3);
+
+            List<Integer> remaining = queue.shutdown(0, TimeUnit.MILLISECONDS);
+            stopped.set(true);
+            producers.shutdown();
+            Assert.assertTrue(producers.awaitTermination(5, TimeUnit.SECONDS));
+
+            Assert.assertEquals(accepted, new HashSet<Integer>(remaining));
+            Assert.assertEquals(accepted.size(), remaining.size());
+            Assert.assertEquals(0, queue.size());
+        }
+    }
+
+    @Test
+    public void testShutdownWakesConsumersWaitingForAnElement() throws Exception {
+        final LinkedBlockingQueueWithAck<String> queue = new LinkedBlockingQueueWithAck<String>(5000);
+        List<Callable<Object>> takes = new ArrayList<Callable<Object>>();
+        takes.add(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                return queue.take();
+            }
+        });
+        takes.add(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                return queue.takeDelivery();
+            }
+        });
+        takes.add(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                return queue.poll(1, TimeUnit.HOURS);
+            }
+        });
+        takes.add(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                return queue.takeBatch(10, 1, TimeUnit.HOURS);
+            }
+        });
+        final CountDownLatch woken = new CountDownLatch(takes.size());
+        final Set<Thread> interrupted = Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+        ExecutorService consumers = Executors.newFixedThreadPool(takes.size());
+        for (final Callable<Object> take : takes) {
+            consumers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        take.call();
+                    } catch (IllegalStateException e) {
+                        if (Thread.currentThread().isInterrupted()) {
+                            interrupted.add(Thread.currentThread());
+                        }
+                        woken.countDown();
+                    } catch (Exception e) {
+                        //not woken by the shutdown
+                    }
+                }
+            });
+        }
+        //let the consumers wait on the storage
+        Thread.sleep(100);
+
+        Assert.assertEquals(Collections.emptyList(), queue.shutdown(1, TimeUnit.SECONDS));
+
+        Assert.assertTrue(woken.await(1, TimeUnit.SECONDS));
+        Assert.assertTrue(interrupted.isEmpty());
+        Assert.assertNull(queue.poll());
+        try {
+            queue.take();
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            //expected
+        }
+        consumers.shutdown();
+    }
+
+    @Test
+    public void testShutdownReleasesTheExpiryThread() throws Exception {
+        final BlockingQueue<Thread> threads = new LinkedBlockingQueue<Thread>();
+        LinkedBlockingQueueWithAck<String> queue = new LinkedBlockingQueueWithAck.Builder<String>(5000)
+                .expiryThreadFactory(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "expiry");
+                        threads.add(thread);
+                        return thread;
+                    }
+                }).build();
+        queue.add("element");
+
+        Assert.assertEquals(Collections.singletonList("element"), queue.shutdown(1, TimeUnit.SECONDS));
+        Thread thread = threads.poll(1, TimeUnit.SECONDS);
+        thread.join(1000);
+        Assert.assertFalse(thread.isAlive());
+    }
+
+    @Test
+    public void testInterruptedExpiryThreadStops() throws Exception {
+        final BlockingQueue<Thread> threads = new LinkedBlockingQueue<Thread>();
+        ExpiryScheduler scheduler = new ExpiryScheduler(new HashedWheelExpiryEngine(10), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "expiry");
+                threads.add(thread);
+                return thread;
+            }
+        });
+        Thread thread = threads.poll(1, TimeUnit.SECONDS);
+        //let the thread wait on the engine
+        Thread.sleep(50);
+
+        thread.interrupt();
+        thread.join(1000);
+        Assert.assertFalse(thread.isAlive());
+        Assert.assertTrue(scheduler.isShutdown());
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void testShardedShutdownHandsOverEveryShard() throws Exception {
+        final ShardedBlockingQueueWithAck<Integer> queue = new ShardedBlockingQueueWithAck.Builder<Integer>(5000)
+                .shards(4).build();
+        ExecutorService producers = Executors.newFixedThreadPool(4);
+        List<Callable<Boolean>> inserts = new ArrayList<Callable<Boolean>>();
+        for (int i = 0; i < 100; i++) {
+            final int element = i;
+            inserts.add(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return queue.add(element);
+                }
+            });
+        }
+        producers.invokeAll(inserts);
+        producers.shutdown();
+        Delivery<Integer> delivery = queue.takeDelivery();
+
+        List<Integer> remaining = queue.shutdown(0, TimeUnit.MILLISECONDS);
+
+        Assert.assertEquals(100, remaining.size());
+        Assert.assertEquals(100, new HashSet<Integer>(remaining).size());
+        Assert.assertTrue(remaining.contains(delivery.getElement()));
+        Assert.assertFalse(queue.offer(100));
+    }
+}
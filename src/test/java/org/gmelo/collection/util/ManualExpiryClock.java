@@ -0,0 +1,28 @@
+package org.gmelo.collection.util;
+
+import org.gmelo.collection.impl.expiry.ExpiryClock;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Clock that only moves when told to, so that tests decide when deadlines pass.
+ *
+ * User: GMelo
+ */
+public class ManualExpiryClock implements ExpiryClock {
+
+    private final AtomicLong millis;
+
+    public ManualExpiryClock(long millis) {
+        this.millis = new AtomicLong(millis);
+    }
+
+    @Override
+    public long millis() {
+        return millis.get();
+    }
+
+    public void advance(long duration) {
+        millis.addAndGet(duration);
+    }
+}